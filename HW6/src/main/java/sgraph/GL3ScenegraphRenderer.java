@@ -100,11 +100,10 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
     if (mesh.getVertexCount() <= 0) {
       return;
     }
-    K vertexData = mesh.getVertexAttributes().get(0);
     GL3 gl = glContext.getGL().getGL3();
 
     for (Map.Entry<String, String> e : shaderVarsToVertexAttribs.entrySet()) {
-      if (!vertexData.hasData(e.getValue())) {
+      if (!mesh.hasAttribute(e.getValue())) {
         throw new IllegalArgumentException(
             "Mesh does not have vertex attribute " + e.getValue());
       }
@@ -0,0 +1,178 @@
+import com.jogamp.opengl.GLAutoDrawable;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Scanner;
+
+/**
+ * This class represents a configuration file reader that can read the configuration file provided
+ * by command line argument. Configurations read from the config file can be applied to an
+ * initialized view, or read one by one to render without a view.
+ */
+class ConfigurationReader {
+
+  private String objectPath;
+  private float[] fixed_cameraPosition, fixed_centerPosition;
+  private float angle;
+  private int rayTraceThreads, rayTraceTileSize, antiAliasing, maxDepth;
+  private float antiAliasThreshold, minContribution;
+  private boolean russianRoulette, hitCache;
+
+  /**
+   * Construct a ConfigurationReader class that read the config file.
+   *
+   * @param configPath path of the configuration file
+   */
+  ConfigurationReader(String configPath) {
+    this.fixed_cameraPosition = new float[]{0, 0, 500, 0};
+    this.fixed_centerPosition = new float[]{0, 0, 0, 0};
+    this.angle = 120f;
+    this.rayTraceThreads = Runtime.getRuntime().availableProcessors();
+    this.rayTraceTileSize = 32;
+    this.antiAliasing = 1;
+    this.antiAliasThreshold = 0.1f;
+    this.maxDepth = 5;
+    this.minContribution = 0;
+    this.russianRoulette = false;
+    this.hitCache = false;
+
+    Scanner scanner;
+    try {
+      scanner = new Scanner(new FileInputStream(configPath));
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e.getMessage());
+    }
+
+    while (scanner.hasNext()) {
+      String attribution = scanner.next().toLowerCase();
+      switch (attribution) {
+        case "path":
+          this.objectPath = scanner.nextLine().trim();
+          break;
+        case "fix-position":
+          fixed_cameraPosition[0] = scanner.nextFloat();
+          fixed_cameraPosition[1] = scanner.nextFloat();
+          fixed_cameraPosition[2] = scanner.nextFloat();
+          fixed_cameraPosition[3] = 1f;
+          break;
+        case "fix-center":
+          fixed_centerPosition[0] = scanner.nextFloat();
+          fixed_centerPosition[1] = scanner.nextFloat();
+          fixed_centerPosition[2] = scanner.nextFloat();
+          fixed_centerPosition[3] = 1f;
+          break;
+        case "angle-of-view":
+          angle = scanner.nextFloat();
+          break;
+        case "render-threads":
+          rayTraceThreads = scanner.nextInt();
+          break;
+        case "tile-size":
+          rayTraceTileSize = scanner.nextInt();
+          break;
+        case "anti-aliasing":
+          antiAliasing = scanner.nextInt();
+          break;
+        case "anti-alias-threshold":
+          antiAliasThreshold = scanner.nextFloat();
+          break;
+        case "max-depth":
+          maxDepth = scanner.nextInt();
+          break;
+        case "min-contribution":
+          minContribution = scanner.nextFloat();
+          break;
+        case "russian-roulette":
+          russianRoulette = scanner.nextBoolean();
+          break;
+        case "hit-cache":
+          hitCache = scanner.nextBoolean();
+          break;
+      }
+    }
+    scanner.close();
+  }
+
+  /**
+   * Get the class path of the scene graph file
+   */
+  String getObjectPath() {
+    return objectPath;
+  }
+
+  /**
+   * Get the position of the camera
+   */
+  float[] getCameraPosition() {
+    float[] position = new float[3];
+    System.arraycopy(fixed_cameraPosition, 0, position, 0, position.length);
+    return position;
+  }
+
+  /**
+   * Get the point that the camera looks at
+   */
+  float[] getCenterPosition() {
+    float[] position = new float[3];
+    System.arraycopy(fixed_centerPosition, 0, position, 0, position.length);
+    return position;
+  }
+
+  float getAngleOfView() {
+    return angle;
+  }
+
+  int getRayTraceThreads() {
+    return rayTraceThreads;
+  }
+
+  int getRayTraceTileSize() {
+    return rayTraceTileSize;
+  }
+
+  int getAntiAliasing() {
+    return antiAliasing;
+  }
+
+  float getAntiAliasThreshold() {
+    return antiAliasThreshold;
+  }
+
+  int getMaxDepth() {
+    return maxDepth;
+  }
+
+  float getMinContribution() {
+    return minContribution;
+  }
+
+  boolean isRussianRoulette() {
+    return russianRoulette;
+  }
+
+  boolean isHitCache() {
+    return hitCache;
+  }
+
+  /**
+   * Apply the configuration stored in this class, including to a view with a given canvas.
+   *
+   * @param view the view which configuration will be applied to
+   * @param glAutoDrawable the canvas that the scene graph will be initialized
+   * @throws Exception when the scene graph path is not valid
+   */
+  void applyConfig(View view, GLAutoDrawable glAutoDrawable) throws Exception {
+    InputStream in = getClass().getClassLoader().getResourceAsStream(objectPath);
+    System.out.println(objectPath);
+    view.initScenegraph(glAutoDrawable, in);
+    view.setFixedCameraPosition(getCameraPosition());
+    view.setFixedCenterPosition(getCenterPosition());
+    view.setAngleOfView(angle);
+    view.setRayTraceThreads(rayTraceThreads);
+    view.setRayTraceTileSize(rayTraceTileSize);
+    view.setRayTraceAntiAliasing(antiAliasing, antiAliasThreshold);
+    view.setRayTraceDepth(maxDepth, minContribution, russianRoulette);
+    view.setRayTraceHitCache(hitCache);
+  }
+}
@@ -6,13 +6,9 @@ import com.jogamp.opengl.awt.GLCanvas;
 import com.jogamp.opengl.util.AnimatorBase;
 import com.jogamp.opengl.util.FPSAnimator;
 
-import java.io.FileInputStream;
-import java.util.Scanner;
 import javax.swing.*;
 
 import java.awt.event.*;
-import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * Created by ashesh on 9/18/2015.
@@ -147,78 +143,4 @@ public class JOGLFrame extends JFrame {
       JOGLFrame.this.canvas.repaint();
     }
   }
-
-  /**
-   * This class represents a configuration file reader that can read the configuration file provided
-   * by command line argument. Configurations read from the config file can be applied to an
-   * initialized view.
-   */
-  private class ConfigurationReader {
-
-    private String objectPath;
-    private float[] fixed_cameraPosition, fixed_centerPosition;
-    private float angle;
-
-    /**
-     * Construct a ConfigurationReader class that read the config file.
-     *
-     * @param configPath path of the configuration file
-     */
-    ConfigurationReader(String configPath) {
-      this.fixed_cameraPosition = new float[]{0, 0, 500, 0};
-      this.fixed_centerPosition = new float[]{0, 0, 0, 0};
-      this.angle = 120f;
-
-      Scanner scanner;
-      try {
-        scanner = new Scanner(new FileInputStream(configPath));
-      } catch (IOException e) {
-        throw new IllegalArgumentException(e.getMessage());
-      }
-
-      while (scanner.hasNext()) {
-        String attribution = scanner.next().toLowerCase();
-        switch (attribution) {
-          case "path":
-            this.objectPath = scanner.nextLine().trim();
-            break;
-          case "fix-position":
-            fixed_cameraPosition[0] = scanner.nextFloat();
-            fixed_cameraPosition[1] = scanner.nextFloat();
-            fixed_cameraPosition[2] = scanner.nextFloat();
-            fixed_cameraPosition[3] = 1f;
-            break;
-          case "fix-center":
-            fixed_centerPosition[0] = scanner.nextFloat();
-            fixed_centerPosition[1] = scanner.nextFloat();
-            fixed_centerPosition[2] = scanner.nextFloat();
-            fixed_centerPosition[3] = 1f;
-            break;
-          case "angle-of-view":
-            angle = scanner.nextFloat();
-            break;
-        }
-      }
-    }
-
-    /**
-     * Apply the configuration stored in this class, including to a view with a given canvas.
-     *
-     * @param view the view which configuration will be applied to
-     * @param glAutoDrawable the canvas that the scene graph will be initialized
-     * @throws Exception when the scene graph path is not valid
-     */
-    void applyConfig(View view, GLAutoDrawable glAutoDrawable) throws Exception {
-      InputStream in = getClass().getClassLoader().getResourceAsStream(objectPath);
-      System.out.println(objectPath);
-      view.initScenegraph(glAutoDrawable, in);
-      float[] fixed_camera = new float[3];
-      float[] fixed_center = new float[3];
-      System.arraycopy(fixed_cameraPosition, 0, fixed_camera, 0, fixed_camera.length);
-      System.arraycopy(fixed_centerPosition, 0, fixed_center, 0, fixed_center.length);
-      view.setFixedCameraPosition(fixed_camera);
-      view.setFixedCenterPosition(fixed_center);
-      view.setAngleOfView(angle);
-    }
-  }
 }
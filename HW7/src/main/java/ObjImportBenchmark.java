@@ -0,0 +1,237 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import util.ObjImporter;
+import util.PolygonMesh;
+
+/**
+ * This class compares the OBJ importer with the line by line importer it replaced. Every model is
+ * read into memory first, so that only parsing and building the mesh are measured. The new
+ * importer is measured on one thread and on the given number of threads, and its meshes are
+ * checked to be the same as those of the old importer.
+ *
+ * The old importer called computeNormals before the mesh had any vertices, where it did nothing, so
+ * models without vn lines were left with zero normals. The new importer computes them. For those
+ * models the normals are not compared, and the number of vertices whose normal differs is reported
+ * instead.
+ *
+ * Usage: ObjImportBenchmark [thread count] [model paths...]
+ */
+public class ObjImportBenchmark {
+
+  private static final String[] MODELS = {"models/box-inside.obj", "models/box-outside.obj",
+      "models/box.obj", "models/cone.obj", "models/cylinder.obj", "models/sphere.obj",
+      "models/thomas-lyons-object.obj", "models/vase-nathan-gregg.obj"};
+
+  public static void main(String[] args) throws IOException {
+    int threadCount = args.length > 0 ? Integer.parseInt(args[0])
+        : Runtime.getRuntime().availableProcessors();
+    String[] models = MODELS;
+    if (args.length > 1) {
+      models = new String[args.length - 1];
+      System.arraycopy(args, 1, models, 0, models.length);
+    }
+
+    System.out.println(String.format("%-34s %10s %12s %12s %12s", "model", "bytes", "old",
+        "new, 1", "new, " + threadCount));
+    for (String model : models) {
+      byte[] data = read(model);
+      VertexAttribProducer producer = new VertexAttribProducer();
+      checkSame(model, oldImport(producer, data), ObjImporter.importFile(producer,
+          new ByteArrayInputStream(data), false, threadCount));
+
+      double oldTime = measure(() -> oldImport(producer, data));
+      double newTime = measure(() -> ObjImporter.importFile(producer,
+          new ByteArrayInputStream(data), false, 1));
+      double parallelTime = measure(() -> ObjImporter.importFile(producer,
+          new ByteArrayInputStream(data), false, threadCount));
+      System.out.println(String.format("%-34s %10d %9.3f ms %9.3f ms %9.3f ms", model,
+          data.length, oldTime, newTime, parallelTime));
+    }
+  }
+
+  /**
+   * Import repeatedly for about a second to warm up, then for about two seconds, and return the
+   * average time of one import in milliseconds.
+   */
+  private static double measure(Runnable importer) {
+    long start = System.nanoTime();
+    while (System.nanoTime() - start < 1000000000L) {
+      importer.run();
+    }
+    int count = 0;
+    start = System.nanoTime();
+    long time;
+    do {
+      importer.run();
+      count++;
+      time = System.nanoTime() - start;
+    } while (time < 2000000000L || count < 5);
+    return time / 1e6 / count;
+  }
+
+  private static byte[] read(String path) throws IOException {
+    InputStream in = ObjImportBenchmark.class.getClassLoader().getResourceAsStream(path);
+    if (in == null) {
+      throw new IllegalArgumentException("Model " + path + " not found");
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1 << 16];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * Check that two meshes have the same attributes and indices, bit for bit.
+   */
+  private static void checkSame(String model, PolygonMesh<VertexAttrib> expected,
+      PolygonMesh<VertexAttrib> actual) {
+    if (!expected.getPrimitiveData().equals(actual.getPrimitiveData())) {
+      throw new IllegalStateException(model + ": indices differ");
+    }
+    for (String name : expected.getAttributeNames()) {
+      FloatBuffer a = expected.getAttributeData(name);
+      FloatBuffer b = actual.getAttributeData(name);
+      if (a.limit() != b.limit()) {
+        throw new IllegalStateException(model + ": " + name + " differs in length");
+      }
+      if (name.equals("normal") && isZero(a)) {
+        reportComputedNormals(model, a, b, expected.getAttributeSize(name));
+        continue;
+      }
+      for (int i = 0; i < a.limit(); i++) {
+        if (Float.floatToIntBits(a.get(i)) != Float.floatToIntBits(b.get(i))) {
+          throw new IllegalStateException(model + ": " + name + " differs at " + i + ": "
+              + a.get(i) + " " + b.get(i));
+        }
+      }
+    }
+  }
+
+  private static boolean isZero(FloatBuffer data) {
+    for (int i = 0; i < data.limit(); i++) {
+      if (data.get(i) != 0.0f) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Report how many vertices got a normal from the new importer that the old importer left at zero
+   */
+  private static void reportComputedNormals(String model, FloatBuffer expected,
+      FloatBuffer actual, int size) {
+    int vertexCount = expected.limit() / size;
+    int differing = 0;
+    for (int v = 0; v < vertexCount; v++) {
+      for (int i = v * size; i < (v + 1) * size; i++) {
+        if (Float.floatToIntBits(expected.get(i)) != Float.floatToIntBits(actual.get(i))) {
+          differing++;
+          break;
+        }
+      }
+    }
+    System.out.println(model + ": no vn lines, normals computed for " + differing + " of "
+        + vertexCount + " vertices that the old importer left at zero");
+  }
+
+  /**
+   * The importer as it was before, reading lines with a Scanner and splitting them with a regular
+   * expression. Only position, normal and texture coordinate data are imported. As before,
+   * computeNormals is called before the vertices are set, where it does nothing.
+   */
+  private static PolygonMesh<VertexAttrib> oldImport(VertexAttribProducer producer, byte[] data) {
+    List<Vector4f> vertices = new ArrayList<>();
+    List<Vector4f> normals = new ArrayList<>();
+    List<Vector4f> texcoords = new ArrayList<>();
+    List<Integer> triangles = new ArrayList<>();
+    int lineno = 0;
+
+    Scanner sc = new Scanner(new ByteArrayInputStream(data));
+    while (sc.hasNext()) {
+      String line = sc.nextLine();
+      lineno++;
+      if ((line.length() <= 0) || (line.charAt(0) == '#')) {
+        continue;
+      }
+      String[] tokens = line.split("[ \\t\\n\\x0B\\f\\r]");
+
+      if (tokens[0].equals("v")) {
+        if ((tokens.length < 4) || (tokens.length > 7)) {
+          throw new IllegalArgumentException("Line " + lineno + ": Vertex coordinate has an "
+              + "invalid number of values");
+        }
+        Vector4f v = new Vector4f(Float.parseFloat(tokens[1]), Float.parseFloat(tokens[2]),
+            Float.parseFloat(tokens[3]), 1.0f);
+        if (tokens.length == 5) {
+          float num = Float.parseFloat(tokens[4]);
+          if (num != 0) {
+            v.x /= num;
+            v.y /= num;
+            v.z /= num;
+          }
+        }
+        vertices.add(v);
+      } else if (tokens[0].equals("vt")) {
+        Vector4f v = new Vector4f(Float.parseFloat(tokens[1]), Float.parseFloat(tokens[2]),
+            0.0f, 1.0f);
+        if (tokens.length > 3) {
+          v.z = Float.parseFloat(tokens[3]);
+        }
+        texcoords.add(v);
+      } else if (tokens[0].equals("vn")) {
+        Vector3f v = new Vector3f(Float.parseFloat(tokens[1]), Float.parseFloat(tokens[2]),
+            Float.parseFloat(tokens[3])).normalize();
+        normals.add(new Vector4f(v, 0.0f));
+      } else if (tokens[0].equals("f")) {
+        List<Integer> face = new ArrayList<>();
+        for (int i = 1; i < tokens.length; i++) {
+          face.add(Integer.parseInt(tokens[i].split("[/]")[0]) - 1);
+        }
+        for (int i = 2; i < face.size(); i++) {
+          triangles.add(face.get(0));
+          triangles.add(face.get(i - 1));
+          triangles.add(face.get(i));
+        }
+      }
+    }
+
+    List<VertexAttrib> vertexData = new ArrayList<>();
+    for (int i = 0; i < vertices.size(); i++) {
+      VertexAttrib v = producer.produce();
+      Vector4f p = vertices.get(i);
+      v.setData("position", new float[]{p.x, p.y, p.z, p.w});
+      if (texcoords.size() == vertices.size()) {
+        Vector4f t = texcoords.get(i);
+        v.setData("texcoord", new float[]{t.x, t.y, t.z, t.w});
+      }
+      if (normals.size() == vertices.size()) {
+        Vector4f n = normals.get(i);
+        v.setData("normal", new float[]{n.x, n.y, n.z, n.w});
+      }
+      vertexData.add(v);
+    }
+
+    PolygonMesh<VertexAttrib> mesh = new PolygonMesh<>();
+    if (normals.size() != vertices.size()) {
+      mesh.computeNormals();
+    }
+    mesh.setVertexData(vertexData);
+    mesh.setPrimitives(triangles);
+    mesh.setPrimitiveSize(3);
+    return mesh;
+  }
+}
@@ -0,0 +1,197 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import rayTracer.FrameFormat;
+import rayTracer.RayTraceSettings;
+import sgraph.IScenegraph;
+import sgraph.RayTraceRenderer;
+import sgraph.RenderJob;
+import sgraph.RenderService;
+import sgraph.SceneBinaryReader;
+import sgraph.SceneXMLReader;
+
+/**
+ * This class ray traces a scene to an image file without opening a window. No OpenGL context is
+ * made and no texture is sent to OpenGL, so it runs on machines without a display or a GPU.
+ *
+ * The scene is given either as a configuration file, as read by {@link ConfigurationReader}, or
+ * as a scene file. A scene file ending in .xml is read as XML and one ending in .bin as a compiled
+ * scene, from the class path if it is there and from the file system otherwise. Compiled scenes are
+ * made from XML scenes by {@link SceneCompiler}. Options override the configuration:
+ * <ul>
+ * <li>-size width height: the size of the image, 800 by 800 by default</li>
+ * <li>-camera x y z: the position of the camera</li>
+ * <li>-center x y z: the point that the camera looks at</li>
+ * <li>-angle degrees: the angle of view from bottom to top</li>
+ * <li>-threads count: the number of worker threads</li>
+ * <li>-tile size: the size of a tile in pixels</li>
+ * <li>-aa n: refine pixels at edges with n by n rays, 1 for no anti-aliasing</li>
+ * <li>-aa-threshold t: how much a pixel may differ from a neighbor before it is refined</li>
+ * <li>-max-depth n: the number of times a ray may be reflected or refracted</li>
+ * <li>-min-contribution w: the part of the color of a pixel that a reflected or refracted ray
+ * should give to be traced</li>
+ * <li>-roulette: trace lighter rays by Russian roulette instead of dropping them</li>
+ * <li>-o path: the image file, image.png by default. Its extension gives the {@link
+ * FrameFormat}: png, ppm or pfm.</li>
+ * </ul>
+ *
+ * The image is written to the file as it is traced, so the memory needed does not grow with its
+ * size, and print sized images can be made with the default heap. It is traced as a job of a
+ * {@link RenderService}, and its progress is printed every second.
+ *
+ * Usage: OfflineRenderer (config | scene.xml | scene.bin) [options]
+ */
+public class OfflineRenderer {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println(
+          "Usage: OfflineRenderer (config | scene.xml | scene.bin) [-size width height]"
+              + " [-camera x y z] [-center x y z] [-angle degrees] [-threads count]"
+              + " [-tile size] [-aa n] [-aa-threshold t] [-max-depth n]"
+              + " [-min-contribution w] [-roulette] [-o path]");
+      System.exit(1);
+    }
+
+    String scenePath;
+    float[] camera = {0, 0, 500};
+    float[] center = {0, 0, 0};
+    float angle = 120f;
+    RayTraceSettings settings = new RayTraceSettings();
+    if (args[0].endsWith(".xml") || args[0].endsWith(".bin")) {
+      scenePath = args[0];
+    } else {
+      ConfigurationReader config = new ConfigurationReader(args[0]);
+      scenePath = config.getObjectPath();
+      camera = config.getCameraPosition();
+      center = config.getCenterPosition();
+      angle = config.getAngleOfView();
+      settings.setThreadCount(config.getRayTraceThreads());
+      settings.setTileSize(config.getRayTraceTileSize());
+      settings.setAntiAliasing(config.getAntiAliasing());
+      settings.setAntiAliasThreshold(config.getAntiAliasThreshold());
+      settings.setMaxDepth(config.getMaxDepth());
+      settings.setMinContribution(config.getMinContribution());
+      settings.setRussianRoulette(config.isRussianRoulette());
+      // hit-cache is not read: the image is streamed to the file, so no hits are kept to reshade
+    }
+    int width = 800;
+    int height = 800;
+    String output = "image.png";
+
+    for (int i = 1; i < args.length; i++) {
+      switch (args[i]) {
+        case "-size":
+          width = Integer.parseInt(args[++i]);
+          height = Integer.parseInt(args[++i]);
+          break;
+        case "-camera":
+          camera = new float[]{Float.parseFloat(args[++i]), Float.parseFloat(args[++i]),
+              Float.parseFloat(args[++i])};
+          break;
+        case "-center":
+          center = new float[]{Float.parseFloat(args[++i]), Float.parseFloat(args[++i]),
+              Float.parseFloat(args[++i])};
+          break;
+        case "-angle":
+          angle = Float.parseFloat(args[++i]);
+          break;
+        case "-threads":
+          settings.setThreadCount(Integer.parseInt(args[++i]));
+          break;
+        case "-tile":
+          settings.setTileSize(Integer.parseInt(args[++i]));
+          break;
+        case "-aa":
+          settings.setAntiAliasing(Integer.parseInt(args[++i]));
+          break;
+        case "-aa-threshold":
+          settings.setAntiAliasThreshold(Float.parseFloat(args[++i]));
+          break;
+        case "-max-depth":
+          settings.setMaxDepth(Integer.parseInt(args[++i]));
+          break;
+        case "-min-contribution":
+          settings.setMinContribution(Float.parseFloat(args[++i]));
+          break;
+        case "-roulette":
+          settings.setRussianRoulette(true);
+          break;
+        case "-o":
+          output = args[++i];
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    if (scenePath == null) {
+      throw new IllegalArgumentException("No scene path in the configuration");
+    }
+    if (width < 1 || height < 1) {
+      throw new IllegalArgumentException("Invalid image size: " + width + " x " + height);
+    }
+    FrameFormat.forPath(output);
+
+    long start = System.nanoTime();
+    IScenegraph<VertexAttrib> scenegraph = load(scenePath);
+    scenegraph.setRenderer(new RayTraceRenderer());
+    scenegraph.setRayTraceSettings(settings);
+    long loaded = System.nanoTime();
+    System.out.println(String.format("Loaded %s in %.1f ms", scenePath, (loaded - start) / 1e6));
+
+    Stack<Matrix4f> modelView = new Stack<>();
+    modelView.push(new Matrix4f().lookAt(new Vector3f(camera[0], camera[1], camera[2]),
+        new Vector3f(center[0], center[1], center[2]), new Vector3f(0, 1, 0)));
+    System.out.println("Start ray trace! " + settings);
+    RenderService service = new RenderService(settings.getThreadCount(), 1);
+    RenderJob job = new RenderJob(scenegraph, width, height, modelView, angle, settings);
+    job.setOutputPath(output);
+    service.submit(job);
+    try {
+      while (!job.getCompletion().isDone()) {
+        try {
+          job.getCompletion().get(1, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+          System.out.println(String.format("%.1f%% done", 100 * job.getProgress()));
+        }
+      }
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    } finally {
+      service.shutdown();
+    }
+    long traced = System.nanoTime();
+    System.out.println(String.format("Finish ray trace in %.1f ms, %s", (traced - loaded) / 1e6,
+        job.getStats()));
+    System.out.println("Wrote " + output);
+    scenegraph.dispose();
+  }
+
+  /**
+   * Load a scene from the class path, or from the file system if it is not on the class path
+   */
+  private static IScenegraph<VertexAttrib> load(String path) throws Exception {
+    InputStream in = OfflineRenderer.class.getClassLoader().getResourceAsStream(path);
+    if (in == null) {
+      try {
+        in = new FileInputStream(path);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Scene " + path + " not found");
+      }
+    }
+    try {
+      if (path.endsWith(".bin")) {
+        return SceneBinaryReader.importScenegraph(in, new VertexAttribProducer());
+      }
+      return SceneXMLReader.importScenegraph(in, new VertexAttribProducer());
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+import java.util.Stack;
+import java.util.concurrent.CancellationException;
+import org.joml.Matrix4f;
+import rayTracer.FrameBuffer;
+import rayTracer.IFrameSink;
+import rayTracer.RayTraceSettings;
+import sgraph.IScenegraph;
+import sgraph.RenderJob;
+import sgraph.RenderService;
+
+/**
+ * This class ray traces a scene in passes that get finer, so that a rough image can be looked at
+ * within a moment of starting. The first passes trace the image at 1/4 and 1/2 of its width and
+ * height, which is 1/16 and 1/4 of its pixels. The next one traces it at full resolution with one
+ * ray per pixel, and if the settings turn anti-aliasing on, a last one traces it again with
+ * anti-aliasing. Each pass is a job of a render service, submitted when the one before finishes.
+ *
+ * The frame of the last finished pass can be read from any thread at any time. The frame of the
+ * last pass is also handed to a frame sink to be written to a file.
+ */
+class ProgressiveRender {
+
+  private static final int[] SCALES = {4, 2, 1};
+
+  private final RenderService service;
+  private final IScenegraph<?> scenegraph;
+  private final int width;
+  private final int height;
+  private final Stack<Matrix4f> modelView;
+  private final float angleOfView;
+  private final RayTraceSettings settings;
+  private final IFrameSink frameSink;
+  private final String path;
+  private RenderJob job;
+  private long start;
+  private volatile FrameBuffer frame;
+  private volatile int passesDone;
+  private volatile boolean cancelled;
+
+  /**
+   * Make a render that is not started yet
+   *
+   * @param service the service that traces the passes
+   * @param scenegraph the scene graph
+   * @param width the width of the image
+   * @param height the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @param settings the settings of the ray tracer. The last pass uses them as they are.
+   * @param frameSink the sink that the frame of the last pass is handed to
+   * @param path the path of the file that the frame of the last pass is written to
+   */
+  ProgressiveRender(RenderService service, IScenegraph<?> scenegraph, int width, int height,
+      Stack<Matrix4f> modelView, float angleOfView, RayTraceSettings settings,
+      IFrameSink frameSink, String path) {
+    this.service = service;
+    this.scenegraph = scenegraph;
+    this.width = width;
+    this.height = height;
+    this.modelView = modelView;
+    this.angleOfView = angleOfView;
+    this.settings = new RayTraceSettings(settings);
+    this.frameSink = frameSink;
+    this.path = path;
+    job = null;
+    frame = null;
+    passesDone = 0;
+    cancelled = false;
+  }
+
+  /**
+   * Submit the first pass. This returns at once.
+   */
+  synchronized void start() {
+    start = System.nanoTime();
+    submitPass(0);
+  }
+
+  /**
+   * Cancel the pass being traced, and do not submit any more. The frame of the last finished pass
+   * can still be read.
+   */
+  synchronized void cancel() {
+    cancelled = true;
+    if (job != null) {
+      job.cancel();
+    }
+  }
+
+  /**
+   * Get the frame of the last finished pass, or null if no pass has finished yet
+   */
+  FrameBuffer getFrame() {
+    return frame;
+  }
+
+  /**
+   * Get the number of passes that have finished. It changes every time there is a new frame.
+   */
+  int getPassesDone() {
+    return passesDone;
+  }
+
+  int getPassCount() {
+    return settings.getAntiAliasing() > 1 ? SCALES.length + 1 : SCALES.length;
+  }
+
+  boolean isFinished() {
+    return passesDone == getPassCount();
+  }
+
+  private synchronized void submitPass(int pass) {
+    if (cancelled) {
+      return;
+    }
+    int scale = pass < SCALES.length ? SCALES[pass] : 1;
+    RayTraceSettings passSettings = new RayTraceSettings(settings);
+    if (pass < SCALES.length) {
+      passSettings.setAntiAliasing(1);
+    }
+    RenderJob passJob = new RenderJob(scenegraph, Math.max(1, (width + scale - 1) / scale),
+        Math.max(1, (height + scale - 1) / scale), modelView, angleOfView, passSettings);
+    job = passJob;
+    service.submit(passJob);
+    passJob.getCompletion().whenComplete(
+        (passFrame, error) -> passFinished(pass, passJob, passFrame, error));
+  }
+
+  private void passFinished(int pass, RenderJob passJob, FrameBuffer passFrame,
+      Throwable error) {
+    if (error != null) {
+      if (!(error instanceof CancellationException)) {
+        System.out.println("Ray trace failed: " + error.getMessage());
+      }
+      return;
+    }
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      frame = passFrame;
+      passesDone = pass + 1;
+    }
+    System.out.println(String.format("Pass %d of %d: %d x %d at %.1f ms, %s", pass + 1,
+        getPassCount(), passJob.getWidth(), passJob.getHeight(),
+        (System.nanoTime() - start) / 1e6, passJob.getStats()));
+    if (pass + 1 < getPassCount()) {
+      submitPass(pass + 1);
+      return;
+    }
+    System.out.println("Finish ray trace! Writing " + path);
+    try {
+      frameSink.write(passFrame, path);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      System.out.println("Ray trace interrupted!");
+    }
+  }
+}
@@ -0,0 +1,124 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.Stack;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import rayTracer.HitBuffer;
+import sgraph.GroupNode;
+import sgraph.LeafNode;
+import sgraph.RayTraceRenderer;
+import sgraph.RenderSnapshot;
+import sgraph.TransformNode;
+import util.Material;
+
+/**
+ * This class measures the intersection path of the ray tracer without OpenGL. It builds a scene of
+ * randomly placed spheres, boxes, cylinders and cones, casts random rays into it and reports the
+ * time and the number of bytes allocated per ray once the path has warmed up.
+ *
+ * The query is one of "all" (every hit of the ray), "closest" (only the closest hit) or
+ * "occlusion" (how much light gets through, stopping at the first opaque object).
+ *
+ * Usage: RayCastBenchmark [object count] [ray count] [all|closest|occlusion]
+ */
+public class RayCastBenchmark {
+
+  private static final String[] SHAPES = {"sphere", "box", "cylinder", "cone"};
+
+  public static void main(String[] args) {
+    int objectCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int rayCount = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    String query = args.length > 2 ? args[2] : "all";
+    if (!query.equals("all") && !query.equals("closest") && !query.equals("occlusion")) {
+      throw new IllegalArgumentException("Unknown query: " + query);
+    }
+
+    RenderSnapshot snapshot = buildScene(objectCount, new Random(objectCount));
+    HitBuffer hits = new HitBuffer();
+    Random random = new Random(1);
+
+    // warm up, so that the code is compiled and the buffer has grown to its final size
+    long hitCount = castRays(snapshot, hits, random, rayCount, query);
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long bytesBefore = allocatedBytes(threads);
+    long start = System.nanoTime();
+    hitCount = castRays(snapshot, hits, random, rayCount, query);
+    long time = System.nanoTime() - start;
+    long bytes = allocatedBytes(threads) - bytesBefore;
+
+    System.out.println(String.format("objects: %d rays: %d query: %s hits per ray: %.2f",
+        objectCount, rayCount, query, (double) hitCount / rayCount));
+    System.out.println(String.format("time per ray: %.3f us", time / 1000.0 / rayCount));
+    if (bytes >= 0) {
+      System.out.println(String.format("bytes allocated per ray: %.3f",
+          (double) bytes / rayCount));
+    } else {
+      System.out.println("bytes allocated per ray: not supported by this JVM");
+    }
+  }
+
+  /**
+   * Cast random rays from the origin towards the negative z axis.
+   *
+   * @return the total number of hit records, or of rays that are hit or blocked for the closest
+   * and occlusion queries
+   */
+  private static long castRays(RenderSnapshot snapshot, HitBuffer hits, Random random,
+      int rayCount, String query) {
+    long hitCount = 0;
+    for (int i = 0; i < rayCount; i++) {
+      hits.getRay().set(0, 0, 0, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, -1);
+      if (query.equals("closest")) {
+        if (snapshot.closestHit(hits.getRay(), 0, Float.MAX_VALUE, hits) != null) {
+          hitCount++;
+        }
+      } else if (query.equals("occlusion")) {
+        if (snapshot.occlusion(hits.getRay(), 0, Float.POSITIVE_INFINITY, hits) <= 0) {
+          hitCount++;
+        }
+      } else {
+        snapshot.rayCast(hits.getRay(), hits);
+        hitCount += hits.size();
+      }
+    }
+    return hitCount;
+  }
+
+  /**
+   * Build a scene of randomly placed objects in a 100 unit cube in front of the camera. The
+   * objects get smaller as there are more of them, so that rays hit about as many of them.
+   */
+  private static RenderSnapshot buildScene(int objectCount, Random random) {
+    RayTraceRenderer renderer = new RayTraceRenderer();
+    GroupNode root = new GroupNode(null, "root");
+    float size = 50f / (float) Math.cbrt(objectCount);
+    for (int i = 0; i < objectCount; i++) {
+      TransformNode transform = new TransformNode(null, "transform-" + i);
+      transform.setTransform(new Matrix4f()
+          .translate(random.nextFloat() * 100 - 50, random.nextFloat() * 100 - 50,
+              random.nextFloat() * 100 - 150)
+          .rotate(random.nextFloat() * 3, new Vector3f(1, 1, 0).normalize())
+          .scale(size * (0.2f + 0.3f * random.nextFloat())));
+      LeafNode leaf = new LeafNode(SHAPES[i % SHAPES.length], null, "leaf-" + i);
+      leaf.setMaterial(new Material());
+      transform.addChild(leaf);
+      root.addChild(transform);
+    }
+    Stack<Matrix4f> modelView = new Stack<>();
+    modelView.push(new Matrix4f());
+    return new RenderSnapshot(root, modelView, renderer);
+  }
+
+  /**
+   * Get the number of bytes allocated by the current thread, or -1 if the JVM cannot tell.
+   */
+  private static long allocatedBytes(ThreadMXBean threads) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,59 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import sgraph.IScenegraph;
+import sgraph.SceneBinaryWriter;
+import sgraph.SceneXMLReader;
+
+/**
+ * This class compiles an XML scene file into the binary format read by {@link
+ * sgraph.SceneBinaryReader}, so that {@link OfflineRenderer} can load it without parsing XML. The
+ * XML file is read from the class path if it is there and from the file system otherwise. The
+ * compiled file refers to the same meshes and textures, which must still be on the class path when
+ * it is loaded.
+ *
+ * Usage: SceneCompiler scene.xml [scene.bin]
+ *
+ * Without an output path, the compiled file is written to the working directory with the name
+ * of the XML file and the extension .bin.
+ */
+public class SceneCompiler {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || args.length > 2 || !args[0].endsWith(".xml")) {
+      System.out.println("Usage: SceneCompiler scene.xml [scene.bin]");
+      System.exit(1);
+    }
+    String scenePath = args[0];
+    String output;
+    if (args.length > 1) {
+      output = args[1];
+    } else {
+      String name = scenePath.substring(scenePath.lastIndexOf('/') + 1);
+      output = name.substring(0, name.length() - ".xml".length()) + ".bin";
+    }
+
+    long start = System.nanoTime();
+    IScenegraph<VertexAttrib> scenegraph;
+    InputStream in = SceneCompiler.class.getClassLoader().getResourceAsStream(scenePath);
+    if (in == null) {
+      try {
+        in = new FileInputStream(scenePath);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Scene " + scenePath + " not found");
+      }
+    }
+    try {
+      scenegraph = SceneXMLReader.importScenegraph(in, new VertexAttribProducer());
+    } finally {
+      in.close();
+    }
+    try (OutputStream out = new FileOutputStream(output)) {
+      SceneBinaryWriter.exportScenegraph(scenegraph, out);
+    }
+    System.out.println(String.format("Compiled %s to %s in %.1f ms", scenePath, output,
+        (System.nanoTime() - start) / 1e6));
+  }
+}
@@ -0,0 +1,111 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import sgraph.IScenegraph;
+import sgraph.SceneBinaryReader;
+import sgraph.SceneBinaryWriter;
+import sgraph.SceneXMLReader;
+
+/**
+ * This class compares loading every scene from its XML file with loading it from the compiled
+ * binary format. Every file is read into memory first, and the meshes are loaded once before
+ * measuring, so that both formats find them in the mesh registry. Both formats decode the images
+ * on every load, so the difference between the two times is the time of reading the scene itself.
+ * A compiled scene is checked to compile back to the same bytes.
+ *
+ * The XML reader prints every tag it reads. Printing is discarded while measuring, so that the
+ * time of the console is not counted.
+ *
+ * Usage: SceneLoadBenchmark [scene paths...]
+ */
+public class SceneLoadBenchmark {
+
+  private static final String[] SCENES = {"scenegraphmodels/cone.xml",
+      "scenegraphmodels/cylinder.xml", "scenegraphmodels/humanoid-lights-textures.xml",
+      "scenegraphmodels/light-work.xml", "scenegraphmodels/refraction.xml",
+      "scenegraphmodels/shadow.xml", "scenegraphmodels/simple.xml", "scenegraphmodels/snow.xml",
+      "scenegraphmodels/sphere.xml"};
+
+  private interface Loader {
+
+    void load() throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String[] scenes = args.length > 0 ? args : SCENES;
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    }));
+
+    out.println(String.format("%-46s %8s %8s %12s %12s", "scene", "xml", "binary", "xml load",
+        "binary load"));
+    for (String scene : scenes) {
+      byte[] xml = read(scene);
+      VertexAttribProducer producer = new VertexAttribProducer();
+      IScenegraph<VertexAttrib> scenegraph = SceneXMLReader.importScenegraph(
+          new ByteArrayInputStream(xml), producer);
+      byte[] binary = compile(scenegraph);
+      byte[] again = compile(SceneBinaryReader.importScenegraph(
+          new ByteArrayInputStream(binary), producer));
+      if (!Arrays.equals(binary, again)) {
+        throw new IllegalStateException(scene + ": compiled scene does not load back the same");
+      }
+
+      double xmlTime = measure(() -> SceneXMLReader.importScenegraph(
+          new ByteArrayInputStream(xml), producer));
+      double binaryTime = measure(() -> SceneBinaryReader.importScenegraph(
+          new ByteArrayInputStream(binary), producer));
+      out.println(String.format("%-46s %8d %8d %9.3f ms %9.3f ms", scene, xml.length,
+          binary.length, xmlTime, binaryTime));
+    }
+    System.setOut(out);
+  }
+
+  private static byte[] compile(IScenegraph<?> scenegraph) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SceneBinaryWriter.exportScenegraph(scenegraph, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Load repeatedly for about a second to warm up, then for about two seconds, and return the
+   * average time of one load in milliseconds.
+   */
+  private static double measure(Loader loader) throws Exception {
+    long start = System.nanoTime();
+    while (System.nanoTime() - start < 1000000000L) {
+      loader.load();
+    }
+    int count = 0;
+    start = System.nanoTime();
+    long time;
+    do {
+      loader.load();
+      count++;
+      time = System.nanoTime() - start;
+    } while (time < 2000000000L || count < 5);
+    return time / 1e6 / count;
+  }
+
+  private static byte[] read(String path) throws IOException {
+    InputStream in = SceneLoadBenchmark.class.getClassLoader().getResourceAsStream(path);
+    if (in == null) {
+      throw new IllegalArgumentException("Scene " + path + " not found");
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1 << 16];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+}
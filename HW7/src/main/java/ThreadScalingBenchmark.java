@@ -0,0 +1,122 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Stack;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import rayTracer.FrameBuffer;
+import rayTracer.RayTraceSettings;
+import rayTracer.RayTraceStats;
+import sgraph.IScenegraph;
+import sgraph.RayTraceRenderer;
+import sgraph.SceneXMLReader;
+
+/**
+ * This class measures how the time of a ray trace scales with the number of worker threads. The
+ * scene of a configuration file is traced once on the calling thread to warm up, and then, for
+ * every thread count, three times on a pool of that many threads. The best of the three is
+ * reported, with the speedup over the first thread count, which is one by default. Every image is
+ * checked to be the same as the one traced on one thread.
+ *
+ * The number of available processors is printed first, as no speedup can be expected beyond it.
+ *
+ * Usage: ThreadScalingBenchmark [config] [size] [thread counts...]
+ */
+public class ThreadScalingBenchmark {
+
+  private static final String CONFIG = "src/main/resources/configs/camera.config";
+  private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+  public static void main(String[] args) throws Exception {
+    String configPath = args.length > 0 ? args[0] : CONFIG;
+    int size = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+    int[] threadCounts = THREAD_COUNTS;
+    if (args.length > 2) {
+      threadCounts = new int[args.length - 2];
+      for (int i = 0; i < threadCounts.length; i++) {
+        threadCounts[i] = Integer.parseInt(args[i + 2]);
+      }
+    }
+
+    ConfigurationReader config = new ConfigurationReader(configPath);
+    RayTraceSettings settings = new RayTraceSettings();
+    settings.setTileSize(config.getRayTraceTileSize());
+    settings.setAntiAliasing(config.getAntiAliasing());
+    settings.setAntiAliasThreshold(config.getAntiAliasThreshold());
+    settings.setMaxDepth(config.getMaxDepth());
+    settings.setMinContribution(config.getMinContribution());
+    settings.setRussianRoulette(config.isRussianRoulette());
+
+    // the XML reader prints every tag it reads
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    }));
+    IScenegraph<VertexAttrib> scenegraph;
+    try {
+      scenegraph = SceneXMLReader.importScenegraph(ThreadScalingBenchmark.class.getClassLoader()
+          .getResourceAsStream(config.getObjectPath()), new VertexAttribProducer());
+      scenegraph.setRenderer(new RayTraceRenderer());
+    } finally {
+      System.setOut(out);
+    }
+
+    float[] camera = config.getCameraPosition();
+    float[] center = config.getCenterPosition();
+    Stack<Matrix4f> modelView = new Stack<>();
+    modelView.push(new Matrix4f().lookAt(new Vector3f(camera[0], camera[1], camera[2]),
+        new Vector3f(center[0], center[1], center[2]), new Vector3f(0, 1, 0)));
+    float angle = config.getAngleOfView();
+
+    out.println(String.format("%s, %d x %d, tile size %d, %d available processors",
+        config.getObjectPath(), size, size, settings.getTileSize(),
+        Runtime.getRuntime().availableProcessors()));
+    out.println(String.format("%8s %12s %8s", "threads", "time", "speedup"));
+    FrameBuffer expected = trace(scenegraph, size, modelView, angle, settings, 1);
+    double first = 0;
+    for (int threadCount : threadCounts) {
+      double best = Double.MAX_VALUE;
+      for (int run = 0; run < 3; run++) {
+        long start = System.nanoTime();
+        FrameBuffer frame = trace(scenegraph, size, modelView, angle, settings, threadCount);
+        best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        checkSame(expected, frame, threadCount);
+      }
+      if (first == 0) {
+        first = best;
+      }
+      out.println(String.format("%8d %9.1f ms %7.2fx", threadCount, best, first / best));
+    }
+  }
+
+  /**
+   * Trace the scene on a pool of the given number of threads, or on the calling thread for one
+   */
+  private static FrameBuffer trace(IScenegraph<?> scenegraph, int size,
+      Stack<Matrix4f> modelView, float angle, RayTraceSettings settings, int threadCount)
+      throws InterruptedException {
+    ExecutorService workers = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+    try {
+      return scenegraph.rayTraceFrame(size, size, modelView, angle, settings, workers,
+          new RayTraceStats((long) size * size));
+    } finally {
+      if (workers != null) {
+        workers.shutdownNow();
+      }
+    }
+  }
+
+  private static void checkSame(FrameBuffer expected, FrameBuffer actual, int threadCount) {
+    for (int y = 0; y < expected.getHeight(); y++) {
+      for (int x = 0; x < expected.getWidth(); x++) {
+        if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+          throw new IllegalStateException("The image traced on " + threadCount
+              + " threads differs at " + x + ", " + y);
+        }
+      }
+    }
+  }
+}
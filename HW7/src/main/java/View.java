@@ -4,22 +4,22 @@ import com.jogamp.opengl.*;
 import com.jogamp.opengl.util.awt.AWTGLReadBufferUtil;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import javax.imageio.ImageIO;
 import org.joml.Matrix4f;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 
 import java.io.InputStream;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Stack;
+import rayTracer.AsyncFrameSink;
+import rayTracer.FrameBuffer;
+import rayTracer.IFrameSink;
+import rayTracer.RayTraceSettings;
 import sgraph.IScenegraphRenderer;
+import sgraph.RenderService;
 
 /**
  * Created by ashesh on 9/18/2015.
@@ -44,6 +44,18 @@ public class View {
   private sgraph.IScenegraph<VertexAttrib> scenegraph;
   private AWTGLReadBufferUtil screenCaptureUtil;
   private IScenegraphRenderer renderer;
+  private RayTraceSettings rayTraceSettings;
+  private IFrameSink frameSink;
+  private RenderService renderService;
+  private int imageIndex;
+
+  // the ray trace shown instead of the scene, and what of it is in the preview texture. Only the
+  // render itself is set from outside the OpenGL thread
+  private volatile ProgressiveRender progressiveRender;
+  private ProgressiveRender shownRender;
+  private int shownPasses;
+  private int previewTexture, previewFramebuffer;
+  private int previewWidth, previewHeight;
 
   /**
    * Construct a View object. Set up current position and rotation.
@@ -59,6 +71,14 @@ public class View {
     cameraPosition = new Vector3f(0, 0, 500);
     centerPosition = new Vector3f(0, 0, 0);
     angleOfView = 120;
+    rayTraceSettings = new RayTraceSettings();
+    frameSink = new AsyncFrameSink();
+    renderService = null;
+    imageIndex = 0;
+    progressiveRender = null;
+    shownRender = null;
+    previewTexture = 0;
+    previewFramebuffer = 0;
   }
 
   /**
@@ -93,6 +113,74 @@ public class View {
     }
   }
 
+  /**
+   * Set the number of threads used to ray trace an image.
+   *
+   * @param threadCount the number of worker threads
+   */
+  public void setRayTraceThreads(int threadCount) {
+    try {
+      rayTraceSettings.setThreadCount(threadCount);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Set the size of the square tiles that a ray traced image is split into.
+   *
+   * @param tileSize the width and height of a tile in pixels
+   */
+  public void setRayTraceTileSize(int tileSize) {
+    try {
+      rayTraceSettings.setTileSize(tileSize);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Set the adaptive anti-aliasing of ray traced images.
+   *
+   * @param gridSize the number of rays across and down a refined pixel, 1 for no anti-aliasing
+   * @param threshold how much a pixel may differ from a neighbor before it is refined
+   */
+  public void setRayTraceAntiAliasing(int gridSize, float threshold) {
+    try {
+      rayTraceSettings.setAntiAliasing(gridSize);
+      rayTraceSettings.setAntiAliasThreshold(threshold);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Set how deep the reflected and refracted rays of ray traced images go.
+   *
+   * @param maxDepth the number of times a ray may be reflected or refracted
+   * @param minContribution the part of the color of a pixel that a ray should give to be traced
+   * @param russianRoulette whether lighter rays are traced by Russian roulette instead of dropped
+   */
+  public void setRayTraceDepth(int maxDepth, float minContribution, boolean russianRoulette) {
+    try {
+      rayTraceSettings.setMaxDepth(maxDepth);
+      rayTraceSettings.setMinContribution(minContribution);
+      rayTraceSettings.setRussianRoulette(russianRoulette);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Set whether ray traced frames keep their hits, so that tracing the same view again only
+   * shades them
+   *
+   * @param hitCache whether to keep the hits
+   */
+  public void setRayTraceHitCache(boolean hitCache) {
+    rayTraceSettings.setHitCache(hitCache);
+  }
+
   /**
    * Initialize the scene graph that is to be drawn.
    *
@@ -110,7 +198,7 @@ public class View {
     program.enable(gl);
 
     scenegraph = sgraph.SceneXMLReader.importScenegraph(in
-        , new VertexAttribProducer());
+        , new VertexAttribProducer(), gla.getGLProfile());
 
     this.renderer = new sgraph.RayTraceRenderer();
     renderer.setContext(gla);
@@ -120,6 +208,7 @@ public class View {
     shaderVarsToVertexAttribs.put("vTexCoord", "texcoord");
     renderer.initShaderProgram(program, shaderVarsToVertexAttribs);
     scenegraph.setRenderer(renderer);
+    scenegraph.setFrameSink(frameSink);
     program.disable(gl);
   }
 
@@ -145,25 +234,22 @@ public class View {
   }
 
   /**
-   * This method captures the current frame buffer and writes it to a file of the given name
+   * This method captures the current frame buffer and writes it to a file of the given name. Only
+   * reading the pixels is done on this thread. The image is encoded and written in the background,
+   * in the format given by the extension of the file name
    *
    * @param filename the name of the file where the image should be saved
    */
   public void captureFrame(String filename, GLAutoDrawable gla) throws
-      FileNotFoundException, IOException {
+      IllegalArgumentException, InterruptedException {
     if (screenCaptureUtil == null) {
       screenCaptureUtil = new AWTGLReadBufferUtil(gla.getGLProfile(), false);
     }
 
-    File f = new File(filename);
     GL3 gl = gla.getGL().getGL3();
 
     BufferedImage image = screenCaptureUtil.readPixelsToBufferedImage(gl, true);
-    OutputStream file = null;
-    file = new FileOutputStream(filename);
-
-    ImageIO.write(image, "png", file);
-
+    frameSink.write(new FrameBuffer(image), filename);
   }
 
   /**
@@ -174,6 +260,12 @@ public class View {
   public void draw(GLAutoDrawable gla) {
     GL3 gl = gla.getGL().getGL3();
 
+    ProgressiveRender render = progressiveRender;
+    if (render != null && render.getFrame() != null) {
+      drawPreview(gl, render);
+      return;
+    }
+
     gl.glClearColor(0, 0, 0, 1);
     gl.glClear(gl.GL_COLOR_BUFFER_BIT | gl.GL_DEPTH_BUFFER_BIT);
     gl.glEnable(gl.GL_DEPTH_TEST);
@@ -206,6 +298,90 @@ public class View {
     program.disable(gl);
   }
 
+  /**
+   * Draw the last finished pass of a ray trace over the whole canvas. The frame is sent to a
+   * texture only when there is a new pass, and is scaled to the canvas by blitting it from a
+   * framebuffer that the texture is attached to.
+   *
+   * @param gl the OpenGL context
+   * @param render the ray trace
+   */
+  private void drawPreview(GL3 gl, ProgressiveRender render) {
+    if (previewTexture == 0) {
+      int[] ids = new int[1];
+      gl.glGenTextures(1, ids, 0);
+      previewTexture = ids[0];
+      gl.glGenFramebuffers(1, ids, 0);
+      previewFramebuffer = ids[0];
+    }
+
+    // read the count first, so that the frame is at least as new as it
+    int passes = render.getPassesDone();
+    if (render != shownRender || passes != shownPasses) {
+      FrameBuffer frame = render.getFrame();
+      IntBuffer pixels = Buffers.newDirectIntBuffer(frame.getWidth() * frame.getHeight());
+      frame.copyRGB(pixels);
+      pixels.rewind();
+      gl.glBindTexture(GL3.GL_TEXTURE_2D, previewTexture);
+      gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
+      gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
+      gl.glPixelStorei(GL3.GL_UNPACK_ALIGNMENT, 4);
+      // each pixel is a packed 0xRRGGBB integer
+      gl.glTexImage2D(GL3.GL_TEXTURE_2D, 0, GL3.GL_RGB8, frame.getWidth(), frame.getHeight(), 0,
+          GL3.GL_BGRA, GL3.GL_UNSIGNED_INT_8_8_8_8_REV, pixels);
+      gl.glBindTexture(GL3.GL_TEXTURE_2D, 0);
+      previewWidth = frame.getWidth();
+      previewHeight = frame.getHeight();
+      shownRender = render;
+      shownPasses = passes;
+    }
+
+    gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, previewFramebuffer);
+    gl.glFramebufferTexture2D(GL3.GL_READ_FRAMEBUFFER, GL3.GL_COLOR_ATTACHMENT0,
+        GL3.GL_TEXTURE_2D, previewTexture, 0);
+    gl.glBindFramebuffer(GL3.GL_DRAW_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+    gl.glViewport(0, 0, WINDOW_WIDTH, WINDOW_HEIGHT);
+    // the rows of the frame go from the top, so the image is flipped
+    gl.glBlitFramebuffer(0, 0, previewWidth, previewHeight, 0, WINDOW_HEIGHT, WINDOW_WIDTH, 0,
+        GL3.GL_COLOR_BUFFER_BIT, GL3.GL_LINEAR);
+    gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, gl.getDefaultReadFramebuffer());
+    gl.glFlush();
+  }
+
+  /**
+   * Start ray tracing the current view in the background, in passes that get finer. Each pass is
+   * shown in place of the scene as soon as it is done, and the last one is written to the next
+   * file named imageNNN.png. A ray trace that is still running is cancelled. The passes are traced
+   * by a render service with as many workers as the ray trace settings give, made the first time.
+   */
+  private void startRayTrace() {
+    cancelRayTrace();
+    if (renderService == null) {
+      renderService = new RenderService(rayTraceSettings.getThreadCount(), 1);
+    }
+    imageIndex++;
+    System.out.println("Start ray trace! " + rayTraceSettings);
+    ProgressiveRender render = new ProgressiveRender(renderService, scenegraph, WINDOW_WIDTH,
+        WINDOW_HEIGHT, modelViewBuildHelper(), angleOfView, rayTraceSettings, frameSink,
+        String.format("image%03d.png", imageIndex));
+    progressiveRender = render;
+    render.start();
+  }
+
+  /**
+   * Cancel the ray trace that is running or shown, if any, and go back to drawing the scene
+   */
+  private void cancelRayTrace() {
+    ProgressiveRender render = progressiveRender;
+    if (render != null) {
+      progressiveRender = null;
+      if (!render.isFinished()) {
+        render.cancel();
+        System.out.println("Ray trace cancelled");
+      }
+    }
+  }
+
   /**
    * This is a helper to build two modelView, one for Drone, one for world
    */
@@ -265,12 +441,14 @@ public class View {
     trackballTransform = new Matrix4f().rotate(delta.x / trackballRadius, 0, 1, 0)
         .rotate(delta.y / trackballRadius, 1, 0, 0)
         .mul(trackballTransform);
+    // the ray traced image no longer matches the camera
+    cancelRayTrace();
 
   }
 
   /**
    * This method handles the key input. When the space key is hit, start the ray tracing function to
-   * produce a image.
+   * produce a image, which is shown as it is refined. Escape goes back to the scene.
    *
    * @param e This is a KeyEvent from user.
    * @param pressed This is a boolean representing whether it is pressed or released. True means
@@ -280,12 +458,16 @@ public class View {
     switch (e.getKeyCode()) {
       // Other keys should not detected as not available
       case KeyEvent.VK_SPACE:
-        System.out.println("Start ray trace!");
-        scenegraph.rayTrace(WINDOW_WIDTH, WINDOW_HEIGHT, modelViewBuildHelper(), angleOfView);
-        System.out.println("Finish ray trace!");
+        if (pressed) {
+          startRayTrace();
+        }
+        break;
+      case KeyEvent.VK_ESCAPE:
+        cancelRayTrace();
         break;
       case KeyEvent.VK_R:
         this.trackballTransform.identity();
+        cancelRayTrace();
         break;
       case KeyEvent.VK_SHIFT | KeyEvent.VK_G | KeyEvent.VK_T:
         break;
@@ -304,6 +486,7 @@ public class View {
    */
   public void reshape(GLAutoDrawable gla, int x, int y, int width, int height) {
     GL gl = gla.getGL();
+    cancelRayTrace();
     WINDOW_WIDTH = width;
     WINDOW_HEIGHT = height;
     aspect = (float) width / height;
@@ -320,6 +503,19 @@ public class View {
    */
   public void dispose(GLAutoDrawable gla) {
     GL3 gl = gla.getGL().getGL3();
+    cancelRayTrace();
+    if (renderService != null) {
+      renderService.shutdown();
+    }
+    if (previewTexture != 0) {
+      gl.glDeleteTextures(1, new int[]{previewTexture}, 0);
+      gl.glDeleteFramebuffers(1, new int[]{previewFramebuffer}, 0);
+    }
+    try {
+      frameSink.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
 }
@@ -0,0 +1,111 @@
+package rayTracer;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class writes frames on a pool of background encoder threads, so that rendering does not
+ * wait for an image to be compressed and written. At most a fixed number of frames are queued or
+ * being written. When that many are, {@link #write(FrameBuffer, String)} waits for one of them to
+ * finish, so a renderer that is faster than the disk cannot use up the memory.
+ *
+ * The encoder threads stop when they have been idle for a second, and are made again when a frame
+ * is written. They are not daemon threads, so frames that are still queued when the program ends
+ * are written before it exits. A frame that cannot be written is reported and skipped.
+ */
+public class AsyncFrameSink implements IFrameSink {
+
+  private final ThreadPoolExecutor pool;
+  private final Semaphore slots;
+  private final int capacity;
+
+  /**
+   * Make a sink with one encoder thread per available processor, that queues up to twice as many
+   * frames
+   */
+  public AsyncFrameSink() {
+    this(Runtime.getRuntime().availableProcessors(),
+        2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Make a sink
+   *
+   * @param threadCount the number of encoder threads, at least 1
+   * @param capacity the number of frames that may be queued or being written, at least 1
+   * @throws IllegalArgumentException if the thread count or the capacity is less than 1
+   */
+  public AsyncFrameSink(int threadCount, int capacity) throws IllegalArgumentException {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("Thread count should be at least 1: " + threadCount);
+    }
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity should be at least 1: " + capacity);
+    }
+    AtomicInteger threadIndex = new AtomicInteger();
+    ThreadFactory factory = r -> {
+      Thread thread = new Thread(r, "frame-encoder-" + threadIndex.incrementAndGet());
+      thread.setDaemon(false);
+      return thread;
+    };
+    pool = new ThreadPoolExecutor(threadCount, threadCount, 1, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), factory);
+    pool.allowCoreThreadTimeOut(true);
+    slots = new Semaphore(capacity);
+    this.capacity = capacity;
+  }
+
+  @Override
+  public void write(FrameBuffer frame, String path)
+      throws IllegalArgumentException, InterruptedException {
+    FrameFormat format = FrameFormat.forPath(path);
+    slots.acquire();
+    try {
+      pool.execute(() -> {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path), 1 << 16)) {
+          format.write(frame, out);
+        } catch (IOException e) {
+          System.out.println("Frame " + path + " cannot be written: " + e.getMessage());
+        } finally {
+          slots.release();
+        }
+      });
+    } catch (RuntimeException e) {
+      slots.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Wait until every frame handed to this sink has been written. The sink can still be used
+   * afterwards.
+   *
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public void flush() throws InterruptedException {
+    slots.acquire(capacity);
+    slots.release(capacity);
+  }
+
+  /**
+   * Wait until every frame handed to this sink has been written, and stop its threads. No frames
+   * may be written afterwards.
+   *
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  @Override
+  public void close() throws InterruptedException {
+    pool.shutdown();
+    while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+      // keep waiting for the queued frames
+    }
+  }
+}
@@ -0,0 +1,402 @@
+package rayTracer;
+
+import java.util.Arrays;
+
+/**
+ * This class represents a bounding volume hierarchy over a set of primitives. Each primitive is
+ * known only by its index and its axis aligned bounding box, so the same hierarchy can be built
+ * over objects in a scene or over triangles in a mesh.
+ *
+ * The hierarchy is built top down with the surface area heuristic, evaluated on a fixed number of
+ * bins along the longest axis of the primitive centroids. It is stored as flat arrays: the left
+ * child of an inner node directly follows it, and the index of its right child is stored in the
+ * node.
+ *
+ * Rays are checked against the hierarchy with a {@link Traversal}, which hands out the primitives
+ * in the leaves hit by the ray one at a time.
+ */
+public class BoundingVolumeHierarchy {
+
+  private static final int BIN_COUNT = 16;
+  private static final int MAX_LEAF_SIZE = 8;
+  private static final int MIN_LEAF_SIZE = 2;
+
+  private final int primitiveCount;
+  private final int[] order;
+  private float[] nodeBounds;
+  private int[] nodeData;
+  private int nodeCount;
+  private int maxDepth;
+
+  // scratch data used only while building
+  private float[] primitiveBounds;
+  private float[] centroids;
+  private int[] binOf;
+
+  /**
+   * Build a hierarchy over the given primitives.
+   *
+   * @param bounds the bounding boxes of the primitives, as six floats per primitive: minimum x, y,
+   * z followed by maximum x, y, z
+   * @param count the number of primitives
+   * @throws IllegalArgumentException if there are fewer than six floats for each primitive
+   */
+  public BoundingVolumeHierarchy(float[] bounds, int count) throws IllegalArgumentException {
+    if (bounds.length < 6 * count) {
+      throw new IllegalArgumentException(
+          "Expected " + (6 * count) + " bounds but found " + bounds.length);
+    }
+    this.primitiveCount = count;
+    this.order = new int[count];
+    this.nodeBounds = new float[6 * Math.max(1, 2 * count)];
+    this.nodeData = new int[2 * Math.max(1, 2 * count)];
+    this.nodeCount = 0;
+    this.maxDepth = 0;
+    if (count == 0) {
+      return;
+    }
+
+    this.primitiveBounds = bounds;
+    this.centroids = new float[3 * count];
+    this.binOf = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+      for (int axis = 0; axis < 3; axis++) {
+        centroids[3 * i + axis] = 0.5f * (bounds[6 * i + axis] + bounds[6 * i + 3 + axis]);
+      }
+    }
+    build(0, count, 1);
+    this.nodeBounds = Arrays.copyOf(nodeBounds, 6 * nodeCount);
+    this.nodeData = Arrays.copyOf(nodeData, 2 * nodeCount);
+    this.primitiveBounds = null;
+    this.centroids = null;
+    this.binOf = null;
+  }
+
+  public int getPrimitiveCount() {
+    return primitiveCount;
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * Get the depth of the deepest leaf.
+   */
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * Get the bounding box of all primitives, as minimum x, y, z followed by maximum x, y, z.
+   */
+  public float[] getBounds() {
+    float[] result = new float[6];
+    if (nodeCount > 0) {
+      System.arraycopy(nodeBounds, 0, result, 0, 6);
+    }
+    return result;
+  }
+
+  /**
+   * Check a ray against the box of a node with the slab method. An axis whose slab test produces
+   * NaN (a ray lying in the plane of a face) is ignored, which keeps the test conservative.
+   */
+  private boolean hitBox(int node, float ox, float oy, float oz, float ix, float iy, float iz,
+      float tMin, float tMax) {
+    int b = 6 * node;
+    float tNear = tMin;
+    float tFar = tMax;
+
+    float t1 = (nodeBounds[b] - ox) * ix;
+    float t2 = (nodeBounds[b + 3] - ox) * ix;
+    float lo = t1 < t2 ? t1 : t2;
+    float hi = t1 < t2 ? t2 : t1;
+    tNear = lo > tNear ? lo : tNear;
+    tFar = hi < tFar ? hi : tFar;
+
+    t1 = (nodeBounds[b + 1] - oy) * iy;
+    t2 = (nodeBounds[b + 4] - oy) * iy;
+    lo = t1 < t2 ? t1 : t2;
+    hi = t1 < t2 ? t2 : t1;
+    tNear = lo > tNear ? lo : tNear;
+    tFar = hi < tFar ? hi : tFar;
+
+    t1 = (nodeBounds[b + 2] - oz) * iz;
+    t2 = (nodeBounds[b + 5] - oz) * iz;
+    lo = t1 < t2 ? t1 : t2;
+    hi = t1 < t2 ? t2 : t1;
+    tNear = lo > tNear ? lo : tNear;
+    tFar = hi < tFar ? hi : tFar;
+
+    return tNear <= tFar;
+  }
+
+  /**
+   * Build the subtree over the primitives order[first] to order[first + count - 1].
+   *
+   * @return the index of the root of the subtree
+   */
+  private int build(int first, int count, int depth) {
+    int node = nodeCount++;
+    maxDepth = Math.max(maxDepth, depth);
+
+    // bounds of the primitives and of their centroids
+    float[] box = emptyBox();
+    float[] centroidBox = emptyBox();
+    for (int i = first; i < first + count; i++) {
+      int p = order[i];
+      growBox(box, primitiveBounds, 6 * p, 6 * p + 3);
+      growBox(centroidBox, centroids, 3 * p, 3 * p);
+    }
+    System.arraycopy(box, 0, nodeBounds, 6 * node, 6);
+
+    if (count <= MIN_LEAF_SIZE) {
+      makeLeaf(node, first, count);
+      return node;
+    }
+
+    // split along the longest axis of the centroids
+    int axis = 0;
+    for (int a = 1; a < 3; a++) {
+      if (centroidBox[3 + a] - centroidBox[a] > centroidBox[3 + axis] - centroidBox[axis]) {
+        axis = a;
+      }
+    }
+    float extent = centroidBox[3 + axis] - centroidBox[axis];
+
+    int mid;
+    if (extent > 0) {
+      // put the primitives into bins
+      float[][] binBoxes = new float[BIN_COUNT][];
+      int[] binCounts = new int[BIN_COUNT];
+      for (int i = 0; i < BIN_COUNT; i++) {
+        binBoxes[i] = emptyBox();
+      }
+      float scale = BIN_COUNT / extent;
+      for (int i = first; i < first + count; i++) {
+        int p = order[i];
+        int bin = (int) ((centroids[3 * p + axis] - centroidBox[axis]) * scale);
+        bin = Math.min(BIN_COUNT - 1, Math.max(0, bin));
+        binOf[p] = bin;
+        binCounts[bin]++;
+        growBox(binBoxes[bin], primitiveBounds, 6 * p, 6 * p + 3);
+      }
+
+      // sweep from the right to get the area of every right side
+      float[] rightAreas = new float[BIN_COUNT];
+      int[] rightCounts = new int[BIN_COUNT];
+      float[] acc = emptyBox();
+      int accCount = 0;
+      for (int i = BIN_COUNT - 1; i > 0; i--) {
+        growBox(acc, binBoxes[i], 0, 3);
+        accCount += binCounts[i];
+        rightAreas[i] = area(acc);
+        rightCounts[i] = accCount;
+      }
+
+      // sweep from the left to find the cheapest split
+      acc = emptyBox();
+      accCount = 0;
+      int bestSplit = -1;
+      float bestCost = Float.MAX_VALUE;
+      for (int i = 0; i < BIN_COUNT - 1; i++) {
+        growBox(acc, binBoxes[i], 0, 3);
+        accCount += binCounts[i];
+        if (accCount == 0 || rightCounts[i + 1] == 0) {
+          continue;
+        }
+        float cost = accCount * area(acc) + rightCounts[i + 1] * rightAreas[i + 1];
+        if (cost < bestCost) {
+          bestCost = cost;
+          bestSplit = i;
+        }
+      }
+
+      if (bestSplit < 0 || (count <= MAX_LEAF_SIZE && bestCost >= count * area(box))) {
+        makeLeaf(node, first, count);
+        return node;
+      }
+
+      // partition the primitives around the split
+      int left = first;
+      int right = first + count - 1;
+      while (left <= right) {
+        if (binOf[order[left]] <= bestSplit) {
+          left++;
+        } else {
+          int temp = order[left];
+          order[left] = order[right];
+          order[right] = temp;
+          right--;
+        }
+      }
+      mid = left;
+    } else if (count <= MAX_LEAF_SIZE) {
+      makeLeaf(node, first, count);
+      return node;
+    } else {
+      // all centroids are at the same point, so just split the primitives in half
+      mid = first + count / 2;
+    }
+
+    build(first, mid - first, depth + 1);
+    int rightChild = build(mid, first + count - mid, depth + 1);
+    nodeData[2 * node] = rightChild;
+    nodeData[2 * node + 1] = -(axis + 1);
+    return node;
+  }
+
+  private void makeLeaf(int node, int first, int count) {
+    nodeData[2 * node] = first;
+    nodeData[2 * node + 1] = count;
+  }
+
+  private static float[] emptyBox() {
+    return new float[]{Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+        -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+  }
+
+  /**
+   * Grow a box to include the box given by a minimum and a maximum corner in an array.
+   */
+  private static void growBox(float[] box, float[] data, int minOffset, int maxOffset) {
+    for (int a = 0; a < 3; a++) {
+      box[a] = Math.min(box[a], data[minOffset + a]);
+      box[3 + a] = Math.max(box[3 + a], data[maxOffset + a]);
+    }
+  }
+
+  /**
+   * Half of the surface area of a box, which is all the surface area heuristic needs.
+   */
+  private static float area(float[] box) {
+    float x = box[3] - box[0];
+    float y = box[4] - box[1];
+    float z = box[5] - box[2];
+    return x * y + y * z + z * x;
+  }
+
+  /**
+   * This class walks a hierarchy for one ray, and returns the primitives in every leaf whose box is
+   * hit by the ray between tMin and tMax. Leaves are visited roughly from front to back, and the end
+   * of the ray can be moved closer while walking to skip boxes beyond it. A traversal can be reused
+   * for many rays and allocates nothing once its stack is large enough.
+   */
+  public static class Traversal {
+
+    private BoundingVolumeHierarchy hierarchy;
+    private float ox;
+    private float oy;
+    private float oz;
+    private float dx;
+    private float dy;
+    private float dz;
+    private float ix;
+    private float iy;
+    private float iz;
+    private float tMin;
+    private float tMax;
+    private int[] stack;
+    private int top;
+    private int leafPosition;
+    private int leafEnd;
+
+    public Traversal() {
+      stack = new int[32];
+      top = 0;
+      leafPosition = 0;
+      leafEnd = 0;
+    }
+
+    /**
+     * Start walking a hierarchy for a ray.
+     *
+     * @param hierarchy the hierarchy that is to be walked
+     * @param ox x component of the starting point of the ray
+     * @param oy y component of the starting point of the ray
+     * @param oz z component of the starting point of the ray
+     * @param dx x component of the direction of the ray
+     * @param dy y component of the direction of the ray
+     * @param dz z component of the direction of the ray
+     * @param tMin the start of the ray
+     * @param tMax the end of the ray
+     */
+    public void start(BoundingVolumeHierarchy hierarchy, float ox, float oy, float oz, float dx,
+        float dy, float dz, float tMin, float tMax) {
+      this.hierarchy = hierarchy;
+      this.ox = ox;
+      this.oy = oy;
+      this.oz = oz;
+      this.dx = dx;
+      this.dy = dy;
+      this.dz = dz;
+      this.ix = 1f / dx;
+      this.iy = 1f / dy;
+      this.iz = 1f / dz;
+      this.tMin = tMin;
+      this.tMax = tMax;
+      if (stack.length < hierarchy.maxDepth + 1) {
+        stack = new int[hierarchy.maxDepth + 1];
+      }
+      top = 0;
+      if (hierarchy.nodeCount > 0) {
+        stack[top++] = 0;
+      }
+      leafPosition = 0;
+      leafEnd = 0;
+    }
+
+    /**
+     * Move the end of the ray. Boxes that are not yet visited and lie completely beyond it are
+     * skipped.
+     *
+     * @param tMax the new end of the ray
+     */
+    public void setTMax(float tMax) {
+      this.tMax = tMax;
+    }
+
+    public float getTMax() {
+      return tMax;
+    }
+
+    /**
+     * Get the next primitive in a leaf whose box is hit by the ray.
+     *
+     * @return the index of the primitive, or -1 if there are no more
+     */
+    public int next() {
+      while (true) {
+        if (leafPosition < leafEnd) {
+          return hierarchy.order[leafPosition++];
+        }
+        if (top == 0) {
+          return -1;
+        }
+        int node = stack[--top];
+        if (!hierarchy.hitBox(node, ox, oy, oz, ix, iy, iz, tMin, tMax)) {
+          continue;
+        }
+        int first = hierarchy.nodeData[2 * node];
+        int count = hierarchy.nodeData[2 * node + 1];
+        if (count > 0) {
+          leafPosition = first;
+          leafEnd = first + count;
+        } else {
+          // push the far child first so that the near child is visited first
+          int axis = -count - 1;
+          float d = axis == 0 ? dx : (axis == 1 ? dy : dz);
+          if (d < 0) {
+            stack[top++] = node + 1;
+            stack[top++] = first;
+          } else {
+            stack[top++] = first;
+            stack[top++] = node + 1;
+          }
+        }
+      }
+    }
+  }
+}
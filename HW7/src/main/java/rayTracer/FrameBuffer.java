@@ -0,0 +1,118 @@
+package rayTracer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.IntBuffer;
+import org.joml.Vector3f;
+
+/**
+ * This class holds the pixels of a rendered frame, row by row from the top. Every pixel is kept
+ * both as a packed RGB integer, for 8 bit formats, and as three floats, for float formats. The
+ * ray tracer writes both directly, so no color object is made per pixel. Threads may write
+ * different pixels at the same time.
+ */
+public class FrameBuffer {
+
+  private final int width;
+  private final int height;
+  private final int[] rgb;
+  private final float[] colors;
+
+  /**
+   * Make a black frame
+   *
+   * @param width the width in pixels, at least 1
+   * @param height the height in pixels, at least 1
+   * @throws IllegalArgumentException if the width or height is less than 1
+   */
+  public FrameBuffer(int width, int height) throws IllegalArgumentException {
+    if (width < 1 || height < 1) {
+      throw new IllegalArgumentException("Invalid frame size: " + width + " x " + height);
+    }
+    this.width = width;
+    this.height = height;
+    rgb = new int[width * height];
+    colors = new float[3 * width * height];
+  }
+
+  /**
+   * Make a frame with the pixels of an image
+   *
+   * @param image the image
+   */
+  public FrameBuffer(BufferedImage image) {
+    this(image.getWidth(), image.getHeight());
+    image.getRGB(0, 0, width, height, rgb, 0, width);
+    for (int p = 0; p < rgb.length; p++) {
+      rgb[p] &= 0xffffff;
+      colors[3 * p] = ((rgb[p] >> 16) & 0xff) / 255f;
+      colors[3 * p + 1] = ((rgb[p] >> 8) & 0xff) / 255f;
+      colors[3 * p + 2] = (rgb[p] & 0xff) / 255f;
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Set the color of a pixel. Each channel is rounded to 8 bits the way {@link java.awt.Color}
+   * does, so it must be within [0,1].
+   *
+   * @param x the column of the pixel, from the left
+   * @param y the row of the pixel, from the top
+   * @param color the color
+   */
+  public void setColor(int x, int y, Vector3f color) {
+    int p = y * width + x;
+    colors[3 * p] = color.x;
+    colors[3 * p + 1] = color.y;
+    colors[3 * p + 2] = color.z;
+    rgb[p] = (((int) (color.x * 255 + 0.5)) << 16) | (((int) (color.y * 255 + 0.5)) << 8)
+        | ((int) (color.z * 255 + 0.5));
+  }
+
+  /**
+   * Get the packed RGB color of a pixel
+   */
+  public int getRGB(int x, int y) {
+    return rgb[y * width + x];
+  }
+
+  /**
+   * Get one channel of the color of a pixel
+   *
+   * @param x the column of the pixel, from the left
+   * @param y the row of the pixel, from the top
+   * @param channel 0 for red, 1 for green and 2 for blue
+   */
+  public float getColor(int x, int y, int channel) {
+    return colors[3 * (y * width + x) + channel];
+  }
+
+  /**
+   * Copy the packed RGB colors of all pixels, row by row from the top, into a buffer at its
+   * position
+   *
+   * @param buffer the buffer, with room for every pixel
+   */
+  public void copyRGB(IntBuffer buffer) {
+    buffer.put(rgb);
+  }
+
+  /**
+   * Make an image of this frame. The pixels are copied into the image in bulk.
+   *
+   * @return the image
+   */
+  public BufferedImage toImage() {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    System.arraycopy(rgb, 0, data, 0, rgb.length);
+    return image;
+  }
+}
@@ -0,0 +1,89 @@
+package rayTracer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import javax.imageio.ImageIO;
+
+/**
+ * The file formats that a frame can be written in.
+ * <ul>
+ * <li>PNG: compressed, 8 bits per channel. Compressing takes most of the time of writing.</li>
+ * <li>PPM: the binary portable pixmap, 8 bits per channel and not compressed, so it is written
+ * about as fast as the disk takes it.</li>
+ * <li>PFM: the portable float map, with the colors as the ray tracer computed them, in 32 bit
+ * floats and not compressed. Rows are written from the bottom, in little endian order.</li>
+ * </ul>
+ */
+public enum FrameFormat {
+  PNG, PPM, PFM;
+
+  /**
+   * Get the format of a file from its extension
+   *
+   * @param path the path of the file
+   * @return the format
+   * @throws IllegalArgumentException if the extension is not one of the formats
+   */
+  public static FrameFormat forPath(String path) throws IllegalArgumentException {
+    String extension = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+    switch (extension) {
+      case "png":
+        return PNG;
+      case "ppm":
+        return PPM;
+      case "pfm":
+        return PFM;
+      default:
+        throw new IllegalArgumentException("Unsupported image format: " + extension);
+    }
+  }
+
+  /**
+   * Write a frame in this format. The stream is not closed.
+   *
+   * @param frame the frame
+   * @param out the stream
+   * @throws IOException if the stream cannot be written
+   */
+  public void write(FrameBuffer frame, OutputStream out) throws IOException {
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    switch (this) {
+      case PNG:
+        ImageIO.write(frame.toImage(), "png", out);
+        break;
+      case PPM: {
+        out.write(("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+        byte[] row = new byte[3 * width];
+        for (int y = 0; y < height; y++) {
+          for (int x = 0; x < width; x++) {
+            int rgb = frame.getRGB(x, y);
+            row[3 * x] = (byte) (rgb >> 16);
+            row[3 * x + 1] = (byte) (rgb >> 8);
+            row[3 * x + 2] = (byte) rgb;
+          }
+          out.write(row);
+        }
+      }
+      break;
+      case PFM: {
+        out.write(("PF\n" + width + " " + height + "\n-1.0\n")
+            .getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer row = ByteBuffer.allocate(12 * width).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = height - 1; y >= 0; y--) {
+          row.clear();
+          for (int x = 0; x < width; x++) {
+            row.putFloat(frame.getColor(x, y, 0));
+            row.putFloat(frame.getColor(x, y, 1));
+            row.putFloat(frame.getColor(x, y, 2));
+          }
+          out.write(row.array());
+        }
+      }
+      break;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package rayTracer;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+
+/**
+ * This class holds the hit records of one ray, together with all scratch storage needed to find
+ * them. Hit records are kept when the buffer is cleared and reused for the next ray, so once a
+ * buffer has grown to the number of hits of the busiest ray, casting rays into it allocates
+ * nothing. A buffer also holds scratch vectors for shading its closest hit, apart from the ones of
+ * intersection tests, so that shading allocates nothing either. A buffer must only be used by one
+ * thread at a time.
+ */
+public class HitBuffer {
+
+  private HitRecord[] records;
+  private int size;
+  private final ThreeDRay ray;
+  private final Vector4f[] scratchVectors;
+  private final Vector3f[] shadeVectors3;
+  private final Vector4f[] shadeVectors4;
+  private final IndexList candidates;
+  private final BoundingVolumeHierarchy.Traversal instanceTraversal;
+  private final BoundingVolumeHierarchy.Traversal primitiveTraversal;
+
+  public HitBuffer() {
+    records = new HitRecord[8];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = new HitRecord();
+    }
+    size = 0;
+    ray = new ThreeDRay();
+    scratchVectors = new Vector4f[4];
+    for (int i = 0; i < scratchVectors.length; i++) {
+      scratchVectors[i] = new Vector4f();
+    }
+    shadeVectors3 = new Vector3f[10];
+    for (int i = 0; i < shadeVectors3.length; i++) {
+      shadeVectors3[i] = new Vector3f();
+    }
+    shadeVectors4 = new Vector4f[10];
+    for (int i = 0; i < shadeVectors4.length; i++) {
+      shadeVectors4[i] = new Vector4f();
+    }
+    candidates = new IndexList();
+    instanceTraversal = new BoundingVolumeHierarchy.Traversal();
+    primitiveTraversal = new BoundingVolumeHierarchy.Traversal();
+  }
+
+  /**
+   * Remove all hit records from this buffer.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Add a hit record to this buffer. The record is reset to default values before it is returned.
+   *
+   * @return the added record
+   */
+  public HitRecord add() {
+    if (size == records.length) {
+      HitRecord[] grown = new HitRecord[2 * size];
+      System.arraycopy(records, 0, grown, 0, size);
+      for (int i = size; i < grown.length; i++) {
+        grown[i] = new HitRecord();
+      }
+      records = grown;
+    }
+    HitRecord record = records[size++];
+    record.reset();
+    return record;
+  }
+
+  /**
+   * Remove all hit records after the first ones.
+   *
+   * @param size the number of records that are kept
+   */
+  public void truncate(int size) {
+    if (size < this.size) {
+      this.size = size;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get a hit record in this buffer. The record is reused once the buffer is cleared.
+   *
+   * @param index the index of the record
+   * @return the record
+   */
+  public HitRecord get(int index) {
+    return records[index];
+  }
+
+  /**
+   * Copy all hit records in this buffer into a new list.
+   *
+   * @return a list of copies of the hit records
+   */
+  public List<HitRecord> toList() {
+    List<HitRecord> result = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(new HitRecord(records[i]));
+    }
+    return result;
+  }
+
+  /**
+   * Get a ray that belongs to this buffer, to be set up and cast into this buffer.
+   */
+  public ThreeDRay getRay() {
+    return ray;
+  }
+
+  /**
+   * Get one of four scratch vectors, used by intersection tests for intermediate values.
+   *
+   * @param index the index of the vector, from 0 to 3
+   * @return the vector
+   */
+  public Vector4f getScratchVector(int index) {
+    return scratchVectors[index];
+  }
+
+  /**
+   * Get one of ten 3D scratch vectors, used while shading. Intersection tests leave them alone,
+   * so they keep their values while rays are cast into this buffer.
+   *
+   * @param index the index of the vector, from 0 to 9
+   * @return the vector
+   */
+  public Vector3f getShadeVector3(int index) {
+    return shadeVectors3[index];
+  }
+
+  /**
+   * Get one of ten 4D scratch vectors, used while shading. Intersection tests leave them alone,
+   * so they keep their values while rays are cast into this buffer.
+   *
+   * @param index the index of the vector, from 0 to 9
+   * @return the vector
+   */
+  public Vector4f getShadeVector4(int index) {
+    return shadeVectors4[index];
+  }
+
+  /**
+   * Get the list used to collect the instances that may be hit by a ray. The list is cleared.
+   */
+  public IndexList getCandidates() {
+    candidates.clear();
+    return candidates;
+  }
+
+  /**
+   * Get the traversal used to walk a hierarchy over the instances of a scene.
+   */
+  public BoundingVolumeHierarchy.Traversal getInstanceTraversal() {
+    return instanceTraversal;
+  }
+
+  /**
+   * Get the traversal used to walk a hierarchy over the primitives of one object, while the
+   * instance traversal may still be in use.
+   */
+  public BoundingVolumeHierarchy.Traversal getPrimitiveTraversal() {
+    return primitiveTraversal;
+  }
+}
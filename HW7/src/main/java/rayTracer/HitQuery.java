@@ -0,0 +1,18 @@
+package rayTracer;
+
+/**
+ * The hits of a ray that a check for hits has to find.
+ * <ul>
+ * <li>ALL: every hit.</li>
+ * <li>CLOSEST: only the closest hit. Of several equally close hits, the first one found is
+ * kept.</li>
+ * <li>ANY: any one hit, which lets the check stop at the first hit it finds. This is enough for
+ * shadow rays through objects that let no light through.</li>
+ * </ul>
+ * Objects that find their hits all at once, like spheres and boxes, may return every hit whatever
+ * the query, so the caller still has to pick the hits it needs. Triangle meshes use the query to
+ * skip most of their triangles.
+ */
+public enum HitQuery {
+  ALL, CLOSEST, ANY
+}
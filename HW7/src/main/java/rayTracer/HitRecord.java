@@ -7,18 +7,22 @@ import util.Material;
 import util.TextureImage;
 
 /**
- * This class records all necessary information about a hit.
+ * This class records all necessary information about a hit. The vectors of a hit record are
+ * allocated once and then changed in place, so a record can be reused for many rays. The getters
+ * return these vectors without copying them.
  */
 public class HitRecord implements Comparable<HitRecord> {
 
   private float t;
   private float fromRefraction;
   private float toRefraction;
-  private Vector4f intersectionInView;
-  private Vector4f normal;
+  private final Vector4f intersectionInView;
+  private final Vector4f normal;
   private Material material;
   private TextureImage textureImage;
-  private Vector2f textureCoordinate;
+  private final Vector2f textureCoordinate;
+  private float textureDensity;
+  private int objectId;
 
 
   private boolean flipNormal;
@@ -27,14 +31,58 @@ public class HitRecord implements Comparable<HitRecord> {
    * Construct a hit record with default values.
    */
   public HitRecord() {
-    intersectionInView = null;
-    normal = null;
+    intersectionInView = new Vector4f(0, 0, 0, 1);
+    normal = new Vector4f();
+    textureCoordinate = new Vector2f();
+    reset();
+  }
+
+  /**
+   * Construct a copy of the given hit record.
+   *
+   * @param other the hit record that is to be copied
+   */
+  public HitRecord(HitRecord other) {
+    intersectionInView = new Vector4f();
+    normal = new Vector4f();
+    textureCoordinate = new Vector2f();
+    set(other);
+  }
+
+  /**
+   * Set this hit record back to default values, so that it can be reused.
+   */
+  public void reset() {
+    intersectionInView.set(0, 0, 0, 1);
+    normal.set(0, 0, 0, 0);
     material = null;
     textureImage = null;
     t = -1;
-    textureCoordinate = null;
+    textureCoordinate.set(0, 0);
+    textureDensity = 0;
+    objectId = -1;
     fromRefraction = 1;
     toRefraction = 1;
+    flipNormal = false;
+  }
+
+  /**
+   * Copy all values of another hit record into this one.
+   *
+   * @param other the hit record that is to be copied
+   */
+  public void set(HitRecord other) {
+    t = other.t;
+    fromRefraction = other.fromRefraction;
+    toRefraction = other.toRefraction;
+    intersectionInView.set(other.intersectionInView);
+    normal.set(other.normal);
+    material = other.material;
+    textureImage = other.textureImage;
+    textureCoordinate.set(other.textureCoordinate);
+    textureDensity = other.textureDensity;
+    objectId = other.objectId;
+    flipNormal = other.flipNormal;
   }
 
   public float getT() {
@@ -45,35 +93,43 @@ public class HitRecord implements Comparable<HitRecord> {
     this.t = t;
   }
 
+  /**
+   * Get the intersection in view. The returned vector belongs to this record, changing it changes
+   * the record.
+   */
   public Vector4f getIntersection() {
-    return new Vector4f(intersectionInView);
+    return intersectionInView;
   }
 
   /**
    * Set the intersection in view.
    */
   public void setIntersection(Vector4f intersectionInView) {
-    this.intersectionInView = new Vector4f(intersectionInView);
+    this.intersectionInView.set(intersectionInView);
   }
 
   public void setIntersection(float x, float y, float z) {
-    this.intersectionInView = new Vector4f(x, y, z, 1);
+    this.intersectionInView.set(x, y, z, 1);
   }
 
+  /**
+   * Get the normal in view. The returned vector belongs to this record, changing it changes the
+   * record.
+   */
   public Vector4f getNormal() {
-    return new Vector4f(normal);
+    return normal;
   }
 
   public void setNormal(Vector3f normal) {
-    this.normal = new Vector4f(normal.x, normal.y, normal.z, 0).normalize();
+    this.normal.set(normal.x, normal.y, normal.z, 0).normalize();
   }
 
   public void setNormal(Vector4f normal) {
-    this.normal = new Vector4f(normal).normalize();
+    this.normal.set(normal).normalize();
   }
 
   public void setNormal(float x, float y, float z) {
-    this.normal = new Vector4f(x, y, z, 0).normalize();
+    this.normal.set(x, y, z, 0).normalize();
   }
 
   public Material getMaterial() {
@@ -92,16 +148,20 @@ public class HitRecord implements Comparable<HitRecord> {
     this.textureImage = textureImage;
   }
 
+  /**
+   * Get the texture coordinate. The returned vector belongs to this record, changing it changes
+   * the record.
+   */
   public Vector2f getTextureCoordinate() {
-    return new Vector2f(textureCoordinate);
+    return textureCoordinate;
   }
 
   public void setTextureCoordinate(Vector2f textureCoordinate) {
-    this.textureCoordinate = new Vector2f(textureCoordinate);
+    this.textureCoordinate.set(textureCoordinate);
   }
 
   public void setTextureCoordinate(float x, float y) {
-    this.textureCoordinate = new Vector2f(x, y);
+    this.textureCoordinate.set(x, y);
   }
 
   public float getFromRefraction() {
@@ -120,6 +180,30 @@ public class HitRecord implements Comparable<HitRecord> {
     this.toRefraction = toRefraction;
   }
 
+  /**
+   * Get about how many texture coordinate units one unit of length in the view coordinate system
+   * spans near this hit, or 0 if this is not known.
+   */
+  public float getTextureDensity() {
+    return textureDensity;
+  }
+
+  public void setTextureDensity(float textureDensity) {
+    this.textureDensity = textureDensity;
+  }
+
+  /**
+   * Get the index of the instance that was hit in the snapshot that found the hit, or -1 if this is
+   * not known. Only closest hits know it.
+   */
+  public int getObjectId() {
+    return objectId;
+  }
+
+  public void setObjectId(int objectId) {
+    this.objectId = objectId;
+  }
+
   public boolean getFlipNormal() {
     return flipNormal;
   }
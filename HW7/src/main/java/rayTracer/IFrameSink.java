@@ -0,0 +1,23 @@
+package rayTracer;
+
+/**
+ * This interface represents a destination for rendered frames. A sink may write a frame after
+ * {@link #write(FrameBuffer, String)} has returned, so the frame must not be changed afterwards.
+ */
+public interface IFrameSink {
+
+  /**
+   * Write a frame to a file, in the format given by the extension of its path
+   *
+   * @param frame the frame
+   * @param path the path of the file
+   * @throws IllegalArgumentException if the extension is not a {@link FrameFormat}
+   * @throws InterruptedException if the thread is interrupted while waiting to hand the frame over
+   */
+  void write(FrameBuffer frame, String path) throws IllegalArgumentException, InterruptedException;
+
+  /**
+   * Wait until every frame handed to this sink has been written, and release its resources
+   */
+  void close() throws InterruptedException;
+}
@@ -0,0 +1,47 @@
+package rayTracer;
+
+import java.util.Arrays;
+
+/**
+ * This class represents a growable list of indices.
+ */
+public class IndexList {
+
+  private int[] indices;
+  private int size;
+
+  public IndexList() {
+    indices = new int[16];
+    size = 0;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public void add(int index) {
+    if (size == indices.length) {
+      indices = Arrays.copyOf(indices, 2 * size);
+    }
+    indices[size++] = index;
+  }
+
+  public int get(int position) {
+    return indices[position];
+  }
+
+  public void set(int position, int index) {
+    indices[position] = index;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Sort the indices in ascending order.
+   */
+  public void sort() {
+    Arrays.sort(indices, 0, size);
+  }
+}
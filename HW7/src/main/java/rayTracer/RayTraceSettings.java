@@ -0,0 +1,218 @@
+package rayTracer;
+
+/**
+ * This class records the settings used by the ray tracer when producing an image. The image is
+ * split into square tiles, and the tiles are traced by a pool of worker threads.
+ *
+ * Anti-aliasing is adaptive. Every pixel is first traced with one ray. A pixel is then traced
+ * again with a grid of jittered rays if its color differs from a neighbor's by more than the
+ * threshold in any channel, or if it shows a different material or texture than a neighbor.
+ *
+ * Every reflected and refracted ray carries its weight, the part of the color of the pixel that
+ * it gives. A ray is traced while its depth is within the maximum depth and its weight is at least
+ * the minimum contribution. A lighter ray is dropped, or with Russian roulette, traced with a
+ * probability of its weight over the minimum and its color scaled up by the inverse of that
+ * probability, so that on average the image does not get darker.
+ *
+ * With the hit cache on, a frame keeps every hit of the rays of its pixels after it is traced, so
+ * that the next frame of the same size, from the same camera and of the same geometry, only has to
+ * shade them again.
+ */
+public class RayTraceSettings {
+
+  private int threadCount;
+  private int tileSize;
+  private int antiAliasing;
+  private float antiAliasThreshold;
+  private int maxDepth;
+  private float minContribution;
+  private boolean russianRoulette;
+  private boolean hitCache;
+
+  /**
+   * Construct settings with default values. By default one worker thread is used per available
+   * processor, tiles are 32 by 32 pixels and rays are reflected and refracted up to 5 times
+   * whatever their weight.
+   */
+  public RayTraceSettings() {
+    threadCount = Runtime.getRuntime().availableProcessors();
+    tileSize = 32;
+    antiAliasing = 1;
+    antiAliasThreshold = 0.1f;
+    maxDepth = 5;
+    minContribution = 0;
+    russianRoulette = false;
+    hitCache = false;
+  }
+
+  /**
+   * Construct a copy of the given settings.
+   *
+   * @param settings the settings that are to be copied
+   */
+  public RayTraceSettings(RayTraceSettings settings) {
+    this.threadCount = settings.threadCount;
+    this.tileSize = settings.tileSize;
+    this.antiAliasing = settings.antiAliasing;
+    this.antiAliasThreshold = settings.antiAliasThreshold;
+    this.maxDepth = settings.maxDepth;
+    this.minContribution = settings.minContribution;
+    this.russianRoulette = settings.russianRoulette;
+    this.hitCache = settings.hitCache;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * Set the number of worker threads. One thread traces the whole image on the calling thread.
+   *
+   * @param threadCount the number of worker threads, at least 1
+   * @throws IllegalArgumentException if the thread count is less than 1
+   */
+  public void setThreadCount(int threadCount) throws IllegalArgumentException {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("Thread count should be at least 1: " + threadCount);
+    }
+    this.threadCount = threadCount;
+  }
+
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  /**
+   * Set the width and height of a tile in pixels.
+   *
+   * @param tileSize the size of a tile, at least 1
+   * @throws IllegalArgumentException if the tile size is less than 1
+   */
+  public void setTileSize(int tileSize) throws IllegalArgumentException {
+    if (tileSize < 1) {
+      throw new IllegalArgumentException("Tile size should be at least 1: " + tileSize);
+    }
+    this.tileSize = tileSize;
+  }
+
+  public int getAntiAliasing() {
+    return antiAliasing;
+  }
+
+  /**
+   * Set the number of rays across and down the grid that a pixel is traced with when it is
+   * refined. 1 turns anti-aliasing off, and is the default.
+   *
+   * @param antiAliasing the size of the grid, at least 1
+   * @throws IllegalArgumentException if the size is less than 1
+   */
+  public void setAntiAliasing(int antiAliasing) throws IllegalArgumentException {
+    if (antiAliasing < 1) {
+      throw new IllegalArgumentException("Anti-aliasing should be at least 1: " + antiAliasing);
+    }
+    this.antiAliasing = antiAliasing;
+  }
+
+  public float getAntiAliasThreshold() {
+    return antiAliasThreshold;
+  }
+
+  /**
+   * Set how much the color of a pixel may differ from a neighbor's in any channel before the pixel
+   * is refined. The default is 0.1.
+   *
+   * @param antiAliasThreshold the threshold, from 0 to 1
+   * @throws IllegalArgumentException if the threshold is not from 0 to 1
+   */
+  public void setAntiAliasThreshold(float antiAliasThreshold) throws IllegalArgumentException {
+    if (!(antiAliasThreshold >= 0 && antiAliasThreshold <= 1)) {
+      throw new IllegalArgumentException(
+          "Anti-alias threshold should be from 0 to 1: " + antiAliasThreshold);
+    }
+    this.antiAliasThreshold = antiAliasThreshold;
+  }
+
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * Set the number of times a ray may be reflected or refracted. A refracted ray at the maximum
+   * depth is shaded without going through the surface, and a reflected one is black. The default
+   * is 5.
+   *
+   * @param maxDepth the maximum depth, at least 0
+   * @throws IllegalArgumentException if the depth is less than 0
+   */
+  public void setMaxDepth(int maxDepth) throws IllegalArgumentException {
+    if (maxDepth < 0) {
+      throw new IllegalArgumentException("Maximum depth should be at least 0: " + maxDepth);
+    }
+    this.maxDepth = maxDepth;
+  }
+
+  public float getMinContribution() {
+    return minContribution;
+  }
+
+  /**
+   * Set the weight that a reflected or refracted ray should have to be traced. 0 traces every ray
+   * up to the maximum depth, and is the default.
+   *
+   * @param minContribution the minimum weight, from 0 to 1
+   * @throws IllegalArgumentException if the weight is not from 0 to 1
+   */
+  public void setMinContribution(float minContribution) throws IllegalArgumentException {
+    if (!(minContribution >= 0 && minContribution <= 1)) {
+      throw new IllegalArgumentException(
+          "Minimum contribution should be from 0 to 1: " + minContribution);
+    }
+    this.minContribution = minContribution;
+  }
+
+  public boolean isRussianRoulette() {
+    return russianRoulette;
+  }
+
+  /**
+   * Set whether rays lighter than the minimum contribution are traced by Russian roulette instead
+   * of being dropped. The default is false.
+   */
+  public void setRussianRoulette(boolean russianRoulette) {
+    this.russianRoulette = russianRoulette;
+  }
+
+  public boolean isHitCache() {
+    return hitCache;
+  }
+
+  /**
+   * Set whether frames keep the hits of the rays of every pixel, so that a frame that only changes
+   * lights or the colors of materials is shaded again without tracing its rays. The cache takes
+   * about 100 bytes per pixel for a mostly diffuse scene, and a few times as much with glass or
+   * anti-aliasing. Images traced straight to a file do not use it. The default is false.
+   */
+  public void setHitCache(boolean hitCache) {
+    this.hitCache = hitCache;
+  }
+
+  @Override
+  public String toString() {
+    String result = "threads: " + threadCount + " tile size: " + tileSize;
+    if (antiAliasing > 1) {
+      result += " anti-aliasing: " + antiAliasing + "x" + antiAliasing + " threshold: "
+          + antiAliasThreshold;
+    }
+    result += " max depth: " + maxDepth;
+    if (minContribution > 0) {
+      result += " min contribution: " + minContribution;
+      if (russianRoulette) {
+        result += " russian roulette";
+      }
+    }
+    if (hitCache) {
+      result += " hit cache";
+    }
+    return result;
+  }
+}
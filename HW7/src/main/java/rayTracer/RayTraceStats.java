@@ -0,0 +1,84 @@
+package rayTracer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class counts the work done by one ray trace: the pixels of the image, the pixels finished
+ * so far, the primary rays traced for them, and the pixels that anti-aliasing refined. Worker
+ * threads add their counts as they finish each tile, so the counts can be read while the image is
+ * traced to follow its progress.
+ */
+public class RayTraceStats {
+
+  private final long pixels;
+  private final AtomicLong samples;
+  private final AtomicLong refinedPixels;
+  private final AtomicLong finishedPixels;
+
+  /**
+   * Make empty counts for an image
+   *
+   * @param pixels the number of pixels in the image
+   */
+  public RayTraceStats(long pixels) {
+    this.pixels = pixels;
+    samples = new AtomicLong();
+    refinedPixels = new AtomicLong();
+    finishedPixels = new AtomicLong();
+  }
+
+  /**
+   * Add the counts of a part of the image
+   *
+   * @param samples the number of primary rays traced
+   * @param refinedPixels the number of pixels refined by anti-aliasing
+   * @param finishedPixels the number of pixels whose color is final
+   */
+  public void add(long samples, long refinedPixels, long finishedPixels) {
+    this.samples.addAndGet(samples);
+    this.refinedPixels.addAndGet(refinedPixels);
+    this.finishedPixels.addAndGet(finishedPixels);
+  }
+
+  public long getPixels() {
+    return pixels;
+  }
+
+  /**
+   * Get the number of primary rays traced. With anti-aliasing, this includes the rows around each
+   * band that are traced again to compare the pixels at its edges.
+   */
+  public long getSamples() {
+    return samples.get();
+  }
+
+  public long getRefinedPixels() {
+    return refinedPixels.get();
+  }
+
+  public long getFinishedPixels() {
+    return finishedPixels.get();
+  }
+
+  /**
+   * Get the part of the pixels whose color is final, from 0 to 1. With anti-aliasing, pixels are
+   * finished only as they are refined, after the first pass over their band.
+   */
+  public float getProgress() {
+    return pixels > 0 ? (float) finishedPixels.get() / pixels : 1;
+  }
+
+  /**
+   * Get the average number of primary rays per pixel
+   */
+  public float getSamplesPerPixel() {
+    return pixels > 0 ? (float) samples.get() / pixels : 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("samples per pixel: %.3f, refined pixels: %d of %d (%.2f%%)",
+        getSamplesPerPixel(), refinedPixels.get(), pixels,
+        pixels > 0 ? 100.0 * refinedPixels.get() / pixels : 0);
+  }
+}
@@ -0,0 +1,312 @@
+package rayTracer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This class writes an image to a file a few rows at a time, so that the whole image never has
+ * to be in memory. Rows are written from the top, in the format given by the extension of the file
+ * as for {@link FrameFormat}. Once every row has been written, {@link #close()} finishes the file.
+ */
+public abstract class ScanlineWriter implements Closeable {
+
+  protected final int width;
+  protected final int height;
+  protected int rowsWritten;
+  private boolean closed;
+
+  protected ScanlineWriter(int width, int height) {
+    this.width = width;
+    this.height = height;
+    rowsWritten = 0;
+    closed = false;
+  }
+
+  /**
+   * Open a file to write an image to
+   *
+   * @param path the path of the file. Its extension gives the format.
+   * @param width the width of the image
+   * @param height the height of the image
+   * @return the writer
+   * @throws IllegalArgumentException if the extension is not a {@link FrameFormat}
+   * @throws IOException if the file cannot be opened
+   */
+  public static ScanlineWriter open(String path, int width, int height)
+      throws IllegalArgumentException, IOException {
+    switch (FrameFormat.forPath(path)) {
+      case PPM:
+        return new PpmWriter(path, width, height);
+      case PFM:
+        return new PfmWriter(path, width, height);
+      default:
+        return new PngWriter(path, width, height);
+    }
+  }
+
+  /**
+   * Write the next rows of the image
+   *
+   * @param rows a frame as wide as the image, whose rows are the next rows of the image
+   * @throws IllegalArgumentException if the frame is not as wide as the image, or has more rows
+   * than are left
+   * @throws IOException if the file cannot be written
+   */
+  public synchronized void writeRows(FrameBuffer rows)
+      throws IllegalArgumentException, IOException {
+    if (closed) {
+      throw new IOException("The image has been closed");
+    }
+    if (rows.getWidth() != width || rowsWritten + rows.getHeight() > height) {
+      throw new IllegalArgumentException("Rows do not fit in the image");
+    }
+    for (int y = 0; y < rows.getHeight(); y++) {
+      writeRow(rows, y, rowsWritten++);
+    }
+  }
+
+  /**
+   * Write one row of a frame as a row of the image
+   *
+   * @param rows the frame
+   * @param y the row in the frame
+   * @param row the row in the image
+   */
+  protected abstract void writeRow(FrameBuffer rows, int y, int row) throws IOException;
+
+  /**
+   * Finish the file and close it. Closing it again does nothing.
+   *
+   * @throws IOException if not every row has been written, or the file cannot be written
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    finish();
+    if (rowsWritten != height) {
+      throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+    }
+  }
+
+  /**
+   * Write what follows the rows and close the file
+   */
+  protected abstract void finish() throws IOException;
+
+  /**
+   * Writes a binary portable pixmap, one row after the other
+   */
+  private static class PpmWriter extends ScanlineWriter {
+
+    private final OutputStream out;
+    private final byte[] line;
+
+    PpmWriter(String path, int width, int height) throws IOException {
+      super(width, height);
+      out = new BufferedOutputStream(new FileOutputStream(path), 1 << 16);
+      out.write(("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+      line = new byte[3 * width];
+    }
+
+    @Override
+    protected void writeRow(FrameBuffer rows, int y, int row) throws IOException {
+      for (int x = 0; x < width; x++) {
+        int rgb = rows.getRGB(x, y);
+        line[3 * x] = (byte) (rgb >> 16);
+        line[3 * x + 1] = (byte) (rgb >> 8);
+        line[3 * x + 2] = (byte) rgb;
+      }
+      out.write(line);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes a portable float map. Its rows go from the bottom, so every row is written at its own
+   * position in the file.
+   */
+  private static class PfmWriter extends ScanlineWriter {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long headerLength;
+    private final ByteBuffer line;
+
+    PfmWriter(String path, int width, int height) throws IOException {
+      super(width, height);
+      file = new RandomAccessFile(path, "rw");
+      file.setLength(0);
+      channel = file.getChannel();
+      byte[] header = ("PF\n" + width + " " + height + "\n-1.0\n")
+          .getBytes(StandardCharsets.US_ASCII);
+      channel.write(ByteBuffer.wrap(header));
+      headerLength = header.length;
+      line = ByteBuffer.allocate(12 * width).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    protected void writeRow(FrameBuffer rows, int y, int row) throws IOException {
+      line.clear();
+      for (int x = 0; x < width; x++) {
+        line.putFloat(rows.getColor(x, y, 0));
+        line.putFloat(rows.getColor(x, y, 1));
+        line.putFloat(rows.getColor(x, y, 2));
+      }
+      line.flip();
+      long position = headerLength + (long) (height - 1 - row) * line.capacity();
+      while (line.hasRemaining()) {
+        position += channel.write(line, position);
+      }
+    }
+
+    @Override
+    protected void finish() throws IOException {
+      file.close();
+    }
+  }
+
+  /**
+   * Writes a PNG of 8 bit RGB pixels. Each row is filtered with whichever of the five PNG filters
+   * gives the smallest sum of absolute differences, as most encoders do, and compressed into the
+   * image data as it arrives.
+   */
+  private static class PngWriter extends ScanlineWriter {
+
+    private final DataOutputStream out;
+    private final Deflater deflater;
+    private final byte[] previous;
+    private final byte[] current;
+    private final byte[][] filtered;
+    private final byte[] chunk;
+    private final CRC32 crc;
+
+    PngWriter(String path, int width, int height) throws IOException {
+      super(width, height);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+      deflater = new Deflater();
+      previous = new byte[3 * width];
+      current = new byte[3 * width];
+      filtered = new byte[5][3 * width + 1];
+      chunk = new byte[1 << 16];
+      crc = new CRC32();
+
+      out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+      ByteBuffer header = ByteBuffer.allocate(13);
+      header.putInt(width).putInt(height);
+      // 8 bits per channel, RGB, deflate, adaptive filtering, no interlacing
+      header.put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+      writeChunk("IHDR", header.array(), 13);
+    }
+
+    @Override
+    protected void writeRow(FrameBuffer rows, int y, int row) throws IOException {
+      for (int x = 0; x < width; x++) {
+        int rgb = rows.getRGB(x, y);
+        current[3 * x] = (byte) (rgb >> 16);
+        current[3 * x + 1] = (byte) (rgb >> 8);
+        current[3 * x + 2] = (byte) rgb;
+      }
+      byte[] best = null;
+      long bestSum = Long.MAX_VALUE;
+      for (int type = 0; type < 5; type++) {
+        byte[] line = filtered[type];
+        line[0] = (byte) type;
+        long sum = 0;
+        for (int i = 0; i < current.length; i++) {
+          int a = i >= 3 ? current[i - 3] & 0xff : 0;
+          int b = previous[i] & 0xff;
+          int c = i >= 3 ? previous[i - 3] & 0xff : 0;
+          int predictor;
+          switch (type) {
+            case 1:
+              predictor = a;
+              break;
+            case 2:
+              predictor = b;
+              break;
+            case 3:
+              predictor = (a + b) >> 1;
+              break;
+            case 4:
+              predictor = paeth(a, b, c);
+              break;
+            default:
+              predictor = 0;
+          }
+          byte value = (byte) (current[i] - predictor);
+          line[i + 1] = value;
+          sum += Math.abs(value);
+        }
+        if (sum < bestSum) {
+          bestSum = sum;
+          best = line;
+        }
+      }
+      deflater.setInput(best);
+      while (!deflater.needsInput()) {
+        writeData(deflater.deflate(chunk));
+      }
+      System.arraycopy(current, 0, previous, 0, current.length);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+      try {
+        deflater.finish();
+        while (!deflater.finished()) {
+          writeData(deflater.deflate(chunk));
+        }
+        writeChunk("IEND", chunk, 0);
+      } finally {
+        deflater.end();
+        out.close();
+      }
+    }
+
+    private static int paeth(int a, int b, int c) {
+      int p = a + b - c;
+      int pa = Math.abs(p - a);
+      int pb = Math.abs(p - b);
+      int pc = Math.abs(p - c);
+      if (pa <= pb && pa <= pc) {
+        return a;
+      }
+      return pb <= pc ? b : c;
+    }
+
+    private void writeData(int length) throws IOException {
+      if (length > 0) {
+        writeChunk("IDAT", chunk, length);
+      }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+      byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+      out.writeInt(length);
+      out.write(typeBytes);
+      out.write(data, 0, length);
+      crc.reset();
+      crc.update(typeBytes);
+      crc.update(data, 0, length);
+      out.writeInt((int) crc.getValue());
+    }
+  }
+}
@@ -4,12 +4,20 @@ import org.joml.Vector3f;
 import org.joml.Vector4f;
 
 /**
- * This class represents a ray in 3d space.
+ * This class represents a ray in 3d space. A ray can be changed in place, so that one ray object
+ * can be reused for many rays. The getters return the vectors of the ray without copying them.
  */
 public class ThreeDRay {
 
-  private Vector3f startingPoint;
-  private Vector3f direction;
+  private final Vector4f startingPoint;
+  private final Vector4f direction;
+
+  /**
+   * Construct a ray starting at the origin with no direction.
+   */
+  public ThreeDRay() {
+    this(0, 0, 0, 0, 0, 0);
+  }
 
   /**
    * Construct a ray with all variables in float.
@@ -22,8 +30,8 @@ public class ThreeDRay {
    * @param vz z component of the direction
    */
   public ThreeDRay(float sx, float sy, float sz, float vx, float vy, float vz) {
-    this.startingPoint = new Vector3f(sx, sy, sz);
-    this.direction = new Vector3f(vx, vy, vz);
+    this.startingPoint = new Vector4f(sx, sy, sz, 1);
+    this.direction = new Vector4f(vx, vy, vz, 0);
   }
 
   /**
@@ -33,31 +41,56 @@ public class ThreeDRay {
    * @param direction the direction of ray
    */
   public ThreeDRay(Vector3f startingPoint, Vector3f direction) {
-    this.startingPoint = new Vector3f(startingPoint.x, startingPoint.y, startingPoint.z);
-    this.direction = new Vector3f(direction.x, direction.y, direction.z);
+    this(startingPoint.x, startingPoint.y, startingPoint.z, direction.x, direction.y,
+        direction.z);
   }
 
+  /**
+   * Change both the starting point and the direction of this ray.
+   *
+   * @param sx x component of the starting point
+   * @param sy y component of the starting point
+   * @param sz z component of the starting point
+   * @param vx x component of the direction
+   * @param vy y component of the direction
+   * @param vz z component of the direction
+   * @return this ray
+   */
+  public ThreeDRay set(float sx, float sy, float sz, float vx, float vy, float vz) {
+    this.startingPoint.set(sx, sy, sz, 1);
+    this.direction.set(vx, vy, vz, 0);
+    return this;
+  }
+
+  /**
+   * Get the starting point, with w = 1. The returned vector belongs to this ray and must not be
+   * changed.
+   */
   public Vector4f getStartingPoint() {
-    return new Vector4f(startingPoint.x, startingPoint.y, startingPoint.z, 1);
+    return startingPoint;
   }
 
   public void setStartingPoint(float sx, float sy, float sz) {
-    this.startingPoint = new Vector3f(sx, sy, sz);
+    this.startingPoint.set(sx, sy, sz, 1);
   }
 
+  /**
+   * Get the direction, with w = 0. The returned vector belongs to this ray and must not be
+   * changed.
+   */
   public Vector4f getDirection() {
-    return new Vector4f(direction.x, direction.y, direction.z, 0);
+    return direction;
   }
 
   public void setDirection(Vector4f direction) {
     if (direction.w != 0) {
       System.out.println("Given Direction is not a direction!, use x, y, z as direction");
     }
-    this.direction = new Vector3f(direction.x, direction.y, direction.z);
+    this.direction.set(direction.x, direction.y, direction.z, 0);
   }
 
   public void setDirection(float vx, float vy, float vz) {
-    this.direction = new Vector3f(vx, vy, vz);
+    this.direction.set(vx, vy, vz, 0);
   }
 
   public String toString() {
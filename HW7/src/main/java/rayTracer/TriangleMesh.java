@@ -0,0 +1,313 @@
+package rayTracer;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+import org.joml.Vector4f;
+import util.IVertexData;
+import util.PolygonMesh;
+
+/**
+ * This class represents a polygon mesh prepared for ray tracing. Positions, normals and texture
+ * coordinates are copied out of the vertex attributes into flat arrays, the polygons are split into
+ * triangles and a bounding volume hierarchy is built over the triangles. All of this happens once,
+ * the first time a ray is checked against the mesh, and is then shared by every instance of the
+ * mesh.
+ */
+public class TriangleMesh {
+
+  private final PolygonMesh<? extends IVertexData> mesh;
+  private final float[] bounds;
+  private volatile boolean built;
+  private float[] positions;
+  private float[] normals;
+  private float[] texcoords;
+  private int[] triangles;
+  private BoundingVolumeHierarchy hierarchy;
+  private float textureDensity;
+
+  /**
+   * Construct a triangle mesh from a polygon mesh. The polygon mesh must not be changed afterwards.
+   *
+   * @param mesh the polygon mesh, with a "position" attribute and optionally "normal" and
+   * "texcoord" attributes
+   */
+  public TriangleMesh(PolygonMesh<? extends IVertexData> mesh) {
+    this.mesh = mesh;
+    Vector4f min = mesh.getMinimumBounds();
+    Vector4f max = mesh.getMaximumBounds();
+    this.bounds = new float[]{min.x, min.y, min.z, max.x, max.y, max.z};
+    this.built = false;
+  }
+
+  /**
+   * Get the bounding box of the mesh, as minimum x, y, z followed by maximum x, y, z.
+   */
+  public float[] getBounds() {
+    return bounds.clone();
+  }
+
+  /**
+   * Get the number of triangles in the mesh. This builds the mesh if it is not built yet.
+   */
+  public int getTriangleCount() {
+    build();
+    return triangles.length / 3;
+  }
+
+  /**
+   * Get about how many texture coordinate units one unit of length spans on the surface of the
+   * mesh, as the square root of the ratio of the total area of the triangles in texture
+   * coordinates to their total area. This builds the mesh if it is not built yet.
+   *
+   * @return the texture density, or 0 if the mesh has no area
+   */
+  public float getTextureDensity() {
+    build();
+    return textureDensity;
+  }
+
+  /**
+   * Check how a ray in the coordinate system of the mesh hits it. The hit records have their t,
+   * intersection, normal and texture coordinate set in the coordinate system of the mesh. The
+   * normal is interpolated from the vertex normals if they are usable, otherwise it is the normal
+   * of the triangle.
+   *
+   * @param s the start point of the ray
+   * @param v the direction of the ray
+   * @return a list of all hit records of the ray in front of its start point
+   */
+  public List<HitRecord> checkHit(Vector4f s, Vector4f v) {
+    HitBuffer hits = new HitBuffer();
+    checkHit(s, v, hits);
+    return hits.toList();
+  }
+
+  /**
+   * Check how a ray in the coordinate system of the mesh hits it, and add the hit records to a
+   * buffer. This allocates nothing once the buffer is large enough.
+   *
+   * @param s the start point of the ray
+   * @param v the direction of the ray
+   * @param hits the buffer that the hit records of the ray in front of its start point are added
+   * to
+   */
+  public void checkHit(Vector4f s, Vector4f v, HitBuffer hits) {
+    checkHit(s, v, 0, Float.POSITIVE_INFINITY, HitQuery.ALL, hits);
+  }
+
+  /**
+   * Check how a ray in the coordinate system of the mesh hits it between two points, and add the
+   * hit records that a query asks for to a buffer. The hierarchy is only walked between tMin and
+   * tMax. A closest hit query moves the end of the ray to every closer hit it finds, so that the
+   * triangles beyond it are skipped, and an any hit query stops at the first hit. This allocates
+   * nothing once the buffer is large enough.
+   *
+   * @param s the start point of the ray
+   * @param v the direction of the ray
+   * @param tMin the start of the ray, included
+   * @param tMax the end of the ray, included
+   * @param query the hits that are to be found
+   * @param hits the buffer that the hit records with tMin &lt;= t &lt;= tMax are added to
+   */
+  public void checkHit(Vector4f s, Vector4f v, float tMin, float tMax, HitQuery query,
+      HitBuffer hits) {
+    build();
+    int first = hits.size();
+    BoundingVolumeHierarchy.Traversal traversal = hits.getPrimitiveTraversal();
+    traversal.start(hierarchy, s.x, s.y, s.z, v.x, v.y, v.z, tMin, tMax);
+    int triangle;
+    while ((triangle = traversal.next()) >= 0) {
+      if (!intersect(triangle, s, v, tMin, tMax, hits)) {
+        continue;
+      }
+      if (query == HitQuery.ANY) {
+        return;
+      }
+      if (query == HitQuery.CLOSEST) {
+        // keep one record, and only replace it with a strictly closer hit, so that the first of
+        // several equally close hits wins
+        if (hits.size() > first + 1) {
+          HitRecord hit = hits.get(first + 1);
+          if (hit.getT() < hits.get(first).getT()) {
+            hits.get(first).set(hit);
+          }
+          hits.truncate(first + 1);
+        }
+        tMax = hits.get(first).getT();
+        traversal.setTMax(tMax);
+      }
+    }
+  }
+
+  /**
+   * Intersect a ray with one triangle using the Moller-Trumbore test, and add a hit record if it
+   * is hit with tMin &lt;= t &lt;= tMax.
+   *
+   * @return true if a hit record was added
+   */
+  private boolean intersect(int triangle, Vector4f s, Vector4f v, float tMin, float tMax,
+      HitBuffer hits) {
+    int i0 = triangles[3 * triangle];
+    int i1 = triangles[3 * triangle + 1];
+    int i2 = triangles[3 * triangle + 2];
+    float p0x = positions[3 * i0];
+    float p0y = positions[3 * i0 + 1];
+    float p0z = positions[3 * i0 + 2];
+    float e1x = positions[3 * i1] - p0x;
+    float e1y = positions[3 * i1 + 1] - p0y;
+    float e1z = positions[3 * i1 + 2] - p0z;
+    float e2x = positions[3 * i2] - p0x;
+    float e2y = positions[3 * i2 + 1] - p0y;
+    float e2z = positions[3 * i2 + 2] - p0z;
+
+    // p = v x e2
+    float px = v.y * e2z - v.z * e2y;
+    float py = v.z * e2x - v.x * e2z;
+    float pz = v.x * e2y - v.y * e2x;
+    float det = e1x * px + e1y * py + e1z * pz;
+    if (det == 0) {
+      return false;
+    }
+    float invDet = 1 / det;
+    float tx = s.x - p0x;
+    float ty = s.y - p0y;
+    float tz = s.z - p0z;
+    float b1 = (tx * px + ty * py + tz * pz) * invDet;
+    if (b1 < 0 || b1 > 1) {
+      return false;
+    }
+    // q = t x e1
+    float qx = ty * e1z - tz * e1y;
+    float qy = tz * e1x - tx * e1z;
+    float qz = tx * e1y - ty * e1x;
+    float b2 = (v.x * qx + v.y * qy + v.z * qz) * invDet;
+    if (b2 < 0 || b1 + b2 > 1) {
+      return false;
+    }
+    float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+    if (t < tMin || t > tMax) {
+      return false;
+    }
+    float b0 = 1 - b1 - b2;
+
+    HitRecord hit = hits.add();
+    hit.setT(t);
+    hit.setIntersection(s.x + t * v.x, s.y + t * v.y, s.z + t * v.z);
+
+    float nx = b0 * normals[3 * i0] + b1 * normals[3 * i1] + b2 * normals[3 * i2];
+    float ny = b0 * normals[3 * i0 + 1] + b1 * normals[3 * i1 + 1] + b2 * normals[3 * i2 + 1];
+    float nz = b0 * normals[3 * i0 + 2] + b1 * normals[3 * i1 + 2] + b2 * normals[3 * i2 + 2];
+    if (!(nx * nx + ny * ny + nz * nz > 0)) {
+      // no usable vertex normals (missing, or normalized from zero), so use the triangle normal
+      nx = e1y * e2z - e1z * e2y;
+      ny = e1z * e2x - e1x * e2z;
+      nz = e1x * e2y - e1y * e2x;
+    }
+    hit.setNormal(nx, ny, nz);
+
+    hit.setTextureCoordinate(
+        b0 * texcoords[2 * i0] + b1 * texcoords[2 * i1] + b2 * texcoords[2 * i2],
+        b0 * texcoords[2 * i0 + 1] + b1 * texcoords[2 * i1 + 1] + b2 * texcoords[2 * i2 + 1]);
+    return true;
+  }
+
+  /**
+   * Copy the vertex data into flat arrays, split the polygons into triangle fans and build the
+   * hierarchy over the triangles, if that has not been done yet.
+   */
+  private void build() {
+    if (built) {
+      return;
+    }
+    synchronized (this) {
+      if (built) {
+        return;
+      }
+      int vertexCount = mesh.getVertexCount();
+      positions = new float[3 * vertexCount];
+      normals = new float[3 * vertexCount];
+      texcoords = new float[2 * vertexCount];
+      copyData(mesh, "position", positions, 3);
+      copyData(mesh, "normal", normals, 3);
+      copyData(mesh, "texcoord", texcoords, 2);
+
+      IntBuffer primitives = mesh.getPrimitiveData();
+      int size = mesh.getPrimitiveSize();
+      int polygonCount = size < 3 ? 0 : primitives.limit() / size;
+      triangles = new int[3 * polygonCount * (Math.max(size, 3) - 2)];
+      int count = 0;
+      for (int p = 0; p < polygonCount; p++) {
+        int first = primitives.get(p * size);
+        for (int k = 1; k + 1 < size; k++) {
+          triangles[3 * count] = first;
+          triangles[3 * count + 1] = primitives.get(p * size + k);
+          triangles[3 * count + 2] = primitives.get(p * size + k + 1);
+          count++;
+        }
+      }
+
+      float[] triangleBounds = new float[6 * count];
+      for (int t = 0; t < count; t++) {
+        for (int a = 0; a < 3; a++) {
+          float p0 = positions[3 * triangles[3 * t] + a];
+          float p1 = positions[3 * triangles[3 * t + 1] + a];
+          float p2 = positions[3 * triangles[3 * t + 2] + a];
+          triangleBounds[6 * t + a] = Math.min(p0, Math.min(p1, p2));
+          triangleBounds[6 * t + 3 + a] = Math.max(p0, Math.max(p1, p2));
+        }
+      }
+      hierarchy = new BoundingVolumeHierarchy(triangleBounds, count);
+      textureDensity = computeTextureDensity(count);
+      built = true;
+    }
+  }
+
+  /**
+   * Compute the texture density from the areas of the triangles.
+   */
+  private float computeTextureDensity(int count) {
+    double area = 0;
+    double textureArea = 0;
+    for (int t = 0; t < count; t++) {
+      int i0 = triangles[3 * t];
+      int i1 = triangles[3 * t + 1];
+      int i2 = triangles[3 * t + 2];
+      float e1x = positions[3 * i1] - positions[3 * i0];
+      float e1y = positions[3 * i1 + 1] - positions[3 * i0 + 1];
+      float e1z = positions[3 * i1 + 2] - positions[3 * i0 + 2];
+      float e2x = positions[3 * i2] - positions[3 * i0];
+      float e2y = positions[3 * i2 + 1] - positions[3 * i0 + 1];
+      float e2z = positions[3 * i2 + 2] - positions[3 * i0 + 2];
+      float cx = e1y * e2z - e1z * e2y;
+      float cy = e1z * e2x - e1x * e2z;
+      float cz = e1x * e2y - e1y * e2x;
+      area += Math.sqrt(cx * cx + cy * cy + cz * cz) / 2;
+      float u1 = texcoords[2 * i1] - texcoords[2 * i0];
+      float v1 = texcoords[2 * i1 + 1] - texcoords[2 * i0 + 1];
+      float u2 = texcoords[2 * i2] - texcoords[2 * i0];
+      float v2 = texcoords[2 * i2 + 1] - texcoords[2 * i0 + 1];
+      textureArea += Math.abs(u1 * v2 - u2 * v1) / 2;
+    }
+    return area > 0 ? (float) Math.sqrt(textureArea / area) : 0;
+  }
+
+  /**
+   * Copy the first components of an attribute of every vertex into an array, if the mesh has it.
+   */
+  private static void copyData(PolygonMesh<? extends IVertexData> mesh, String attribName,
+      float[] dest, int components) {
+    if (!mesh.hasAttribute(attribName)) {
+      return;
+    }
+    FloatBuffer data = mesh.getAttributeData(attribName);
+    int size = mesh.getAttributeSize(attribName);
+    int count = Math.min(components, size);
+    for (int i = 0; i < dest.length / components; i++) {
+      for (int j = 0; j < count; j++) {
+        dest[i * components + j] = data.get(i * size + j);
+      }
+    }
+  }
+
+}
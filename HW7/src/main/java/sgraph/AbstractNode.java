@@ -2,6 +2,7 @@ package sgraph;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import org.joml.Matrix4f;
 import util.Light;
 
@@ -93,6 +94,19 @@ public abstract class AbstractNode implements INode {
 
   public abstract INode clone();
 
+  /**
+   * Copy the lights of this node to another node, and remember that node as the copy of this node
+   *
+   * @param copy the copy of this node
+   * @param copies the map of nodes and their copies
+   */
+  protected void copyTo(AbstractNode copy, Map<INode, INode> copies) {
+    for (Light light : lights) {
+      copy.lights.add(new Light(light));
+    }
+    copies.put(this, copy);
+  }
+
   /**
    * By default, throws an exception. Any nodes that can have children should override this method
    */
@@ -144,6 +158,17 @@ public abstract class AbstractNode implements INode {
   public void addLight(Light l) {
     System.out.println("light added");
     this.lights.add(l);
+    invalidateSnapshot();
+  }
+
+  /**
+   * Lets the scene graph know that this node has changed, so that any flattened copy of the scene
+   * graph is rebuilt before it is ray traced again
+   */
+  protected void invalidateSnapshot() {
+    if (scenegraph != null) {
+      scenegraph.invalidateSnapshot();
+    }
   }
 
 }
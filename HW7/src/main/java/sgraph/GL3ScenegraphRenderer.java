@@ -4,6 +4,8 @@ import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.GL3;
 import com.jogamp.opengl.GLAutoDrawable;
 import org.joml.Matrix4f;
+import rayTracer.HitBuffer;
+import rayTracer.HitQuery;
 import rayTracer.HitRecord;
 import rayTracer.ThreeDRay;
 import util.IVertexData;
@@ -43,6 +45,11 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
    * A table of renderers for individual meshes
    */
   protected Map<String, util.ObjectInstance> meshRenderers;
+  /**
+   * A table of renderers for each distinct mesh object. Names that refer to the same mesh share
+   * its renderer, so that the mesh is sent to the GPU once.
+   */
+  protected Map<util.PolygonMesh<?>, util.ObjectInstance> sharedMeshRenderers;
 
 
   /**
@@ -52,6 +59,7 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
 
   public GL3ScenegraphRenderer() {
     meshRenderers = new HashMap<String, util.ObjectInstance>();
+    sharedMeshRenderers = new IdentityHashMap<util.PolygonMesh<?>, util.ObjectInstance>();
     shaderLocations = new util.ShaderLocationsVault();
     shaderLocationsSet = false;
     textures = new HashMap<>();
@@ -77,7 +85,7 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
   /**
    * Add a mesh to be drawn later. The rendering context should be set before calling this function,
    * as this function needs it This function creates a new {@link util.ObjectInstance} object for
-   * this mesh
+   * this mesh, unless the same mesh has been added under another name already
    *
    * @param name the name by which this mesh is referred to by the scene graph
    * @param mesh the {@link util.PolygonMesh} object that represents this mesh
@@ -102,33 +110,65 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
     if (mesh.getVertexCount() <= 0) {
       return;
     }
-    K vertexData = mesh.getVertexAttributes().get(0);
-    GL3 gl = glContext.getGL().getGL3();
+    util.ObjectInstance obj = sharedMeshRenderers.get(mesh);
+    if (obj == null) {
+      GL3 gl = glContext.getGL().getGL3();
 
-    for (Map.Entry<String, String> e : shaderVarsToVertexAttribs.entrySet()) {
-      if (!vertexData.hasData(e.getValue())) {
-        throw new IllegalArgumentException(
-            "Mesh does not have vertex attribute " + e.getValue());
+      for (Map.Entry<String, String> e : shaderVarsToVertexAttribs.entrySet()) {
+        if (!mesh.hasAttribute(e.getValue())) {
+          throw new IllegalArgumentException(
+              "Mesh does not have vertex attribute " + e.getValue());
+        }
       }
+      obj = new util.ObjectInstance(gl,
+          shaderLocations, shaderVarsToVertexAttribs, mesh, name);
+      sharedMeshRenderers.put(mesh, obj);
     }
-    util.ObjectInstance obj = new util.ObjectInstance(gl,
-        shaderLocations, shaderVarsToVertexAttribs, mesh, name);
 
     meshRenderers.put(name, obj);
   }
 
+  /**
+   * Read a texture and make it in the rendering context. Without a context, only the image is read,
+   * and no OpenGL is used
+   */
   @Override
   public void addTexture(String name, String path) {
     TextureImage image = null;
     String imageFormat = path.substring(path.indexOf('.') + 1);
     try {
-      image = new TextureImage(path, imageFormat, name);
+      if (glContext != null) {
+        image = new TextureImage(path, imageFormat, name);
+      } else {
+        image = new TextureImage(path, imageFormat, name, null);
+      }
     } catch (IOException e) {
       throw new IllegalArgumentException("Texture " + path + " cannot be read!");
     }
     textures.put(name, image);
   }
 
+  /**
+   * Add a texture whose image has already been decoded. Only the texture is made here, so this is
+   * all that is left on the thread that owns the OpenGL context. Without a context, only the image
+   * is kept
+   */
+  @Override
+  public void addTexture(String name, TextureImage image) {
+    if (glContext != null) {
+      image.upload(glContext.getGL());
+    }
+    textures.put(name, image);
+  }
+
+  @Override
+  public TextureImage getTexture(String name) {
+    if (name == null || name.equals("")) {
+      return null;
+    }
+    return textures.get(name);
+  }
+
   /**
    * Begin rendering of the scene graph from the root
    */
@@ -144,7 +184,7 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
 
   @Override
   public void dispose() {
-    for (util.ObjectInstance s : meshRenderers.values()) {
+    for (util.ObjectInstance s : sharedMeshRenderers.values()) {
       s.cleanup(glContext);
     }
   }
@@ -156,6 +196,33 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
     return null;
   }
 
+  @Override
+  public List<HitRecord> checkHit(LeafInstance instance, ThreeDRay ray) {
+    System.out.println("Not supported, use RayTraceRenderer");
+    return null;
+  }
+
+  @Override
+  public void checkHit(LeafInstance instance, ThreeDRay ray, HitBuffer hits) {
+    System.out.println("Not supported, use RayTraceRenderer");
+  }
+
+  @Override
+  public void checkHit(LeafInstance instance, ThreeDRay ray, float tMin, float tMax,
+      HitQuery query, HitBuffer hits) {
+    System.out.println("Not supported, use RayTraceRenderer");
+  }
+
+  @Override
+  public float[] getObjectBounds(String objectName) {
+    return null;
+  }
+
+  @Override
+  public float getTextureDensity(String objectName) {
+    return 0;
+  }
+
   /**
    * Draws a specific mesh. If the mesh has been added to this renderer, it delegates to its
    * correspond mesh renderer This function first passes the material to the shader. Currently it
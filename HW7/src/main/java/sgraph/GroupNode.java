@@ -122,6 +122,16 @@ public class GroupNode extends AbstractNode {
     return newgroup;
   }
 
+  @Override
+  public INode copy(Map<INode, INode> copies) {
+    GroupNode newgroup = new GroupNode(scenegraph, name);
+    copyTo(newgroup, copies);
+    for (int i = 0; i < children.size(); i++) {
+      newgroup.addChild(children.get(i).copy(copies));
+    }
+    return newgroup;
+  }
+
   /**
    * Since a group node is capable of having children, this method overrides the default one in
    * {@link sgraph.AbstractNode} and adds a child to this node
@@ -132,6 +142,7 @@ public class GroupNode extends AbstractNode {
   public void addChild(INode child) throws IllegalArgumentException {
     children.add(child);
     child.setParent(this);
+    invalidateSnapshot();
   }
 
   @Override
@@ -146,6 +157,21 @@ public class GroupNode extends AbstractNode {
     return result;
   }
 
+  /**
+   * Flatten all its children into the list of leaf instances
+   *
+   * @param modelView the stack of modelview matrices
+   * @param renderer the renderer used to resolve textures by name
+   * @param instances the list that the instances are added to
+   */
+  @Override
+  public void collectInstances(Stack<Matrix4f> modelView, IScenegraphRenderer renderer,
+      List<LeafInstance> instances) {
+    for (INode child : children) {
+      child.collectInstances(modelView, renderer, instances);
+    }
+  }
+
   /**
    * Get a list of all its children, for convenience purposes
    *
@@ -0,0 +1,463 @@
+package sgraph;
+
+import java.util.Arrays;
+import java.util.Objects;
+import org.joml.Matrix4f;
+import rayTracer.HitBuffer;
+import rayTracer.HitRecord;
+import rayTracer.RayTraceSettings;
+import rayTracer.ThreeDRay;
+import util.Material;
+import util.TextureImage;
+
+/**
+ * This class keeps every hit that the rays through the pixels of a frame found, so that the frame
+ * can be shaded again without tracing them: the primary hit of each pixel, the hits of its
+ * reflected and refracted rays, and how much of each light reaches every hit. For each hit, the
+ * position, normal, texture coordinate, object and refractive indices are kept. Misses are kept
+ * too. The hits of a pixel are kept in the order the rays were traced, so shading them again
+ * follows the same paths in the same order, and gives the same colors as tracing them.
+ *
+ * With anti-aliasing, the rays that refine the pixels at edges are kept as a second layer of
+ * hits, for the pixels that were refined. A pixel that is refined now but was not before is traced.
+ *
+ * The cache also keeps the camera, objects, materials and lights that the frame was traced with,
+ * to tell what the next frame can reuse:
+ * <ul>
+ * <li>Nothing, if the size, camera, tile size, anti-aliasing or ray depth settings differ, or an
+ * object was added, removed or moved.</li>
+ * <li>Every hit, if only the colors of lights or materials or the textures changed. No ray is
+ * traced at all.</li>
+ * <li>Every hit but the shadows of the lights that moved, which are traced again.</li>
+ * <li>If a material reflects or lets through a different part of the light, the paths that hit
+ * its objects are traced again, and so are all shadows. The objects on a path are kept as a mask
+ * of their indices modulo 64, so some paths are traced again that did not need to be.</li>
+ * </ul>
+ *
+ * A cache is filled by one frame at a time. {@link #prepare} compares it with the frame about to
+ * be traced, every tile then traces or shades its pixels again through its own {@link
+ * PathCursor}, and {@link #finish} records the scene of the frame.
+ */
+class HitCache {
+
+  /**
+   * The floats kept for a hit before the shadows: position, normal, texture coordinate, texture
+   * density, refractive indices and whether the normal is flipped
+   */
+  private static final int HIT_FLOATS = 12;
+
+  /**
+   * The layer of the hits of the one ray through the center of each pixel
+   */
+  static final int CENTER_LAYER = 0;
+
+  /**
+   * The layer of the hits of the rays that refine the pixels at edges
+   */
+  static final int REFINE_LAYER = 1;
+
+  final int width;
+  final int height;
+  // where the hits of each pixel start in its tile, layer after layer
+  private int[] hitStarts;
+  private int[] valueStarts;
+  private long[] pathObjects;
+  private int tileCount;
+  private TilePaths[] tiles;
+  private TilePaths[] passTiles;
+
+  // the frame the cache was filled by, or null if it has not been filled yet
+  private Matrix4f camera;
+  private float angleOfView;
+  private RayTraceSettings settings;
+  private String[] objectNames;
+  private Matrix4f[] transforms;
+  private Material[] materials;
+  private LightInstance[] lights;
+
+  // what the frame being traced can reuse
+  private boolean hitsKnown;
+  private boolean shadowsKnown;
+  private long changedObjects;
+  private int[] shadowSources;
+  private int lightCount;
+
+  /**
+   * Make an empty cache for frames of the given size
+   */
+  HitCache(int width, int height) {
+    this.width = width;
+    this.height = height;
+    hitStarts = new int[0];
+    valueStarts = new int[0];
+    pathObjects = new long[0];
+    camera = null;
+  }
+
+  /**
+   * Compare this cache with a frame about to be traced, and work out what it can reuse
+   *
+   * @param camera the transformation from world to camera of the frame
+   * @param angleOfView the angle of view of the frame
+   * @param settings the settings of the frame
+   * @param snapshot the flattened scene graph of the frame
+   * @param lights the lights of the frame
+   * @param tileCount the number of tiles of the frame
+   */
+  void prepare(Matrix4f camera, float angleOfView, RayTraceSettings settings,
+      RenderSnapshot snapshot, LightInstance[] lights, int tileCount) {
+    hitsKnown = this.camera != null && this.camera.equals(camera)
+        && this.angleOfView == angleOfView
+        && this.settings.getTileSize() == settings.getTileSize()
+        && this.settings.getAntiAliasing() == settings.getAntiAliasing()
+        && this.settings.getMaxDepth() == settings.getMaxDepth()
+        && this.settings.getMinContribution() == settings.getMinContribution()
+        && this.settings.isRussianRoulette() == settings.isRussianRoulette()
+        && sameObjects(snapshot);
+    changedObjects = 0;
+    if (hitsKnown) {
+      for (int i = 0; i < materials.length; i++) {
+        Material material = snapshot.getInstance(i).getMaterial();
+        if (materials[i].getAbsorption() != material.getAbsorption()
+            || materials[i].getReflection() != material.getReflection()
+            || materials[i].getRefractiveIndex() != material.getRefractiveIndex()) {
+          changedObjects |= 1L << (i & 63);
+        }
+      }
+    }
+    // how much light gets through an object depends on its material
+    shadowsKnown = hitsKnown && changedObjects == 0;
+    lightCount = lights.length;
+    shadowSources = new int[lightCount];
+    for (int k = 0; k < lightCount; k++) {
+      int source = shadowsKnown ? findLight(lights[k]) : -1;
+      shadowSources[k] = source >= 0 && sameShadows(this.lights[source], lights[k]) ? source : -1;
+    }
+    int layers = settings.getAntiAliasing() > 1 ? 2 : 1;
+    if (!hitsKnown || this.tileCount != tileCount || hitStarts.length != layers * width * height) {
+      hitsKnown = false;
+      this.tileCount = tileCount;
+      tiles = new TilePaths[layers * tileCount];
+      hitStarts = new int[layers * width * height];
+      valueStarts = new int[layers * width * height];
+      pathObjects = new long[layers * width * height];
+    }
+    passTiles = new TilePaths[layers * tileCount];
+  }
+
+  /**
+   * Check if the objects of a snapshot are the ones of the frame this cache was filled by, with the
+   * same transformations
+   */
+  private boolean sameObjects(RenderSnapshot snapshot) {
+    if (snapshot.getInstanceCount() != objectNames.length) {
+      return false;
+    }
+    for (int i = 0; i < objectNames.length; i++) {
+      LeafInstance instance = snapshot.getInstance(i);
+      if (!objectNames[i].equals(instance.getObjectName())
+          || !transforms[i].equals(instance.getModelView())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int findLight(LightInstance light) {
+    for (int i = 0; i < lights.length; i++) {
+      if (lights[i].getLight() == light.getLight()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Check if two lights cast the same shadows, which depend only on where they are
+   */
+  private static boolean sameShadows(LightInstance a, LightInstance b) {
+    return a.getPosition().equals(b.getPosition())
+        && Objects.equals(a.getDirectionToLight(), b.getDirectionToLight());
+  }
+
+  /**
+   * Get the cursor that a tile of the frame being traced reads and keeps its hits through
+   *
+   * @param layer the layer of the hits, CENTER_LAYER or REFINE_LAYER
+   * @param tile the index of the tile
+   * @param maxDepth the maximum depth of reflected and refracted rays
+   * @return the cursor
+   */
+  PathCursor startTile(int layer, int tile, int maxDepth) {
+    TilePaths paths = new TilePaths(lightCount);
+    passTiles[layer * tileCount + tile] = paths;
+    return new PathCursor(hitsKnown ? tiles[layer * tileCount + tile] : null, paths,
+        layer * width * height, maxDepth);
+  }
+
+  /**
+   * Record the frame that has just been traced, so that the next one is compared with it
+   */
+  void finish(Matrix4f camera, float angleOfView, RayTraceSettings settings,
+      RenderSnapshot snapshot, LightInstance[] lights) {
+    this.camera = new Matrix4f(camera);
+    this.angleOfView = angleOfView;
+    this.settings = new RayTraceSettings(settings);
+    int count = snapshot.getInstanceCount();
+    objectNames = new String[count];
+    transforms = new Matrix4f[count];
+    materials = new Material[count];
+    for (int i = 0; i < count; i++) {
+      LeafInstance instance = snapshot.getInstance(i);
+      objectNames[i] = instance.getObjectName();
+      transforms[i] = new Matrix4f(instance.getModelView());
+      materials[i] = new Material(instance.getMaterial());
+    }
+    this.lights = lights.clone();
+    for (TilePaths paths : passTiles) {
+      if (paths != null) {
+        paths.trim();
+      }
+    }
+    tiles = passTiles;
+    passTiles = null;
+  }
+
+  /**
+   * Get the number of bytes that the kept hits take
+   */
+  long getSize() {
+    long size = 16L * hitStarts.length;
+    if (tiles != null) {
+      for (TilePaths paths : tiles) {
+        size += paths != null ? 4L * paths.objects.length + 4L * paths.values.length : 0;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * The hits of the pixels of one tile, in the order they were traced. Every hit has the index of
+   * its object, or -1 for a miss, and the floats of a hit follow one another.
+   */
+  private static class TilePaths {
+
+    final int lightCount;
+    int[] objects;
+    int objectCount;
+    float[] values;
+    int valueCount;
+
+    TilePaths(int lightCount) {
+      this.lightCount = lightCount;
+      objects = new int[256];
+      values = new float[256];
+    }
+
+    /**
+     * Drop the room left at the ends of the arrays
+     */
+    void trim() {
+      objects = Arrays.copyOf(objects, objectCount);
+      values = Arrays.copyOf(values, valueCount);
+    }
+
+    /**
+     * Add a hit, and get where its floats start
+     */
+    int add(HitRecord hit) {
+      if (objectCount == objects.length) {
+        objects = Arrays.copyOf(objects, 2 * objectCount);
+      }
+      if (hit == null) {
+        objects[objectCount++] = -1;
+        return -1;
+      }
+      objects[objectCount++] = hit.getObjectId();
+      int floats = HIT_FLOATS + lightCount;
+      if (valueCount + floats > values.length) {
+        values = Arrays.copyOf(values, Math.max(2 * values.length, valueCount + floats));
+      }
+      int start = valueCount;
+      values[start] = hit.getIntersection().x;
+      values[start + 1] = hit.getIntersection().y;
+      values[start + 2] = hit.getIntersection().z;
+      values[start + 3] = hit.getNormal().x;
+      values[start + 4] = hit.getNormal().y;
+      values[start + 5] = hit.getNormal().z;
+      values[start + 6] = hit.getTextureCoordinate().x;
+      values[start + 7] = hit.getTextureCoordinate().y;
+      values[start + 8] = hit.getTextureDensity();
+      values[start + 9] = hit.getFromRefraction();
+      values[start + 10] = hit.getToRefraction();
+      values[start + 11] = hit.getFlipNormal() ? 1 : 0;
+      Arrays.fill(values, start + HIT_FLOATS, start + floats, -1);
+      valueCount += floats;
+      return start;
+    }
+  }
+
+  /**
+   * This class hands the hits of the pixels of one tile to the ray tracer, in place of the closest
+   * hits of their rays. A hit is taken from the cache if it can be reused, and traced otherwise.
+   * Either way it is kept for the next frame, and so are the shadows worked out for it.
+   *
+   * Hits are handed out in hit records of the cursor, one for each depth of ray, so that the hit
+   * of a ray stays valid while its reflected and refracted rays are traced, as with hit buffers.
+   */
+  class PathCursor {
+
+    private final TilePaths source;
+    private final TilePaths paths;
+    private final int layerStart;
+    private final HitRecord[] records;
+    private final int[] sourceStarts;
+    private final int[] starts;
+    private int pixel;
+    private boolean replay;
+    private int sourceHit;
+    private int sourceValue;
+    private long objects;
+
+    PathCursor(TilePaths source, TilePaths paths, int layerStart, int maxDepth) {
+      this.source = source;
+      this.paths = paths;
+      this.layerStart = layerStart;
+      records = new HitRecord[maxDepth + 1];
+      for (int i = 0; i < records.length; i++) {
+        records[i] = new HitRecord();
+      }
+      sourceStarts = new int[maxDepth + 1];
+      starts = new int[maxDepth + 1];
+    }
+
+    /**
+     * Start the rays of a pixel. The hits of the pixel are reused if it has hits in this layer,
+     * and none of them is on an object whose material changed how much light it reflects or lets
+     * through.
+     *
+     * @param pixel the index of the pixel in the frame
+     */
+    void startPixel(int pixel) {
+      pixel += layerStart;
+      this.pixel = pixel;
+      replay = source != null && hitStarts[pixel] >= 0
+          && (pathObjects[pixel] & changedObjects) == 0;
+      sourceHit = hitStarts[pixel];
+      sourceValue = valueStarts[pixel];
+      hitStarts[pixel] = paths.objectCount;
+      valueStarts[pixel] = paths.valueCount;
+      objects = 0;
+    }
+
+    /**
+     * Get the closest hit of a ray, from the cache or by tracing it
+     *
+     * @param snapshot the flattened scene graph that the ray is intersected with
+     * @param ray the ray
+     * @param hits the buffer used while tracing the ray
+     * @param depth the depth of the ray: its recurrence bound, or the maximum depth for a
+     * primary ray
+     * @return the closest hit, which is valid until another ray of this depth, or null if the ray
+     * hits nothing
+     */
+    HitRecord next(RenderSnapshot snapshot, ThreeDRay ray, HitBuffer hits, int depth) {
+      HitRecord hit;
+      if (replay) {
+        int object = source.objects[sourceHit++];
+        if (object < 0) {
+          hit = null;
+        } else {
+          hit = load(sourceValue, object, snapshot, records[depth]);
+          sourceStarts[depth] = sourceValue;
+          sourceValue += HIT_FLOATS + source.lightCount;
+        }
+      } else {
+        hit = snapshot.closestHit(ray, 0.01f, Float.MAX_VALUE, hits);
+        if (hit != null) {
+          hit = records[depth];
+          hit.set(hits.get(0));
+          sourceStarts[depth] = -1;
+        }
+      }
+      int start = paths.add(hit);
+      if (hit != null) {
+        starts[depth] = start;
+        objects |= 1L << (hit.getObjectId() & 63);
+      }
+      return hit;
+    }
+
+    /**
+     * Set a hit record to a kept hit, with the material and texture that its object has now
+     */
+    private HitRecord load(int start, int object, RenderSnapshot snapshot, HitRecord hit) {
+      float[] values = source.values;
+      LeafInstance instance = snapshot.getInstance(object);
+      hit.setObjectId(object);
+      hit.setMaterial(instance.getMaterial());
+      hit.setTextureImage(instance.getTexture());
+      hit.setIntersection(values[start], values[start + 1], values[start + 2]);
+      // the normal is set as it is, as setNormal would normalize it again
+      hit.getNormal().set(values[start + 3], values[start + 4], values[start + 5], 0);
+      hit.setTextureCoordinate(values[start + 6], values[start + 7]);
+      hit.setTextureDensity(values[start + 8]);
+      hit.setFromRefraction(values[start + 9]);
+      hit.setToRefraction(values[start + 10]);
+      hit.setFlipNormal(values[start + 11] != 0);
+      return hit;
+    }
+
+    /**
+     * Get the depth of a hit record handed out by this cursor
+     */
+    private int depthOf(HitRecord hit) {
+      for (int depth = 0; depth < records.length; depth++) {
+        if (records[depth] == hit) {
+          return depth;
+        }
+      }
+      throw new IllegalArgumentException("The hit was not handed out by this cursor");
+    }
+
+    /**
+     * Get how much of a light reaches a hit, if it is known
+     *
+     * @param hit a hit handed out by this cursor
+     * @param light the index of the light in the frame being traced
+     * @return how much of the light reaches the hit, or -1 if it has to be traced
+     */
+    float getShadow(HitRecord hit, int light) {
+      int depth = depthOf(hit);
+      float shadow = paths.values[starts[depth] + HIT_FLOATS + light];
+      if (shadow < 0 && sourceStarts[depth] >= 0 && shadowSources[light] >= 0) {
+        shadow = source.values[sourceStarts[depth] + HIT_FLOATS + shadowSources[light]];
+        paths.values[starts[depth] + HIT_FLOATS + light] = shadow;
+      }
+      return shadow;
+    }
+
+    /**
+     * Keep how much of a light reaches a hit
+     */
+    void setShadow(HitRecord hit, int light, float shadow) {
+      paths.values[starts[depthOf(hit)] + HIT_FLOATS + light] = shadow;
+    }
+
+    /**
+     * Finish the rays of the pixel
+     */
+    void endPixel() {
+      pathObjects[pixel] = objects;
+    }
+
+    /**
+     * Record that a pixel has no hits in this layer, as it was not refined
+     *
+     * @param pixel the index of the pixel in the frame
+     */
+    void skipPixel(int pixel) {
+      hitStarts[layerStart + pixel] = -1;
+    }
+  }
+}
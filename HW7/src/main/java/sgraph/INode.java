@@ -49,6 +49,17 @@ public interface INode {
    */
   public INode clone();
 
+  /**
+   * Return a deep copy of the scene graph subtree rooted at this node, with the lights, materials
+   * and textures of all its nodes. Unlike {@link #clone()}, the copy is the same as the subtree
+   * that parsing its scene file again would build. Every node of the subtree is put in a map with
+   * its copy, so that copies can be found from the nodes they were made from
+   *
+   * @param copies the map that every node of the subtree and its copy are put in
+   * @return a reference to the root of the copied subtree
+   */
+  INode copy(Map<INode, INode> copies);
+
   /**
    * Set the parent of this node. Each node except the root has a parent
    *
@@ -138,5 +149,17 @@ public interface INode {
   void addLight(Light l);
 
   List<HitRecord> rayCast(Stack<Matrix4f> modelView, ThreeDRay ray, IScenegraphRenderer renderer);
+
+  /**
+   * Flatten the scene graph rooted at this node into a list of leaf instances. Each leaf adds one
+   * instance with its transformation to the view coordinate system, its material and its texture
+   * already resolved.
+   *
+   * @param modelView the stack of modelview matrices
+   * @param renderer the renderer used to resolve textures by name
+   * @param instances the list that the instances are added to
+   */
+  void collectInstances(Stack<Matrix4f> modelView, IScenegraphRenderer renderer,
+      List<LeafInstance> instances);
 }
 
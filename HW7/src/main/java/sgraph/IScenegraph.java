@@ -1,10 +1,16 @@
 package sgraph;
 
 import org.joml.Matrix4f;
+import rayTracer.FrameBuffer;
+import rayTracer.IFrameSink;
+import rayTracer.RayTraceSettings;
+import rayTracer.RayTraceStats;
 import util.IVertexData;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Executor;
 
 /**
  * This interface captures all the operations that a scene graph should offer. It is designed to be
@@ -103,7 +109,115 @@ public interface IScenegraph<VertexType extends IVertexData> {
    */
   void addTexture(String name, String path);
 
+  /**
+   * Add a new texture by this name whose image has already been decoded. The renderer is given the
+   * decoded image instead of the path, so it only has to make the texture
+   */
+  void addTexture(String name, util.TextureImage image);
+
+  /**
+   * Get a mapping of all (name,path) pairs of the textures that have been added to this scene
+   * graph
+   */
+  Map<String, String> getTextures();
+
   void dispose();
 
   void rayTrace(int w, int h, Stack<Matrix4f> modelView, float angleOfView);
+
+  /**
+   * Ray trace this scene graph into a frame without writing it anywhere. This needs no OpenGL
+   * context, as long as the renderer can ray trace without one
+   *
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @return the frame, or null if the ray trace was interrupted
+   */
+  FrameBuffer rayTraceFrame(int w, int h, Stack<Matrix4f> modelView, float angleOfView);
+
+  /**
+   * Ray trace this scene graph straight into an image file, writing the rows as they are traced,
+   * so that the whole image is never in memory
+   *
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @param path the path of the file. Its extension gives the format
+   * @throws IllegalArgumentException if the extension is not a supported format
+   * @throws IOException if the file cannot be written
+   */
+  void rayTraceToFile(int w, int h, Stack<Matrix4f> modelView, float angleOfView, String path)
+      throws IllegalArgumentException, IOException;
+
+  /**
+   * Ray trace this scene graph into a frame, with the given settings instead of the ones set on
+   * this scene graph, and on the given worker threads. Several of these may run at once on the same
+   * scene graph and the same workers.
+   *
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @param settings the settings of this ray trace. The thread count is not used.
+   * @param workers the worker threads that trace the tiles, or null to trace them on this thread.
+   * They are left running.
+   * @param stats the counts that the rays traced are added to as the tiles finish
+   * @return the frame
+   * @throws InterruptedException if the thread is interrupted while tracing
+   */
+  FrameBuffer rayTraceFrame(int w, int h, Stack<Matrix4f> modelView, float angleOfView,
+      RayTraceSettings settings, Executor workers, RayTraceStats stats)
+      throws InterruptedException;
+
+  /**
+   * Ray trace this scene graph straight into an image file, with the given settings and on the
+   * given worker threads. The file is deleted if the ray trace does not finish.
+   *
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @param path the path of the file. Its extension gives the format
+   * @param settings the settings of this ray trace. The thread count is not used.
+   * @param workers the worker threads that trace the tiles, or null to trace them on this thread.
+   * They are left running.
+   * @param stats the counts that the rays traced are added to as the tiles finish
+   * @throws IllegalArgumentException if the extension is not a supported format
+   * @throws IOException if the file cannot be written
+   * @throws InterruptedException if the thread is interrupted while tracing
+   */
+  void rayTraceToFile(int w, int h, Stack<Matrix4f> modelView, float angleOfView, String path,
+      RayTraceSettings settings, Executor workers, RayTraceStats stats)
+      throws IllegalArgumentException, IOException, InterruptedException;
+
+  /**
+   * Set the settings used by future calls to rayTrace, such as the number of worker threads and
+   * the size of a tile
+   *
+   * @param settings the settings of the ray tracer
+   */
+  void setRayTraceSettings(RayTraceSettings settings);
+
+  /**
+   * Set the sink that rayTrace hands its images to
+   *
+   * @param frameSink the sink
+   */
+  void setFrameSink(IFrameSink frameSink);
+
+  /**
+   * Get the counts of the last finished ray trace, such as the number of rays per pixel, or null
+   * if there has been none
+   */
+  RayTraceStats getRayTraceStats();
+
+  /**
+   * Discard the flattened copy of this scene graph kept between ray traces. Nodes call this when
+   * their transformations, children or materials change, so that the next ray trace flattens the
+   * scene graph again
+   */
+  void invalidateSnapshot();
 }
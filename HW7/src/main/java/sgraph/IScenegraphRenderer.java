@@ -2,6 +2,8 @@ package sgraph;
 
 import java.util.List;
 import org.joml.Matrix4f;
+import rayTracer.HitBuffer;
+import rayTracer.HitQuery;
 import rayTracer.HitRecord;
 import rayTracer.ThreeDRay;
 import util.IVertexData;
@@ -9,6 +11,7 @@ import util.IVertexData;
 import java.util.Map;
 import java.util.Stack;
 import util.Material;
+import util.TextureImage;
 
 /**
  * This interface provides a general interface for the scene graph to use. Each scene graph is
@@ -87,8 +90,78 @@ public interface IScenegraphRenderer {
    */
   void addTexture(String name, String path);
 
+  /**
+   * Add a new texture with the given name and an image that has already been decoded, possibly on
+   * another thread. Only the work that needs the rendering context is left to the renderer
+   */
+  void addTexture(String name, TextureImage image);
+
+  /**
+   * Get the texture added by this name
+   *
+   * @param name the name of the texture
+   * @return the texture if it exists, null otherwise
+   */
+  TextureImage getTexture(String name);
+
   void dispose();
 
   List<HitRecord> checkHit(String objectName, ThreeDRay ray, Matrix4f modelView, Material mat,
       String textureName);
+
+  /**
+   * Check if a ray hits a leaf instance of a flattened scene graph
+   *
+   * @param instance the leaf instance that is to be checked
+   * @param ray the ray that is to be checked, in the view coordinate system
+   * @return a list of all hit records of the ray on the instance, including ins and outs
+   */
+  List<HitRecord> checkHit(LeafInstance instance, ThreeDRay ray);
+
+  /**
+   * Check if a ray hits a leaf instance of a flattened scene graph, adding the hit records to a
+   * buffer instead of a new list
+   *
+   * @param instance the leaf instance that is to be checked
+   * @param ray the ray that is to be checked, in the view coordinate system
+   * @param hits the buffer that all hit records of the ray on the instance, including ins and
+   * outs, are added to
+   */
+  void checkHit(LeafInstance instance, ThreeDRay ray, HitBuffer hits);
+
+  /**
+   * Check if a ray hits a leaf instance of a flattened scene graph between two points, adding the
+   * hit records that a query asks for to a buffer. Objects that find all their hits at once may
+   * add hits outside the range or beyond the ones asked for, so the caller still has to pick the
+   * hits it needs.
+   *
+   * @param instance the leaf instance that is to be checked
+   * @param ray the ray that is to be checked, in the view coordinate system
+   * @param tMin the start of the ray, included
+   * @param tMax the end of the ray, included
+   * @param query the hits that are to be found
+   * @param hits the buffer that the hit records are added to
+   */
+  void checkHit(LeafInstance instance, ThreeDRay ray, float tMin, float tMax, HitQuery query,
+      HitBuffer hits);
+
+  /**
+   * Get the bounding box of an object in its own coordinate system. Every hit returned by checkHit
+   * for this object lies inside the box.
+   *
+   * @param objectName the name of the object
+   * @return the box as minimum x, y, z followed by maximum x, y, z, or null if the object has no
+   * known bounds
+   */
+  float[] getObjectBounds(String objectName);
+
+  /**
+   * Get about how many texture coordinate units one unit of length spans on the surface of an
+   * object, in its own coordinate system. This is used to choose the level of detail at which the
+   * texture of the object is sampled.
+   *
+   * @param objectName the name of the object
+   * @return the texture density, or 0 if it is not known
+   */
+  float getTextureDensity(String objectName);
 }
@@ -0,0 +1,97 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import util.Material;
+import util.TextureImage;
+
+/**
+ * This class represents one instance of a leaf in a flattened scene graph. Everything needed to
+ * intersect a ray with the object of the leaf is resolved once when the instance is created: the
+ * transformation from the object to the view coordinate system, its inverse, the matrix that
+ * transforms normals to the view coordinate system, the material and the texture.
+ */
+public class LeafInstance {
+
+  private final String objectName;
+  private final Matrix4f modelView;
+  private final Matrix4f viewToObject;
+  private final Matrix4f normalMatrix;
+  private final Material material;
+  private final String textureName;
+  private final TextureImage texture;
+  private float textureDensity;
+
+  /**
+   * Construct an instance of a leaf.
+   *
+   * @param objectName the name of the object instance at the leaf
+   * @param modelView the transformation from the object to the view coordinate system
+   * @param material the material of the object
+   * @param textureName the name of the texture of the object
+   * @param texture the texture of the object, null if there is no such texture
+   */
+  public LeafInstance(String objectName, Matrix4f modelView, Material material,
+      String textureName, TextureImage texture) {
+    this.objectName = objectName;
+    this.modelView = new Matrix4f(modelView);
+    this.viewToObject = new Matrix4f();
+    this.modelView.invert(this.viewToObject);
+    this.normalMatrix = new Matrix4f(modelView).transpose().invert();
+    this.material = material;
+    this.textureName = textureName;
+    this.texture = texture;
+    this.textureDensity = 0;
+  }
+
+  public String getObjectName() {
+    return objectName;
+  }
+
+  /**
+   * Get the transformation from the object to the view coordinate system. The returned matrix is
+   * shared and must not be changed.
+   */
+  public Matrix4f getModelView() {
+    return modelView;
+  }
+
+  /**
+   * Get the transformation from the view to the object coordinate system. The returned matrix is
+   * shared and must not be changed.
+   */
+  public Matrix4f getViewToObject() {
+    return viewToObject;
+  }
+
+  /**
+   * Get the inverse transpose of the modelView, which transforms normals from the object to the
+   * view coordinate system. The returned matrix is shared and must not be changed.
+   */
+  public Matrix4f getNormalMatrix() {
+    return normalMatrix;
+  }
+
+  public Material getMaterial() {
+    return material;
+  }
+
+  public String getTextureName() {
+    return textureName;
+  }
+
+  public TextureImage getTexture() {
+    return texture;
+  }
+
+  /**
+   * Get about how many texture coordinate units one unit of length spans on the surface of the
+   * object of this instance, in the coordinate system of the object, or 0 if this is not known.
+   */
+  public float getTextureDensity() {
+    return textureDensity;
+  }
+
+  void setTextureDensity(float textureDensity) {
+    this.textureDensity = textureDensity;
+  }
+}
@@ -41,6 +41,7 @@ public class LeafNode extends AbstractNode {
   @Override
   public void setMaterial(util.Material mat) {
     material = new util.Material(mat);
+    invalidateSnapshot();
   }
 
   /**
@@ -49,6 +50,7 @@ public class LeafNode extends AbstractNode {
   @Override
   public void setTextureName(String name) {
     textureName = name;
+    invalidateSnapshot();
   }
 
   @Override
@@ -57,6 +59,22 @@ public class LeafNode extends AbstractNode {
     return renderer.checkHit(objInstanceName, ray, new Matrix4f(modelView.peek()), material, textureName);
   }
 
+  /**
+   * Adds a single instance of this leaf, with the top of the modelview stack as its transformation
+   *
+   * @param modelView the stack of modelview matrices
+   * @param renderer the renderer used to resolve textures by name
+   * @param instances the list that the instances are added to
+   */
+  @Override
+  public void collectInstances(Stack<Matrix4f> modelView, IScenegraphRenderer renderer,
+      List<LeafInstance> instances) {
+    if (objInstanceName.length() > 0) {
+      instances.add(new LeafInstance(objInstanceName, modelView.peek(), material, textureName,
+          renderer.getTexture(textureName)));
+    }
+  }
+
   /*
    * gets the material
    */
@@ -71,6 +89,17 @@ public class LeafNode extends AbstractNode {
     return newclone;
   }
 
+  @Override
+  public INode copy(Map<INode, INode> copies) {
+    LeafNode newcopy = new LeafNode(this.objInstanceName, scenegraph, name);
+    copyTo(newcopy, copies);
+    if (material != null) {
+      newcopy.setMaterial(material);
+    }
+    newcopy.textureName = textureName;
+    return newcopy;
+  }
+
 
   /**
    * Delegates to the scene graph for rendering. This has two advantages:
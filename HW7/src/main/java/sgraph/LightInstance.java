@@ -0,0 +1,121 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import util.Light;
+
+/**
+ * This class represents one light of a scene graph resolved to the view coordinate system. The
+ * position and spot direction are transformed once when the instance is created, together with
+ * the normalized directions that shading needs, so that they are not transformed again for every
+ * hit that is shaded.
+ */
+public class LightInstance {
+
+  private final Light light;
+  private final Vector4f position;
+  private final Vector4f spotDirection;
+  private final Vector3f normalSpotDirection;
+  private final Vector3f directionToLight;
+  private final boolean directional;
+  private final float spotCutoff;
+  private final Vector3f ambient;
+  private final Vector3f diffuse;
+  private final Vector3f specular;
+
+  /**
+   * Construct an instance of a light.
+   *
+   * @param light the light
+   * @param modelView the transformation from the light to the view coordinate system
+   */
+  public LightInstance(Light light, Matrix4f modelView) {
+    this.light = light;
+    this.position = modelView.transform(new Vector4f(light.getPosition()));
+    this.spotDirection = modelView.transform(new Vector4f(light.getSpotDirection()));
+    this.directional = light.getPosition().w == 0;
+    if (directional) {
+      // a directional light shines along its position, from infinitely far away
+      this.normalSpotDirection = new Vector3f(position.x, position.y, position.z).normalize();
+      this.directionToLight = new Vector3f(-position.x, -position.y, -position.z).normalize();
+    } else {
+      this.normalSpotDirection = new Vector3f(spotDirection.x, spotDirection.y, spotDirection.z)
+          .normalize();
+      this.directionToLight = null;
+    }
+    this.spotCutoff = light.getSpotCutoff();
+    this.ambient = new Vector3f(light.getAmbient());
+    this.diffuse = new Vector3f(light.getDiffuse());
+    this.specular = new Vector3f(light.getSpecular());
+  }
+
+  /**
+   * Get the position of the light in the view coordinate system. For a directional light this is
+   * its direction, with w = 0. The returned vector is shared and must not be changed.
+   */
+  public Vector4f getPosition() {
+    return position;
+  }
+
+  /**
+   * Get the spot direction of the light in the view coordinate system. The returned vector is
+   * shared and must not be changed.
+   */
+  public Vector4f getSpotDirection() {
+    return spotDirection;
+  }
+
+  /**
+   * Get the normalized direction the light shines in, in the view coordinate system. This is the
+   * spot direction for a point light and the position for a directional light. The returned vector
+   * is shared and must not be changed.
+   */
+  public Vector3f getNormalSpotDirection() {
+    return normalSpotDirection;
+  }
+
+  /**
+   * Get the normalized direction from any point towards a directional light, or null for a point
+   * light. The returned vector is shared and must not be changed.
+   */
+  public Vector3f getDirectionToLight() {
+    return directionToLight;
+  }
+
+  /**
+   * Get the light that this instance was resolved from. The light may have changed since.
+   */
+  public Light getLight() {
+    return light;
+  }
+
+  public boolean isDirectional() {
+    return directional;
+  }
+
+  public float getSpotCutoff() {
+    return spotCutoff;
+  }
+
+  /**
+   * Get the ambient color of the light. The returned vector is shared and must not be changed.
+   */
+  public Vector3f getAmbient() {
+    return ambient;
+  }
+
+  /**
+   * Get the diffuse color of the light. The returned vector is shared and must not be changed.
+   */
+  public Vector3f getDiffuse() {
+    return diffuse;
+  }
+
+  /**
+   * Get the specular color of the light. The returned vector is shared and must not be changed.
+   */
+  public Vector3f getSpecular() {
+    return specular;
+  }
+}
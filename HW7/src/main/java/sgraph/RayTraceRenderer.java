@@ -1,11 +1,17 @@
 package sgraph;
 
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import org.joml.Matrix4f;
 import org.joml.Vector4f;
+import rayTracer.HitBuffer;
+import rayTracer.HitQuery;
 import rayTracer.HitRecord;
 import rayTracer.ThreeDRay;
+import rayTracer.TriangleMesh;
+import util.IVertexData;
 import util.Material;
 import util.TextureImage;
 
@@ -15,8 +21,50 @@ import util.TextureImage;
  */
 public class RayTraceRenderer extends LightScenegraphRenderer {
 
+  /**
+   * Meshes that are ray traced as triangles, for objects that are not one of the built in shapes
+   */
+  protected Map<String, TriangleMesh> triangleMeshes;
+  /**
+   * The triangle mesh of each distinct mesh object, so that names that refer to the same mesh
+   * share its triangles and hierarchy
+   */
+  protected Map<util.PolygonMesh<?>, TriangleMesh> sharedTriangleMeshes;
+
   public RayTraceRenderer() {
     super();
+    triangleMeshes = new HashMap<>();
+    sharedTriangleMeshes = new IdentityHashMap<>();
+  }
+
+  /**
+   * Add a mesh to be rendered, and keep it to be ray traced as triangles. Without a rendering
+   * context the mesh is only ray traced, so a renderer that never draws needs no OpenGL.
+   *
+   * @param name the name by which this mesh is referred to by the scene graph
+   * @param mesh the {@link util.PolygonMesh} object that represents this mesh
+   * @throws Exception general mechanism to let the scene graph know of any problems
+   */
+  @Override
+  public <K extends IVertexData> void addMesh(String name, util.PolygonMesh<K> mesh)
+      throws Exception {
+    addTriangleMesh(name, mesh);
+    if (glContext != null) {
+      super.addMesh(name, mesh);
+    }
+  }
+
+  /**
+   * Keep a mesh to be ray traced as triangles. Objects with this name that are not one of the built
+   * in shapes are intersected with the triangles of the mesh.
+   *
+   * @param name the name by which this mesh is referred to by the scene graph
+   * @param mesh the {@link util.PolygonMesh} object that represents this mesh
+   */
+  public <K extends IVertexData> void addTriangleMesh(String name, util.PolygonMesh<K> mesh) {
+    if (!triangleMeshes.containsKey(name) && mesh.getVertexCount() > 0) {
+      triangleMeshes.put(name, sharedTriangleMeshes.computeIfAbsent(mesh, TriangleMesh::new));
+    }
   }
 
   /**
@@ -33,66 +81,236 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
   @Override
   public List<HitRecord> checkHit(String objectName, ThreeDRay ray, Matrix4f modelView,
       Material mat, String textureName) {
-    List<HitRecord> result = new ArrayList<>();
-    switch (objectName) {
+    return checkHit(
+        new LeafInstance(objectName, modelView, mat, textureName, getTexture(textureName)), ray);
+  }
+
+  /**
+   * Check if a ray hit the leaf instance specified. If hit, return all hit records of the ray on
+   * that instance, including ins and outs.
+   *
+   * @param instance the leaf instance that is to be checked
+   * @param ray the ray that is to be checked
+   * @return a list of all hit records of the ray on the instance
+   */
+  @Override
+  public List<HitRecord> checkHit(LeafInstance instance, ThreeDRay ray) {
+    HitBuffer hits = new HitBuffer();
+    checkHit(instance, ray, hits);
+    return hits.toList();
+  }
+
+  /**
+   * Check if a ray hit the leaf instance specified. If hit, add all hit records of the ray on that
+   * instance, including ins and outs, to a buffer. Nothing is allocated once the buffer is large
+   * enough.
+   *
+   * @param instance the leaf instance that is to be checked
+   * @param ray the ray that is to be checked
+   * @param hits the buffer that the hit records are added to
+   */
+  @Override
+  public void checkHit(LeafInstance instance, ThreeDRay ray, HitBuffer hits) {
+    checkHit(instance, ray, 0, Float.POSITIVE_INFINITY, HitQuery.ALL, hits);
+  }
+
+  /**
+   * Check if a ray hit the leaf instance specified between two points, and add the hit records
+   * that a query asks for to a buffer. Only triangle meshes use the range and the query to skip
+   * work. Every other object adds all its hits, as it finds them all at once anyway. Nothing is
+   * allocated once the buffer is large enough.
+   *
+   * @param instance the leaf instance that is to be checked
+   * @param ray the ray that is to be checked
+   * @param tMin the start of the ray, included
+   * @param tMax the end of the ray, included
+   * @param query the hits that are to be found
+   * @param hits the buffer that the hit records are added to
+   */
+  @Override
+  public void checkHit(LeafInstance instance, ThreeDRay ray, float tMin, float tMax,
+      HitQuery query, HitBuffer hits) {
+    Vector4f start = ray.getStartingPoint();
+    Vector4f vector = ray.getDirection();
+    int first = hits.size();
+    switch (instance.getObjectName()) {
       case "sphere":
-        result.addAll(
-            checkHitSphere(
-                ray.getStartingPoint(),
-                ray.getDirection(),
-                new Matrix4f(modelView),
-                mat,
-                textureName));
+        checkHitSphere(start, vector, instance, hits);
         break;
       case "sphereInside":
-        result.addAll(
-            checkHitSphereInside(
-                ray.getStartingPoint(),
-                ray.getDirection(),
-                new Matrix4f(modelView),
-                mat,
-                textureName));
+        checkHitSphereInside(start, vector, instance, hits);
         break;
       case "box":
-        result.addAll(
-            checkHitBox(
-                ray.getStartingPoint(),
-                ray.getDirection(),
-                new Matrix4f(modelView),
-                mat,
-                textureName));
+        checkHitBox(start, vector, instance, hits);
         break;
       case "boxOneSide":
-        result.addAll(
-            checkHitBoxOneSide(
-                ray.getStartingPoint(),
-                ray.getDirection(),
-                new Matrix4f(modelView),
-                mat,
-                textureName));
+        checkHitBoxOneSide(start, vector, instance, hits);
         break;
       case "cylinder":
-        result.addAll(
-            checkHitCylinder(
-                ray.getStartingPoint(),
-                ray.getDirection(),
-                new Matrix4f(modelView),
-                mat,
-                textureName));
+        checkHitCylinder(start, vector, instance, hits);
         break;
       case "cone":
-        result.addAll(
-            checkHitCone(
-                ray.getStartingPoint(),
-                ray.getDirection(),
-                new Matrix4f(modelView),
-                mat,
-                textureName));
+        checkHitCone(start, vector, instance, hits);
         break;
       default:
-        System.out.println("Not supported shape: " + objectName);
+        TriangleMesh mesh = triangleMeshes.get(instance.getObjectName());
+        if (mesh != null) {
+          checkHitMesh(start, vector, instance, mesh, tMin, tMax, query, hits);
+        } else {
+          System.out.println("Not supported shape: " + instance.getObjectName());
+        }
+    }
+    if (instance.getTextureDensity() > 0) {
+      for (int i = first; i < hits.size(); i++) {
+        HitRecord hit = hits.get(i);
+        hit.setTextureDensity(viewTextureDensity(instance, hit.getNormal()));
+      }
+    }
+  }
+
+  /**
+   * Get the texture density of an instance at a hit, in the view coordinate system. A transformation
+   * M scales the area of a surface with unit normal n in the view coordinate system by
+   * |det M| / |transpose(M) n|, and lengths on the surface by about the square root of that.
+   *
+   * @param instance the leaf instance that is hit
+   * @param normal the normal of the hit in the view coordinate system, normalized
+   * @return the texture density, or 0 if it is not known
+   */
+  private static float viewTextureDensity(LeafInstance instance, Vector4f normal) {
+    Matrix4f m = instance.getModelView();
+    float x = m.m00() * normal.x + m.m01() * normal.y + m.m02() * normal.z;
+    float y = m.m10() * normal.x + m.m11() * normal.y + m.m12() * normal.z;
+    float z = m.m20() * normal.x + m.m21() * normal.y + m.m22() * normal.z;
+    float areaScale = Math.abs(m.determinant3x3()) / (float) Math.sqrt(x * x + y * y + z * z);
+    if (!(areaScale > 0) || Float.isInfinite(areaScale)) {
+      return 0;
     }
-    return result;
+    return instance.getTextureDensity() / (float) Math.sqrt(areaScale);
+  }
+
+  /**
+   * Compute a point on a ray. This is start + t * direction, computed in place.
+   *
+   * @param start the start point of the ray
+   * @param direction the direction of the ray
+   * @param t the parameter of the point
+   * @param dest the vector that the point is stored in
+   * @return dest
+   */
+  private static Vector4f pointOnRay(Vector4f start, Vector4f direction, float t, Vector4f dest) {
+    return dest.set(start.x + direction.x * t, start.y + direction.y * t,
+        start.z + direction.z * t, start.w + direction.w * t);
+  }
+
+  /**
+   * Get the bounding box of a supported shape in its own coordinate system. The boxes are padded a
+   * little because the intersection tests accept hits slightly outside the exact surfaces.
+   *
+   * @param objectName the name of the object
+   * @return the box as minimum x, y, z followed by maximum x, y, z, or null if the shape is not
+   * supported
+   */
+  @Override
+  public float[] getObjectBounds(String objectName) {
+    float pad = 0.01f;
+    switch (objectName) {
+      case "sphere":
+      case "sphereInside":
+        return new float[]{-1 - pad, -1 - pad, -1 - pad, 1 + pad, 1 + pad, 1 + pad};
+      case "box":
+      case "boxOneSide":
+        return new float[]{-0.5f - pad, -0.5f - pad, -0.5f - pad, 0.5f + pad, 0.5f + pad,
+            0.5f + pad};
+      case "cylinder":
+      case "cone":
+        return new float[]{-1 - pad, -pad, -1 - pad, 1 + pad, 1 + pad, 1 + pad};
+      default:
+        TriangleMesh mesh = triangleMeshes.get(objectName);
+        if (mesh == null) {
+          return null;
+        }
+        float[] bounds = mesh.getBounds();
+        float meshPad = pad * Math.max(bounds[3] - bounds[0],
+            Math.max(bounds[4] - bounds[1], bounds[5] - bounds[2]));
+        for (int i = 0; i < 3; i++) {
+          bounds[i] -= meshPad;
+          bounds[3 + i] += meshPad;
+        }
+        return bounds;
+    }
+  }
+
+  /**
+   * Get about how many texture coordinate units one unit of length spans on the surface of an
+   * object. The u and v directions usually differ, so this is the square root of their product,
+   * taken where the texture is least distorted.
+   *
+   * @param objectName the name of the object
+   * @return the texture density, or 0 if it is not known
+   */
+  @Override
+  public float getTextureDensity(String objectName) {
+    switch (objectName) {
+      case "sphere":
+      case "sphereInside":
+        // u goes around the equator once, v goes from pole to pole
+        return (float) (1 / (Math.PI * Math.sqrt(2)));
+      case "box":
+        // every face takes a quarter of the texture
+        return 0.25f;
+      case "boxOneSide":
+        return 1;
+      case "cylinder":
+      case "cone":
+        // u goes around the rim once, v goes along the height
+        return (float) (1 / Math.sqrt(2 * Math.PI));
+      default:
+        TriangleMesh mesh = triangleMeshes.get(objectName);
+        return mesh != null ? mesh.getTextureDensity() : 0;
+    }
+  }
+
+  /**
+   * This is a helper to check how a specified ray hit a triangle mesh.
+   *
+   * @param start the start point of the ray
+   * @param vector the direction of the ray
+   * @param instance the leaf instance that is to be checked, with its cached matrices
+   * @param mesh the triangle mesh of the instance
+   * @param tMin the start of the ray, included
+   * @param tMax the end of the ray, included
+   * @param query the hits that are to be found
+   * @param hits the buffer that the hit records of the ray on the object are added to
+   */
+  private void checkHitMesh(Vector4f start, Vector4f vector, LeafInstance instance,
+      TriangleMesh mesh, float tMin, float tMax, HitQuery query, HitBuffer hits) {
+    Material mat = instance.getMaterial();
+    TextureImage image = instance.getTexture();
+    Matrix4f invertedMV = instance.getViewToObject();
+    Matrix4f invTranspose = instance.getNormalMatrix();
+    Vector4f s = hits.getScratchVector(0);
+    Vector4f v = hits.getScratchVector(1);
+    invertedMV.transform(start, s);
+    invertedMV.transform(vector, v);
+
+    int first = hits.size();
+    mesh.checkHit(s, v, tMin, tMax, query, hits);
+    for (int i = first; i < hits.size(); i++) {
+      HitRecord hit = hits.get(i);
+      hit.setMaterial(mat);
+
+      // intersection and normal in View
+      hit.setIntersection(pointOnRay(start, vector, hit.getT(), hit.getIntersection()));
+      Vector4f normal = hit.getNormal();
+      invTranspose.transform(normal);
+      hit.setNormal(normal.x, normal.y, normal.z);
+
+      if (image != null) {
+        hit.setTextureImage(image);
+      }
+    }
+    hitSetFraction(hits, first, vector);
   }
 
   /**
@@ -100,18 +318,18 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
    *
    * @param start the start point of the ray
    * @param vector the direction of the ray
-   * @param modelView the modelView transformation from world to view coordinates
-   * @param mat the material of the object that is to be checked
-   * @param textureName the name of the texture of the object that is to be checked
-   * @return a list of all hit records of the ray on the object
+   * @param instance the leaf instance that is to be checked, with its cached matrices
+   * @param hits the buffer that all hit records of the ray on the object are added to
    */
-  private List<HitRecord> checkHitCylinder(Vector4f start, Vector4f vector, Matrix4f modelView,
-      Material mat, String textureName) {
-    List<HitRecord> result = new ArrayList<>();
-    Matrix4f invertedMV = new Matrix4f();
-    modelView.invert(invertedMV);
-    Vector4f s = new Vector4f();
-    Vector4f v = new Vector4f();
+  private void checkHitCylinder(Vector4f start, Vector4f vector, LeafInstance instance,
+      HitBuffer hits) {
+    int first = hits.size();
+    Material mat = instance.getMaterial();
+    TextureImage image = instance.getTexture();
+    Matrix4f invertedMV = instance.getViewToObject();
+    Matrix4f invTranspose = instance.getNormalMatrix();
+    Vector4f s = hits.getScratchVector(0);
+    Vector4f v = hits.getScratchVector(1);
     invertedMV.transform(start, s);
     invertedMV.transform(vector, v);
 
@@ -121,28 +339,24 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
     float topInterZ = s.z + tTop * v.z;
     float topDisSq = topInterX * topInterX + topInterZ * topInterZ;
     if (topDisSq <= 1) {
-      HitRecord topHit = new HitRecord();
+      HitRecord topHit = hits.add();
       topHit.setT(tTop);
       // set material
       topHit.setMaterial(mat);
 
       // intersection in View
-      Vector4f intersectionInView = new Vector4f(start).add(new Vector4f(vector).mul(tTop));
-      topHit.setIntersection(intersectionInView);
+      topHit.setIntersection(pointOnRay(start, vector, tTop, topHit.getIntersection()));
 
-      Vector4f normal = new Vector4f(0, 1, 0, 0);
-      Matrix4f invTranspose = new Matrix4f(modelView).transpose().invert();
+      Vector4f normal = hits.getScratchVector(2).set(0, 1, 0, 0);
       invTranspose.transform(normal);
       topHit.setNormal(normal.x, normal.y, normal.z);
 
-      TextureImage image = this.textures.get(textureName);
-      if (!textureName.equals("") && image != null) {
+      if (image != null) {
         topHit.setTextureImage(image);
         float theta = (float) Math.atan2(-topInterZ, -topInterX);
         float texCoordX = (float) (theta / (2 * Math.PI)) + .5f;
         topHit.setTextureCoordinate(texCoordX, 1);
       }
-      result.add(topHit);
     }
 
     // intersect with the bottom surface
@@ -151,28 +365,24 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
     float botInterZ = s.z + tBot * v.z;
     float botDisSq = botInterX * botInterX + botInterZ * botInterZ;
     if (botDisSq <= 1) {
-      HitRecord botHit = new HitRecord();
+      HitRecord botHit = hits.add();
       botHit.setT(tBot);
       // set material
       botHit.setMaterial(mat);
 
       // intersection in View
-      Vector4f intersectionInView = new Vector4f(start).add(new Vector4f(vector).mul(tBot));
-      botHit.setIntersection(intersectionInView);
+      botHit.setIntersection(pointOnRay(start, vector, tBot, botHit.getIntersection()));
 
-      Vector4f normal = new Vector4f(0, -1, 0, 0);
-      Matrix4f invTranspose = new Matrix4f(modelView).transpose().invert();
+      Vector4f normal = hits.getScratchVector(2).set(0, -1, 0, 0);
       invTranspose.transform(normal);
       botHit.setNormal(normal.x, normal.y, normal.z);
 
-      TextureImage image = this.textures.get(textureName);
-      if (!textureName.equals("") && image != null) {
+      if (image != null) {
         botHit.setTextureImage(image);
         float theta = (float) Math.atan2(-botInterX, -botInterZ);
         float texCoordX = (float) (theta / (2 * Math.PI)) + .5f;
         botHit.setTextureCoordinate(texCoordX, 0);
       }
-      result.add(botHit);
     }
 
     float a = v.x * v.x + v.z * v.z;
@@ -193,37 +403,32 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
       float y = s.y + t * v.y;
       float z = s.z + t * v.z;
       if (y <= 1 && y >= 0) {
-        HitRecord hit = new HitRecord();
+        HitRecord hit = hits.add();
         hit.setT(t);
         // set material
         hit.setMaterial(mat);
 
         // intersection in View
-        Vector4f intersectionInView = new Vector4f(start).add(new Vector4f(vector).mul(t));
-        hit.setIntersection(intersectionInView);
+        hit.setIntersection(pointOnRay(start, vector, t, hit.getIntersection()));
 
         // set normal
-        Vector4f intersection = new Vector4f(s).add(new Vector4f(v).mul(t));
-        Vector4f normal = new Vector4f(intersection.x, 0, intersection.z, 0);
-        Matrix4f invTranspose = new Matrix4f(modelView).transpose().invert();
+        Vector4f intersection = pointOnRay(s, v, t, hits.getScratchVector(3));
+        Vector4f normal = hits.getScratchVector(2).set(intersection.x, 0, intersection.z, 0);
         invTranspose.transform(normal);
         hit.setNormal(normal.x, normal.y, normal.z);
 
-        TextureImage image = this.textures.get(textureName);
-        if (!textureName.equals("") && image != null) {
+        if (image != null) {
           hit.setTextureImage(image);
           float theta = (float) Math.atan2(-z, -x);
           float texCoordX = (float) (theta / (2 * Math.PI)) + .5f;
           hit.setTextureCoordinate(texCoordX, 1 - y);
         }
-        result.add(hit);
       }
     }
 
     // set refraction
-    hitSetFraction(result, vector);
+    hitSetFraction(hits, first, vector);
 
-    return result;
   }
 
   /**
@@ -231,18 +436,18 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
    *
    * @param start the start point of the ray
    * @param vector the direction of the ray
-   * @param modelView the modelView transformation from world to view coordinates
-   * @param mat the material of the object that is to be checked
-   * @param textureName the name of the texture of the object that is to be checked
-   * @return a list of all hit records of the ray on the object
+   * @param instance the leaf instance that is to be checked, with its cached matrices
+   * @param hits the buffer that all hit records of the ray on the object are added to
    */
-  private List<HitRecord> checkHitCone(Vector4f start, Vector4f vector, Matrix4f modelView,
-      Material mat, String textureName) {
-    List<HitRecord> result = new ArrayList<>();
-    Matrix4f invertedMV = new Matrix4f();
-    modelView.invert(invertedMV);
-    Vector4f s = new Vector4f();
-    Vector4f v = new Vector4f();
+  private void checkHitCone(Vector4f start, Vector4f vector, LeafInstance instance,
+      HitBuffer hits) {
+    int first = hits.size();
+    Material mat = instance.getMaterial();
+    TextureImage image = instance.getTexture();
+    Matrix4f invertedMV = instance.getViewToObject();
+    Matrix4f invTranspose = instance.getNormalMatrix();
+    Vector4f s = hits.getScratchVector(0);
+    Vector4f v = hits.getScratchVector(1);
     invertedMV.transform(start, s);
     invertedMV.transform(vector, v);
 
@@ -252,29 +457,25 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
     float botInterZ = s.z + tBot * v.z;
     float botDisSq = botInterX * botInterX + botInterZ * botInterZ;
     if (botDisSq <= 1.001) {
-      HitRecord botHit = new HitRecord();
+      HitRecord botHit = hits.add();
       botHit.setT(tBot);
       // set material
       botHit.setMaterial(mat);
 
       // intersection in View
-      Vector4f intersectionInView = new Vector4f(start).add(new Vector4f(vector).mul(tBot));
-      botHit.setIntersection(intersectionInView);
+      botHit.setIntersection(pointOnRay(start, vector, tBot, botHit.getIntersection()));
 
-      Vector4f normal = new Vector4f(0, -1, 0, 0);
-      Matrix4f invTranspose = new Matrix4f(modelView).transpose().invert();
+      Vector4f normal = hits.getScratchVector(2).set(0, -1, 0, 0);
       invTranspose.transform(normal);
       botHit.setNormal(normal);
 
-      TextureImage image = this.textures.get(textureName);
-      if (!textureName.equals("") && image != null) {
+      if (image != null) {
         botHit.setTextureImage(image);
         float theta = (float) Math.atan2(-botInterX, botInterZ);
         float texCoordY = (float) Math.sqrt(botDisSq);
         float texCoordX = (float) (((theta / (2 * Math.PI)) + 1.25f) % 1f) * texCoordY;
         botHit.setTextureCoordinate(texCoordX, texCoordY);
       }
-      result.add(botHit);
     }
 
     // intersect with side surface
@@ -287,57 +488,41 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
       float t1 = (float) (-b + Math.sqrt(delta)) / (2 * a);
       float t2 = (float) (-b - Math.sqrt(delta)) / (2 * a);
 
-      Vector4f intersection1 = new Vector4f(s).add(new Vector4f(v).mul(t1));
-      Vector4f intersection2 = new Vector4f(s).add(new Vector4f(v).mul(t2));
-
-      // check if t is in range
-      List<Float> t = new ArrayList<>();
-      List<Vector4f> intersections = new ArrayList<>();
-      if (t1 > 0 && intersection1.y >= -0.001 && intersection1.y <= 1.001) {
-        t.add(t1);
-        intersections.add(intersection1);
-      }
-      if (t2 > 0 && intersection2.y >= -0.001 && intersection2.y <= 1.001) {
-        t.add(t2);
-        intersections.add(intersection2);
-      }
-
-      for (int i = 0; i < t.size(); i++) {
-        float curT = t.get(i);
-        Vector4f intersection = intersections.get(i);
-        Vector4f intersectionInView = new Vector4f(start).add(new Vector4f(vector).mul(curT));
-        Vector4f normal;
+      for (int i = 0; i < 2; i++) {
+        float curT = i == 0 ? t1 : t2;
+        Vector4f intersection = pointOnRay(s, v, curT, hits.getScratchVector(3));
+        // check if t is in range
+        if (!(curT > 0 && intersection.y >= -0.001 && intersection.y <= 1.001)) {
+          continue;
+        }
+        Vector4f normal = hits.getScratchVector(2);
         if (intersection.y < 0.999f) {
-          normal = new Vector4f(intersection.x / (1 - intersection.y), 1f,
+          normal.set(intersection.x / (1 - intersection.y), 1f,
               intersection.z / (1 - intersection.y), 0);
         } else {
           // the top vertex is singular
-          normal = new Vector4f(0, 1, 0, 0);
+          normal.set(0, 1, 0, 0);
         }
-        Matrix4f invTranspose = new Matrix4f(modelView).transpose().invert();
         invTranspose.transform(normal);
 
-        HitRecord hitRecord = new HitRecord();
+        HitRecord hitRecord = hits.add();
         hitRecord.setT(curT);
-        hitRecord.setIntersection(intersectionInView);
+        hitRecord.setIntersection(pointOnRay(start, vector, curT, hitRecord.getIntersection()));
         hitRecord.setNormal(normal);
         hitRecord.setMaterial(mat);
 
-        TextureImage image = this.textures.get(textureName);
-        if (!textureName.equals("") && image != null) {
+        if (image != null) {
           hitRecord.setTextureImage(image);
           float theta = (float) Math.atan2(-intersection.z, -intersection.x);
           float texCoordX = (float) (theta / (2 * Math.PI)) + .5f;
           hitRecord.setTextureCoordinate(texCoordX, 1 - intersection.y);
         }
-        result.add(hitRecord);
       }
     }
 
     // set refraction
-    hitSetFraction(result, vector);
+    hitSetFraction(hits, first, vector);
 
-    return result;
   }
 
   /**
@@ -345,19 +530,19 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
    *
    * @param start the start point of the ray
    * @param vector the direction of the ray
-   * @param modelView the modelView transformation from world to view coordinates
-   * @param mat the material of the object that is to be checked
-   * @param textureName the name of the texture of the object that is to be checked
-   * @return a list of all hit records of the ray on the object
+   * @param instance the leaf instance that is to be checked, with its cached matrices
+   * @param hits the buffer that all hit records of the ray on the object are added to
    */
-  private List<HitRecord> checkHitBox(Vector4f start, Vector4f vector, Matrix4f modelView,
-      Material mat, String textureName) {
-
-    List<HitRecord> result = new ArrayList<>();
-    Matrix4f invertedMV = new Matrix4f();
-    modelView.invert(invertedMV);
-    Vector4f s = new Vector4f();
-    Vector4f v = new Vector4f();
+  private void checkHitBox(Vector4f start, Vector4f vector, LeafInstance instance,
+      HitBuffer hits) {
+
+    int first = hits.size();
+    Material mat = instance.getMaterial();
+    TextureImage image = instance.getTexture();
+    Matrix4f invertedMV = instance.getViewToObject();
+    Matrix4f invTranspose = instance.getNormalMatrix();
+    Vector4f s = hits.getScratchVector(0);
+    Vector4f v = hits.getScratchVector(1);
     invertedMV.transform(start, s);
     invertedMV.transform(vector, v);
 
@@ -371,26 +556,22 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
     float tMin = Math.max(Math.max(txMin, tyMin), tzMin);
     float tMax = Math.min(Math.min(txMax, tyMax), tzMax);
     if (tMin <= tMax) {
-      List<Float> tlist = new ArrayList<>();
-      tlist.add(tMin);
-      tlist.add(tMax);
-
-      for (Float t : tlist) {
+      for (int i = 0; i < 2; i++) {
+        float t = i == 0 ? tMin : tMax;
         // hit point goes in the polygon
-        HitRecord hit = new HitRecord();
+        HitRecord hit = hits.add();
         hit.setT(t);
 
         // set material
         hit.setMaterial(mat);
 
         // intersection in View
-        Vector4f intersectionInView = new Vector4f(start).add(new Vector4f(vector).mul(t));
-        hit.setIntersection(intersectionInView);
+        hit.setIntersection(pointOnRay(start, vector, t, hit.getIntersection()));
 
         // calculate normal vector
-        Vector4f normal = new Vector4f(0, 0, 0, 0);
+        Vector4f normal = hits.getScratchVector(2).set(0, 0, 0, 0);
         // find intersection in obj coordinate system
-        Vector4f intersection = new Vector4f(s).add(new Vector4f(v).mul(t));
+        Vector4f intersection = pointOnRay(s, v, t, hits.getScratchVector(3));
         // find intersection in obj coordinate system
         if (intersection.x >= .499f && intersection.x <= .501f) {
           normal.x = 1f;
@@ -407,15 +588,13 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
         } else if (intersection.z <= -.499f && intersection.z >= -.501f) {
           normal.z = -1f;
         }
-        Matrix4f invTranspose = new Matrix4f(modelView).transpose().invert();
         invTranspose.transform(normal);
         hit.setNormal(normal.x, normal.y, normal.z);
 
         // set texture
         // the origin of the texture coordinates is at lower left corner
         // so that the texture matches openGL
-        TextureImage image = this.textures.get(textureName);
-        if (!textureName.equals("") && image != null) {
+        if (image != null) {
           hit.setTextureImage(image);
           float textureX = 0, textureY = 0;
           if (intersection.x >= .499f && intersection.x <= .501f) { // right
@@ -439,14 +618,12 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
           }
           hit.setTextureCoordinate(textureX, -(textureY - 1));
         }
-        result.add(hit);
 
       }
 
     }
     // set refraction
-    hitSetFraction(result, vector);
-    return result;
+    hitSetFraction(hits, first, vector);
   }
 
   /**
@@ -454,18 +631,18 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
    *
    * @param start the start point of the ray
    * @param vector the direction of the ray
-   * @param modelView the modelView transformation from world to view coordinates
-   * @param mat the material of the object that is to be checked
-   * @param textureName the name of the texture of the object that is to be checked
-   * @return a list of all hit records of the ray on the object
+   * @param instance the leaf instance that is to be checked, with its cached matrices
+   * @param hits the buffer that all hit records of the ray on the object are added to
    */
-  private List<HitRecord> checkHitBoxOneSide(Vector4f start, Vector4f vector, Matrix4f modelView,
-      Material mat, String textureName) {
-    List<HitRecord> result = new ArrayList<>();
-    Matrix4f invertedMV = new Matrix4f();
-    modelView.invert(invertedMV);
-    Vector4f s = new Vector4f();
-    Vector4f v = new Vector4f();
+  private void checkHitBoxOneSide(Vector4f start, Vector4f vector, LeafInstance instance,
+      HitBuffer hits) {
+    int first = hits.size();
+    Material mat = instance.getMaterial();
+    TextureImage image = instance.getTexture();
+    Matrix4f invertedMV = instance.getViewToObject();
+    Matrix4f invTranspose = instance.getNormalMatrix();
+    Vector4f s = hits.getScratchVector(0);
+    Vector4f v = hits.getScratchVector(1);
     invertedMV.transform(start, s);
     invertedMV.transform(vector, v);
 
@@ -479,26 +656,22 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
     float tMin = Math.max(Math.max(txMin, tyMin), tzMin);
     float tMax = Math.min(Math.min(txMax, tyMax), tzMax);
     if (tMin <= tMax) {
-      List<Float> tlist = new ArrayList<>();
-      tlist.add(tMin);
-      tlist.add(tMax);
-
-      for (Float t : tlist) {
+      for (int i = 0; i < 2; i++) {
+        float t = i == 0 ? tMin : tMax;
         // hit point goes in the polygon
-        HitRecord hit = new HitRecord();
+        HitRecord hit = hits.add();
         hit.setT(t);
 
         // set material
         hit.setMaterial(mat);
 
         // intersection in View
-        Vector4f intersectionInView = new Vector4f(start).add(new Vector4f(vector).mul(t));
-        hit.setIntersection(intersectionInView);
+        hit.setIntersection(pointOnRay(start, vector, t, hit.getIntersection()));
 
         // calculate normal vector
-        Vector4f normal = new Vector4f(0, 0, 0, 0);
+        Vector4f normal = hits.getScratchVector(2).set(0, 0, 0, 0);
         // find intersection in obj coordinate system
-        Vector4f intersection = new Vector4f(s).add(new Vector4f(v).mul(t));
+        Vector4f intersection = pointOnRay(s, v, t, hits.getScratchVector(3));
         // find intersection in obj coordinate system
         if (intersection.x >= .499f && intersection.x <= .501f) {
           normal.x = 1f;
@@ -515,7 +688,6 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
         } else if (intersection.z <= -.499f && intersection.z >= -.501f) {
           normal.z = -1f;
         }
-        Matrix4f invTranspose = new Matrix4f(modelView).transpose().invert();
         invTranspose.transform(normal);
         // set refraction
         hit.setNormal(normal.x, normal.y, normal.z);
@@ -523,8 +695,7 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
         // set texture
         // the origin of the texture coordinates is at lower left corner
         // so that the texture matches openGL
-        TextureImage image = this.textures.get(textureName);
-        if (!textureName.equals("") && image != null) {
+        if (image != null) {
           hit.setTextureImage(image);
           float textureX = 0, textureY = 0;
           if (intersection.x >= .499f && intersection.x <= .501f) { // right
@@ -548,13 +719,11 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
           }
           hit.setTextureCoordinate(textureX, textureY);
         }
-        result.add(hit);
 
       }
 
     }
-    this.hitSetFraction(result, vector);
-    return result;
+    this.hitSetFraction(hits, first, vector);
   }
 
   /**
@@ -562,18 +731,18 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
    *
    * @param start the start point of the ray
    * @param vector the direction of the ray
-   * @param modelView the modelView transformation from world to view coordinates
-   * @param mat the material of the object that is to be checked
-   * @param textureName the name of the texture of the object that is to be checked
-   * @return a list of all hit records of the ray on the object
+   * @param instance the leaf instance that is to be checked, with its cached matrices
+   * @param hits the buffer that all hit records of the ray on the object are added to
    */
-  private List<HitRecord> checkHitSphere(Vector4f start, Vector4f vector, Matrix4f modelView,
-      Material mat, String textureName) {
-    List<HitRecord> result = new ArrayList<>();
-    Matrix4f invertedMV = new Matrix4f();
-    modelView.invert(invertedMV);
-    Vector4f s = new Vector4f();
-    Vector4f v = new Vector4f();
+  private void checkHitSphere(Vector4f start, Vector4f vector, LeafInstance instance,
+      HitBuffer hits) {
+    int first = hits.size();
+    Material mat = instance.getMaterial();
+    TextureImage image = instance.getTexture();
+    Matrix4f invertedMV = instance.getViewToObject();
+    Matrix4f invTranspose = instance.getNormalMatrix();
+    Vector4f s = hits.getScratchVector(0);
+    Vector4f v = hits.getScratchVector(1);
     invertedMV.transform(start, s);
     invertedMV.transform(vector, v);
 
@@ -585,12 +754,10 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
     if (delta >= -0.001f) {
       float t1 = (-b + (float) Math.sqrt(delta)) / (2 * a);
       float t2 = (-b - (float) Math.sqrt(delta)) / (2 * a);
-      List<Float> tlist = new ArrayList<>();
-      tlist.add(t1);
-      tlist.add(t2);
-      for (Float t : tlist) {
+      for (int i = 0; i < 2; i++) {
+        float t = i == 0 ? t1 : t2;
         // hit point
-        HitRecord hit = new HitRecord();
+        HitRecord hit = hits.add();
 
         hit.setT(t);
 
@@ -598,16 +765,14 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
         hit.setMaterial(mat);
 
         // set intersection in View
-        Vector4f intersectionInView = new Vector4f(start).add(new Vector4f(vector).mul(t));
-        hit.setIntersection(intersectionInView);
+        hit.setIntersection(pointOnRay(start, vector, t, hit.getIntersection()));
 
         // compute normal vector in view coordinate
         // intersection in obj coordinate system
-        Vector4f intersection = new Vector4f(s).add(new Vector4f(v).mul(t));
+        Vector4f intersection = pointOnRay(s, v, t, hits.getScratchVector(3));
         // normal vector in obj coordinate system
-        Vector4f normal = new Vector4f(intersection);
+        Vector4f normal = hits.getScratchVector(2).set(intersection);
         normal.w = 0;
-        Matrix4f invTranspose = new Matrix4f(modelView).transpose().invert();
         invTranspose.transform(normal);
 
         // set normal vector
@@ -616,8 +781,7 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
         // set texture
         // the origin of the texture coordinates is at lower left corner
         // so that the texture matches openGL
-        TextureImage image = this.textures.get(textureName);
-        if (!textureName.equals("") && image != null) {
+        if (image != null) {
           hit.setTextureImage(image);
           float phi = (float) Math.asin(-intersection.y);
           float theta = (float) Math.atan2(intersection.z, -intersection.x);
@@ -626,14 +790,12 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
           hit.setTextureCoordinate(imageS, imageT);
         }
         // add to list
-        result.add(hit);
       }
 
 
     }
     // set refraction
-    hitSetFraction(result, vector);
-    return result;
+    hitSetFraction(hits, first, vector);
   }
 
   /**
@@ -641,37 +803,37 @@ public class RayTraceRenderer extends LightScenegraphRenderer {
    *
    * @param start the start point of the ray
    * @param vector the direction of the ray
-   * @param modelView the modelView transformation from world to view coordinates
-   * @param mat the material of the object that is to be checked
-   * @param textureName the name of the texture of the object that is to be checked
-   * @return a list of all hit records of the ray on the object
+   * @param instance the leaf instance that is to be checked, with its cached matrices
+   * @param hits the buffer that all hit records of the ray on the object are added to
    */
-  private List<HitRecord> checkHitSphereInside(Vector4f start, Vector4f vector, Matrix4f modelView,
-      Material mat, String textureName) {
-    List<HitRecord> result = checkHitSphere(start, vector, modelView, mat, textureName);
-    for (HitRecord hit : result) {
-      Vector4f normal = hit.getNormal();
+  private void checkHitSphereInside(Vector4f start, Vector4f vector, LeafInstance instance,
+      HitBuffer hits) {
+    int first = hits.size();
+    checkHitSphere(start, vector, instance, hits);
+    for (int i = first; i < hits.size(); i++) {
+      HitRecord hit = hits.get(i);
+      Vector4f normal = hits.getScratchVector(2).set(hit.getNormal());
       normal.mul(-1);
       hit.setNormal(normal);
-      Vector4f intersect = hit.getIntersection();
-      intersect = intersect.add(normal.mul(0.1f));
-      hit.setIntersection(intersect);
+      hit.getIntersection().add(normal.mul(0.1f));
     }
-    return result;
   }
 
   /**
-   * Set refraction on hit records passed in.
+   * Set refraction on hit records in a buffer.
    *
-   * @param records a list of hit records that is to be checked
+   * @param hits the buffer of hit records
+   * @param first the index of the first record that is to be checked, all records after it are
+   * checked too
    * @param rayVec the direction of the ray
    */
-  private void hitSetFraction(List<HitRecord> records, Vector4f rayVec) {
+  private void hitSetFraction(HitBuffer hits, int first, Vector4f rayVec) {
     // set refraction
-    for (HitRecord hit : records) {
+    for (int i = first; i < hits.size(); i++) {
+      HitRecord hit = hits.get(i);
       Material mat = hit.getMaterial();
-      Vector4f normal = new Vector4f(hit.getNormal()).normalize();
-      Vector4f vec = new Vector4f(rayVec).normalize();
+      Vector4f normal = hits.getScratchVector(2).set(hit.getNormal()).normalize();
+      Vector4f vec = hits.getScratchVector(3).set(rayVec).normalize();
       float cosIn = vec.x * normal.x + vec.y * normal.y + vec.z * normal.z;
       if (cosIn >= 0.001) {
         hit.setFromRefraction(mat.getRefractiveIndex());
@@ -0,0 +1,182 @@
+package sgraph;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import org.joml.Matrix4f;
+import rayTracer.HitRecord;
+import rayTracer.ThreeDRay;
+import util.Light;
+
+/**
+ * This class represents a node that refers to a subtree of the scene graph, as made by copyof.
+ * Instead of a copy of the subtree, it keeps a reference to it and a transform of its own, so
+ * repeating a subtree many times costs one small node per repetition. The subtree is drawn, ray
+ * cast and flattened as if it were a child of this node. It is shared by every node that refers to
+ * it, so changing it changes all of them.
+ *
+ * Like the copies that copyof made before, a reference does not repeat the lights of the subtree.
+ * Like any group node, it may have children and lights of its own.
+ *
+ * A reference to a transform node stands in for the transform node, as its copy did: it starts with
+ * the transform and animation transform of the referenced node and shares only its child, so
+ * setting its transform replaces the referenced transform instead of adding to it.
+ */
+public class ReferenceNode extends GroupNode {
+
+  /**
+   * The root of the shared subtree
+   */
+  protected INode reference;
+
+  protected Matrix4f transform, animation_transform;
+
+  public ReferenceNode(IScenegraph graph, String name, INode reference) {
+    super(graph, name);
+    this.reference = reference;
+    if (reference instanceof TransformNode) {
+      transform = new Matrix4f(((TransformNode) reference).getTransform());
+      animation_transform = new Matrix4f(((TransformNode) reference).getAnimationTransform());
+    } else {
+      transform = new Matrix4f();
+      animation_transform = new Matrix4f();
+    }
+  }
+
+  /**
+   * Get the root of the shared subtree
+   */
+  public INode getReference() {
+    return reference;
+  }
+
+  /**
+   * Get the node that is drawn under the transform of this node: the child of the referenced node
+   * if it is a transform node, whose transform this node replaces, and the referenced node itself
+   * otherwise. This is null if the referenced transform node has no child.
+   */
+  private INode shared() {
+    if (reference instanceof TransformNode) {
+      return ((TransformNode) reference).child;
+    }
+    return reference;
+  }
+
+  /**
+   * Makes a copy of this node that refers to the same subtree, with deep copies of its own
+   * children
+   *
+   * @return a copy of this node
+   */
+  @Override
+  public INode clone() {
+    ReferenceNode newreference = new ReferenceNode(scenegraph, name, reference);
+    newreference.setTransform(transform);
+    newreference.setAnimationTransform(animation_transform);
+    for (int i = 0; i < children.size(); i++) {
+      newreference.addChild(children.get(i).clone());
+    }
+    return newreference;
+  }
+
+  /**
+   * Makes a copy of this node. If the shared subtree has been copied as well, the copy refers to
+   * the copy of the subtree, so that copies of a scene do not share nodes with each other
+   */
+  @Override
+  public INode copy(Map<INode, INode> copies) {
+    INode target = copies.get(reference);
+    ReferenceNode newreference = new ReferenceNode(scenegraph, name,
+        target != null ? target : reference);
+    copyTo(newreference, copies);
+    newreference.setTransform(transform);
+    newreference.setAnimationTransform(animation_transform);
+    for (int i = 0; i < children.size(); i++) {
+      newreference.addChild(children.get(i).copy(copies));
+    }
+    return newreference;
+  }
+
+  @Override
+  public void setTransform(Matrix4f t) throws IllegalArgumentException {
+    this.transform = new Matrix4f(t);
+    invalidateSnapshot();
+  }
+
+  @Override
+  public void setAnimationTransform(Matrix4f mat) throws IllegalArgumentException {
+    animation_transform = new Matrix4f(mat);
+    invalidateSnapshot();
+  }
+
+  /**
+   * Post-multiplies its animation transform and then its transform to the top of the modelview
+   * stack, and then draws the shared subtree and its own children
+   *
+   * @param context the generic renderer context {@link sgraph.IScenegraphRenderer}
+   * @param modelView the stack of modelview matrices
+   */
+  @Override
+  public void draw(IScenegraphRenderer context, Stack<Matrix4f> modelView) {
+    modelView.push(new Matrix4f(modelView.peek()));
+    modelView.peek().mul(animation_transform).mul(transform);
+    INode shared = shared();
+    if (shared != null) {
+      shared.draw(context, modelView);
+    }
+    super.draw(context, modelView);
+    modelView.pop();
+  }
+
+  /**
+   * Collect the lights of this node and its own children. The lights of the shared subtree are
+   * collected where the subtree itself is.
+   */
+  @Override
+  public Map<Light, Matrix4f> getLights(Stack<Matrix4f> modelView) {
+    Map<Light, Matrix4f> result = new HashMap<>();
+    modelView.push(new Matrix4f(modelView.peek()).mul(animation_transform).mul(transform));
+    result.putAll(super.getLights(modelView));
+    modelView.pop();
+    return result;
+  }
+
+  @Override
+  public List<HitRecord> rayCast(Stack<Matrix4f> modelView, ThreeDRay ray,
+      IScenegraphRenderer renderer) {
+    Stack<Matrix4f> mvCopy = new Stack<>();
+    mvCopy.push(new Matrix4f(modelView.peek()).mul(animation_transform).mul(transform));
+    List<HitRecord> result = new ArrayList<>();
+    INode shared = shared();
+    if (shared != null) {
+      result.addAll(shared.rayCast(mvCopy, ray, renderer));
+    }
+    mvCopy = new Stack<>();
+    mvCopy.push(new Matrix4f(modelView.peek()).mul(animation_transform).mul(transform));
+    result.addAll(super.rayCast(mvCopy, ray, renderer));
+    return result;
+  }
+
+  /**
+   * Post-multiplies its animation transform and then its transform to the top of the modelview
+   * stack, and then flattens the shared subtree and its own children
+   *
+   * @param modelView the stack of modelview matrices
+   * @param renderer the renderer used to resolve textures by name
+   * @param instances the list that the instances are added to
+   */
+  @Override
+  public void collectInstances(Stack<Matrix4f> modelView, IScenegraphRenderer renderer,
+      List<LeafInstance> instances) {
+    modelView.push(new Matrix4f(modelView.peek()));
+    modelView.peek().mul(animation_transform).mul(transform);
+    INode shared = shared();
+    if (shared != null) {
+      shared.collectInstances(modelView, renderer, instances);
+    }
+    super.collectInstances(modelView, renderer, instances);
+    modelView.pop();
+  }
+}
@@ -0,0 +1,257 @@
+package sgraph;
+
+import java.io.IOException;
+import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import org.joml.Matrix4f;
+import rayTracer.FrameBuffer;
+import rayTracer.FrameFormat;
+import rayTracer.RayTraceSettings;
+import rayTracer.RayTraceStats;
+
+/**
+ * This class represents one ray trace handed to a {@link RenderService}: the scene graph, the
+ * camera, the settings and where the image goes, and a handle to follow its progress, cancel it and
+ * wait for it. A job is set up with its setters before it is submitted, and cannot be changed
+ * afterwards.
+ *
+ * A job without an output path completes with its frame. A job with an output path writes the
+ * image to the file as it is traced, and completes with null.
+ */
+public class RenderJob {
+
+  /**
+   * The states of a job. A job goes from NEW to QUEUED when it is submitted, to RUNNING when the
+   * service starts it, and ends in one of the last three.
+   */
+  public enum State {
+    NEW, QUEUED, RUNNING, DONE, FAILED, CANCELLED
+  }
+
+  private final IScenegraph<?> scenegraph;
+  private final int width;
+  private final int height;
+  private final Stack<Matrix4f> modelView;
+  private final float angleOfView;
+  private final RayTraceSettings settings;
+  private final RayTraceStats stats;
+  private final CompletableFuture<FrameBuffer> completion;
+  // read without the lock by the queues of the service, which must not wait for a job
+  private volatile int priority;
+  private String outputPath;
+  private volatile long sequence;
+  private State state;
+  private Future<?> driver;
+
+  /**
+   * Make a job that ray traces a scene graph into a frame
+   *
+   * @param scenegraph the scene graph
+   * @param width the width of the image, at least 1
+   * @param height the height of the image, at least 1
+   * @param modelView the stack of modelView storing a transformation from world to camera. It is
+   * copied.
+   * @param angleOfView angle of view from bottom to top
+   * @param settings the settings of the ray tracer. They are copied, and the thread count is not
+   * used, as the tiles are traced by the workers of the service.
+   * @throws IllegalArgumentException if the width or height is less than 1
+   */
+  public RenderJob(IScenegraph<?> scenegraph, int width, int height, Stack<Matrix4f> modelView,
+      float angleOfView, RayTraceSettings settings) throws IllegalArgumentException {
+    if (width < 1 || height < 1) {
+      throw new IllegalArgumentException("Invalid image size: " + width + " x " + height);
+    }
+    this.scenegraph = scenegraph;
+    this.width = width;
+    this.height = height;
+    this.modelView = new Stack<>();
+    for (Matrix4f mv : modelView) {
+      this.modelView.push(new Matrix4f(mv));
+    }
+    this.angleOfView = angleOfView;
+    this.settings = new RayTraceSettings(settings);
+    this.stats = new RayTraceStats((long) width * height);
+    this.completion = new CompletableFuture<>();
+    this.priority = 0;
+    this.outputPath = null;
+    this.state = State.NEW;
+    // cancelling the future cancels the job
+    completion.whenComplete((frame, error) -> {
+      if (completion.isCancelled()) {
+        cancel();
+      }
+    });
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  /**
+   * Set the priority of this job. The tiles of jobs with a higher priority are traced first, and
+   * jobs with the same priority are traced in the order they were submitted. The default is 0.
+   *
+   * @param priority the priority
+   * @throws IllegalStateException if the job has been submitted
+   */
+  public synchronized void setPriority(int priority) throws IllegalStateException {
+    checkNew();
+    this.priority = priority;
+  }
+
+  public synchronized String getOutputPath() {
+    return outputPath;
+  }
+
+  /**
+   * Set the file that the image is written to as it is traced, instead of making a frame
+   *
+   * @param outputPath the path of the file. Its extension gives the format, as for {@link
+   * FrameFormat}
+   * @throws IllegalArgumentException if the extension is not one of the formats
+   * @throws IllegalStateException if the job has been submitted
+   */
+  public synchronized void setOutputPath(String outputPath)
+      throws IllegalArgumentException, IllegalStateException {
+    checkNew();
+    FrameFormat.forPath(outputPath);
+    this.outputPath = outputPath;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Get the counts of the rays traced so far. They are added to as the tiles finish.
+   */
+  public RayTraceStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Get the part of the image that is finished, from 0 to 1
+   */
+  public float getProgress() {
+    return stats.getProgress();
+  }
+
+  /**
+   * Get the future that completes when this job ends. It completes with the frame, or null if the
+   * image is written to a file. It completes exceptionally with the error if the job fails, and is
+   * cancelled if the job is. Cancelling it cancels the job.
+   */
+  public CompletableFuture<FrameBuffer> getCompletion() {
+    return completion;
+  }
+
+  /**
+   * Cancel this job. A queued job is never started. A running job stops after the tiles being
+   * traced, and a file it was writing is deleted.
+   *
+   * @return true if the job was cancelled, false if it had already ended
+   */
+  public boolean cancel() {
+    Future<?> driver;
+    synchronized (this) {
+      if (state == State.DONE || state == State.FAILED || state == State.CANCELLED) {
+        return false;
+      }
+      state = State.CANCELLED;
+      driver = this.driver;
+    }
+    // outside the lock, as cancelling the driver calls back into the service
+    if (driver != null) {
+      driver.cancel(true);
+    }
+    completion.cancel(false);
+    return true;
+  }
+
+  /**
+   * Get the order in which this job was submitted
+   */
+  long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Record that this job has been submitted
+   *
+   * @param sequence the order in which it was submitted
+   * @param driver the task of the service that will run it
+   * @throws IllegalStateException if the job has been submitted already, or cancelled
+   */
+  synchronized void submitted(long sequence, Future<?> driver) throws IllegalStateException {
+    checkNew();
+    this.sequence = sequence;
+    this.driver = driver;
+    state = State.QUEUED;
+  }
+
+  /**
+   * Ray trace this job on the calling thread, handing the tiles to the given workers, and
+   * complete it. Nothing is done if the job has been cancelled.
+   *
+   * @param workers the worker threads that trace the tiles
+   */
+  void run(Executor workers) {
+    synchronized (this) {
+      if (state != State.QUEUED) {
+        return;
+      }
+      state = State.RUNNING;
+    }
+    try {
+      FrameBuffer frame = null;
+      if (outputPath == null) {
+        frame = scenegraph.rayTraceFrame(width, height, modelView, angleOfView, settings,
+            workers, stats);
+      } else {
+        scenegraph.rayTraceToFile(width, height, modelView, angleOfView, outputPath, settings,
+            workers, stats);
+      }
+      if (end(State.DONE)) {
+        completion.complete(frame);
+      }
+    } catch (InterruptedException e) {
+      cancel();
+    } catch (IOException | RuntimeException e) {
+      if (end(State.FAILED)) {
+        completion.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * End a running job in the given state
+   *
+   * @return true if the job was running, false if it has been cancelled meanwhile
+   */
+  private synchronized boolean end(State state) {
+    if (this.state != State.RUNNING) {
+      return false;
+    }
+    this.state = state;
+    return true;
+  }
+
+  private void checkNew() throws IllegalStateException {
+    if (state == State.CANCELLED) {
+      throw new IllegalStateException("The job has been cancelled");
+    }
+    if (state != State.NEW) {
+      throw new IllegalStateException("The job has been submitted already");
+    }
+  }
+}
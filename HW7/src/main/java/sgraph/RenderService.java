@@ -0,0 +1,234 @@
+package sgraph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs ray trace jobs in the background. Jobs are submitted without waiting, and a few
+ * of them run at once, picked by priority and then in the order they were submitted. The tiles of
+ * all running jobs are traced by one shared pool of worker threads, again by priority. When a job
+ * is between two bands, the tiles of the next job keep the workers busy.
+ *
+ * A job with a higher priority than a running job is started at once, even if as many jobs as
+ * allowed are running, and takes over the workers from the next tile on. The jobs with a lower
+ * priority wait for their tiles until it is done.
+ *
+ * The threads are daemon threads, so jobs that have not finished when the program ends are
+ * dropped. A service should be shut down when it is no longer needed.
+ */
+public class RenderService {
+
+  private final ThreadPoolExecutor workers;
+  private final ExecutorService jobRunners;
+  private final int activeJobs;
+  private final AtomicLong jobSequence;
+  private final PriorityQueue<JobTask> waiting;
+  private final List<JobTask> running;
+  private boolean shutdown;
+
+  /**
+   * Make a service with one worker thread per available processor, that runs up to two jobs at
+   * once
+   */
+  public RenderService() {
+    this(Runtime.getRuntime().availableProcessors(), 2);
+  }
+
+  /**
+   * Make a service
+   *
+   * @param threadCount the number of worker threads that trace tiles, at least 1
+   * @param activeJobs the number of jobs that may run at once, at least 1
+   * @throws IllegalArgumentException if the thread count or the number of jobs is less than 1
+   */
+  public RenderService(int threadCount, int activeJobs) throws IllegalArgumentException {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("Thread count should be at least 1: " + threadCount);
+    }
+    if (activeJobs < 1) {
+      throw new IllegalArgumentException("Active jobs should be at least 1: " + activeJobs);
+    }
+    // all threads are started now, so that every tile goes through the priority queue
+    workers = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<>(), threadFactory("render-worker-"));
+    workers.prestartAllCoreThreads();
+    // a running job mostly waits for its tiles, so each has a thread of its own
+    jobRunners = Executors.newCachedThreadPool(threadFactory("render-job-"));
+    this.activeJobs = activeJobs;
+    jobSequence = new AtomicLong();
+    waiting = new PriorityQueue<>();
+    running = new ArrayList<>();
+    shutdown = false;
+  }
+
+  private static ThreadFactory threadFactory(String prefix) {
+    AtomicInteger threadIndex = new AtomicInteger();
+    return r -> {
+      Thread thread = new Thread(r, prefix + threadIndex.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Queue a job. This returns at once.
+   *
+   * @param job the job, which has not been submitted before
+   * @return the job
+   * @throws IllegalStateException if the job has been submitted before or cancelled, or the
+   * service has been shut down
+   */
+  public synchronized RenderJob submit(RenderJob job) throws IllegalStateException {
+    if (shutdown) {
+      throw new IllegalStateException("The render service has been shut down");
+    }
+    JobTask task = new JobTask(job);
+    job.submitted(jobSequence.incrementAndGet(), task);
+    waiting.add(task);
+    startJobs();
+    return job;
+  }
+
+  /**
+   * Cancel all jobs and stop the threads. No jobs may be submitted afterwards.
+   */
+  public void shutdown() {
+    List<JobTask> jobs;
+    synchronized (this) {
+      shutdown = true;
+      jobs = new ArrayList<>(waiting);
+      jobs.addAll(running);
+      waiting.clear();
+    }
+    for (JobTask task : jobs) {
+      task.job.cancel();
+    }
+    jobRunners.shutdownNow();
+    workers.shutdownNow();
+  }
+
+  /**
+   * Start the waiting jobs that may run: while fewer jobs than allowed are running, and then the
+   * ones with a higher priority than a running job
+   */
+  private synchronized void startJobs() {
+    while (!shutdown && !waiting.isEmpty()) {
+      JobTask next = waiting.peek();
+      if (next.isCancelled()) {
+        waiting.poll();
+        continue;
+      }
+      if (running.size() >= activeJobs && next.job.getPriority() <= lowestRunningPriority()) {
+        return;
+      }
+      waiting.poll();
+      running.add(next);
+      jobRunners.execute(next);
+    }
+  }
+
+  private int lowestRunningPriority() {
+    int lowest = Integer.MAX_VALUE;
+    for (JobTask task : running) {
+      lowest = Math.min(lowest, task.job.getPriority());
+    }
+    return lowest;
+  }
+
+  /**
+   * Record that a job is no longer running, and start the next ones
+   */
+  private synchronized void jobEnded(JobTask task) {
+    running.remove(task);
+    startJobs();
+  }
+
+  /**
+   * The task that runs a job on a job thread. Jobs wait in order of priority, then of submission.
+   */
+  private class JobTask extends FutureTask<Void> implements Comparable<JobTask> {
+
+    final RenderJob job;
+
+    JobTask(RenderJob job) {
+      super(() -> job.run(new JobWorkers(job)), null);
+      this.job = job;
+    }
+
+    @Override
+    protected void done() {
+      jobEnded(this);
+    }
+
+    @Override
+    public int compareTo(JobTask other) {
+      return compareJobs(job, other.job);
+    }
+  }
+
+  /**
+   * The view of the shared worker threads that one job hands its tiles to. Each tile waits behind
+   * the tiles of jobs with a higher priority or submitted earlier.
+   */
+  private class JobWorkers implements Executor {
+
+    private final RenderJob job;
+    private final AtomicLong tileSequence;
+
+    JobWorkers(RenderJob job) {
+      this.job = job;
+      this.tileSequence = new AtomicLong();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      workers.execute(new Tile(job, tileSequence.getAndIncrement(), command));
+    }
+  }
+
+  /**
+   * A tile of a job that waits for a worker thread
+   */
+  private static class Tile implements Runnable, Comparable<Tile> {
+
+    final RenderJob job;
+    final long index;
+    final Runnable task;
+
+    Tile(RenderJob job, long index, Runnable task) {
+      this.job = job;
+      this.index = index;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+
+    @Override
+    public int compareTo(Tile other) {
+      int order = compareJobs(job, other.job);
+      return order != 0 ? order : Long.compare(index, other.index);
+    }
+  }
+
+  /**
+   * Order jobs by priority, highest first, and then by the order they were submitted
+   */
+  private static int compareJobs(RenderJob a, RenderJob b) {
+    int order = Integer.compare(b.getPriority(), a.getPriority());
+    return order != 0 ? order : Long.compare(a.getSequence(), b.getSequence());
+  }
+}
@@ -0,0 +1,336 @@
+package sgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Stack;
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+import rayTracer.BoundingVolumeHierarchy;
+import rayTracer.HitBuffer;
+import rayTracer.HitQuery;
+import rayTracer.HitRecord;
+import rayTracer.IndexList;
+import rayTracer.ThreeDRay;
+import util.Material;
+
+/**
+ * This class represents a scene graph compiled for ray tracing. The tree is walked once when the
+ * snapshot is taken, and all leaves are stored in a flat array together with their transformations
+ * to the view coordinate system, materials and textures. Rays are then intersected with the array
+ * directly instead of walking the tree again for every ray.
+ *
+ * A bounding volume hierarchy is built over the view space bounding boxes of all instances whose
+ * objects have known bounds, so that a ray is only checked against the instances whose boxes it
+ * hits. Instances without known bounds are checked against every ray.
+ *
+ * Every instance also gets an estimate of how densely its texture is mapped, which is used to
+ * choose the level of detail at which the texture is sampled.
+ */
+public class RenderSnapshot {
+
+  private final LeafInstance[] instances;
+  private final IScenegraphRenderer renderer;
+  private final int[] boundedInstances;
+  private final int[] unboundedInstances;
+  private final BoundingVolumeHierarchy hierarchy;
+
+  /**
+   * Take a snapshot of the scene graph rooted at the given node.
+   *
+   * @param root the root of the scene graph
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param renderer the renderer used to resolve textures and to intersect rays with objects
+   */
+  public RenderSnapshot(INode root, Stack<Matrix4f> modelView, IScenegraphRenderer renderer) {
+    Stack<Matrix4f> mvCopy = new Stack<>();
+    mvCopy.push(new Matrix4f(modelView.peek()));
+    List<LeafInstance> leaves = new ArrayList<>();
+    root.collectInstances(mvCopy, renderer, leaves);
+    this.instances = leaves.toArray(new LeafInstance[0]);
+    this.renderer = renderer;
+
+    float[] bounds = new float[6 * instances.length];
+    int[] bounded = new int[instances.length];
+    int[] unbounded = new int[instances.length];
+    int boundedCount = 0;
+    int unboundedCount = 0;
+    for (int i = 0; i < instances.length; i++) {
+      instances[i].setTextureDensity(renderer.getTextureDensity(instances[i].getObjectName()));
+      float[] objectBounds = renderer.getObjectBounds(instances[i].getObjectName());
+      if (objectBounds == null) {
+        unbounded[unboundedCount++] = i;
+      } else {
+        transformBounds(objectBounds, instances[i].getModelView(), bounds, 6 * boundedCount);
+        bounded[boundedCount++] = i;
+      }
+    }
+    this.boundedInstances = Arrays.copyOf(bounded, boundedCount);
+    this.unboundedInstances = Arrays.copyOf(unbounded, unboundedCount);
+    this.hierarchy = new BoundingVolumeHierarchy(bounds, boundedCount);
+  }
+
+  /**
+   * Transform a box to the view coordinate system, and store the box around the result.
+   *
+   * @param box the box in the object coordinate system
+   * @param modelView the transformation from the object to the view coordinate system
+   * @param dest the array where the transformed box is stored
+   * @param offset the position in dest of the transformed box
+   */
+  private static void transformBounds(float[] box, Matrix4f modelView, float[] dest,
+      int offset) {
+    for (int a = 0; a < 3; a++) {
+      dest[offset + a] = Float.MAX_VALUE;
+      dest[offset + 3 + a] = -Float.MAX_VALUE;
+    }
+    Vector4f corner = new Vector4f();
+    for (int i = 0; i < 8; i++) {
+      corner.set((i & 1) == 0 ? box[0] : box[3], (i & 2) == 0 ? box[1] : box[4],
+          (i & 4) == 0 ? box[2] : box[5], 1);
+      modelView.transform(corner);
+      dest[offset] = Math.min(dest[offset], corner.x);
+      dest[offset + 1] = Math.min(dest[offset + 1], corner.y);
+      dest[offset + 2] = Math.min(dest[offset + 2], corner.z);
+      dest[offset + 3] = Math.max(dest[offset + 3], corner.x);
+      dest[offset + 4] = Math.max(dest[offset + 4], corner.y);
+      dest[offset + 5] = Math.max(dest[offset + 5], corner.z);
+    }
+  }
+
+  /**
+   * Get all hit records of a ray on all instances in this snapshot, including ins and outs. Hits
+   * behind the starting point of the ray may be left out for instances that lie completely behind
+   * it. The records are in the same order as when every instance is checked in turn.
+   *
+   * @param ray the ray that is to be checked, in the view coordinate system
+   * @return a list of all hit records of the ray
+   */
+  public List<HitRecord> rayCast(ThreeDRay ray) {
+    HitBuffer hits = new HitBuffer();
+    rayCast(ray, hits);
+    return hits.toList();
+  }
+
+  /**
+   * Find all hit records of a ray on all instances in this snapshot, like rayCast(ray), but store
+   * them in a buffer. Nothing is allocated once the buffer has grown large enough, so a buffer
+   * should be kept and reused for many rays.
+   *
+   * @param ray the ray that is to be checked, in the view coordinate system
+   * @param hits the buffer that is cleared and then filled with the hit records of the ray
+   */
+  public void rayCast(ThreeDRay ray, HitBuffer hits) {
+    hits.clear();
+    Vector4f start = ray.getStartingPoint();
+    Vector4f direction = ray.getDirection();
+    IndexList candidates = hits.getCandidates();
+    BoundingVolumeHierarchy.Traversal traversal = hits.getInstanceTraversal();
+    traversal.start(hierarchy, start.x, start.y, start.z, direction.x, direction.y, direction.z,
+        0, Float.POSITIVE_INFINITY);
+    int primitive;
+    while ((primitive = traversal.next()) >= 0) {
+      candidates.add(boundedInstances[primitive]);
+    }
+    for (int i : unboundedInstances) {
+      candidates.add(i);
+    }
+    candidates.sort();
+
+    for (int i = 0; i < candidates.size(); i++) {
+      renderer.checkHit(instances[candidates.get(i)], ray, hits);
+    }
+  }
+
+  /**
+   * Find the closest hit of a ray with tMin &lt; t &lt; tMax. Instances are visited roughly from
+   * front to back, and once a hit is found every instance whose box lies completely beyond it is
+   * skipped. If several hits are equally close, the one that rayCast would list first is returned.
+   *
+   * @param ray the ray that is to be checked, in the view coordinate system
+   * @param tMin the start of the ray, excluded
+   * @param tMax the end of the ray, excluded
+   * @param hits the buffer used while checking the ray, which holds the closest hit afterwards
+   * @return the closest hit, which is reused once the buffer is used again, or null if the ray
+   * hits nothing. Its object id is the index of the instance that was hit.
+   */
+  public HitRecord closestHit(ThreeDRay ray, float tMin, float tMax, HitBuffer hits) {
+    hits.clear();
+    int closest = -1;
+    for (int i : unboundedInstances) {
+      closest = checkClosestHit(i, ray, tMin, tMax, closest, hits);
+      if (closest >= 0) {
+        tMax = hits.get(0).getT();
+      }
+    }
+
+    Vector4f start = ray.getStartingPoint();
+    Vector4f direction = ray.getDirection();
+    BoundingVolumeHierarchy.Traversal traversal = hits.getInstanceTraversal();
+    traversal.start(hierarchy, start.x, start.y, start.z, direction.x, direction.y, direction.z,
+        tMin, tMax);
+    int primitive;
+    while ((primitive = traversal.next()) >= 0) {
+      closest = checkClosestHit(boundedInstances[primitive], ray, tMin, tMax, closest, hits);
+      if (closest >= 0) {
+        tMax = hits.get(0).getT();
+        traversal.setTMax(tMax);
+      }
+    }
+    if (closest < 0) {
+      return null;
+    }
+    HitRecord hit = hits.get(0);
+    hit.setObjectId(closest);
+    return hit;
+  }
+
+  /**
+   * Find the closest hit of a ray with tMin &lt; t &lt; tMax, allocating its own buffer.
+   *
+   * @see #closestHit(ThreeDRay, float, float, HitBuffer)
+   */
+  public HitRecord closestHit(ThreeDRay ray, float tMin, float tMax) {
+    HitRecord closest = closestHit(ray, tMin, tMax, new HitBuffer());
+    return closest != null ? new HitRecord(closest) : null;
+  }
+
+  /**
+   * Check one instance for a hit closer than the closest one so far. The closest hit so far is the
+   * first record in the buffer, and the closer hit, if any, replaces it.
+   *
+   * @param instance the index of the instance that is to be checked
+   * @param ray the ray that is to be checked
+   * @param tMin the start of the ray, excluded
+   * @param tMax the end of the ray, which is the t of the closest hit so far if there is one
+   * @param closest the index of the instance of the closest hit so far, or -1 if there is none
+   * @param hits the buffer holding the closest hit so far
+   * @return the index of the instance of the closest hit
+   */
+  private int checkClosestHit(int instance, ThreeDRay ray, float tMin, float tMax, int closest,
+      HitBuffer hits) {
+    int first = closest < 0 ? 0 : 1;
+    // tMax stays included, as an equally close hit may still win
+    renderer.checkHit(instances[instance], ray, Math.nextUp(tMin), tMax, HitQuery.CLOSEST, hits);
+    int best = -1;
+    float bestT = tMax;
+    for (int i = first; i < hits.size(); i++) {
+      float t = hits.get(i).getT();
+      // an equally close hit wins only if its instance comes first, as it would in rayCast
+      if (t > tMin && (t < bestT
+          || (best < 0 && closest >= 0 && t == bestT && instance < closest))) {
+        best = i;
+        bestT = t;
+      }
+    }
+    if (best < 0) {
+      hits.truncate(first);
+      return closest;
+    }
+    if (best > 0) {
+      hits.get(0).set(hits.get(best));
+    }
+    hits.truncate(1);
+    return instance;
+  }
+
+  /**
+   * Find how much light gets through along a ray, from the hits with tMin &lt; t &lt; tMax. Every
+   * hit lets through 1 - absorption - reflection of its material, so the result is the product
+   * over all hits. The search stops at the first hit that lets no light through, without looking
+   * for the remaining hits.
+   *
+   * @param ray the ray that is to be checked, in the view coordinate system
+   * @param tMin the start of the ray, excluded
+   * @param tMax the end of the ray, excluded
+   * @param hits the buffer used while checking the ray
+   * @return the fraction of light that gets through, 0 if the ray is blocked
+   */
+  public float occlusion(ThreeDRay ray, float tMin, float tMax, HitBuffer hits) {
+    float transmittance = 1;
+    for (int i : unboundedInstances) {
+      transmittance *= transmittance(i, ray, tMin, tMax, hits);
+      if (transmittance <= 0) {
+        return 0;
+      }
+    }
+
+    Vector4f start = ray.getStartingPoint();
+    Vector4f direction = ray.getDirection();
+    BoundingVolumeHierarchy.Traversal traversal = hits.getInstanceTraversal();
+    traversal.start(hierarchy, start.x, start.y, start.z, direction.x, direction.y, direction.z,
+        tMin, tMax);
+    int primitive;
+    while ((primitive = traversal.next()) >= 0) {
+      transmittance *= transmittance(boundedInstances[primitive], ray, tMin, tMax, hits);
+      if (transmittance <= 0) {
+        return 0;
+      }
+    }
+    return transmittance;
+  }
+
+  /**
+   * Find how much light gets through along a ray, allocating its own buffer.
+   *
+   * @see #occlusion(ThreeDRay, float, float, HitBuffer)
+   */
+  public float occlusion(ThreeDRay ray, float tMin, float tMax) {
+    return occlusion(ray, tMin, tMax, new HitBuffer());
+  }
+
+  /**
+   * Find how much light gets through one instance along a ray. All hits on an instance share its
+   * material, so if it lets no light through, any one hit is enough.
+   */
+  private float transmittance(int instance, ThreeDRay ray, float tMin, float tMax,
+      HitBuffer hits) {
+    hits.clear();
+    Material material = instances[instance].getMaterial();
+    HitQuery query = 1 - material.getAbsorption() - material.getReflection() <= 0
+        ? HitQuery.ANY : HitQuery.ALL;
+    renderer.checkHit(instances[instance], ray, Math.nextUp(tMin), Math.nextDown(tMax), query,
+        hits);
+    float result = 1;
+    for (int i = 0; i < hits.size(); i++) {
+      HitRecord hit = hits.get(i);
+      if (hit.getT() > tMin && hit.getT() < tMax) {
+        Material mat = hit.getMaterial();
+        result *= 1 - mat.getAbsorption() - mat.getReflection();
+        if (result <= 0) {
+          return 0;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get all hit records of a ray by checking every instance in this snapshot, without the
+   * hierarchy.
+   *
+   * @param ray the ray that is to be checked, in the view coordinate system
+   * @return a list of all hit records of the ray
+   */
+  public List<HitRecord> rayCastAll(ThreeDRay ray) {
+    List<HitRecord> result = new ArrayList<>();
+    for (LeafInstance instance : instances) {
+      result.addAll(renderer.checkHit(instance, ray));
+    }
+    return result;
+  }
+
+  /**
+   * Get the number of leaf instances in this snapshot.
+   */
+  public int getInstanceCount() {
+    return instances.length;
+  }
+
+  /**
+   * Get a leaf instance of this snapshot, by its index.
+   */
+  public LeafInstance getInstance(int index) {
+    return instances[index];
+  }
+}
@@ -1,9 +1,15 @@
 package sgraph;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Executor;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
+import rayTracer.FrameBuffer;
+import rayTracer.IFrameSink;
+import rayTracer.RayTraceSettings;
+import rayTracer.RayTraceStats;
 import util.IVertexData;
 import util.PolygonMesh;
 
@@ -132,6 +138,17 @@ public class RotateScenegraph<VertexType extends IVertexData> implements ISceneg
     originalScenegraph.addTexture(name, path);
   }
 
+  /**
+   * Add a new texture by this name whose image has already been decoded
+   */
+  public void addTexture(String name, util.TextureImage image) {
+    originalScenegraph.addTexture(name, image);
+  }
+
+  public Map<String, String> getTextures() {
+    return originalScenegraph.getTextures();
+  }
+
   public void dispose() {
     originalScenegraph.dispose();
   }
@@ -143,4 +160,74 @@ public class RotateScenegraph<VertexType extends IVertexData> implements ISceneg
     originalScenegraph.rayTrace(w, h, modelView, angleOfView);
     modelView.pop();
   }
+
+  @Override
+  public FrameBuffer rayTraceFrame(int w, int h, Stack<Matrix4f> modelView,
+      float angleOfView) {
+    modelView.push(new Matrix4f(modelView.peek()));
+    modelView.peek().mul(translateMatrix).mul(rotateMatrix);
+    FrameBuffer frame = originalScenegraph.rayTraceFrame(w, h, modelView, angleOfView);
+    modelView.pop();
+    return frame;
+  }
+
+  @Override
+  public void rayTraceToFile(int w, int h, Stack<Matrix4f> modelView, float angleOfView,
+      String path) throws IllegalArgumentException, IOException {
+    modelView.push(new Matrix4f(modelView.peek()));
+    modelView.peek().mul(translateMatrix).mul(rotateMatrix);
+    try {
+      originalScenegraph.rayTraceToFile(w, h, modelView, angleOfView, path);
+    } finally {
+      modelView.pop();
+    }
+  }
+
+  @Override
+  public FrameBuffer rayTraceFrame(int w, int h, Stack<Matrix4f> modelView, float angleOfView,
+      RayTraceSettings settings, Executor workers, RayTraceStats stats)
+      throws InterruptedException {
+    modelView.push(new Matrix4f(modelView.peek()));
+    modelView.peek().mul(translateMatrix).mul(rotateMatrix);
+    try {
+      return originalScenegraph.rayTraceFrame(w, h, modelView, angleOfView, settings, workers,
+          stats);
+    } finally {
+      modelView.pop();
+    }
+  }
+
+  @Override
+  public void rayTraceToFile(int w, int h, Stack<Matrix4f> modelView, float angleOfView,
+      String path, RayTraceSettings settings, Executor workers, RayTraceStats stats)
+      throws IllegalArgumentException, IOException, InterruptedException {
+    modelView.push(new Matrix4f(modelView.peek()));
+    modelView.peek().mul(translateMatrix).mul(rotateMatrix);
+    try {
+      originalScenegraph.rayTraceToFile(w, h, modelView, angleOfView, path, settings, workers,
+          stats);
+    } finally {
+      modelView.pop();
+    }
+  }
+
+  @Override
+  public void setRayTraceSettings(RayTraceSettings settings) {
+    originalScenegraph.setRayTraceSettings(settings);
+  }
+
+  @Override
+  public void setFrameSink(IFrameSink frameSink) {
+    originalScenegraph.setFrameSink(frameSink);
+  }
+
+  @Override
+  public RayTraceStats getRayTraceStats() {
+    return originalScenegraph.getRayTraceStats();
+  }
+
+  @Override
+  public void invalidateSnapshot() {
+    originalScenegraph.invalidateSnapshot();
+  }
 }
@@ -0,0 +1,218 @@
+package sgraph;
+
+import com.jogamp.opengl.GLProfile;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+import util.IVertexData;
+import util.Light;
+import util.Material;
+import util.VertexProducer;
+
+/**
+ * Loads a scene graph written by {@link SceneBinaryWriter}. No XML is parsed: all the nodes are
+ * made in one pass over the file, and linked to their children in a second pass. The meshes and
+ * textures are then loaded by worker threads, just as {@link SceneXMLReader} loads them.
+ */
+public class SceneBinaryReader {
+  static final int MAGIC = 0x454e4353; // "SCNE"
+  static final int VERSION = 1;
+
+  static final int GROUP = 0;
+  static final int TRANSFORM = 1;
+  static final int LEAF = 2;
+  static final int REFERENCE = 3;
+
+  /**
+   * Load a scene graph whose textures will be made in an OpenGL context later
+   */
+  public static <K extends IVertexData> IScenegraph<K>
+  importScenegraph(InputStream in, VertexProducer<K> vProducer) throws Exception {
+    return importScenegraph(in, vProducer, null);
+  }
+
+  /**
+   * Load a scene graph, decoding its textures for an OpenGL profile. The stream is read to its end
+   * but not closed.
+   *
+   * @param in the stream of the binary file
+   * @param vProducer the producer of the vertex type of the meshes
+   * @param profile the profile of the context that the textures will be made in, or null to decode
+   * the texture data when the textures are made
+   * @return the scene graph
+   * @throws IOException if the stream cannot be read or is not a compiled scene file
+   * @throws Exception if a mesh cannot be read
+   */
+  public static <K extends IVertexData> IScenegraph<K>
+  importScenegraph(InputStream in, VertexProducer<K> vProducer, GLProfile profile)
+      throws Exception {
+    if (in == null) {
+      throw new IOException("No compiled scene file to load");
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] chunk = new byte[1 << 16];
+    int read;
+    while ((read = in.read(chunk)) >= 0) {
+      bytes.write(chunk, 0, read);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    if ((buffer.remaining() < 20) || (buffer.getInt() != MAGIC)) {
+      throw new IOException("Not a compiled scene file");
+    }
+    if (buffer.getInt() != VERSION) {
+      throw new IOException("Unsupported compiled scene version");
+    }
+    int meshCount = buffer.getInt();
+    int textureCount = buffer.getInt();
+    int nodeCount = buffer.getInt();
+
+    Scenegraph<K> scenegraph = new Scenegraph<K>();
+    Map<String, String> meshPaths = new LinkedHashMap<String, String>();
+    for (int i = 0; i < meshCount; i++) {
+      String name = readString(buffer);
+      meshPaths.put(name, readString(buffer));
+    }
+    for (int i = 0; i < textureCount; i++) {
+      String name = readString(buffer);
+      scenegraph.addTexture(name, readString(buffer));
+    }
+
+    //make every node first, then link them, since a reference may come before its target
+    AbstractNode[] nodes = new AbstractNode[nodeCount];
+    int[][] children = new int[nodeCount][];
+    int[] targets = new int[nodeCount];
+    for (int i = 0; i < nodeCount; i++) {
+      int type = buffer.getInt();
+      String name = readString(buffer);
+      Light[] lights = new Light[buffer.getInt()];
+      for (int l = 0; l < lights.length; l++) {
+        lights[l] = readLight(buffer);
+      }
+
+      switch (type) {
+        case REFERENCE: {
+          ReferenceNode reference = new ReferenceNode(scenegraph, name, null);
+          targets[i] = buffer.getInt();
+          reference.transform = readMatrix(buffer);
+          reference.animation_transform = readMatrix(buffer);
+          children[i] = readChildren(buffer);
+          nodes[i] = reference;
+        }
+        break;
+        case GROUP:
+          nodes[i] = new GroupNode(scenegraph, name);
+          children[i] = readChildren(buffer);
+          break;
+        case TRANSFORM: {
+          TransformNode transform = new TransformNode(scenegraph, name);
+          transform.transform = readMatrix(buffer);
+          transform.animation_transform = readMatrix(buffer);
+          int child = buffer.getInt();
+          children[i] = child >= 0 ? new int[]{child} : new int[0];
+          nodes[i] = transform;
+        }
+        break;
+        case LEAF: {
+          LeafNode leaf = new LeafNode(readString(buffer), scenegraph, name);
+          leaf.textureName = readString(buffer);
+          if (buffer.get() != 0) {
+            leaf.material = readMaterial(buffer);
+          }
+          nodes[i] = leaf;
+        }
+        break;
+        default:
+          throw new IOException("Unknown node type " + type + " in compiled scene file");
+      }
+      for (Light light : lights) {
+        nodes[i].lights.add(light);
+      }
+    }
+
+    for (int i = 0; i < nodeCount; i++) {
+      if (children[i] != null) {
+        for (int child : children[i]) {
+          nodes[i].addChild(nodes[child]);
+        }
+      }
+      if (nodes[i] instanceof ReferenceNode) {
+        ((ReferenceNode) nodes[i]).reference = nodes[targets[i]];
+      }
+    }
+    if (nodeCount > 0) {
+      scenegraph.makeScenegraph(nodes[0]);
+    }
+
+    SceneXMLReader.loadAssets(scenegraph, meshPaths, vProducer, profile);
+    return scenegraph;
+  }
+
+  private static int[] readChildren(ByteBuffer buffer) {
+    int[] children = new int[buffer.getInt()];
+    for (int c = 0; c < children.length; c++) {
+      children[c] = buffer.getInt();
+    }
+    return children;
+  }
+
+  private static Light readLight(ByteBuffer buffer) {
+    Light light = new Light();
+    light.setAmbient(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    light.setDiffuse(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    light.setSpecular(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    light.setPosition(readVector(buffer));
+    Vector4f spotDirection = readVector(buffer);
+    light.setSpotDirection(spotDirection.x, spotDirection.y, spotDirection.z);
+    light.setSpotAngle(buffer.getFloat());
+    return light;
+  }
+
+  private static Material readMaterial(ByteBuffer buffer) {
+    Vector4f emission = readVector(buffer);
+    Vector4f ambient = readVector(buffer);
+    Vector4f diffuse = readVector(buffer);
+    Vector4f specular = readVector(buffer);
+    Material material = new Material();
+    material.setShininess(buffer.getFloat());
+    material.setAbsorption(buffer.getFloat());
+    material.setReflection(buffer.getFloat());
+    material.setTransparency(buffer.getFloat());
+    material.setRefractiveIndex(buffer.getFloat());
+    //set the colors last, since setting the transparency changes their alpha
+    material.setEmission(emission);
+    material.setAmbient(ambient);
+    material.setDiffuse(diffuse);
+    material.setSpecular(specular);
+    return material;
+  }
+
+  private static Matrix4f readMatrix(ByteBuffer buffer) {
+    float[] values = new float[16];
+    for (int v = 0; v < 16; v++) {
+      values[v] = buffer.getFloat();
+    }
+    return new Matrix4f().set(values).assume(buffer.getInt());
+  }
+
+  private static Vector4f readVector(ByteBuffer buffer) {
+    return new Vector4f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+        buffer.getFloat());
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return s;
+  }
+}
@@ -0,0 +1,229 @@
+package sgraph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import util.Light;
+import util.Material;
+import util.PolygonMesh;
+
+/**
+ * Writes a scene graph in a compact binary format, which {@link SceneBinaryReader} loads back
+ * without parsing any XML. The scene graph must be complete, as returned by {@link
+ * SceneXMLReader}. Meshes and textures are written as references to their files, not as data.
+ *
+ * The file holds, in big endian order:
+ * <ul> <li>A header: the magic number, the format version, and the number of meshes, textures and
+ * nodes.</li>
+ * <li>The name and class path of every mesh, then the name and path of every texture.</li>
+ * <li>Every node, in the order of a depth first traversal from the root: its type, name and
+ * lights, followed by what its type needs. A transform node has its transform, its animation
+ * transform and its child, a leaf its mesh name, texture name and material, a group its children,
+ * and a reference the node it refers to, its transforms and its children. Nodes refer to each
+ * other by their position in this list.</li> </ul>
+ *
+ * A matrix is written as its 16 values in column major order followed by its JOML properties.
+ *
+ * Strings are written as their length in UTF-8 bytes followed by the bytes, with a length of -1 for
+ * null.
+ */
+public class SceneBinaryWriter {
+
+  /**
+   * Write a scene graph to a stream. The stream is flushed but not closed.
+   *
+   * @param scenegraph the scene graph
+   * @param out the stream
+   * @throws IOException if the stream cannot be written
+   * @throws IllegalArgumentException if a mesh was not imported from a file on the class path, or
+   * a node is of a type that cannot be written
+   */
+  public static void exportScenegraph(IScenegraph<?> scenegraph, OutputStream out)
+      throws IOException, IllegalArgumentException {
+    List<INode> order = new ArrayList<INode>();
+    Map<INode, Integer> indices = new IdentityHashMap<INode, Integer>();
+    number(scenegraph.getRoot(), order, indices);
+
+    Map<String, ? extends PolygonMesh<?>> meshes = scenegraph.getPolygonMeshes();
+    Map<String, String> textures = scenegraph.getTextures();
+
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    data.writeInt(SceneBinaryReader.MAGIC);
+    data.writeInt(SceneBinaryReader.VERSION);
+    data.writeInt(meshes.size());
+    data.writeInt(textures.size());
+    data.writeInt(order.size());
+
+    for (Map.Entry<String, ? extends PolygonMesh<?>> e : meshes.entrySet()) {
+      String path = util.MeshRegistry.getDefault().getPath(e.getValue());
+      if (path == null) {
+        throw new IllegalArgumentException(
+            "Mesh " + e.getKey() + " was not imported from a file on the class path");
+      }
+      writeString(data, e.getKey());
+      writeString(data, path);
+    }
+    for (Map.Entry<String, String> e : textures.entrySet()) {
+      writeString(data, e.getKey());
+      writeString(data, e.getValue());
+    }
+
+    for (INode node : order) {
+      writeNode(data, (AbstractNode) node, indices);
+    }
+    data.flush();
+  }
+
+  /**
+   * Number the nodes of a subtree in the order of a depth first traversal. The subtree that a
+   * reference node refers to is numbered where it is, not under the reference.
+   */
+  private static void number(INode node, List<INode> order, Map<INode, Integer> indices) {
+    if (indices.containsKey(node)) {
+      throw new IllegalArgumentException("Node " + node.getName() + " has more than one parent");
+    }
+    indices.put(node, order.size());
+    order.add(node);
+    if (node instanceof GroupNode) {
+      for (INode child : ((GroupNode) node).children) {
+        number(child, order, indices);
+      }
+    } else if ((node instanceof TransformNode) && (((TransformNode) node).child != null)) {
+      number(((TransformNode) node).child, order, indices);
+    }
+  }
+
+  private static void writeNode(DataOutputStream data, AbstractNode node,
+      Map<INode, Integer> indices) throws IOException {
+    int type;
+    if (node instanceof ReferenceNode) {
+      type = SceneBinaryReader.REFERENCE;
+    } else if (node instanceof GroupNode) {
+      type = SceneBinaryReader.GROUP;
+    } else if (node instanceof TransformNode) {
+      type = SceneBinaryReader.TRANSFORM;
+    } else if (node instanceof LeafNode) {
+      type = SceneBinaryReader.LEAF;
+    } else {
+      throw new IllegalArgumentException(
+          "Node " + node.getName() + " of " + node.getClass() + " cannot be written");
+    }
+    data.writeInt(type);
+    writeString(data, node.getName());
+    data.writeInt(node.lights.size());
+    for (Light light : node.lights) {
+      writeLight(data, light);
+    }
+
+    switch (type) {
+      case SceneBinaryReader.REFERENCE: {
+        ReferenceNode reference = (ReferenceNode) node;
+        Integer target = indices.get(reference.reference);
+        if (target == null) {
+          throw new IllegalArgumentException(
+              "Node " + node.getName() + " refers to a node outside the scene graph");
+        }
+        data.writeInt(target);
+        writeMatrix(data, reference.transform);
+        writeMatrix(data, reference.animation_transform);
+        writeChildren(data, reference.children, indices);
+      }
+      break;
+      case SceneBinaryReader.GROUP:
+        writeChildren(data, ((GroupNode) node).children, indices);
+        break;
+      case SceneBinaryReader.TRANSFORM: {
+        TransformNode transform = (TransformNode) node;
+        writeMatrix(data, transform.transform);
+        writeMatrix(data, transform.animation_transform);
+        data.writeInt(transform.child != null ? indices.get(transform.child) : -1);
+      }
+      break;
+      case SceneBinaryReader.LEAF: {
+        LeafNode leaf = (LeafNode) node;
+        writeString(data, leaf.objInstanceName);
+        writeString(data, leaf.textureName);
+        data.writeBoolean(leaf.material != null);
+        if (leaf.material != null) {
+          writeMaterial(data, leaf.material);
+        }
+      }
+      break;
+    }
+  }
+
+  private static void writeChildren(DataOutputStream data, List<INode> children,
+      Map<INode, Integer> indices) throws IOException {
+    data.writeInt(children.size());
+    for (INode child : children) {
+      data.writeInt(indices.get(child));
+    }
+  }
+
+  private static void writeLight(DataOutputStream data, Light light) throws IOException {
+    writeVector(data, light.getAmbient());
+    writeVector(data, light.getDiffuse());
+    writeVector(data, light.getSpecular());
+    writeVector(data, light.getPosition());
+    writeVector(data, light.getSpotDirection());
+    data.writeFloat(light.getSpotCutoff());
+  }
+
+  private static void writeMaterial(DataOutputStream data, Material material)
+      throws IOException {
+    writeVector(data, material.getEmission());
+    writeVector(data, material.getAmbient());
+    writeVector(data, material.getDiffuse());
+    writeVector(data, material.getSpecular());
+    data.writeFloat(material.getShininess());
+    data.writeFloat(material.getAbsorption());
+    data.writeFloat(material.getReflection());
+    data.writeFloat(material.getTransparency());
+    data.writeFloat(material.getRefractiveIndex());
+  }
+
+  /**
+   * Write the values of a matrix, and the properties that JOML has worked out for it. Products
+   * with the matrix are computed differently depending on its properties, so they are kept to get
+   * the same results bit for bit.
+   */
+  private static void writeMatrix(DataOutputStream data, Matrix4f m) throws IOException {
+    float[] values = m.get(new float[16]);
+    for (float value : values) {
+      data.writeFloat(value);
+    }
+    data.writeInt(m.properties());
+  }
+
+  private static void writeVector(DataOutputStream data, Vector3f v) throws IOException {
+    data.writeFloat(v.x);
+    data.writeFloat(v.y);
+    data.writeFloat(v.z);
+  }
+
+  private static void writeVector(DataOutputStream data, Vector4f v) throws IOException {
+    data.writeFloat(v.x);
+    data.writeFloat(v.y);
+    data.writeFloat(v.z);
+    data.writeFloat(v.w);
+  }
+
+  private static void writeString(DataOutputStream data, String s) throws IOException {
+    if (s == null) {
+      data.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+}
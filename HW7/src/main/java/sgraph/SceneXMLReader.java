@@ -1,5 +1,6 @@
 package sgraph;
 
+import com.jogamp.opengl.GLProfile;
 import org.joml.Matrix4f;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -7,40 +8,139 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import util.IVertexData;
 import util.Light;
+import util.PolygonMesh;
+import util.TextureImage;
 import util.VertexProducer;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
  * A SAX parser for parsing the scene graph and compiling an {@link sgraph.IScenegraph} object from
  * it.
  *
+ * A scene graph is imported in two phases. The XML file, and any file included with a group, is
+ * parsed first, and the meshes and images it refers to are only collected. All of them are then
+ * decoded at the same time by a pool of worker threads, so that loading a scene with many assets
+ * takes about as long as loading the largest of them when there are enough cores.
+ *
+ * A file included by several groups is parsed only once per import. The parsed file is kept as a
+ * template, and every group gets a copy of it.
+ *
  * @author Amit Shesh
  */
 public class SceneXMLReader {
 
+  /**
+   * Import a scene graph whose textures will be made in an OpenGL context later. The texture data
+   * is then decoded when the texture is made.
+   */
   public static <K extends IVertexData> IScenegraph<K>
   importScenegraph(InputStream in, util.VertexProducer<K> vProducer)
       throws Exception {
+    return importScenegraph(in, vProducer, null);
+  }
+
+  /**
+   * Import a scene graph, decoding its textures for an OpenGL profile. The renderer is then only
+   * left to send the texture data to OpenGL on the thread that owns the context.
+   *
+   * @param in the stream of the XML file
+   * @param vProducer the producer of the vertex type of the meshes
+   * @param profile the profile of the context that the textures will be made in, or null to decode
+   * the texture data when the textures are made
+   * @return the scene graph
+   * @throws Exception if the XML file is not valid, or a mesh or image cannot be read
+   */
+  public static <K extends IVertexData> IScenegraph<K>
+  importScenegraph(InputStream in, util.VertexProducer<K> vProducer, GLProfile profile)
+      throws Exception {
+    MyHandler<K> handler = parse(in, vProducer, new HashMap<String, MyHandler<K>>());
+    IScenegraph<K> scenegraph = handler.getScenegraph();
+    loadAssets(scenegraph, handler.getMeshPaths(), vProducer, profile);
+    return scenegraph;
+  }
+
+  /**
+   * Parse an XML file into a scene graph without its meshes, which are collected by the handler
+   *
+   * @param templates the handlers of the included files parsed so far, keyed by their path. Files
+   * included by this file are added to it
+   */
+  static <K extends IVertexData> MyHandler<K> parse(InputStream in,
+      util.VertexProducer<K> vProducer, Map<String, MyHandler<K>> templates) throws Exception {
     SAXParserFactory factory = SAXParserFactory.newInstance();
     SAXParser parser = null;
-    IScenegraph<K> scenegraph = null;
 
     parser = factory.newSAXParser();
 
-    MyHandler handler = new MyHandler(vProducer);
+    MyHandler<K> handler = new MyHandler<K>(vProducer, templates);
     parser.parse(in, handler);
+    return handler;
+  }
 
-    scenegraph = handler.getScenegraph();
-    return scenegraph;
+  /**
+   * Import the meshes and decode the images of a scene graph on a pool of worker threads, and add
+   * them to the scene graph. Meshes are imported through the registry, so that a mesh used by
+   * several names is imported once.
+   */
+  static <K extends IVertexData> void loadAssets(IScenegraph<K> scenegraph,
+      Map<String, String> meshPaths, VertexProducer<K> vProducer, GLProfile profile)
+      throws Exception {
+    Map<String, String> texturePaths = scenegraph.getTextures();
+    int threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+        meshPaths.size() + texturePaths.size()));
+    ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+    try {
+      Map<String, Future<PolygonMesh<K>>> meshes = new LinkedHashMap<>();
+      for (Map.Entry<String, String> e : meshPaths.entrySet()) {
+        String path = e.getValue();
+        meshes.put(e.getKey(), pool.submit(
+            () -> util.MeshRegistry.getDefault().getMesh(vProducer, path, false)));
+      }
+      Map<String, Future<TextureImage>> images = new LinkedHashMap<>();
+      for (Map.Entry<String, String> e : texturePaths.entrySet()) {
+        String name = e.getKey();
+        String path = e.getValue();
+        String imageFormat = path.substring(path.indexOf('.') + 1);
+        images.put(name, pool.submit(() -> new TextureImage(path, imageFormat, name, profile)));
+      }
+
+      for (Map.Entry<String, Future<PolygonMesh<K>>> e : meshes.entrySet()) {
+        try {
+          scenegraph.addPolygonMesh(e.getKey(), e.getValue().get());
+        } catch (ExecutionException ex) {
+          throw new SAXException(ex.getCause().getMessage());
+        }
+      }
+      for (Map.Entry<String, Future<TextureImage>> e : images.entrySet()) {
+        try {
+          scenegraph.addTexture(e.getKey(), e.getValue().get());
+        } catch (ExecutionException ex) {
+          throw new SAXException("Texture " + texturePaths.get(e.getKey()) + " cannot be read: "
+              + ex.getCause().getMessage());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SAXException("Interrupted while loading the meshes and images of the scene");
+    } finally {
+      pool.shutdownNow();
+    }
   }
 }
 
@@ -56,13 +156,24 @@ class MyHandler<K extends IVertexData> extends DefaultHandler {
   private Map<String, INode> subgraph;
   private Light light;
   private boolean lightFlag;
+  private Map<String, String> meshPaths;
+  private Map<String, MyHandler<K>> templates;
 
   public IScenegraph<K> getScenegraph() {
     return scenegraph;
   }
 
-  public MyHandler(util.VertexProducer<K> vProducer) {
+  /**
+   * Get the (name,path) pairs of the meshes referred to by the parsed file and the files it
+   * includes, in the order they appear
+   */
+  public Map<String, String> getMeshPaths() {
+    return meshPaths;
+  }
+
+  public MyHandler(util.VertexProducer<K> vProducer, Map<String, MyHandler<K>> templates) {
     this.vProducer = vProducer;
+    this.templates = templates;
 
   }
 
@@ -76,6 +187,7 @@ class MyHandler<K extends IVertexData> extends DefaultHandler {
     material = new util.Material();
     light = null;
     lightFlag = false;
+    meshPaths = new LinkedHashMap<String, String>();
   }
 
   public void endDocument() throws SAXException {
@@ -104,31 +216,43 @@ class MyHandler<K extends IVertexData> extends DefaultHandler {
           }
         }
         if ((copyof.length() > 0) && (subgraph.containsKey(copyof))) {
-          node = subgraph.get(copyof).clone();
-          node.setName(name);
+          INode original = subgraph.get(copyof);
+          if (stackNodes.contains(original)) {
+            //a node being built cannot be shared by a node inside it, so copy what it has so far
+            node = original.clone();
+            node.setName(name);
+          } else {
+            node = new sgraph.ReferenceNode(scenegraph, name, original);
+          }
         } else if (fromfile.length() > 0) {
-          sgraph.IScenegraph<K> tempsg = null;
-          try {
-            tempsg = SceneXMLReader.importScenegraph(getClass()
-                .getClassLoader().getResourceAsStream
-                    (fromfile), (VertexProducer<K>) vProducer);
-          } catch (Exception e) {
-            throw new SAXException(e.getMessage());
+          //parse each included file once, and copy it for every group that includes it
+          MyHandler<K> temphandler = templates.get(fromfile);
+          if (temphandler == null) {
+            try {
+              temphandler = SceneXMLReader.parse(getClass()
+                  .getClassLoader().getResourceAsStream
+                      (fromfile), (VertexProducer<K>) vProducer, templates);
+            } catch (Exception e) {
+              throw new SAXException(e.getMessage());
+            }
+            templates.put(fromfile, temphandler);
           }
+          sgraph.IScenegraph<K> tempsg = temphandler.getScenegraph();
           node = new sgraph.GroupNode(scenegraph, name);
 
-          for (Map.Entry<String, util.PolygonMesh<K>> s : tempsg
-              .getPolygonMeshes().entrySet()) {
-            scenegraph.addPolygonMesh(s.getKey(), s.getValue());
-          }
-          //rename all the nodes in tempsg to prepend with the name of the group node
+          //the meshes of the included file are loaded with those of this file
+          meshPaths.putAll(temphandler.getMeshPaths());
+          Map<INode, INode> copies = new IdentityHashMap<INode, INode>();
+          INode root = tempsg.getRoot().copy(copies);
+          //rename all the copies of the nodes in tempsg to prepend with the name of the group node
           Map<String, INode> nodes = tempsg.getNodes();
           for (Map.Entry<String, INode> s : nodes.entrySet()) {
-            s.getValue().setName(name + "-" + s.getValue().getName());
-            scenegraph.addNode(s.getValue().getName(), s.getValue());
+            INode copy = copies.get(s.getValue());
+            copy.setName(name + "-" + s.getValue().getName());
+            scenegraph.addNode(copy.getName(), copy);
           }
 
-          node.addChild(tempsg.getRoot());
+          node.addChild(root);
         } else {
           node = new sgraph.GroupNode(scenegraph, name);
         }
@@ -204,10 +328,8 @@ class MyHandler<K extends IVertexData> extends DefaultHandler {
           }
         }
         if ((name.length() > 0) && (path.length() > 0)) {
-          util.PolygonMesh<K> mesh = null;
-          mesh = util.ObjImporter.importFile((VertexProducer<K>) vProducer, getClass()
-              .getClassLoader().getResourceAsStream(path), false);
-          scenegraph.addPolygonMesh(name, mesh);
+          //only remember the mesh, it is imported when the whole file has been parsed
+          meshPaths.put(name, path);
         }
 
       }
@@ -1,25 +1,38 @@
 package sgraph;
 
-import java.awt.Color;
-import java.awt.image.BufferedImage;
-
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 import java.util.TreeMap;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.joml.Matrix4f;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 
+import rayTracer.AsyncFrameSink;
+import rayTracer.FrameBuffer;
+import rayTracer.FrameFormat;
+import rayTracer.HitBuffer;
 import rayTracer.HitRecord;
+import rayTracer.IFrameSink;
+import rayTracer.RayTraceSettings;
+import rayTracer.RayTraceStats;
+import rayTracer.ScanlineWriter;
 import rayTracer.ThreeDRay;
 
 import util.IVertexData;
@@ -58,6 +71,11 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
 
   protected Map<String, String> textures;
 
+  /**
+   * A map to store the (name,image) pairs of textures whose images have already been decoded
+   */
+  protected Map<String, TextureImage> textureImages;
+
   /**
    * The associated renderer for this scene graph. This must be set before attempting to render the
    * scene graph
@@ -65,10 +83,37 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
   protected IScenegraphRenderer renderer;
 
   /**
-   * The number of recurrence that refraction and reflection should do is limited. This limitation
-   * should be not less than 4, otherwise it will not be effective.
+   * The settings used when ray tracing, such as the number of worker threads
+   */
+  protected RayTraceSettings settings;
+
+  /**
+   * The sink that the images made by rayTrace are written to
+   */
+  protected IFrameSink frameSink;
+
+  /**
+   * The counts of the last ray trace
+   */
+  private volatile RayTraceStats stats;
+
+  /**
+   * The flattened copy of this scene graph used by the last ray trace, along with the camera
+   * transformation it was taken with. It is kept until a node or the camera changes.
+   */
+  private RenderSnapshot snapshot;
+  private Matrix4f snapshotCamera;
+
+  /**
+   * The hit caches of the last frames traced with the hit cache on, by their size, oldest first. A
+   * few sizes are kept, so that each pass of a progressive render finds its own.
    */
-  protected static final int MAX_RECURRENCE_COUNT = 5;
+  private final Map<Long, HitCache> hitCaches;
+  private static final int MAX_HIT_CACHES = 4;
+
+  // the transformations of texture coordinates while shading, which are only read
+  private static final Matrix4f TEXTURE_IDENTITY = new Matrix4f().identity();
+  private static final Matrix4f TEXTURE_FLIP = new Matrix4f().translate(0, 1, 0).scale(1, -1, 1);
 
 
   public Scenegraph() {
@@ -76,6 +121,10 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
     meshes = new HashMap<>();
     nodes = new HashMap<>();
     textures = new HashMap<>();
+    textureImages = new HashMap<>();
+    settings = new RayTraceSettings();
+    frameSink = new AsyncFrameSink();
+    hitCaches = new LinkedHashMap<>();
     this.addTexture("white", "textures/white.png");
   }
 
@@ -84,7 +133,9 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
   }
 
   /**
-   * Start ray trace this scene graph and write an image.
+   * Start ray trace this scene graph and hand the image to the frame sink, to be written to the
+   * next file named imageNNN.png in the working directory. The image is written in the background,
+   * so this returns as soon as it has been traced.
    *
    * @param w the width of the image
    * @param h the height of the image
@@ -93,93 +144,744 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
    */
   @Override
   public void rayTrace(int w, int h, Stack<Matrix4f> modelView, float angleOfView) {
+    FrameBuffer frame = rayTraceFrame(w, h, modelView, angleOfView);
+    if (frame == null) {
+      return;
+    }
+    try {
+      imgIndex++;
+      frameSink.write(frame, String.format("image%03d.png", imgIndex));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      System.out.println("Ray trace interrupted!");
+    }
+  }
 
-    float distance =
-        (h * 0.5f) / (float) Math.tan(Math.toRadians(angleOfView / 2));
-    rayTracer.ThreeDRay[][] rayArray = new ThreeDRay[h][w];
-
-    BufferedImage imageBuffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-    for (int i = 0; i < h; i++) {
-      for (int j = 0; j < w; j++) {
-        // generate rays
-        float x = -w / 2f + j;
-        float y = h / 2f - i;
-        float z = -distance;
-        rayArray[i][j] = new ThreeDRay(0, 0, 0, x, y, z);
-
-        // copy modelView
-        Stack<Matrix4f> mvCopy1 = copyMV(modelView);
-        Stack<Matrix4f> mvCopy2 = copyMV(modelView);
-        // generate hit records
-        List<HitRecord> hitRecords = this.root.rayCast(mvCopy1, rayArray[i][j], this.renderer);
-        // gather lights from nodes. the according matrix4f is light to view
-        Map<Light, Matrix4f> lights = this.root.getLights(mvCopy2);
-
-        // produce color for this pixel
-        Vector3f rgb = this.getRGB(hitRecords, lights, modelView, new Vector4f(0, 0, 0, 1),
-            MAX_RECURRENCE_COUNT);
-        imageBuffer.setRGB(j, i, new Color(rgb.x, rgb.y, rgb.z).getRGB());
+  /**
+   * Ray trace this scene graph into a frame. The image is split into square tiles that are traced
+   * by a pool of worker threads as given by the ray trace settings. Each tile writes only its own
+   * pixels, so the image is the same whatever the number of threads.
+   *
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @return the frame, or null if the ray trace was interrupted
+   */
+  @Override
+  public FrameBuffer rayTraceFrame(int w, int h, Stack<Matrix4f> modelView,
+      float angleOfView) {
+    RayTraceSettings settings = this.settings;
+    ExecutorService workers = createWorkers(settings);
+    try {
+      return rayTraceFrame(w, h, modelView, angleOfView, settings, workers,
+          new RayTraceStats((long) w * h));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      System.out.println("Ray trace interrupted!");
+      return null;
+    } finally {
+      if (workers != null) {
+        workers.shutdownNow();
       }
     }
-    // Write image produced to file.
+  }
+
+  /**
+   * Ray trace this scene graph into a frame, with the given settings instead of the ones of this
+   * scene graph, and on the given worker threads instead of a pool of its own. Tiles are handed to
+   * the workers as the image is traced, and the workers are left running afterwards.
+   *
+   * With the hit cache on in the settings, the hits of the rays of the frame are kept afterwards.
+   * A later frame of the same size is then only shaded again from them, if its camera and geometry
+   * are the same, tracing only the rays whose hits a change of lights or materials makes unknown.
+   * Tracing a frame with the hit cache off drops the kept hits.
+   *
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @param settings the settings of this ray trace. The thread count is not used.
+   * @param workers the worker threads that trace the tiles, or null to trace them on this thread
+   * @param stats the counts that the rays traced are added to as the tiles finish
+   * @return the frame
+   * @throws InterruptedException if the thread is interrupted while tracing
+   */
+  @Override
+  public FrameBuffer rayTraceFrame(int w, int h, Stack<Matrix4f> modelView, float angleOfView,
+      RayTraceSettings settings, Executor workers, RayTraceStats stats)
+      throws InterruptedException {
+    FrameBuffer[] frame = new FrameBuffer[1];
     try {
-      imgIndex++;
-      String filename = String.format("image%03d.png", imgIndex);
-      File output = new File(filename);
-      ImageIO.write(imageBuffer, "png", output);
+      rayTraceBands(w, h, modelView, angleOfView, settings, workers, stats, h,
+          band -> frame[0] = band);
     } catch (IOException e) {
-      e.printStackTrace();
+      throw new RuntimeException("Ray trace failed: " + e.getMessage(), e);
+    }
+    return frame[0];
+  }
+
+  /**
+   * Ray trace this scene graph straight into an image file. The image is traced one row of tiles
+   * at a time, and each row is written while the next one is traced, so only about two rows of
+   * tiles are in memory whatever the size of the image. The image is the same as from {@link
+   * #rayTraceFrame(int, int, Stack, float)}.
+   *
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @param path the path of the file. Its extension gives the format, as for {@link
+   * rayTracer.FrameFormat}
+   * @throws IllegalArgumentException if the extension is not one of the formats
+   * @throws IOException if the file cannot be written
+   */
+  @Override
+  public void rayTraceToFile(int w, int h, Stack<Matrix4f> modelView, float angleOfView,
+      String path) throws IllegalArgumentException, IOException {
+    RayTraceSettings settings = this.settings;
+    // check the format before starting the workers
+    FrameFormat.forPath(path);
+    ExecutorService workers = createWorkers(settings);
+    try {
+      rayTraceToFile(w, h, modelView, angleOfView, path, settings, workers,
+          new RayTraceStats((long) w * h));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      System.out.println("Ray trace interrupted!");
+    } finally {
+      if (workers != null) {
+        workers.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Ray trace this scene graph straight into an image file, with the given settings and on the
+   * given worker threads, as for {@link #rayTraceFrame(int, int, Stack, float, RayTraceSettings,
+   * Executor, RayTraceStats)}. The file is deleted if the ray trace does not finish.
+   *
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @param path the path of the file. Its extension gives the format, as for {@link
+   * rayTracer.FrameFormat}
+   * @param settings the settings of this ray trace. The thread count is not used.
+   * @param workers the worker threads that trace the tiles, or null to trace them on this thread
+   * @param stats the counts that the rays traced are added to as the tiles finish
+   * @throws IllegalArgumentException if the extension is not one of the formats
+   * @throws IOException if the file cannot be written
+   * @throws InterruptedException if the thread is interrupted while tracing
+   */
+  @Override
+  public void rayTraceToFile(int w, int h, Stack<Matrix4f> modelView, float angleOfView,
+      String path, RayTraceSettings settings, Executor workers, RayTraceStats stats)
+      throws IllegalArgumentException, IOException, InterruptedException {
+    ScanlineWriter writer = ScanlineWriter.open(path, w, h);
+    ExecutorService writerThread = Executors.newSingleThreadExecutor();
+    boolean finished = false;
+    try {
+      List<Future<Void>> written = new ArrayList<>();
+      rayTraceBands(w, h, modelView, angleOfView, settings, workers, stats,
+          settings.getTileSize(), band -> {
+        // wait for the last row of tiles, so that no more than two are kept
+        waitFor(written);
+        written.add(writerThread.submit(() -> {
+          writer.writeRows(band);
+          return null;
+        }));
+      });
+      waitFor(written);
+      writer.close();
+      finished = true;
+    } finally {
+      writerThread.shutdownNow();
+      if (!finished) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          // the file is incomplete anyway
+        }
+        new File(path).delete();
+      }
+    }
+  }
+
+  /**
+   * Make the pool of worker threads for a ray trace, as given by its settings
+   *
+   * @param settings the settings of the ray trace
+   * @return the pool, or null if the ray trace should be done on the calling thread
+   */
+  private static ExecutorService createWorkers(RayTraceSettings settings) {
+    return settings.getThreadCount() == 1
+        ? null : Executors.newFixedThreadPool(settings.getThreadCount());
+  }
+
+  /**
+   * Wait for the rows that are being written, and remove them from the list
+   */
+  private static void waitFor(List<Future<Void>> written)
+      throws InterruptedException, IOException {
+    try {
+      for (Future<Void> rows : written) {
+        rows.get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException("Writing the image failed: " + e.getCause().getMessage(),
+          e.getCause());
+    }
+    written.clear();
+  }
+
+  /**
+   * A receiver of the bands of an image as they are traced
+   */
+  private interface BandConsumer {
+
+    void accept(FrameBuffer band) throws InterruptedException, IOException;
+  }
+
+  /**
+   * Get the flattened copy of this scene graph for the given camera. The copy of the last ray trace
+   * is reused unless a node has changed since then or the camera is different.
+   *
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @return the flattened copy of this scene graph
+   */
+  private synchronized RenderSnapshot getSnapshot(Stack<Matrix4f> modelView) {
+    if (snapshot == null || !snapshotCamera.equals(modelView.peek())) {
+      snapshot = new RenderSnapshot(root, modelView, renderer);
+      snapshotCamera = new Matrix4f(modelView.peek());
+    }
+    return snapshot;
+  }
+
+  @Override
+  public synchronized void invalidateSnapshot() {
+    snapshot = null;
+  }
+
+  /**
+   * Take the hit cache kept for frames of the given size, or make an empty one. The cache is
+   * removed until it is stored again, so that no two frames fill it at once.
+   */
+  private synchronized HitCache takeHitCache(int w, int h) {
+    HitCache cache = hitCaches.remove(((long) w << 32) | h);
+    return cache != null ? cache : new HitCache(w, h);
+  }
+
+  /**
+   * Keep a filled hit cache, dropping the oldest one if too many are kept
+   */
+  private synchronized void storeHitCache(HitCache cache) {
+    hitCaches.put(((long) cache.width << 32) | cache.height, cache);
+    Iterator<Long> oldest = hitCaches.keySet().iterator();
+    while (hitCaches.size() > MAX_HIT_CACHES) {
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  private synchronized void clearHitCaches() {
+    hitCaches.clear();
+  }
+
+  /**
+   * Resolve all lights in this scene graph to the view coordinate system. Lights are resolved for
+   * every image rather than kept with the snapshot, because a light can be changed without the
+   * scene graph knowing.
+   *
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @return the lights in the view coordinate system
+   */
+  private LightInstance[] resolveLights(Stack<Matrix4f> modelView) {
+    Map<Light, Matrix4f> lights = this.root.getLights(copyMV(modelView));
+    LightInstance[] result = new LightInstance[lights.size()];
+    int i = 0;
+    for (Map.Entry<Light, Matrix4f> entry : lights.entrySet()) {
+      result[i++] = new LightInstance(entry.getKey(), entry.getValue());
     }
+    return result;
+  }
+
+  /**
+   * Ray trace this scene graph in bands of rows, from the top. Each band is split into square
+   * tiles that are traced by a pool of worker threads as given by the ray trace settings, and is
+   * handed to the consumer once all of its tiles are done. Rays are made as each pixel is traced,
+   * so the memory used grows with the band and not with the image.
+   *
+   * With anti-aliasing, every band is traced in two passes. The first traces one ray per pixel for
+   * the band and the rows just above and below it, so that the pixels at its edges can be compared
+   * with their neighbors. The second refines the pixels that differ from a neighbor.
+   *
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param modelView the stack of modelView storing a transformation from world to camera
+   * @param angleOfView angle of view from bottom to top
+   * @param settings the settings of this ray trace
+   * @param pool the worker threads that trace the tiles, or null to trace them on this thread
+   * @param stats the counts that the rays traced are added to
+   * @param bandHeight the number of rows in a band, all of the image to trace it at once
+   * @param consumer the receiver of the bands
+   * @throws InterruptedException if the thread is interrupted while tracing
+   * @throws IOException if the consumer cannot write a band
+   */
+  private void rayTraceBands(int w, int h, Stack<Matrix4f> modelView, float angleOfView,
+      RayTraceSettings settings, Executor pool, RayTraceStats stats, int bandHeight,
+      BandConsumer consumer) throws InterruptedException, IOException {
+    float distance =
+        (h * 0.5f) / (float) Math.tan(Math.toRadians(angleOfView / 2));
+    // flatten the scene graph once for all rays of this image
+    RenderSnapshot snapshot = getSnapshot(modelView);
+    // resolve the lights once for all rays of this image
+    LightInstance[] lights = resolveLights(modelView);
+    // keep the hits of a whole frame, or shade them again where they can be reused
+    HitCache cache = null;
+    if (bandHeight >= h && settings.isHitCache()) {
+      int tileSize = settings.getTileSize();
+      cache = takeHitCache(w, h);
+      cache.prepare(modelView.peek(), angleOfView, settings, snapshot, lights,
+          ((h + tileSize - 1) / tileSize) * ((w + tileSize - 1) / tileSize));
+    } else if (bandHeight >= h) {
+      clearHitCaches();
+    }
+    HitCache hitCache = cache;
+
+    try {
+      for (int bandTop = 0; bandTop < h; bandTop += bandHeight) {
+        int bandBottom = Math.min(bandTop + bandHeight, h);
+        int firstRow = bandTop;
+        FrameBuffer band = new FrameBuffer(w, bandBottom - bandTop);
+
+        if (settings.getAntiAliasing() == 1) {
+          traceTiles(pool, settings.getTileSize(), bandTop, bandBottom, w,
+              (top, left, bottom, right) -> rayTraceTile(top, left, bottom, right, w, h,
+                  distance, lights, snapshot, settings, band, firstRow, stats, hitCache));
+        } else {
+          SampleGrid samples = new SampleGrid(w, Math.max(0, bandTop - 1),
+              Math.min(h, bandBottom + 1));
+          traceTiles(pool, settings.getTileSize(), samples.top, samples.bottom, w,
+              (top, left, bottom, right) -> sampleTile(top, left, bottom, right, w, h,
+                  distance, lights, snapshot, samples, settings, stats, hitCache));
+          traceTiles(pool, settings.getTileSize(), bandTop, bandBottom, w,
+              (top, left, bottom, right) -> refineTile(top, left, bottom, right, w, h,
+                  distance, lights, snapshot, samples, settings, band, firstRow, stats,
+                  hitCache));
+        }
+        consumer.accept(band);
+      }
+    } catch (InterruptedException | IOException e) {
+      throw e;
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Ray trace failed: " + e.getCause().getMessage(), e.getCause());
+    } catch (Exception e) {
+      throw new RuntimeException("Ray trace failed: " + e.getMessage(), e);
+    }
+    if (cache != null) {
+      cache.finish(modelView.peek(), angleOfView, settings, snapshot, lights);
+      storeHitCache(cache);
+    }
+    this.stats = stats;
+  }
+
+  /**
+   * A task that traces one tile of the image
+   */
+  private interface TileTracer {
+
+    void trace(int top, int left, int bottom, int right);
+  }
+
+  /**
+   * Split rows of the image into square tiles, and trace them all on the pool, or on this thread
+   * if there is no pool.
+   *
+   * @param pool the worker threads, or null
+   * @param tileSize the width and height of a tile
+   * @param top the first row
+   * @param bottom the row after the last row
+   * @param w the width of the image
+   * @param tracer the task that traces a tile
+   */
+  private static void traceTiles(Executor pool, int tileSize, int top, int bottom, int w,
+      TileTracer tracer) throws Exception {
+    List<Callable<Void>> tiles = new ArrayList<>();
+    for (int tileTop = top; tileTop < bottom; tileTop += tileSize) {
+      for (int left = 0; left < w; left += tileSize) {
+        int first = tileTop;
+        int tileLeft = left;
+        int tileBottom = Math.min(tileTop + tileSize, bottom);
+        int tileRight = Math.min(left + tileSize, w);
+        tiles.add(() -> {
+          tracer.trace(first, tileLeft, tileBottom, tileRight);
+          return null;
+        });
+      }
+    }
+
+    if (pool == null) {
+      for (Callable<Void> tile : tiles) {
+        // stop between tiles if interrupted, as the pool does
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        tile.call();
+      }
+    } else {
+      List<FutureTask<Void>> futures = new ArrayList<>(tiles.size());
+      boolean finished = false;
+      try {
+        for (Callable<Void> tile : tiles) {
+          FutureTask<Void> future = new FutureTask<>(tile);
+          futures.add(future);
+          pool.execute(future);
+        }
+        for (Future<Void> future : futures) {
+          future.get();
+        }
+        finished = true;
+      } finally {
+        if (!finished) {
+          // drop the tiles that have not started, and interrupt the ones that have
+          for (Future<Void> future : futures) {
+            future.cancel(true);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The color and the surface that the single ray of each pixel hit, for rows of the image. The
+   * surface is told apart by its material and texture, and is null where the ray hit nothing.
+   */
+  private static class SampleGrid {
+
+    final int width;
+    final int top;
+    final int bottom;
+    final float[] colors;
+    final Material[] materials;
+    final TextureImage[] textures;
+
+    SampleGrid(int width, int top, int bottom) {
+      this.width = width;
+      this.top = top;
+      this.bottom = bottom;
+      colors = new float[3 * width * (bottom - top)];
+      materials = new Material[width * (bottom - top)];
+      textures = new TextureImage[width * (bottom - top)];
+    }
+
+    /**
+     * Check if two pixels differ by more than the threshold in any channel, or show different
+     * surfaces
+     */
+    boolean differ(int p, int q, float threshold) {
+      return materials[p] != materials[q] || textures[p] != textures[q]
+          || Math.abs(colors[3 * p] - colors[3 * q]) > threshold
+          || Math.abs(colors[3 * p + 1] - colors[3 * q + 1]) > threshold
+          || Math.abs(colors[3 * p + 2] - colors[3 * q + 2]) > threshold;
+    }
+  }
+
+  /**
+   * Ray trace all pixels in a tile of the image. Rows from tileTop (inclusive) to tileBottom
+   * (exclusive) and columns from tileLeft (inclusive) to tileRight (exclusive) are traced. The ray
+   * of each pixel is made as it is traced, in one ray reused for the whole tile.
+   *
+   * @param tileTop the first row of the tile
+   * @param tileLeft the first column of the tile
+   * @param tileBottom the row after the last row of the tile
+   * @param tileRight the column after the last column of the tile
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param distance the distance from the camera to the image plane
+   * @param lights all lights in the scene in the view coordinate system
+   * @param snapshot the flattened scene graph that rays are intersected with
+   * @param settings the settings of this ray trace
+   * @param band the frame that the colors are written to
+   * @param firstRow the row of the image that is the first row of the band
+   * @param stats the counts that the rays traced are added to
+   * @param cache the hit cache of this frame, or null if it has none
+   */
+  private void rayTraceTile(int tileTop, int tileLeft, int tileBottom, int tileRight, int w, int h,
+      float distance, LightInstance[] lights, RenderSnapshot snapshot, RayTraceSettings settings,
+      FrameBuffer band, int firstRow, RayTraceStats stats, HitCache cache) {
+    HitBuffer[] hitBuffers = createHitBuffers(settings.getMaxDepth());
+    ThreeDRay ray = new ThreeDRay();
+    Vector3f rgb = new Vector3f();
+    HitCache.PathCursor cursor = startTile(cache, HitCache.CENTER_LAYER, tileTop, tileLeft, w,
+        settings);
+    for (int i = tileTop; i < tileBottom; i++) {
+      for (int j = tileLeft; j < tileRight; j++) {
+        if (cursor != null) {
+          cursor.startPixel(i * w + j);
+        }
+        tracePixel(-w / 2f + j, h / 2f - i, distance, 1, ray, lights, snapshot, settings,
+            hitBuffers, cursor, rgb);
+        if (cursor != null) {
+          cursor.endPixel();
+        }
+        band.setColor(j, i - firstRow, rgb);
+      }
+    }
+    long pixels = (long) (tileBottom - tileTop) * (tileRight - tileLeft);
+    stats.add(pixels, 0, pixels);
+  }
+
+  /**
+   * Trace one ray per pixel of a tile, and keep its color and the surface it hit in a sample grid
+   *
+   * @see #rayTraceTile
+   */
+  private void sampleTile(int tileTop, int tileLeft, int tileBottom, int tileRight, int w, int h,
+      float distance, LightInstance[] lights, RenderSnapshot snapshot, SampleGrid samples,
+      RayTraceSettings settings, RayTraceStats stats, HitCache cache) {
+    HitBuffer[] hitBuffers = createHitBuffers(settings.getMaxDepth());
+    ThreeDRay ray = new ThreeDRay();
+    Vector3f rgb = new Vector3f();
+    HitCache.PathCursor cursor = startTile(cache, HitCache.CENTER_LAYER, tileTop, tileLeft, w,
+        settings);
+    for (int i = tileTop; i < tileBottom; i++) {
+      for (int j = tileLeft; j < tileRight; j++) {
+        if (cursor != null) {
+          cursor.startPixel(i * w + j);
+        }
+        HitRecord hit = tracePixel(-w / 2f + j, h / 2f - i, distance, 1, ray, lights, snapshot,
+            settings, hitBuffers, cursor, rgb);
+        if (cursor != null) {
+          cursor.endPixel();
+        }
+        int p = (i - samples.top) * w + j;
+        samples.colors[3 * p] = rgb.x;
+        samples.colors[3 * p + 1] = rgb.y;
+        samples.colors[3 * p + 2] = rgb.z;
+        if (hit != null) {
+          samples.materials[p] = hit.getMaterial();
+          samples.textures[p] = hit.getTexture();
+        }
+      }
+    }
+    stats.add((long) (tileBottom - tileTop) * (tileRight - tileLeft), 0, 0);
+  }
+
+  /**
+   * Get the cursor that a tile reads and keeps its hits through
+   *
+   * @param cache the hit cache of the frame, or null if it has none
+   * @param layer the layer of the hits in the cache
+   * @return the cursor, or null if the frame has no hit cache
+   */
+  private static HitCache.PathCursor startTile(HitCache cache, int layer, int tileTop,
+      int tileLeft, int w, RayTraceSettings settings) {
+    if (cache == null) {
+      return null;
+    }
+    int tileSize = settings.getTileSize();
+    int columns = (w + tileSize - 1) / tileSize;
+    return cache.startTile(layer, tileTop / tileSize * columns + tileLeft / tileSize,
+        settings.getMaxDepth());
+  }
+
+  /**
+   * Write the pixels of a tile from a sample grid, tracing again the pixels that differ from one
+   * of their four neighbors. A refined pixel is the average of an n by n grid of rays, each
+   * jittered within its cell of the pixel. The jitter depends only on the pixel, so the image is
+   * the same whatever the number of threads.
+   *
+   * @see #rayTraceTile
+   */
+  private void refineTile(int tileTop, int tileLeft, int tileBottom, int tileRight, int w, int h,
+      float distance, LightInstance[] lights, RenderSnapshot snapshot, SampleGrid samples,
+      RayTraceSettings settings, FrameBuffer band, int firstRow, RayTraceStats stats,
+      HitCache cache) {
+    HitBuffer[] hitBuffers = createHitBuffers(settings.getMaxDepth());
+    ThreeDRay ray = new ThreeDRay();
+    Vector3f rgb = new Vector3f();
+    Vector3f sum = new Vector3f();
+    HitCache.PathCursor cursor = startTile(cache, HitCache.REFINE_LAYER, tileTop, tileLeft, w,
+        settings);
+    int n = settings.getAntiAliasing();
+    float threshold = settings.getAntiAliasThreshold();
+    long refined = 0;
+    for (int i = tileTop; i < tileBottom; i++) {
+      for (int j = tileLeft; j < tileRight; j++) {
+        int p = (i - samples.top) * w + j;
+        boolean edge = (j > 0 && samples.differ(p, p - 1, threshold))
+            || (j < w - 1 && samples.differ(p, p + 1, threshold))
+            || (i > samples.top && samples.differ(p, p - w, threshold))
+            || (i < samples.bottom - 1 && samples.differ(p, p + w, threshold));
+        if (!edge) {
+          rgb.set(samples.colors[3 * p], samples.colors[3 * p + 1], samples.colors[3 * p + 2]);
+          if (cursor != null) {
+            cursor.skipPixel(i * w + j);
+          }
+        } else {
+          if (cursor != null) {
+            cursor.startPixel(i * w + j);
+          }
+          sum.set(0, 0, 0);
+          for (int a = 0; a < n; a++) {
+            for (int b = 0; b < n; b++) {
+              int cell = a * n + b;
+              float dx = (b + random(i, j, 2 * cell)) / n - 0.5f;
+              float dy = (a + random(i, j, 2 * cell + 1)) / n - 0.5f;
+              tracePixel(-w / 2f + j + dx, h / 2f - i - dy, distance, 1f / n, ray, lights,
+                  snapshot, settings, hitBuffers, cursor, rgb);
+              sum.add(rgb);
+            }
+          }
+          if (cursor != null) {
+            cursor.endPixel();
+          }
+          rgb.set(sum).div(n * n);
+          refined++;
+        }
+        band.setColor(j, i - firstRow, rgb);
+      }
+    }
+    stats.add(refined * n * n, refined,
+        (long) (tileBottom - tileTop) * (tileRight - tileLeft));
+  }
+
+  /**
+   * Trace the primary ray through a point of the image plane.
+   *
+   * @param x the x coordinate of the point, from the center of the image
+   * @param y the y coordinate of the point, from the center of the image
+   * @param distance the distance from the camera to the image plane
+   * @param footprint the width of the area of the image plane the ray stands for, in pixels
+   * @param ray the ray to set
+   * @param lights all lights in the scene in the view coordinate system
+   * @param snapshot the flattened scene graph that rays are intersected with
+   * @param settings the settings of this ray trace
+   * @param hitBuffers the hit buffers of this thread
+   * @param cursor the cursor that the hits of the pixel are read and kept through, or null to
+   * trace them
+   * @param rgb where the color is stored
+   * @return the closest hit of the ray, or null if it hit nothing
+   */
+  private HitRecord tracePixel(float x, float y, float distance, float footprint, ThreeDRay ray,
+      LightInstance[] lights, RenderSnapshot snapshot, RayTraceSettings settings,
+      HitBuffer[] hitBuffers, HitCache.PathCursor cursor, Vector3f rgb) {
+    float z = -distance;
+    ray.set(0, 0, 0, x, y, z);
+
+    // find the closest hit
+    int maxDepth = settings.getMaxDepth();
+    HitRecord closestHit = cursor == null
+        ? snapshot.closestHit(ray, 0.01f, Float.MAX_VALUE, hitBuffers[maxDepth])
+        : cursor.next(snapshot, ray, hitBuffers[maxDepth], maxDepth);
+    // produce color for this pixel. the ray cone starts at the camera and covers the footprint on
+    // the image plane, which looks smaller the further it is from the center
+    float length = (float) Math.sqrt(x * x + y * y + z * z);
+    float coneSpread = footprint * (float) Math.sqrt(distance / (length * length * length));
+    Vector4f origin = hitBuffers[maxDepth].getShadeVector4(9).set(0, 0, 0, 1);
+    rgb.set(this.getRGB(closestHit, lights, snapshot, origin, 0, coneSpread, maxDepth, 1,
+        settings, hitBuffers, cursor));
+    return closestHit;
+  }
+
+  /**
+   * Get a number from 0 (inclusive) to 1 (exclusive) that looks random, but depends only on three
+   * integers, such as a pixel and the index of a sample in it
+   */
+  private static float random(int i, int j, int sample) {
+    int hash = i * 0x9e3779b1 ^ j * 0x85ebca77 ^ sample * 0xc2b2ae3d;
+    hash ^= hash >>> 16;
+    hash *= 0x7feb352d;
+    hash ^= hash >>> 15;
+    hash *= 0x846ca68b;
+    hash ^= hash >>> 16;
+    return (hash >>> 8) / (float) (1 << 24);
+  }
+
+  /**
+   * Create the hit buffers used by one thread while tracing. Rays cast at recursion bound b are
+   * stored in buffer b, so the closest hit of a ray stays valid while the reflected and refracted
+   * rays are traced. Primary rays are at the maximum depth, and the last buffer is used for shadow
+   * rays. The shade vectors of buffer b hold the intermediate values of shading at bound b, so a
+   * pixel is shaded without allocating.
+   *
+   * @param maxDepth the maximum depth of reflected and refracted rays
+   * @return the hit buffers
+   */
+  private HitBuffer[] createHitBuffers(int maxDepth) {
+    HitBuffer[] hitBuffers = new HitBuffer[maxDepth + 2];
+    for (int i = 0; i < hitBuffers.length; i++) {
+      hitBuffers[i] = new HitBuffer();
+    }
+    return hitBuffers;
   }
 
   /**
    * This method determine the color that a point will get from refraction.
    *
    * @param hitRecord the closest hit on the refracted ray
-   * @param lights all the lights in the scene with their transformations
-   * @param modelView the stack of modelView from the world to the start point of the ray
+   * @param lights all the lights in the scene in the view coordinate system
+   * @param snapshot the flattened scene graph that rays are intersected with
    * @param bound the current recurrence bound
    * @param fromPoint the start point of the ray
+   * @param coneWidth the width of the ray cone at the hit
+   * @param coneSpread how much wider the ray cone gets per unit of length
+   * @param weight the part of the color of the pixel that the ray gives
+   * @param settings the settings of this ray trace
+   * @param hitBuffers the hit buffers of this thread
+   * @param cursor the cursor that the hits are read and kept through, or null to trace them
    * @return the color that a point will get from refraction
    */
-  private Vector3f refraction(HitRecord hitRecord, Map<Light, Matrix4f> lights,
-      Stack<Matrix4f> modelView, int bound, Vector4f fromPoint) {
+  private Vector3f refraction(HitRecord hitRecord, LightInstance[] lights,
+      RenderSnapshot snapshot, int bound, Vector4f fromPoint, float coneWidth, float coneSpread,
+      float weight, RayTraceSettings settings, HitBuffer[] hitBuffers, HitCache.PathCursor cursor) {
     if (bound <= 0) {
-      return shade(hitRecord, lights, modelView);
+      return shade(hitRecord, lights, snapshot, textureFootprint(hitRecord, fromPoint, coneWidth),
+          bound, hitBuffers, cursor);
     }
-    Stack<Matrix4f> mvCopy = copyMV(modelView);
 
-    // Construct the refraction ray
-    Vector4f intersection = hitRecord.getIntersection();
-    Vector4f normal = hitRecord.getNormal();
+    // Construct the refraction ray. The start point stays in the scratch of this bound while the
+    // refracted ray is shaded.
+    HitBuffer scratch = hitBuffers[bound];
+    Vector4f intersection = scratch.getShadeVector4(3).set(hitRecord.getIntersection());
+    Vector4f normal = scratch.getShadeVector4(4).set(hitRecord.getNormal());
     if (hitRecord.getFlipNormal()) {
-      normal = normal.mul(-1);
+      normal.mul(-1);
     }
 
-    Vector4f inDir = new Vector4f(intersection).sub(fromPoint);
-    inDir = inDir.normalize();
-    float cosIn = new Vector4f(inDir).dot(normal) * -1f;
+    Vector4f inDir = scratch.getShadeVector4(5).set(intersection).sub(fromPoint);
+    inDir.normalize();
+    float cosIn = inDir.dot(normal) * -1f;
     float sinIn = (float) Math.sqrt(1 - cosIn * cosIn);
     float sinOut = sinIn * hitRecord.getFromRefraction() / hitRecord.getToRefraction();
     if (sinOut > 1f) {
-      return reflect(hitRecord, lights, modelView, bound, fromPoint);
+      return reflect(hitRecord, lights, snapshot, bound, fromPoint, coneWidth, coneSpread,
+          weight, settings, hitBuffers, cursor);
     } else {
       float cosOut = (float) Math.sqrt(1 - sinOut * sinOut);
       Vector4f refraction;
       if (sinIn < 0.001f && sinIn > -0.001f) {
-        refraction = new Vector4f(normal).mul(-1);
+        refraction = scratch.getShadeVector4(6).set(normal).mul(-1);
       } else {
-        Vector4f b = new Vector4f(normal).mul(-1).mul(cosOut);
-        Vector4f a = new Vector4f(inDir).add(new Vector4f(normal).mul(cosIn)).mul(sinOut / sinIn);
+        Vector4f b = scratch.getShadeVector4(7).set(normal).mul(-1).mul(cosOut);
+        Vector4f a = scratch.getShadeVector4(6).set(inDir)
+            .add(scratch.getShadeVector4(8).set(normal).mul(cosIn)).mul(sinOut / sinIn);
         refraction = a.add(b);
       }
       // refraction
-      intersection = intersection.add(new Vector4f(normal).mul(-.001f));
-      ThreeDRay refractionRay = new ThreeDRay(intersection.x, intersection.y, intersection.z,
-          refraction.x, refraction.y, refraction.z);
-      List<HitRecord> refractionRecords = this.root.rayCast(mvCopy, refractionRay, this.renderer);
-      return getRGB(refractionRecords, lights, modelView, intersection,
-          bound - 1);
+      intersection.add(scratch.getShadeVector4(8).set(normal).mul(-.001f));
+      HitBuffer refractionRecords = hitBuffers[bound - 1];
+      ThreeDRay refractionRay = refractionRecords.getRay().set(intersection.x, intersection.y,
+          intersection.z, refraction.x, refraction.y, refraction.z);
+      HitRecord closestHit = cursor == null
+          ? snapshot.closestHit(refractionRay, 0.01f, Float.MAX_VALUE, refractionRecords)
+          : cursor.next(snapshot, refractionRay, refractionRecords, bound - 1);
+      return getRGB(closestHit, lights, snapshot, intersection, coneWidth, coneSpread,
+          bound - 1, weight, settings, hitBuffers, cursor);
     }
   }
 
@@ -187,34 +889,42 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
    * This method determine the color that a point will get from reflection.
    *
    * @param hitRecord the closest hit on the refracted ray
-   * @param lights all the lights in the scene with their transformations
-   * @param modelView the stack of modelView from the world to the start point of the ray
+   * @param lights all the lights in the scene in the view coordinate system
+   * @param snapshot the flattened scene graph that rays are intersected with
    * @param bound the current recurrence bound
    * @param fromPoint the start point of the ray
+   * @param coneWidth the width of the ray cone at the hit
+   * @param coneSpread how much wider the ray cone gets per unit of length
+   * @param weight the part of the color of the pixel that the ray gives
+   * @param settings the settings of this ray trace
+   * @param hitBuffers the hit buffers of this thread
+   * @param cursor the cursor that the hits are read and kept through, or null to trace them
    * @return the color that a point will get from reflection
    */
-  private Vector3f reflect(HitRecord hitRecord, Map<Light, Matrix4f> lights,
-      Stack<Matrix4f> modelView, int bound, Vector4f fromPoint) {
+  private Vector3f reflect(HitRecord hitRecord, LightInstance[] lights,
+      RenderSnapshot snapshot, int bound, Vector4f fromPoint, float coneWidth, float coneSpread,
+      float weight, RayTraceSettings settings, HitBuffer[] hitBuffers, HitCache.PathCursor cursor) {
+    HitBuffer scratch = hitBuffers[bound];
     if (bound <= 0) {
-      return new Vector3f(0, 0, 0);
+      return scratch.getShadeVector3(1).set(0, 0, 0);
     }
 
-    Stack<Matrix4f> mvCopy = copyMV(modelView);
-
     // Construct the reflection ray
     Vector4f intersection = hitRecord.getIntersection();
     Vector4f normal = hitRecord.getNormal();
-    Vector4f inDir = new Vector4f(intersection).sub(fromPoint);
-    Vector4f reflectDir =
-        new Vector4f(new Vector3f(inDir.x, inDir.y, inDir.z)
-            .normalize()
-            .reflect(new Vector3f(normal.x, normal.y, normal.z).normalize()), 0);
-    ThreeDRay reflectRay = new ThreeDRay(intersection.x, intersection.y, intersection.z,
-        reflectDir.x, reflectDir.y, reflectDir.z);
-    List<HitRecord> reflectRecords = this.root.rayCast(mvCopy, reflectRay, this.renderer);
-
-    return getRGB(reflectRecords, lights, modelView, hitRecord.getIntersection(),
-        bound - 1);
+    Vector4f inDir = scratch.getShadeVector4(5).set(intersection).sub(fromPoint);
+    Vector3f reflectDir = scratch.getShadeVector3(2).set(inDir.x, inDir.y, inDir.z)
+        .normalize()
+        .reflect(scratch.getShadeVector3(3).set(normal.x, normal.y, normal.z).normalize());
+    HitBuffer reflectRecords = hitBuffers[bound - 1];
+    ThreeDRay reflectRay = reflectRecords.getRay().set(intersection.x, intersection.y,
+        intersection.z, reflectDir.x, reflectDir.y, reflectDir.z);
+    HitRecord closestHit = cursor == null
+        ? snapshot.closestHit(reflectRay, 0.01f, Float.MAX_VALUE, reflectRecords)
+        : cursor.next(snapshot, reflectRay, reflectRecords, bound - 1);
+
+    return getRGB(closestHit, lights, snapshot, hitRecord.getIntersection(), coneWidth,
+        coneSpread, bound - 1, weight, settings, hitBuffers, cursor);
   }
 
   /**
@@ -222,239 +932,275 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
    * supported in this shader.
    *
    * @param hitRecord the closest hit on the ray
-   * @param lights all lights in this scene
-   * @return the color of this pixel
+   * @param lights all lights in this scene in the view coordinate system
+   * @param snapshot the flattened scene graph that shadow rays are intersected with
+   * @param footprint the width of the area of the texture seen through this pixel, in texture
+   * coordinates
+   * @param bound the recurrence bound of the hit, whose hit buffer holds the intermediate values
+   * @param hitBuffers the hit buffers of this thread
+   * @param cursor the cursor that the hit was read through, which keeps its shadows, or null to
+   * trace the shadow rays
+   * @return the color of this pixel, which is reused once a hit at this bound is shaded again
    */
-  private Vector3f shade(HitRecord hitRecord, Map<Light, Matrix4f> lights,
-      Stack<Matrix4f> modelView) {
+  private Vector3f shade(HitRecord hitRecord, LightInstance[] lights,
+      RenderSnapshot snapshot, float footprint, int bound, HitBuffer[] hitBuffers,
+      HitCache.PathCursor cursor) {
     // data type adapting
+    HitBuffer scratch = hitBuffers[bound];
     Material material = hitRecord.getMaterial();
     TextureImage textureImage = hitRecord.getTexture();
     Vector4f position = hitRecord.getIntersection();
     Vector4f normal = hitRecord.getNormal();
     Vector2f texCoord = hitRecord.getTextureCoordinate();
-    Vector3f materialAmbient = new Vector3f(
-        material.getAmbient().x,
-        material.getAmbient().y,
-        material.getAmbient().z);
-    Vector3f materialDiffuse = new Vector3f(
-        material.getDiffuse().x,
-        material.getDiffuse().y,
-        material.getDiffuse().z);
-    Vector3f materialSpecular = new Vector3f(
-        material.getSpecular().x,
-        material.getSpecular().y,
-        material.getSpecular().z);
+    Vector4f materialAmbient = material.getAmbient();
+    Vector4f materialDiffuse = material.getDiffuse();
+    Vector4f materialSpecular = material.getSpecular();
     float materialShininess = material.getShininess();
 
     // pass correct texture coordinates to fragment shader
-    Matrix4f textureTrans = new Matrix4f().identity();
-    if (textureImage.getTexture().getMustFlipVertically()) {
-      textureTrans = new Matrix4f().translate(0, 1, 0).scale(1, -1, 1);
+    Matrix4f textureTrans = TEXTURE_IDENTITY;
+    if ((textureImage.getTexture() == null) || textureImage.getTexture().getMustFlipVertically()) {
+      textureTrans = TEXTURE_FLIP;
     }
     // vertex shader jobs
-    Vector4f newTexCoord = textureTrans.transform(new Vector4f(texCoord.x, texCoord.y, 0, 1));
+    Vector4f newTexCoord = textureTrans.transform(
+        scratch.getShadeVector4(2).set(texCoord.x, texCoord.y, 0, 1));
 
     // fragment shader jobs
-    Vector3f lightVec, viewVec, reflectVec, normalLightDirect;
-    Vector3f normalView;
-    Vector3f ambient, diffuse, specular;
+    Vector3f lightVec, normalLightDirect;
+    Vector3f normalView = scratch.getShadeVector3(3);
+    Vector3f viewVec = scratch.getShadeVector3(4);
+    Vector3f reflectVec = scratch.getShadeVector3(5);
+    Vector3f ambient = scratch.getShadeVector3(6);
+    Vector3f diffuse = scratch.getShadeVector3(7);
+    Vector3f specular = scratch.getShadeVector3(8);
     float nDotL, rDotV, dDotMinusL;
-    Vector4f color = new Vector4f(materialAmbient.x, materialAmbient.y, materialAmbient.z, 1);
-
-    for (Light light : lights.keySet()) {
-      float lightIndex = canSeeLight(hitRecord, light, new Matrix4f(lights.get(light)), modelView);
+    Vector4f color = scratch.getShadeVector4(0)
+        .set(materialAmbient.x, materialAmbient.y, materialAmbient.z, 1);
+
+    for (int k = 0; k < lights.length; k++) {
+      LightInstance light = lights[k];
+      float lightIndex = cursor != null ? cursor.getShadow(hitRecord, k) : -1;
+      if (lightIndex < 0) {
+        lightIndex = canSeeLight(hitRecord, light, snapshot, hitBuffers[hitBuffers.length - 1]);
+        if (cursor != null) {
+          cursor.setShadow(hitRecord, k, lightIndex);
+        }
+      }
       if (lightIndex > 0) {
-        Vector4f lightPosition = lights.get(light).transform(new Vector4f(light.getPosition()));
-        Vector4f lightDirection = lights.get(light)
-            .transform(new Vector4f(light.getSpotDirection()));
+        Vector4f lightPosition = light.getPosition();
 
-        if (light.getPosition().w != 0) {
-          lightVec = new Vector3f(
+        if (!light.isDirectional()) {
+          lightVec = scratch.getShadeVector3(2).set(
               lightPosition.x - position.x,
               lightPosition.y - position.y,
               lightPosition.z - position.z)
               .normalize();
-          normalLightDirect = new Vector3f(
-              lightDirection.x,
-              lightDirection.y,
-              lightDirection.z)
-              .normalize();
         } else {
-          lightVec = new Vector3f(
-              -lightPosition.x,
-              -lightPosition.y,
-              -lightPosition.z)
-              .normalize();
-          normalLightDirect = new Vector3f(
-              lightPosition.x,
-              lightPosition.y,
-              lightPosition.z)
-              .normalize();
+          lightVec = light.getDirectionToLight();
         }
+        normalLightDirect = light.getNormalSpotDirection();
 
-        Vector3f tNormal = new Vector3f(normal.x, normal.y, normal.z);
-        normalView = new Vector3f(tNormal).normalize();
+        normalView.set(normal.x, normal.y, normal.z).normalize();
         nDotL = normalView.dot(lightVec);
 
-        viewVec = new Vector3f(-position.x, -position.y, -position.z);
-        viewVec = viewVec.normalize();
+        viewVec.set(-position.x, -position.y, -position.z).normalize();
 
-        reflectVec = new Vector3f(-lightVec.x, -lightVec.y, -lightVec.z).reflect(normalView);
-        reflectVec = reflectVec.normalize();
+        reflectVec.set(-lightVec.x, -lightVec.y, -lightVec.z).reflect(normalView).normalize();
 
         rDotV = Math.max(reflectVec.dot(viewVec), 0);
 
-        ambient = new Vector3f(materialAmbient).mul(light.getAmbient());
-        diffuse = new Vector3f(materialDiffuse).mul(light.getDiffuse()).mul(Math.max(nDotL, 0));
+        ambient.set(materialAmbient.x, materialAmbient.y, materialAmbient.z)
+            .mul(light.getAmbient());
+        diffuse.set(materialDiffuse.x, materialDiffuse.y, materialDiffuse.z)
+            .mul(light.getDiffuse()).mul(Math.max(nDotL, 0));
         if (nDotL > 0) {
-          specular = new Vector3f(materialSpecular).mul(light.getSpecular())
+          specular.set(materialSpecular.x, materialSpecular.y, materialSpecular.z)
+              .mul(light.getSpecular())
               .mul((float) Math.pow(rDotV, materialShininess));
         } else {
-          specular = new Vector3f(0, 0, 0);
+          specular.set(0, 0, 0);
         }
 
-        dDotMinusL = new Vector3f(
+        dDotMinusL = scratch.getShadeVector3(9).set(
             -normalLightDirect.x,
             -normalLightDirect.y,
             -normalLightDirect.z)
             .dot(lightVec);
 
         if (dDotMinusL > light.getSpotCutoff()) {
-          Vector3f colorTemp = new Vector3f(ambient).add(diffuse).add(specular).mul(lightIndex);
-          color = color.add(new Vector4f(colorTemp.x, colorTemp.y, colorTemp.z, 1));
+          Vector3f colorTemp = ambient.add(diffuse).add(specular).mul(lightIndex);
+          color.add(colorTemp.x, colorTemp.y, colorTemp.z, 1);
         }
       }
     }
 
-    // sample the texture image
-    Vector4f texRGB = textureImage.getColor(newTexCoord.x, newTexCoord.y);
+    // sample the texture image, at the level of detail that fits the footprint
+    Vector4f texRGB = textureImage.getColor(newTexCoord.x, newTexCoord.y, footprint,
+        scratch.getShadeVector4(1));
 
-    color = color.mul(texRGB);
+    color.mul(texRGB);
 
-    return new Vector3f(Math.min(color.x, 1f), Math.min(color.y, 1f), Math.min(color.z, 1f));
+    return scratch.getShadeVector3(1)
+        .set(Math.min(color.x, 1f), Math.min(color.y, 1f), Math.min(color.z, 1f));
   }
 
   /**
-   * Get RGB color for a list of hit records. This method acts as the shader for ray tracing with
+   * Get RGB color for the closest hit of a ray. This method acts as the shader for ray tracing with
    * reflection and refraction features added.
    *
-   * @param records list of hit records that is to be shaded
-   * @param lights all lights in the environment along with their transformations
-   * @param modelView the stack of modelView from the world to the start point of the ray
+   * @param closestHit the closest hit of the ray, or null if it hits nothing
+   * @param lights all lights in the environment in the view coordinate system
+   * @param snapshot the flattened scene graph that rays are intersected with
    * @param fromPoint the start point of the ray in world coordinate system
-   * @param bound the index that
-   */
-  private Vector3f getRGB(List<HitRecord> records, Map<Light, Matrix4f> lights,
-      Stack<Matrix4f> modelView, Vector4f fromPoint, int bound) {
-    Stack<Matrix4f> mvCopy = copyMV(modelView);
-    Vector3f rgb = null;
-    if (records.size() > 0) {
-      HitRecord closestHit = null;
-      float minT = Float.MAX_VALUE;
-      for (HitRecord hit : records) {
-        if (hit.getT() > 0.01 && hit.getT() < minT) {
-          closestHit = hit;
-          minT = hit.getT();
+   * @param coneWidth the width of the ray cone at the start point of the ray
+   * @param coneSpread how much wider the ray cone gets per unit of length
+   * @param bound the number of times the reflected and refracted rays may still be reflected or
+   * refracted
+   * @param weight the part of the color of the pixel that the ray gives, 1 for a primary ray
+   * @param settings the settings of this ray trace
+   * @param hitBuffers the hit buffers of this thread
+   * @param cursor the cursor that the hits are read and kept through, or null to trace them
+   */
+  private Vector3f getRGB(HitRecord closestHit, LightInstance[] lights,
+      RenderSnapshot snapshot, Vector4f fromPoint, float coneWidth, float coneSpread, int bound,
+      float weight, RayTraceSettings settings, HitBuffer[] hitBuffers, HitCache.PathCursor cursor) {
+    Vector3f rgb = hitBuffers[bound].getShadeVector3(0).set(0, 0, 0);
+    if (closestHit != null) {
+      Material mat = closestHit.getMaterial();
+      float hitConeWidth = coneWidth
+          + coneSpread * closestHit.getIntersection().distance(fromPoint);
+      rgb.set(shade(closestHit, lights, snapshot,
+          textureFootprint(closestHit, fromPoint, hitConeWidth), bound, hitBuffers, cursor))
+          .mul(mat.getAbsorption());
+      if (mat.getReflection() > 0) {
+        float scale = survival(weight * mat.getReflection(), closestHit, bound, 0, settings);
+        if (scale > 0) {
+          Vector3f reflectRGB = reflect(closestHit, lights, snapshot, bound,
+              fromPoint, hitConeWidth, coneSpread, weight * mat.getReflection() * scale,
+              settings, hitBuffers, cursor).mul(mat.getReflection() * scale);
+          rgb.add(reflectRGB);
         }
       }
-      if (closestHit != null) {
-        Material mat = closestHit.getMaterial();
-        rgb = shade(closestHit, lights, mvCopy).mul(mat.getAbsorption());
-        if (mat.getReflection() > 0) {
-          Vector3f reflectRGB = reflect(closestHit, lights, modelView, bound,
-              fromPoint).mul(mat.getReflection());
-          rgb = rgb.add(reflectRGB);
-        }
-        float refract = 1 - mat.getAbsorption() - mat.getReflection();
-        if (refract > 0) {
-          Vector3f refractionRGB = refraction(closestHit, lights, modelView, bound,
-              fromPoint).mul(refract);
-          rgb = rgb.add(refractionRGB);
+      float refract = 1 - mat.getAbsorption() - mat.getReflection();
+      if (refract > 0) {
+        float scale = survival(weight * refract, closestHit, bound, 1, settings);
+        if (scale > 0) {
+          Vector3f refractionRGB = refraction(closestHit, lights, snapshot, bound,
+              fromPoint, hitConeWidth, coneSpread, weight * refract * scale, settings,
+              hitBuffers, cursor).mul(refract * scale);
+          rgb.add(refractionRGB);
         }
       }
     }
-    if (rgb == null) {
-      rgb = new Vector3f(0, 0, 0);
+    return rgb.set(Math.min(1f, rgb.x), Math.min(1f, rgb.y), Math.min(1f, rgb.z));
+  }
+
+  /**
+   * Decide whether a reflected or refracted ray is traced, from its weight. A ray that is at least
+   * as heavy as the minimum contribution is always traced. A lighter one is dropped, or with
+   * Russian roulette, traced with a probability of its weight over the minimum. The roll depends
+   * only on the hit and the ray, so the image is the same whatever the number of threads.
+   *
+   * @param weight the part of the color of the pixel that the ray would give
+   * @param hit the hit that the ray starts from
+   * @param bound the recurrence bound at the hit
+   * @param branch 0 for the reflected ray and 1 for the refracted one
+   * @param settings the settings of this ray trace
+   * @return the factor that the color of the ray is scaled by, or 0 if it is not traced
+   */
+  private static float survival(float weight, HitRecord hit, int bound, int branch,
+      RayTraceSettings settings) {
+    float minContribution = settings.getMinContribution();
+    if (weight >= minContribution) {
+      return 1;
     }
+    if (!settings.isRussianRoulette()) {
+      return 0;
+    }
+    float probability = weight / minContribution;
+    Vector4f point = hit.getIntersection();
+    float roll = random(Float.floatToIntBits(point.x),
+        Float.floatToIntBits(point.y) ^ Float.floatToIntBits(point.z), 2 * bound + branch);
+    return roll < probability ? 1 / probability : 0;
+  }
 
-    rgb = new Vector3f(Math.min(1f, rgb.x), Math.min(1f, rgb.y), Math.min(1f, rgb.z));
-    return rgb;
+  /**
+   * Estimate the width of the area of a texture that a ray cone covers at a hit, in texture
+   * coordinates. The cone covers a longer area where it meets the surface at a grazing angle, and
+   * the width is taken from the area so that such surfaces are not blurred along both directions.
+   *
+   * @param hit the hit of the ray
+   * @param fromPoint the start point of the ray
+   * @param coneWidth the width of the ray cone at the hit
+   * @return the width of the area, or 0 if it is not known
+   */
+  private static float textureFootprint(HitRecord hit, Vector4f fromPoint, float coneWidth) {
+    Vector4f intersection = hit.getIntersection();
+    Vector4f normal = hit.getNormal();
+    float dx = intersection.x - fromPoint.x;
+    float dy = intersection.y - fromPoint.y;
+    float dz = intersection.z - fromPoint.z;
+    float cos = Math.abs(dx * normal.x + dy * normal.y + dz * normal.z)
+        / (float) Math.sqrt((dx * dx + dy * dy + dz * dz) * normal.lengthSquared());
+    // limit the widening at grazing angles, which would otherwise blur the texture completely
+    if (!(cos > 0.0625f)) {
+      cos = 0.0625f;
+    }
+    return coneWidth / (float) Math.sqrt(cos) * hit.getTextureDensity();
   }
 
   /**
    * The method determines how much light a point can see. This can be used as
    *
    * @param hitRecord the closest hit on the ray
-   * @param light the light that is to be checked
-   * @param LightModelView the modelView that is to be applied to the light
-   * @param modelView the stack of modelView from the object to the world
+   * @param light the light that is to be checked, in the view coordinate system
+   * @param snapshot the flattened scene graph that shadow rays are intersected with
+   * @param records the hit buffer used for the shadow ray
    * @return a ratio of how much light this point can see
    */
-  private float canSeeLight(HitRecord hitRecord, Light light, Matrix4f LightModelView,
-      Stack<Matrix4f> modelView) {
-    // copy model view
-    Stack<Matrix4f> mvCopy = new Stack<>();
-    for (Matrix4f mv : modelView) {
-      mvCopy.push(mv);
-    }
+  private float canSeeLight(HitRecord hitRecord, LightInstance light, RenderSnapshot snapshot,
+      HitBuffer records) {
     // find the starting point of light in view
-    Vector4f lightPosition = LightModelView.transform(new Vector4f(light.getPosition()));
+    Vector4f lightPosition = light.getPosition();
     // find the hit position in view
-    Vector4f hitPosition = new Vector4f(hitRecord.getIntersection());
-    ThreeDRay hitToLightRay;
+    Vector4f hitPosition = hitRecord.getIntersection();
+    ThreeDRay hitToLightRay = records.getRay();
     if (lightPosition.w != 0) { // A spot light
-      Vector3f hitToLightDir = new Vector3f(
+      Vector3f hitToLightDir = records.getShadeVector3(0).set(
           lightPosition.x - hitPosition.x,
           lightPosition.y - hitPosition.y,
           lightPosition.z - hitPosition.z);
       // find out the the direction from hit point to light origin, normalized
-      Vector3f normalHitToLightDir = new Vector3f(hitToLightDir).normalize();
-      float hitToLightDotNormal = new Vector4f(hitRecord.getNormal())
-          .dot(new Vector4f(normalHitToLightDir, 0));
+      Vector3f normalHitToLightDir = records.getShadeVector3(1).set(hitToLightDir).normalize();
+      float hitToLightDotNormal = hitRecord.getNormal()
+          .dot(records.getShadeVector4(0).set(normalHitToLightDir, 0));
       // light is parallel to the given surface.
       if (hitToLightDotNormal < 0.001f && hitToLightDotNormal > -0.001f) {
         return 0;
       } else {
-        Vector3f position = new Vector3f(hitPosition.x, hitPosition.y, hitPosition.z)
+        Vector3f position = records.getShadeVector3(2)
+            .set(hitPosition.x, hitPosition.y, hitPosition.z)
             .add(normalHitToLightDir.mul(0.005f));
-        hitToLightRay = new ThreeDRay(position, hitToLightDir);
-        List<HitRecord> records = this.root.rayCast(mvCopy, hitToLightRay, this.renderer);
-        float transparency = 1;
-        for (HitRecord hit : records) {
-          if (hit.getT() < 0.99 && hit.getT() > 0.001f) {
-            Material mat = hit.getMaterial();
-            float refraction = 1 - mat.getAbsorption() - mat.getReflection();
-            transparency = transparency * refraction;
-          }
-        }
-        return transparency;
+        hitToLightRay.set(position.x, position.y, position.z, hitToLightDir.x, hitToLightDir.y,
+            hitToLightDir.z);
+        // only objects between the point and the light cast a shadow
+        return snapshot.occlusion(hitToLightRay, 0.001f, 0.99f, records);
       }
     } else {
-      Vector3f hitToLightDir = new Vector3f(
-          -lightPosition.x,
-          -lightPosition.y,
-          -lightPosition.z)
-          .normalize();
-      Vector3f position = new Vector3f(hitPosition.x, hitPosition.y, hitPosition.z)
-          .add(new Vector3f(hitToLightDir).mul(0.005f));
-      float hitToLightDotNormal = new Vector4f(hitRecord.getNormal())
-          .dot(new Vector4f(hitToLightDir, 0));
+      Vector3f hitToLightDir = light.getDirectionToLight();
+      Vector3f position = records.getShadeVector3(2)
+          .set(hitPosition.x, hitPosition.y, hitPosition.z)
+          .add(records.getShadeVector3(1).set(hitToLightDir).mul(0.005f));
+      float hitToLightDotNormal = hitRecord.getNormal()
+          .dot(records.getShadeVector4(0).set(hitToLightDir, 0));
       // light is parallel to the given surface.
       if (hitToLightDotNormal < 0.001f && hitToLightDotNormal > -0.001f) {
         return 0;
       } else {
-        hitToLightRay = new ThreeDRay(position, hitToLightDir);
-        List<HitRecord> records = this.root.rayCast(mvCopy, hitToLightRay, this.renderer);
-        float transparency = 1;
-        for (HitRecord hit : records) {
-          if (hit.getT() > 0.01f) {
-            Material mat = hit.getMaterial();
-            float refraction = 1 - mat.getAbsorption() - mat.getReflection();
-            transparency = transparency * refraction;
-          }
-        }
-        return transparency;
+        hitToLightRay.set(position.x, position.y, position.z, hitToLightDir.x, hitToLightDir.y,
+            hitToLightDir.z);
+        return snapshot.occlusion(hitToLightRay, 0.01f, Float.POSITIVE_INFINITY, records);
       }
     }
   }
@@ -469,6 +1215,7 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
   @Override
   public void setRenderer(IScenegraphRenderer renderer) throws Exception {
     this.renderer = renderer;
+    invalidateSnapshot();
 
     //now add all the meshes
     for (String meshName : meshes.keySet()) {
@@ -476,7 +1223,12 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
     }
 
     for (String textureName : textures.keySet()) {
-      this.renderer.addTexture(textureName, textures.get(textureName));
+      TextureImage image = textureImages.get(textureName);
+      if (image != null) {
+        this.renderer.addTexture(textureName, image);
+      } else {
+        this.renderer.addTexture(textureName, textures.get(textureName));
+      }
     }
 
   }
@@ -490,6 +1242,7 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
   public void makeScenegraph(INode root) {
     this.root = root;
     this.root.setScenegraph(this);
+    invalidateSnapshot();
 
   }
 
@@ -551,9 +1304,38 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
   @Override
   public void addTexture(String name, String path) {
     textures.put(name, path);
+    textureImages.remove(name);
+    invalidateSnapshot();
 //    System.out.println(textures);
   }
 
+  @Override
+  public void addTexture(String name, TextureImage image) {
+    textures.put(name, image.getPath());
+    textureImages.put(name, image);
+    invalidateSnapshot();
+  }
+
+  @Override
+  public Map<String, String> getTextures() {
+    return new TreeMap<String, String>(textures);
+  }
+
+  @Override
+  public void setRayTraceSettings(RayTraceSettings settings) {
+    this.settings = new RayTraceSettings(settings);
+  }
+
+  @Override
+  public void setFrameSink(IFrameSink frameSink) {
+    this.frameSink = frameSink;
+  }
+
+  @Override
+  public RayTraceStats getRayTraceStats() {
+    return stats;
+  }
+
   private Stack<Matrix4f> copyMV(Stack<Matrix4f> modelView) {
     Stack<Matrix4f> copy = new Stack<>();
     for (Matrix4f mv : modelView) {
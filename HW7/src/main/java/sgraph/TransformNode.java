@@ -65,6 +65,18 @@ public class TransformNode extends AbstractNode {
     return newtransform;
   }
 
+  @Override
+  public INode copy(Map<INode, INode> copies) {
+    TransformNode newtransform = new TransformNode(scenegraph, name);
+    copyTo(newtransform, copies);
+    newtransform.setTransform(this.transform);
+    newtransform.setAnimationTransform(animation_transform);
+    if (child != null) {
+      newtransform.addChild(child.copy(copies));
+    }
+    return newtransform;
+  }
+
   /**
    * Determines if this node has the specified name and returns itself if so. Otherwise it recurses
    * into its only child
@@ -97,6 +109,7 @@ public class TransformNode extends AbstractNode {
     }
     this.child = child;
     this.child.setParent(this);
+    invalidateSnapshot();
   }
 
   /**
@@ -127,6 +140,7 @@ public class TransformNode extends AbstractNode {
    */
   public void setAnimationTransform(Matrix4f mat) {
     animation_transform = new Matrix4f(mat);
+    invalidateSnapshot();
   }
 
   @Override
@@ -137,6 +151,25 @@ public class TransformNode extends AbstractNode {
     return this.child.rayCast(modelView, ray, renderer);
   }
 
+  /**
+   * Post-multiplies its animation transform and then its transform to the top of the modelview
+   * stack, and then flattens its child
+   *
+   * @param modelView the stack of modelview matrices
+   * @param renderer the renderer used to resolve textures by name
+   * @param instances the list that the instances are added to
+   */
+  @Override
+  public void collectInstances(Stack<Matrix4f> modelView, IScenegraphRenderer renderer,
+      List<LeafInstance> instances) {
+    modelView.push(new Matrix4f(modelView.peek()));
+    modelView.peek().mul(animation_transform).mul(transform);
+    if (child != null) {
+      child.collectInstances(modelView, renderer, instances);
+    }
+    modelView.pop();
+  }
+
   /**
    * Gets the transform at this node (not the animation transform)
    */
@@ -150,6 +183,7 @@ public class TransformNode extends AbstractNode {
   @Override
   public void setTransform(Matrix4f t) throws IllegalArgumentException {
     this.transform = new Matrix4f(t);
+    invalidateSnapshot();
   }
 
   /**
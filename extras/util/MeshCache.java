@@ -0,0 +1,304 @@
+package util;
+
+import org.joml.Vector4f;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * A cache of imported OBJ files in a compact binary format. The first time an
+ * OBJ file is imported, the mesh is written to a file in the cache directory,
+ * named by checksums of the contents of the OBJ file and of the import
+ * options.
+ * Later imports of the same contents memory-map that file and copy the packed
+ * arrays out of it, instead of parsing the OBJ text again.
+ *
+ * A cache file holds, in little endian order:
+ * <ul> <li>A header: the magic number, the format version, the length and
+ * CRC-32 checksum of the rest of the file, the primitive type and size, the
+ * number of vertices, attributes and indices, and the minimum and maximum
+ * bounds as 4 floats each.</li>
+ * <li>For every attribute: the length of its name, its name in UTF-8 padded
+ * to a multiple of 4 bytes, its size and its values.</li>
+ * <li>The indices.</li> </ul>
+ *
+ * Normals are stored as computed at import, so they are not computed again.
+ *
+ * The name of a file also covers {@link ObjImporter#OUTPUT_VERSION}, so a
+ * change to the importer that changes its meshes gets new files instead of
+ * the meshes of the old importer. {@code VERSION} only covers the layout of
+ * the file.
+ *
+ * A file whose length or checksum does not match, or that does not hold a
+ * whole mesh, is a cache miss: the OBJ file is parsed again and the file is
+ * replaced.
+ */
+public class MeshCache {
+  private static final int MAGIC = 0x4853454d; // "MESH"
+  private static final int VERSION = 2;
+  private static final int CHECKED_OFFSET = 4 * 4;
+  private static final int HEADER_SIZE = 4 * 9 + 4 * 8;
+
+  private static MeshCache defaultCache;
+
+  private File directory;
+
+  /**
+   * Create a cache that keeps its files in a directory. The directory is
+   * created when the first file is written.
+   *
+   * @param directory the directory of the cache files
+   */
+  public MeshCache(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Get the cache in the directory ".cache/mesh-cache" in the home directory
+   * of the user. It is not shared with other users, who could otherwise put
+   * files in it that this user would load.
+   */
+  public static synchronized MeshCache getDefault() {
+    if (defaultCache == null) {
+      defaultCache = new MeshCache(new File(
+              new File(System.getProperty("user.home"), ".cache"), "mesh-cache"));
+    }
+    return defaultCache;
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Import a mesh from a stream of an OBJ file, from the cache if it has been
+   * imported before with the same options and vertex type. Otherwise the OBJ
+   * file is parsed and added to the cache. The stream is read to its end but
+   * not closed.
+   *
+   * @param producer       the producer of the vertex type of the mesh
+   * @param in             the stream of the OBJ file
+   * @param scaleAndCenter true if the mesh should be centered about the
+   *                       origin and scaled to fit a cube of side 1
+   * @return the mesh
+   * @throws IllegalArgumentException if the stream cannot be read or is not a
+   *                                  valid OBJ file
+   */
+  public <K extends IVertexData> PolygonMesh<K> importFile
+          (VertexProducer<K> producer, InputStream in, boolean scaleAndCenter)
+          throws IllegalArgumentException {
+    if (in == null) {
+      throw new IllegalArgumentException("No OBJ file to import");
+    }
+    byte[] data;
+    try {
+      data = ObjImporter.readAll(in);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("OBJ file cannot be read: " + e.getMessage(), e);
+    }
+
+    File file = new File(directory, key(data, scaleAndCenter, producer) + ".mesh");
+    if (file.isFile()) {
+      try {
+        return read(producer, file);
+      } catch (IOException | RuntimeException e) {
+        System.out.println("Mesh cache file " + file + " cannot be read, importing again: "
+                + e.getMessage());
+      }
+    }
+
+    PolygonMesh<K> mesh = ObjImporter.importData(producer, ByteBuffer.wrap(data),
+            scaleAndCenter, Runtime.getRuntime().availableProcessors());
+    try {
+      write(mesh, file);
+    } catch (IOException e) {
+      System.out.println("Mesh cache file " + file + " cannot be written: " + e.getMessage());
+    }
+    return mesh;
+  }
+
+  /**
+   * Make the name of the cache file from the length, the CRC-32 and the
+   * Adler-32 checksums of the OBJ data, and a checksum of the import options,
+   * the vertex type, the format version and the version of the importer.
+   * Both checksums are computed by native code and take well under a
+   * millisecond for a large model even before the JIT compiler has warmed up,
+   * unlike a cryptographic hash. They guard against changed files, not
+   * against files made to collide.
+   */
+  private static String key(byte[] data, boolean scaleAndCenter,
+                            VertexProducer<?> producer) {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    Adler32 adler = new Adler32();
+    adler.update(data, 0, data.length);
+    String options = VERSION + " " + ObjImporter.OUTPUT_VERSION + " " + scaleAndCenter + " "
+            + producer.produce().getClass().getName();
+    CRC32 optionsCrc = new CRC32();
+    byte[] encodedOptions = options.getBytes(StandardCharsets.UTF_8);
+    optionsCrc.update(encodedOptions, 0, encodedOptions.length);
+    return Integer.toHexString(data.length) + "-" + hex(crc.getValue())
+            + hex(adler.getValue()) + "-" + hex(optionsCrc.getValue());
+  }
+
+  /**
+   * Write a 32 bit checksum as 8 hexadecimal digits.
+   */
+  private static String hex(long checksum) {
+    return Long.toHexString(checksum | 0x100000000L).substring(1);
+  }
+
+  /**
+   * Read a mesh from a cache file. The file is memory-mapped, and the
+   * attributes and indices are copied out of it in bulk.
+   */
+  static <K extends IVertexData> PolygonMesh<K> read(VertexProducer<K> producer,
+                                                     File file) throws IOException {
+    MappedByteBuffer buffer;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if ((buffer.remaining() < HEADER_SIZE) || (buffer.getInt() != MAGIC)) {
+      throw new IOException("Not a mesh cache file");
+    }
+    if (buffer.getInt() != VERSION) {
+      throw new IOException("Unsupported mesh cache version");
+    }
+    int length = buffer.getInt();
+    int checksum = buffer.getInt();
+    if (length != buffer.capacity() - CHECKED_OFFSET) {
+      throw new IOException("Mesh cache file has the wrong length");
+    }
+    CRC32 crc = new CRC32();
+    crc.update((ByteBuffer) buffer.duplicate().position(CHECKED_OFFSET));
+    if ((int) crc.getValue() != checksum) {
+      throw new IOException("Mesh cache file has the wrong checksum");
+    }
+    int primitiveType = buffer.getInt();
+    int primitiveSize = buffer.getInt();
+    int vertexCount = buffer.getInt();
+    int attributeCount = buffer.getInt();
+    int indexCount = buffer.getInt();
+    Vector4f min = new Vector4f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+            buffer.getFloat());
+    Vector4f max = new Vector4f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+            buffer.getFloat());
+
+    PolygonMesh<K> mesh = new PolygonMesh<K>(producer);
+    for (int a = 0; a < attributeCount; a++) {
+      int nameLength = buffer.getInt();
+      if ((nameLength < 0) || (nameLength > buffer.remaining())) {
+        throw new IOException("Mesh cache file is truncated");
+      }
+      byte[] name = new byte[nameLength];
+      buffer.get(name);
+      buffer.position(buffer.position() + padding(name.length));
+      int size = buffer.getInt();
+      if ((size < 0) || ((long) size * vertexCount > buffer.remaining() / 4)) {
+        throw new IOException("Mesh cache file is truncated");
+      }
+      float[] values = new float[size * vertexCount];
+      buffer.asFloatBuffer().get(values);
+      buffer.position(buffer.position() + 4 * values.length);
+      mesh.setAttributeData(new String(name, StandardCharsets.UTF_8), size, values, false);
+    }
+    if ((indexCount < 0) || (indexCount > buffer.remaining() / 4)) {
+      throw new IOException("Mesh cache file is truncated");
+    }
+    int[] indices = new int[indexCount];
+    buffer.asIntBuffer().get(indices);
+    mesh.setPrimitives(indices);
+    mesh.setPrimitiveType(primitiveType);
+    mesh.setPrimitiveSize(primitiveSize);
+    mesh.setBounds(min, max);
+    return mesh;
+  }
+
+  /**
+   * Write a mesh to a cache file. The file is written under a temporary name
+   * and then renamed, so that a partly written file is never read.
+   */
+  static void write(PolygonMesh<?> mesh, File file) throws IOException {
+    String[] names = mesh.getAttributeNames();
+    int length = HEADER_SIZE + 4 * mesh.getPrimitiveCount();
+    byte[][] encodedNames = new byte[names.length][];
+    for (int a = 0; a < names.length; a++) {
+      encodedNames[a] = names[a].getBytes(StandardCharsets.UTF_8);
+      length += 8 + encodedNames[a].length + padding(encodedNames[a].length)
+              + 4 * mesh.attributeArray(names[a]).length;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(length - CHECKED_OFFSET);
+    buffer.putInt(0);
+    buffer.putInt(mesh.getPrimitiveType());
+    buffer.putInt(mesh.getPrimitiveSize());
+    buffer.putInt(mesh.getVertexCount());
+    buffer.putInt(names.length);
+    buffer.putInt(mesh.getPrimitiveCount());
+    Vector4f min = mesh.getMinimumBounds();
+    Vector4f max = mesh.getMaximumBounds();
+    buffer.putFloat(min.x).putFloat(min.y).putFloat(min.z).putFloat(min.w);
+    buffer.putFloat(max.x).putFloat(max.y).putFloat(max.z).putFloat(max.w);
+    for (int a = 0; a < names.length; a++) {
+      buffer.putInt(encodedNames[a].length);
+      buffer.put(encodedNames[a]);
+      buffer.position(buffer.position() + padding(encodedNames[a].length));
+      buffer.putInt(mesh.getAttributeSize(names[a]));
+      float[] values = mesh.attributeArray(names[a]);
+      buffer.asFloatBuffer().put(values);
+      buffer.position(buffer.position() + 4 * values.length);
+    }
+    buffer.asIntBuffer().put(mesh.primitiveArray());
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), CHECKED_OFFSET, length - CHECKED_OFFSET);
+    buffer.putInt(CHECKED_OFFSET - 4, (int) crc.getValue());
+
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory()) {
+      if (!parent.mkdirs() && !parent.isDirectory()) {
+        throw new IOException("Cannot create directory " + parent);
+      }
+      //only the user may read or write a new cache directory
+      parent.setReadable(false, false);
+      parent.setWritable(false, false);
+      parent.setExecutable(false, false);
+      parent.setReadable(true, true);
+      parent.setWritable(true, true);
+      parent.setExecutable(true, true);
+    }
+    File temporary = File.createTempFile(file.getName(), ".tmp", parent);
+    try {
+      Files.write(temporary.toPath(), buffer.array());
+      try {
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temporary.toPath());
+    }
+  }
+
+  /**
+   * Get the number of bytes that pad a name to a multiple of 4 bytes.
+   */
+  private static int padding(int length) {
+    return (4 - length % 4) % 4;
+  }
+}
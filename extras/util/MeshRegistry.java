@@ -0,0 +1,220 @@
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A registry of imported meshes, so that every OBJ file is imported and
+ * stored once however many times it is referred to. Meshes are keyed by the
+ * resolved location of the file, whether it is scaled and centered, and the
+ * vertex type of the mesh. Asking again for the same key returns the same
+ * {@link PolygonMesh} object, which must therefore not be changed.
+ *
+ * The registry does not keep meshes alive by itself. A mesh stays in it only
+ * while something else, such as a scene graph, refers to it. Once every scene
+ * graph that uses a mesh is gone, the mesh may be collected, and it is
+ * imported again, usually from the mesh cache, when it is next asked for.
+ *
+ * Meshes with different keys may be imported by several threads at the same
+ * time. A thread that asks for a mesh being imported by another thread waits
+ * for it instead of importing it again.
+ */
+public class MeshRegistry {
+  private static MeshRegistry defaultRegistry;
+
+  private MeshCache cache;
+  private Map<String, FutureTask<PolygonMesh<?>>> imports;
+  private Map<String, MeshReference> meshes;
+  private ReferenceQueue<PolygonMesh<?>> collected;
+  private Map<PolygonMesh<?>, String> paths;
+
+  /**
+   * Create an empty registry that imports meshes through a cache.
+   *
+   * @param cache the cache that meshes are imported through
+   */
+  public MeshRegistry(MeshCache cache) {
+    this.cache = cache;
+    imports = new ConcurrentHashMap<String, FutureTask<PolygonMesh<?>>>();
+    meshes = new ConcurrentHashMap<String, MeshReference>();
+    collected = new ReferenceQueue<PolygonMesh<?>>();
+    paths = Collections.synchronizedMap(new WeakHashMap<PolygonMesh<?>, String>());
+  }
+
+  /**
+   * Get the registry that imports through the default cache.
+   */
+  public static synchronized MeshRegistry getDefault() {
+    if (defaultRegistry == null) {
+      defaultRegistry = new MeshRegistry(MeshCache.getDefault());
+    }
+    return defaultRegistry;
+  }
+
+  /**
+   * Get the mesh of an OBJ file on the class path, importing it if it has not
+   * been imported with the same options and vertex type before.
+   *
+   * @param producer       the producer of the vertex type of the mesh
+   * @param path           the path of the OBJ file on the class path
+   * @param scaleAndCenter true if the mesh should be centered about the
+   *                       origin and scaled to fit a cube of side 1
+   * @return the mesh
+   * @throws IllegalArgumentException if the file does not exist or is not a
+   *                                  valid OBJ file
+   */
+  public <K extends IVertexData> PolygonMesh<K> getMesh
+          (VertexProducer<K> producer, String path, boolean scaleAndCenter)
+          throws IllegalArgumentException {
+    URL url = MeshRegistry.class.getClassLoader().getResource(path);
+    if (url == null) {
+      throw new IllegalArgumentException("Mesh file " + path + " not found");
+    }
+    PolygonMesh<K> mesh = getMesh(producer, url, scaleAndCenter);
+    paths.putIfAbsent(mesh, path);
+    return mesh;
+  }
+
+  /**
+   * Get the class path that a mesh in this registry was first asked for by.
+   *
+   * @param mesh the mesh
+   * @return the path of its OBJ file on the class path, or null if the mesh
+   *         was not asked for by a class path
+   */
+  public String getPath(PolygonMesh<?> mesh) {
+    return paths.get(mesh);
+  }
+
+  /**
+   * Get the mesh of an OBJ file, importing it if it has not been imported
+   * with the same options and vertex type before.
+   *
+   * @param producer       the producer of the vertex type of the mesh
+   * @param url            the location of the OBJ file
+   * @param scaleAndCenter true if the mesh should be centered about the
+   *                       origin and scaled to fit a cube of side 1
+   * @return the mesh
+   * @throws IllegalArgumentException if the file cannot be read or is not a
+   *                                  valid OBJ file
+   */
+  @SuppressWarnings("unchecked")
+  public <K extends IVertexData> PolygonMesh<K> getMesh
+          (VertexProducer<K> producer, URL url, boolean scaleAndCenter)
+          throws IllegalArgumentException {
+    String key = url.toExternalForm() + " " + scaleAndCenter + " "
+            + producer.produce().getClass().getName();
+    removeCollected();
+    PolygonMesh<?> mesh = get(key);
+    if (mesh != null) {
+      return (PolygonMesh<K>) mesh;
+    }
+    FutureTask<PolygonMesh<?>> task = new FutureTask<PolygonMesh<?>>(() -> {
+      try (InputStream in = url.openStream()) {
+        return cache.importFile(producer, in, scaleAndCenter);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Mesh file " + url + " cannot be read: "
+                + e.getMessage(), e);
+      }
+    });
+    FutureTask<PolygonMesh<?>> existing = imports.putIfAbsent(key, task);
+    if (existing == null) {
+      // another thread may have finished importing it since it was looked up
+      mesh = get(key);
+      if (mesh != null) {
+        imports.remove(key, task);
+        return (PolygonMesh<K>) mesh;
+      }
+      task.run();
+    } else {
+      task = existing;
+    }
+
+    try {
+      // the key includes the vertex type, so the mesh has vertices of type K
+      mesh = task.get();
+      if (existing == null) {
+        meshes.put(key, new MeshReference(key, mesh, collected));
+      }
+      return (PolygonMesh<K>) mesh;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while importing " + url, e);
+    } catch (ExecutionException e) {
+      // forget the failure, so that a later request tries again
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("Mesh file " + url + " cannot be imported: "
+              + e.getCause().getMessage(), e.getCause());
+    } finally {
+      if (existing == null) {
+        imports.remove(key, task);
+      }
+    }
+  }
+
+  /**
+   * Get the mesh of a key if it has been imported and not collected.
+   */
+  private PolygonMesh<?> get(String key) {
+    MeshReference reference = meshes.get(key);
+    return reference != null ? reference.get() : null;
+  }
+
+  /**
+   * Remove the entries of the meshes that have been collected.
+   */
+  private void removeCollected() {
+    MeshReference reference;
+    while ((reference = (MeshReference) collected.poll()) != null) {
+      meshes.remove(reference.key, reference);
+    }
+  }
+
+  /**
+   * Get the number of meshes in this registry that have not been collected.
+   */
+  public int size() {
+    removeCollected();
+    int size = 0;
+    for (MeshReference reference : meshes.values()) {
+      if (reference.get() != null) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Forget all meshes, so that they are imported again when they are next
+   * asked for.
+   */
+  public void clear() {
+    imports.clear();
+    meshes.clear();
+    paths.clear();
+  }
+
+  /**
+   * A weak reference to an imported mesh that knows its key, so that its
+   * entry can be removed once the mesh has been collected.
+   */
+  private static class MeshReference extends WeakReference<PolygonMesh<?>> {
+    final String key;
+
+    MeshReference(String key, PolygonMesh<?> mesh, ReferenceQueue<PolygonMesh<?>> queue) {
+      super(mesh, queue);
+      this.key = key;
+    }
+  }
+}
@@ -1,11 +1,7 @@
 package util;
 
-import org.joml.Vector4f;
-
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * A helper class to export a PolygonMesh object to file using the OBJ file
@@ -19,68 +15,65 @@ public class ObjExporter {
     PrintWriter printer = new PrintWriter(out);
     int i, j;
 
-    List<IVertexData> vertexData = mesh.getVertexAttributes();
-    if (vertexData.size() == 0)
+    int vertexCount = mesh.getVertexCount();
+    if (vertexCount == 0)
       return true;
 
-    List<Vector4f> vertices = new ArrayList<Vector4f>();
-    List<Vector4f> normals = new ArrayList<Vector4f>();
-    List<Vector4f> texcoords = new ArrayList<Vector4f>();
-    List<Integer> primitives = mesh.getPrimitives();
+    int[] primitives = mesh.primitiveArray();
 
-    for (IVertexData v : vertexData) {
-      if (v.hasData("position")) {
-        float[] data = v.getData("position");
+    if (mesh.hasAttribute("position")) {
+      float[] data = mesh.attributeArray("position");
+      int size = mesh.getAttributeSize("position");
+      for (i = 0; i < vertexCount; i++) {
         printer.print("v ");
-        for (j = 0; j < data.length; j++) {
-          printer.print(data[j] + " ");
+        for (j = 0; j < size; j++) {
+          printer.print(data[i * size + j] + " ");
         }
         printer.println();
       }
-
     }
 
-    for (IVertexData v : vertexData) {
-      if (v.hasData("normal")) {
-        float[] data = v.getData("normal");
+    if (mesh.hasAttribute("normal")) {
+      float[] data = mesh.attributeArray("normal");
+      int size = mesh.getAttributeSize("normal");
+      if (size < 3) {
+        throw new IllegalArgumentException("Too few numbers for normal, must "
+                + "be 3 or 4, with the 4th number being 0");
+      }
+      for (i = 0; i < vertexCount; i++) {
         printer.print("vn ");
-        if (data.length<3) {
-          throw new IllegalArgumentException("Too few numbers for normal, must "
-                  + "be 3 or 4, with the 4th number being 0");
-        }
         for (j = 0; j < 3; j++) {
-          printer.print(data[j] + " ");
+          printer.print(data[i * size + j] + " ");
         }
         printer.println();
       }
-
     }
 
-    for (IVertexData v : vertexData) {
-      if (v.hasData("texcoord")) {
-        float[] data = v.getData("texcoord");
+    if (mesh.hasAttribute("texcoord")) {
+      float[] data = mesh.attributeArray("texcoord");
+      int size = mesh.getAttributeSize("texcoord");
+      if (size < 3) {
+        throw new IllegalArgumentException("Too few numbers for texture "
+                + "coordinate, must "
+                + "be 3 or 4, with the 4th number being 1");
+      }
+      for (i = 0; i < vertexCount; i++) {
         printer.print("vt ");
-        if (data.length<3) {
-          throw new IllegalArgumentException("Too few numbers for texture "
-                  + "coordinate, must "
-                  + "be 3 or 4, with the 4th number being 1");
-        }
         for (j = 0; j < 3; j++) {
-          printer.print(data[j] + " ");
+          printer.print(data[i * size + j] + " ");
         }
         printer.println();
       }
-
     }
 
 
     //polygons
 
-    for (i = 0; i < primitives.size(); i += mesh.getPrimitiveSize()) {
+    for (i = 0; i < primitives.length; i += mesh.getPrimitiveSize()) {
       printer.print("f ");
       for (j = 0; j < mesh.getPrimitiveSize(); j++) {
         //in OBJ file format indices begin at 1, so we must add 1 here
-        printer.print(primitives.get(i + j) + 1 + " ");
+        printer.print(primitives[i + j] + 1 + " ");
       }
       printer.println();
     }
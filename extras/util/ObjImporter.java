@@ -6,232 +6,709 @@ import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A helper class to import a PolygonMesh object from an OBJ file. It imports
  * only position, normal and texture coordinate data (if present)
+ *
+ * The file is read as bytes and parsed by a hand-written tokenizer, without
+ * creating a string for every line or number. Large files are split into
+ * chunks at line boundaries, and the chunks are parsed in parallel. The
+ * vertex attributes and indices are put into the mesh as packed arrays.
  */
 public class ObjImporter {
+  /**
+   * The version of the meshes that this importer makes. It is part of the key
+   * of every {@link MeshCache} file, so it must be increased whenever a change
+   * to the importer, or to how PolygonMesh computes normals, changes the
+   * meshes it makes. Otherwise meshes made by the old code are still loaded
+   * from the cache.
+   */
+  static final int OUTPUT_VERSION = 2;
+
+  /**
+   * The smallest number of bytes that is worth parsing on a thread of its own
+   */
+  private static final int MIN_CHUNK_SIZE = 1 << 19;
+
+  /**
+   * Import a mesh from a stream, using one thread per available processor
+   * for large files. The stream is read to its end but not closed.
+   */
   public static <K extends IVertexData> PolygonMesh<K> importFile
           (VertexProducer<K> producer, InputStream in, boolean scaleAndCenter) throws IllegalArgumentException {
-    ArrayList<Vector4f> vertices;
-    ArrayList<Vector4f> normals;
-    ArrayList<Vector4f> texcoords;
-    ArrayList<Integer> triangles, triangle_texture_indices, triangle_normal_indices;
-    int i, j;
-    int lineno;
-    PolygonMesh<K> mesh = new PolygonMesh<K>();
-
-    vertices = new ArrayList<Vector4f>();
-    normals = new ArrayList<Vector4f>();
-    texcoords = new ArrayList<Vector4f>();
-    triangles = new ArrayList<Integer>();
-    triangle_texture_indices = new ArrayList<Integer>();
-    triangle_normal_indices = new ArrayList<Integer>();
-
-    Scanner sc = new Scanner(in);
-
-    lineno = 0;
-
-    String line;
+    return importFile(producer, in, scaleAndCenter,
+            Runtime.getRuntime().availableProcessors());
+  }
 
+  /**
+   * Import a mesh from a stream. The stream is read to its end but not
+   * closed.
+   *
+   * @param producer       the producer of the vertex type of the mesh
+   * @param in             the stream of the OBJ file
+   * @param scaleAndCenter true if the mesh should be centered about the
+   *                       origin and scaled to fit a cube of side 1
+   * @param threadCount    the most threads that may parse the file
+   * @return the mesh
+   * @throws IllegalArgumentException if the stream cannot be read or is not a
+   *                                  valid OBJ file
+   */
+  public static <K extends IVertexData> PolygonMesh<K> importFile
+          (VertexProducer<K> producer, InputStream in, boolean scaleAndCenter,
+           int threadCount) throws IllegalArgumentException {
+    if (in == null) {
+      throw new IllegalArgumentException("No OBJ file to import");
+    }
+    byte[] data;
+    try {
+      data = readAll(in);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("OBJ file cannot be read: " + e.getMessage(), e);
+    }
+    return importData(producer, ByteBuffer.wrap(data), scaleAndCenter, threadCount);
+  }
 
-    while (sc.hasNext()) {
-      line = sc.nextLine();
-      lineno++;
-      if ((line.length() <= 0) || (line.charAt(0) == '#')) {
-        //line is a comment, ignore
-        continue;
+  /**
+   * Import a mesh from a file, which is memory-mapped instead of read.
+   *
+   * @param producer       the producer of the vertex type of the mesh
+   * @param file           the OBJ file
+   * @param scaleAndCenter true if the mesh should be centered about the
+   *                       origin and scaled to fit a cube of side 1
+   * @param threadCount    the most threads that may parse the file
+   * @return the mesh
+   * @throws IOException              if the file cannot be mapped
+   * @throws IllegalArgumentException if the file is not a valid OBJ file
+   */
+  public static <K extends IVertexData> PolygonMesh<K> importFile
+          (VertexProducer<K> producer, File file, boolean scaleAndCenter,
+           int threadCount) throws IOException, IllegalArgumentException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("OBJ file is too large: " + file);
       }
+      ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return importData(producer, data, scaleAndCenter, threadCount);
+    }
+  }
 
-      Scanner str = new Scanner(line);
+  /**
+   * Import a mesh from the bytes of an OBJ file, from the position to the
+   * limit of the buffer.
+   *
+   * @param producer       the producer of the vertex type of the mesh
+   * @param data           the bytes of the OBJ file
+   * @param scaleAndCenter true if the mesh should be centered about the
+   *                       origin and scaled to fit a cube of side 1
+   * @param threadCount    the most threads that may parse the file
+   * @return the mesh
+   * @throws IllegalArgumentException if the data is not a valid OBJ file
+   */
+  public static <K extends IVertexData> PolygonMesh<K> importData
+          (VertexProducer<K> producer, ByteBuffer data, boolean scaleAndCenter,
+           int threadCount) throws IllegalArgumentException {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("Thread count should be at least 1: " + threadCount);
+    }
+    int i;
+    List<Chunk> chunks = parse(data, threadCount);
+
+    //put the chunks together
+    int vertexCount = 0, texcoordCount = 0, normalCount = 0, indexCount = 0;
+    for (Chunk chunk : chunks) {
+      vertexCount += chunk.vertices.size / 4;
+      texcoordCount += chunk.texcoords.size / 4;
+      normalCount += chunk.normals.size / 4;
+      indexCount += chunk.triangles.size;
+    }
+    float[] vertices = new float[4 * vertexCount];
+    float[] texcoords = new float[4 * texcoordCount];
+    float[] normals = new float[4 * normalCount];
+    int[] triangles = new int[indexCount];
+    int v = 0, t = 0, n = 0, f = 0;
+    for (Chunk chunk : chunks) {
+      v = chunk.vertices.copyTo(vertices, v);
+      t = chunk.texcoords.copyTo(texcoords, t);
+      n = chunk.normals.copyTo(normals, n);
+      f = chunk.triangles.copyTo(triangles, f);
+    }
+    for (i = 0; i < triangles.length; i++) {
+      if ((triangles[i] < 0) || (triangles[i] >= vertexCount)) {
+        throw new IllegalArgumentException("Face refers to vertex " + (triangles[i] + 1)
+                + ", but there are " + vertexCount + " vertices");
+      }
+    }
 
-      String[] tokens = line.split("[ \\t\\n\\x0B\\f\\r]");
+    if (scaleAndCenter && (vertexCount > 0)) {
+      //center about the origin and within a cube of side 1 centered at the origin
+      Vector4f vertex = new Vector4f();
+      Vector4f minimum = new Vector4f(vertices[0], vertices[1], vertices[2], vertices[3]);
+      Vector4f maximum = new Vector4f(minimum);
+
+      for (i = 1; i < vertexCount; i++) {
+        vertex.set(vertices[4 * i], vertices[4 * i + 1], vertices[4 * i + 2], vertices[4 * i + 3]);
+        minimum = minimum.min(vertex);
+        maximum = maximum.max(vertex);
+      }
 
-      if (tokens[0].compareTo("v") == 0) {
-        if ((tokens.length < 4) || (tokens.length > 7))
-          throw new IllegalArgumentException("Line " + lineno + ": Vertex coordinate has an invalid number of values");
-        float num;
-        Vector4f v = new Vector4f();
+      Vector4f center = new Vector4f(minimum).add(maximum).mul(0.5f);
 
-        v.x = Float.parseFloat(tokens[1]);
-        v.y = Float.parseFloat(tokens[2]);
-        v.z = Float.parseFloat(tokens[3]);
-        v.w = 1.0f;
+      float longest;
 
-        if (tokens.length == 5) {
-          num = Float.parseFloat(tokens[4]);
-          if (num != 0) {
-            v.x /= num;
-            v.y /= num;
-            v.z /= num;
-          }
-        }
 
-        vertices.add(v);
-      } else if (tokens[0].compareTo("vt") == 0) {
-        if ((tokens.length < 3) || (tokens.length > 4))
-          throw new IllegalArgumentException("Line " + lineno + ": Texture coordinate has an invalid number of values");
-        Vector4f v = new Vector4f();
+      longest = Math.max(maximum.x - minimum.x, Math.max(maximum.y - minimum.y, maximum.z - minimum.z));
 
-        float n;
+      //first translate and then scale
+      Matrix4f transformMatrix = new Matrix4f().mul(new Matrix4f().scale(1.0f / longest, 1.0f / longest, 1.0f / longest))
+              .mul(new Matrix4f().translate(-center.x, -center.y, -center.z));
 
-        v.x = Float.parseFloat(tokens[1]);
-        v.y = Float.parseFloat(tokens[2]);
-        v.z = 0.0f;
-        v.w = 1.0f;
+      //scale down each other
+      for (i = 0; i < vertexCount; i++) {
+        vertex.set(vertices[4 * i], vertices[4 * i + 1], vertices[4 * i + 2], vertices[4 * i + 3]);
+        transformMatrix.transform(vertex);
+        vertices[4 * i] = vertex.x;
+        vertices[4 * i + 1] = vertex.y;
+        vertices[4 * i + 2] = vertex.z;
+        vertices[4 * i + 3] = vertex.w;
+      }
+    }
 
-        if (tokens.length > 3) {
-          v.z = Float.parseFloat(tokens[3]);
+    //pack the attributes, starting from the values of a vertex as produced
+    K prototype = producer.produce();
+    Map<String, float[]> attributes = new LinkedHashMap<String, float[]>();
+    Map<String, Integer> sizes = new HashMap<String, Integer>();
+    for (String name : prototype.getAllAttributes()) {
+      if (prototype.hasData(name)) {
+        float[] defaults = prototype.getData(name);
+        float[] values = new float[defaults.length * vertexCount];
+        for (i = 0; i < vertexCount; i++) {
+          System.arraycopy(defaults, 0, values, i * defaults.length, defaults.length);
         }
+        attributes.put(name, values);
+        sizes.put(name, defaults.length);
+      }
+    }
 
-        texcoords.add(v);
-      } else if (tokens[0].compareTo("vn") == 0) {
-        if (tokens.length != 4)
-          throw new IllegalArgumentException("Line " + lineno + ": Normal has an invalid number of values");
-
-        float num;
-        Vector3f v = new Vector3f();
-
-        v.x = Float.parseFloat(tokens[1]);
-        v.y = Float.parseFloat(tokens[2]);
-        v.z = Float.parseFloat(tokens[3]);
+    packAttribute(prototype, "position", vertices, vertexCount, attributes, sizes);
+    if (texcoordCount == vertexCount) {
+      packAttribute(prototype, "texcoord", texcoords, vertexCount, attributes, sizes);
+    }
+    if (normalCount == vertexCount) {
+      packAttribute(prototype, "normal", normals, vertexCount, attributes, sizes);
+    }
 
-        v = v.normalize();
-        normals.add(new Vector4f(v, 0.0f));
-      } else if (tokens[0].compareTo("f") == 0) {
-        if (tokens.length < 4)
-          throw new IllegalArgumentException("Line " + lineno + ": Face has too few vertices, must be at least 3");
+    PolygonMesh<K> mesh = new PolygonMesh<K>(producer);
+    for (Map.Entry<String, float[]> e : attributes.entrySet()) {
+      mesh.setAttributeData(e.getKey(), sizes.get(e.getKey()), e.getValue());
+    }
+    mesh.setPrimitives(triangles);
+    mesh.setPrimitiveType(GL.GL_TRIANGLES);
+    mesh.setPrimitiveSize(3);
 
-        ArrayList<Integer> t_triangles, t_tex, t_normal;
+    if ((normalCount == 0) || (normalCount != vertexCount))
+      mesh.computeNormals();
 
-        t_triangles = new ArrayList<Integer>();
-        t_tex = new ArrayList<Integer>();
-        t_normal = new ArrayList<Integer>();
+    return mesh;
+  }
 
-        for (i = 1; i < tokens.length; i++) {
-          String[] data = tokens[i].split("[/]");
+  /**
+   * Split the data into chunks at line boundaries and parse them, in
+   * parallel if there is more than one.
+   */
+  private static List<Chunk> parse(ByteBuffer data, int threadCount)
+          throws IllegalArgumentException {
+    int start = data.position();
+    int end = data.limit();
+    int chunkCount = Math.max(1, Math.min(threadCount, (end - start) / MIN_CHUNK_SIZE));
+
+    List<Chunk> chunks = new ArrayList<Chunk>();
+    int chunkStart = start;
+    for (int c = 1; c <= chunkCount; c++) {
+      int chunkEnd = c == chunkCount ? end
+              : Math.max(chunkStart, start + (int) ((long) (end - start) * c / chunkCount));
+      while ((chunkEnd < end) && (data.get(chunkEnd - 1) != '\n')) {
+        chunkEnd++;
+      }
+      if (chunkEnd > chunkStart) {
+        chunks.add(new Chunk(data, start, chunkStart, chunkEnd));
+      }
+      chunkStart = chunkEnd;
+    }
 
-          if ((data.length < 1) && (data.length > 3))
-            throw new IllegalArgumentException("Line " + lineno + ": Face specification has an incorrect number of values");
+    if (chunks.size() <= 1) {
+      for (Chunk chunk : chunks) {
+        chunk.call();
+      }
+      return chunks;
+    }
 
-          //in OBJ file format all indices begin at 1, so must subtract 1 here
-          t_triangles.add(Integer.parseInt(data[0]) - 1); //vertex index
-          if (data.length > 1) {
-            if (data[1].length() > 0) //a vertex texture index exists
-            {
-              t_tex.add(Integer.parseInt(data[1]) - 1);
-            }
+    ExecutorService pool = Executors.newFixedThreadPool(chunks.size());
+    try {
+      for (Future<Chunk> chunk : pool.invokeAll(chunks)) {
+        chunk.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("OBJ import interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("OBJ import failed: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    return chunks;
+  }
 
+  /**
+   * Pack the values of an attribute read from the file, as many of them per
+   * vertex as the vertex type stores. The vertex type is given the values of
+   * the first vertex, so that it can reject an attribute it does not support.
+   */
+  private static void packAttribute(IVertexData prototype, String name,
+                                    float[] values, int count,
+                                    Map<String, float[]> attributes,
+                                    Map<String, Integer> sizes)
+          throws IllegalArgumentException {
+    if (count == 0) {
+      return;
+    }
+    prototype.setData(name, new float[]{values[0], values[1], values[2], values[3]});
+    int size = prototype.getData(name).length;
+    float[] data;
+    if (size == 4) {
+      data = values;
+    } else {
+      data = new float[size * count];
+      for (int i = 0; i < count; i++) {
+        System.arraycopy(values, 4 * i, data, i * size, Math.min(size, 4));
+      }
+    }
+    attributes.put(name, data);
+    sizes.put(name, size);
+  }
 
-            if (data.length > 2) //a vertex normal index exists
-            {
-              t_normal.add(Integer.parseInt(data[2]) - 1);
-            }
+  /**
+   * Read a stream to its end.
+   */
+  static byte[] readAll(InputStream in) throws IOException {
+    byte[] buffer = new byte[Math.max(in.available(), 1 << 16)];
+    int size = 0;
+    int read;
+    while ((read = in.read(buffer, size, buffer.length - size)) >= 0) {
+      size += read;
+      if (size == buffer.length) {
+        byte[] larger = new byte[2 * buffer.length];
+        System.arraycopy(buffer, 0, larger, 0, size);
+        buffer = larger;
+      }
+    }
+    if (size == buffer.length) {
+      return buffer;
+    }
+    byte[] result = new byte[size];
+    System.arraycopy(buffer, 0, result, 0, size);
+    return result;
+  }
 
-          }
-        }
+  /**
+   * A part of an OBJ file that starts and ends at line boundaries, and the
+   * vertices, texture coordinates, normals and triangles read from it.
+   * Positions, texture coordinates and normals are stored as 4 floats each.
+   */
+  private static class Chunk implements Callable<Chunk> {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final ByteBuffer data;
+    private final int fileStart;
+    private final int start;
+    private final int end;
+    private final FloatArray vertices;
+    private final FloatArray texcoords;
+    private final FloatArray normals;
+    private final IntArray triangles;
+    private final float[] values;
+    private final Vector3f normal;
+    private int lineStart;
+    private int lineEnd;
+    private int pos;
+
+    Chunk(ByteBuffer data, int fileStart, int start, int end) {
+      this.data = data;
+      this.fileStart = fileStart;
+      this.start = start;
+      this.end = end;
+      int estimate = Math.max(16, (end - start) / 32);
+      vertices = new FloatArray(estimate);
+      texcoords = new FloatArray(16);
+      normals = new FloatArray(16);
+      triangles = new IntArray(estimate);
+      values = new float[6];
+      normal = new Vector3f();
+    }
 
-        if (t_triangles.size() < 3) {
-          throw new IllegalArgumentException("Line " + lineno + ": Fewer than 3 vertices for a polygon");
+    @Override
+    public Chunk call() throws IllegalArgumentException {
+      lineStart = start;
+      while (lineStart < end) {
+        lineEnd = lineStart;
+        while ((lineEnd < end) && (data.get(lineEnd) != '\n')) {
+          lineEnd++;
         }
+        parseLine();
+        lineStart = lineEnd + 1;
+      }
+      return this;
+    }
 
-        //if face has more than 3 vertices, break down into a triangle fan
-        for (i = 2; i < t_triangles.size(); i++) {
-          triangles.add(t_triangles.get(0));
-          triangles.add(t_triangles.get(i - 1));
-          triangles.add(t_triangles.get(i));
-
-          if (t_tex.size() > 0) {
-            triangle_texture_indices.add(t_tex.get(0));
-            triangle_texture_indices.add(t_tex.get(i - 1));
-            triangle_texture_indices.add(t_tex.get(i));
+    /**
+     * Parse the line from lineStart to lineEnd.
+     */
+    private void parseLine() throws IllegalArgumentException {
+      pos = lineStart;
+      if (!nextToken() || (data.get(pos) == '#')) {
+        //line is empty or a comment, ignore
+        return;
+      }
+      byte first = data.get(pos);
+      byte second = pos + 1 < lineEnd ? data.get(pos + 1) : (byte) ' ';
+      boolean single = isSpace(second);
+      boolean pair = !single && ((pos + 2 >= lineEnd) || isSpace(data.get(pos + 2)));
+
+      if ((first == 'v') && single) {
+        pos++;
+        int count = readFloats();
+        if ((count < 3) || (count > 6))
+          throw error("Vertex coordinate has an invalid number of values");
+        float x = values[0];
+        float y = values[1];
+        float z = values[2];
+        if (count == 4) {
+          float num = values[3];
+          if (num != 0) {
+            x /= num;
+            y /= num;
+            z /= num;
           }
+        }
+        vertices.add(x, y, z, 1.0f);
+      } else if ((first == 'v') && pair && (second == 't')) {
+        pos += 2;
+        int count = readFloats();
+        if ((count < 2) || (count > 3))
+          throw error("Texture coordinate has an invalid number of values");
+        texcoords.add(values[0], values[1], count > 2 ? values[2] : 0.0f, 1.0f);
+      } else if ((first == 'v') && pair && (second == 'n')) {
+        pos += 2;
+        int count = readFloats();
+        if (count != 3)
+          throw error("Normal has an invalid number of values");
+        normal.set(values[0], values[1], values[2]).normalize();
+        normals.add(normal.x, normal.y, normal.z, 0.0f);
+      } else if ((first == 'f') && single) {
+        pos++;
+        parseFace();
+      }
+    }
 
-          if (t_normal.size() > 0) {
-            triangle_normal_indices.add(t_normal.get(0));
-            triangle_normal_indices.add(t_normal.get(i - 1));
-            triangle_normal_indices.add(t_normal.get(i));
+    /**
+     * Read the vertices of a face, and break it down into a triangle fan.
+     * Only the position indices are kept.
+     */
+    private void parseFace() throws IllegalArgumentException {
+      int count = 0;
+      int firstIndex = 0, previousIndex = 0;
+      while (nextToken()) {
+        //in OBJ file format all indices begin at 1, so must subtract 1 here
+        int index = readInt() - 1;
+        //a texture and a normal index may follow, and are checked but not kept
+        for (int k = 0; (k < 2) && (pos < lineEnd) && (data.get(pos) == '/'); k++) {
+          pos++;
+          if ((pos < lineEnd) && !isSpace(data.get(pos)) && (data.get(pos) != '/')) {
+            readInt();
           }
+        }
+        if ((pos < lineEnd) && !isSpace(data.get(pos)))
+          throw error("Face specification has an incorrect number of values");
 
+        if (count == 0) {
+          firstIndex = index;
+        } else if (count >= 2) {
+          triangles.add(firstIndex, previousIndex, index);
         }
+        previousIndex = index;
+        count++;
+      }
+      if (count < 3)
+        throw error("Face has too few vertices, must be at least 3");
+    }
 
+    /**
+     * Read the numbers up to the end of the line into values, and return how
+     * many there are. Numbers beyond the size of values are counted but not
+     * kept.
+     */
+    private int readFloats() throws IllegalArgumentException {
+      int count = 0;
+      while (nextToken()) {
+        float value = readFloat();
+        if (count < values.length) {
+          values[count] = value;
+        }
+        count++;
+      }
+      return count;
+    }
 
+    /**
+     * Skip spaces, and return whether a token starts before the end of the
+     * line.
+     */
+    private boolean nextToken() {
+      while ((pos < lineEnd) && isSpace(data.get(pos))) {
+        pos++;
       }
+      return pos < lineEnd;
     }
 
-    if (scaleAndCenter) {
-      //center about the origin and within a cube of side 1 centered at the origin
-      //find the centroid
-      Vector4f center = new Vector4f(vertices.get(0));
+    /**
+     * Check if a double may lie exactly halfway between two floats, where
+     * rounding it to a float need not give the float closest to the number it
+     * was rounded from. Doubles in the subnormal range of floats are always
+     * treated as halfway.
+     */
+    private static boolean isFloatHalfway(double value) {
+      if (value < Float.MIN_NORMAL) {
+        return value != 0;
+      }
+      //the 29 bits of the double that a float has no room for are 1000...0
+      return (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L;
+    }
 
-      Vector4f minimum = new Vector4f(center);
-      Vector4f maximum = new Vector4f(center);
+    private static boolean isSpace(byte b) {
+      return (b == ' ') || (b == '\t') || (b == '\r') || (b == '\f') || (b == 0x0B);
+    }
 
-      for (i = 1; i < vertices.size(); i++) {
-        //center = center.add(vertices.get(i).x,vertices.get(i).y,vertices.get(i).z,0.0f);
-        minimum = minimum.min(vertices.get(i));
-        maximum = maximum.max(vertices.get(i));
+    /**
+     * Read a decimal number. Numbers of up to 15 significant digits and
+     * exponents of up to 22 are converted to a double with one correctly
+     * rounded operation, and the double is rounded to a float. Rounding twice
+     * gives the same float as Float.parseFloat unless the double lands
+     * exactly halfway between two floats, so those numbers, and all others,
+     * are converted by Float.parseFloat.
+     */
+    private float readFloat() throws IllegalArgumentException {
+      int tokenStart = pos;
+      boolean negative = false;
+      byte b = data.get(pos);
+      if ((b == '-') || (b == '+')) {
+        negative = b == '-';
+        pos++;
+      }
+      long mantissa = 0;
+      int digits = 0;
+      int significant = 0;
+      int exponent = 0;
+      boolean point = false;
+      boolean exact = true;
+      while (pos < lineEnd) {
+        b = data.get(pos);
+        if ((b >= '0') && (b <= '9')) {
+          digits++;
+          if ((significant > 0) || (b != '0')) {
+            significant++;
+          }
+          if (significant <= 15) {
+            mantissa = 10 * mantissa + (b - '0');
+            if (point) {
+              exponent--;
+            }
+          } else {
+            exact = false;
+          }
+          pos++;
+        } else if ((b == '.') && !point) {
+          point = true;
+          pos++;
+        } else {
+          break;
+        }
+      }
+      if ((pos < lineEnd) && (digits > 0) && ((data.get(pos) == 'e') || (data.get(pos) == 'E'))) {
+        pos++;
+        boolean negativeExponent = false;
+        if ((pos < lineEnd) && ((data.get(pos) == '-') || (data.get(pos) == '+'))) {
+          negativeExponent = data.get(pos) == '-';
+          pos++;
+        }
+        int value = 0;
+        int exponentDigits = 0;
+        while ((pos < lineEnd) && (data.get(pos) >= '0') && (data.get(pos) <= '9')) {
+          if (value < 10000) {
+            value = 10 * value + (data.get(pos) - '0');
+          }
+          exponentDigits++;
+          pos++;
+        }
+        if (exponentDigits == 0) {
+          exact = false;
+        }
+        exponent += negativeExponent ? -value : value;
+      }
+      if ((digits == 0) || ((pos < lineEnd) && !isSpace(data.get(pos)))) {
+        exact = false;
+      }
+      if (exact && (exponent >= -22) && (exponent <= 22)) {
+        double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent]
+                : mantissa / POWERS_OF_TEN[-exponent];
+        if (!isFloatHalfway(value)) {
+          float result = (float) value;
+          return negative ? -result : result;
+        }
       }
 
-            /*
-            center.x = center.x * (1.0f/vertices.size());
-            center.y = center.y * (1.0f/vertices.size());
-            center.z = center.z * (1.0f/vertices.size());
-*/
-      center = new Vector4f(minimum).add(maximum).mul(0.5f);
+      //anything unusual, like many digits, infinity or a malformed number
+      while ((pos < lineEnd) && !isSpace(data.get(pos))) {
+        pos++;
+      }
+      String token = text(tokenStart, pos);
+      try {
+        return Float.parseFloat(token);
+      } catch (NumberFormatException e) {
+        throw error("Invalid number: " + token);
+      }
+    }
 
+    /**
+     * Read a decimal integer.
+     */
+    private int readInt() throws IllegalArgumentException {
+      int tokenStart = pos;
+      boolean negative = false;
+      if ((data.get(pos) == '-') || (data.get(pos) == '+')) {
+        negative = data.get(pos) == '-';
+        pos++;
+      }
+      long value = 0;
+      int digits = 0;
+      while ((pos < lineEnd) && (data.get(pos) >= '0') && (data.get(pos) <= '9')) {
+        value = 10 * value + (data.get(pos) - '0');
+        if (value > Integer.MAX_VALUE) {
+          throw error("Index is too large: " + text(tokenStart, pos + 1));
+        }
+        digits++;
+        pos++;
+      }
+      if (digits == 0) {
+        throw error("Face specification has an invalid index");
+      }
+      return (int) (negative ? -value : value);
+    }
 
-      float longest;
+    private String text(int from, int to) {
+      byte[] bytes = new byte[to - from];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = data.get(from + i);
+      }
+      return new String(bytes, StandardCharsets.US_ASCII);
+    }
 
+    /**
+     * Make an exception for the current line, numbering lines from the start
+     * of the file. Lines are counted only here, because a chunk does not know
+     * how many lines come before it.
+     */
+    private IllegalArgumentException error(String message) {
+      int lineno = 1;
+      for (int i = fileStart; i < lineStart; i++) {
+        if (data.get(i) == '\n') {
+          lineno++;
+        }
+      }
+      return new IllegalArgumentException("Line " + lineno + ": " + message);
+    }
+  }
 
-      longest = Math.max(maximum.x - minimum.x, Math.max(maximum.y - minimum.y, maximum.z - minimum.z));
+  /**
+   * An array of floats that grows as floats are added.
+   */
+  private static class FloatArray {
+    private float[] array;
+    private int size;
 
-      //first translate and then scale
-      Matrix4f transformMatrix = new Matrix4f().mul(new Matrix4f().scale(1.0f / longest, 1.0f / longest, 1.0f / longest))
-              .mul(new Matrix4f().translate(-center.x, -center.y, -center.z));
+    FloatArray(int capacity) {
+      array = new float[capacity];
+      size = 0;
+    }
 
-      //scale down each other
-      for (i = 0; i < vertices.size(); i++) {
-        vertices.set(i, transformMatrix.transform(vertices.get(i)));
+    void add(float a, float b, float c, float d) {
+      if (size + 4 > array.length) {
+        float[] larger = new float[Math.max(2 * array.length, size + 4)];
+        System.arraycopy(array, 0, larger, 0, size);
+        array = larger;
       }
+      array[size] = a;
+      array[size + 1] = b;
+      array[size + 2] = c;
+      array[size + 3] = d;
+      size += 4;
     }
 
-    List<K> vertexData = new ArrayList<K>();
+    int copyTo(float[] dest, int offset) {
+      System.arraycopy(array, 0, dest, offset, size);
+      return offset + size;
+    }
+  }
 
-    for (i = 0; i < vertices.size(); i++) {
-      K v = producer.produce();
-      v.setData("position", new float[]{vertices.get(i).x,
-              vertices.get(i).y,
-              vertices.get(i).z,
-              vertices.get(i).w});
-      if (texcoords.size() == vertices.size()) {
-        v.setData("texcoord", new float[]{texcoords.get(i).x,
-                texcoords.get(i).y,
-                texcoords.get(i).z,
-                texcoords.get(i).w});
-      }
-      if (normals.size() == vertices.size()) {
-        v.setData("normal", new float[]{normals.get(i).x,
-                normals.get(i).y,
-                normals.get(i).z,
-                normals.get(i).w});
-      }
+  /**
+   * An array of integers that grows as integers are added.
+   */
+  private static class IntArray {
+    private int[] array;
+    private int size;
 
-      vertexData.add(v);
+    IntArray(int capacity) {
+      array = new int[capacity];
+      size = 0;
     }
 
-    if ((normals.size() == 0) || (normals.size() != vertices.size()))
-      mesh.computeNormals();
+    void add(int a, int b, int c) {
+      if (size + 3 > array.length) {
+        int[] larger = new int[Math.max(2 * array.length, size + 3)];
+        System.arraycopy(array, 0, larger, 0, size);
+        array = larger;
+      }
+      array[size] = a;
+      array[size + 1] = b;
+      array[size + 2] = c;
+      size += 3;
+    }
 
-    mesh.setVertexData(vertexData);
-    mesh.setPrimitives(triangles);
-    mesh.setPrimitiveType(GL.GL_TRIANGLES);
-    mesh.setPrimitiveSize(3);
-    return mesh;
+    int copyTo(int[] dest, int offset) {
+      System.arraycopy(array, 0, dest, offset, size);
+      return offset + size;
+    }
   }
 };
@@ -12,7 +12,6 @@ import org.joml.*;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import com.jogamp.opengl.util.GLBuffers;
@@ -147,29 +146,22 @@ public class ObjectInstance {
    * @param mesh                       the underlying polygon mesh
    */
   protected <K extends IVertexData> void initPolygonMesh(GL3 gl, util.ShaderProgram program, util.ShaderLocationsVault shaderLocations, Map<String, String> shaderVarsToAttributeNames, util.PolygonMesh<K> mesh) {
-    int i, j;
+    int i;
 
-    //get a list of all the vertex attributes from the mesh
-    List<K> vertexDataList = mesh.getVertexAttributes();
-    List<Integer> primitives = mesh.getPrimitives();
+    //get the indices for the mesh as a IntBuffer. The buffer wraps the array
+    //of the mesh, so nothing is copied
+    IntBuffer indexBuffer = IntBuffer.wrap(mesh.primitiveArray());
 
-    //get the indices for the mesh as a IntBuffer
-    int[] primitivesAsArray = new int[primitives.size()];
-    for (i = 0; i < primitives.size(); i++) {
-      primitivesAsArray[i] = primitives.get(i);
-    }
-    IntBuffer indexBuffer = IntBuffer.wrap(primitivesAsArray);
-
-    //create a floatbuffer for all vertex attributes. When we convert an IVertexData
-    //to a bunch of floats, we must remember where each attribute starts, because
-    //we will need to give it to glVertexAttribPointer below
+    //interleave the vertex attributes into one floatbuffer. We must remember
+    //where each attribute starts, because we will need to give it to
+    //glVertexAttribPointer below
 
     int sizeOfOneVertex = 0;
     Map<String, Integer> offsets = new HashMap<String, Integer>();
 
     for (Map.Entry<String, String> e : shaderVarsToAttributeNames.entrySet()) {
       offsets.put(e.getValue(), sizeOfOneVertex);
-      sizeOfOneVertex += vertexDataList.get(0).getData(e.getValue()).length;
+      sizeOfOneVertex += mesh.getAttributeSize(e.getValue());
     }
 
     int stride;
@@ -179,14 +171,15 @@ public class ObjectInstance {
     else
       stride = 0;
 
-    float[] vertexDataAsFloats = new float[sizeOfOneVertex * vertexDataList.size()];
-    i = 0;
-    for (IVertexData v : vertexDataList) {
-      for (Map.Entry<String, String> e : shaderVarsToAttributeNames.entrySet()) {
-        float[] data = v.getData(e.getValue());
-        for (j = 0; j < data.length; j++, i++) {
-          vertexDataAsFloats[i] = data[j];
-        }
+    int vertexCount = mesh.getVertexCount();
+    float[] vertexDataAsFloats = new float[sizeOfOneVertex * vertexCount];
+    for (Map.Entry<String, String> e : shaderVarsToAttributeNames.entrySet()) {
+      float[] data = mesh.attributeArray(e.getValue());
+      int size = mesh.getAttributeSize(e.getValue());
+      int offset = offsets.get(e.getValue());
+      for (i = 0; i < vertexCount; i++) {
+        System.arraycopy(data, i * size, vertexDataAsFloats,
+                i * sizeOfOneVertex + offset, size);
       }
     }
 
@@ -229,7 +222,7 @@ public class ObjectInstance {
 
       if (shaderLocation >= 0) {
         //tell opengl how to interpret the above data
-        gl.glVertexAttribPointer(shaderLocation, vertexDataList.get(0).getData(e.getValue()).length, GL3.GL_FLOAT, false, Float.BYTES * stride, Float.BYTES * offsets.get(e.getValue()));
+        gl.glVertexAttribPointer(shaderLocation, mesh.getAttributeSize(e.getValue()), GL3.GL_FLOAT, false, Float.BYTES * stride, Float.BYTES * offsets.get(e.getValue()));
         //enable this attribute so that when rendered, this is sent to the vertex shader
         gl.glEnableVertexAttribArray(shaderLocation);
       }
@@ -267,29 +260,22 @@ public class ObjectInstance {
    * @param mesh                       the underlying polygon mesh
    */
   protected <K extends IVertexData> void initPolygonMesh(GL3 gl, util.ShaderLocationsVault shaderLocations, Map<String, String> shaderVarsToAttributeNames, util.PolygonMesh<K> mesh) {
-    int i, j;
+    int i;
 
-    //get a list of all the vertex attributes from the mesh
-    List<K> vertexDataList = mesh.getVertexAttributes();
-    List<Integer> primitives = mesh.getPrimitives();
+    //get the indices for the mesh as a IntBuffer. The buffer wraps the array
+    //of the mesh, so nothing is copied
+    IntBuffer indexBuffer = IntBuffer.wrap(mesh.primitiveArray());
 
-    //get the indices for the mesh as a IntBuffer
-    int[] primitivesAsArray = new int[primitives.size()];
-    for (i = 0; i < primitives.size(); i++) {
-      primitivesAsArray[i] = primitives.get(i);
-    }
-    IntBuffer indexBuffer = IntBuffer.wrap(primitivesAsArray);
-
-    //create a floatbuffer for all vertex attributes. When we convert an IVertexData
-    //to a bunch of floats, we must remember where each attribute starts, because
-    //we will need to give it to glVertexAttribPointer below
+    //interleave the vertex attributes into one floatbuffer. We must remember
+    //where each attribute starts, because we will need to give it to
+    //glVertexAttribPointer below
 
     int sizeOfOneVertex = 0;
     Map<String, Integer> offsets = new HashMap<String, Integer>();
 
     for (Map.Entry<String, String> e : shaderVarsToAttributeNames.entrySet()) {
       offsets.put(e.getValue(), sizeOfOneVertex);
-      sizeOfOneVertex += vertexDataList.get(0).getData(e.getValue()).length;
+      sizeOfOneVertex += mesh.getAttributeSize(e.getValue());
     }
 
     int stride;
@@ -299,14 +285,15 @@ public class ObjectInstance {
     else
       stride = 0;
 
-    float[] vertexDataAsFloats = new float[sizeOfOneVertex * vertexDataList.size()];
-    i = 0;
-    for (IVertexData v : vertexDataList) {
-      for (Map.Entry<String, String> e : shaderVarsToAttributeNames.entrySet()) {
-        float[] data = v.getData(e.getValue());
-        for (j = 0; j < data.length; j++, i++) {
-          vertexDataAsFloats[i] = data[j];
-        }
+    int vertexCount = mesh.getVertexCount();
+    float[] vertexDataAsFloats = new float[sizeOfOneVertex * vertexCount];
+    for (Map.Entry<String, String> e : shaderVarsToAttributeNames.entrySet()) {
+      float[] data = mesh.attributeArray(e.getValue());
+      int size = mesh.getAttributeSize(e.getValue());
+      int offset = offsets.get(e.getValue());
+      for (i = 0; i < vertexCount; i++) {
+        System.arraycopy(data, i * size, vertexDataAsFloats,
+                i * sizeOfOneVertex + offset, size);
       }
     }
 
@@ -347,7 +334,7 @@ public class ObjectInstance {
 
       if (shaderLocation >= 0) {
         //tell opengl how to interpret the above data
-        gl.glVertexAttribPointer(shaderLocation, vertexDataList.get(0).getData(e.getValue()).length, GL3.GL_FLOAT, false, Float.BYTES * stride, Float.BYTES * offsets.get(e.getValue()));
+        gl.glVertexAttribPointer(shaderLocation, mesh.getAttributeSize(e.getValue()), GL3.GL_FLOAT, false, Float.BYTES * stride, Float.BYTES * offsets.get(e.getValue()));
         //enable this attribute so that when rendered, this is sent to the vertex shader
         gl.glEnableVertexAttribArray(shaderLocation);
       }
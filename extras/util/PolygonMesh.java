@@ -1,6 +1,6 @@
 package util;
 
-import org.joml.*;
+import org.joml.Vector4f;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
@@ -13,29 +13,55 @@ import java.util.*;
  *
  * It stores a polygon mesh as follows:
  *
- * <ul> <li>A list of vertices: Each vertex is represented by an object that
- * stores various attributes of that vertex like position, normal, texture
- * coordinates and others.</li>
+ * <ul> <li>An array of floats for every vertex attribute, like position,
+ * normal, texture coordinates and others. The values of all vertices are
+ * packed one after the other, with a fixed number of floats per
+ * vertex.</li>
  *
- * <li>A list of indices: these are indices into the above array. This is called
- * indexed representation and allows us to share vertices between polygons
- * efficiently.</li> <li>Data about how to interpret the indices (e.g. read 3 at
- * a time to form a triangle, read to make a triangle fan, etc.)</li> <li>How
- * many indices make a polygon (2 for line, 3 for triangle, 4 for quad,
+ * <li>An array of indices: these are indices into the above arrays. This is
+ * called indexed representation and allows us to share vertices between
+ * polygons efficiently.</li> <li>Data about how to interpret the indices (e.g.
+ * read 3 at a time to form a triangle, read to make a triangle fan, etc.)</li>
+ * <li>How many indices make a polygon (2 for line, 3 for triangle, 4 for quad,
  * etc.)</li> </ul>
+ *
+ * The packed arrays can be read without copying through read-only buffers.
+ * Lists of vertex objects are still accepted and returned for compatibility.
+ * A mesh that knows a {@link VertexProducer} creates such vertex objects only
+ * when they are asked for. A mesh without one keeps the vertex objects it was
+ * given, and keeps them up to date when its data changes.
  */
 
 public class PolygonMesh<VertexType extends IVertexData> {
+  protected VertexProducer<VertexType> producer;
   protected List<VertexType> vertexData;
-  protected List<Integer> primitives;
+  protected Map<String, float[]> attributeData;
+  protected Map<String, Integer> attributeSizes;
+  protected int vertexCount;
+  protected int[] primitives;
   protected int primitiveType;
   protected int primitiveSize;
 
   protected Vector4f minBounds, maxBounds; //bounding box
 
   public PolygonMesh() {
-    vertexData = new ArrayList<VertexType>();
-    primitives = new ArrayList<Integer>();
+    this(null);
+  }
+
+  /**
+   * Create an empty polygon mesh that creates its vertex objects with the
+   * given producer, only when they are asked for.
+   *
+   * @param producer the producer of vertex objects, or null if the vertex
+   *                 objects given to setVertexData should be kept
+   */
+  public PolygonMesh(VertexProducer<VertexType> producer) {
+    this.producer = producer;
+    vertexData = null;
+    attributeData = new LinkedHashMap<String, float[]>();
+    attributeSizes = new HashMap<String, Integer>();
+    vertexCount = 0;
+    primitives = new int[0];
     primitiveType = primitiveSize = 0;
     minBounds = new Vector4f();
     maxBounds = new Vector4f();
@@ -65,12 +91,16 @@ public class PolygonMesh<VertexType extends IVertexData> {
     return primitiveSize;
   }
 
+  /**
+   * Get the number of indices, which is the number of primitives times the
+   * primitive size.
+   */
   public int getPrimitiveCount() {
-    return primitives.size();
+    return primitives.length;
   }
 
   public int getVertexCount() {
-    return vertexData.size();
+    return vertexCount;
   }
 
 
@@ -82,24 +112,229 @@ public class PolygonMesh<VertexType extends IVertexData> {
     return new Vector4f(maxBounds);
   }
 
+  /**
+   * Get the names of all vertex attributes stored in this mesh.
+   */
+  public String[] getAttributeNames() {
+    return attributeData.keySet().toArray(new String[0]);
+  }
+
+  public boolean hasAttribute(String attribName) {
+    return attributeData.containsKey(attribName);
+  }
+
+  /**
+   * Get how many floats a vertex attribute has per vertex.
+   *
+   * @param attribName the name of the attribute
+   * @return the number of floats per vertex
+   * @throws IllegalArgumentException if there is no such attribute
+   */
+  public int getAttributeSize(String attribName) throws IllegalArgumentException {
+    Integer size = attributeSizes.get(attribName);
+    if (size == null) {
+      throw new IllegalArgumentException("No attribute: " + attribName + " found!");
+    }
+    return size;
+  }
+
+  /**
+   * Get the values of a vertex attribute for all vertices, packed one vertex
+   * after the other, as a read-only buffer. The buffer is a view of the data
+   * in this mesh, not a copy.
+   *
+   * @param attribName the name of the attribute
+   * @return the values of the attribute
+   * @throws IllegalArgumentException if there is no such attribute
+   */
+  public FloatBuffer getAttributeData(String attribName) throws IllegalArgumentException {
+    return FloatBuffer.wrap(attributeArray(attribName)).asReadOnlyBuffer();
+  }
+
+  /**
+   * Get the indices as a read-only buffer. The buffer is a view of the
+   * indices in this mesh, not a copy.
+   */
+  public IntBuffer getPrimitiveData() {
+    return IntBuffer.wrap(primitives).asReadOnlyBuffer();
+  }
+
+  /**
+   * Get the array that holds the values of a vertex attribute. This is for
+   * classes in this package that must hand the array to OpenGL or a writer
+   * without copying it, and must not change it.
+   */
+  float[] attributeArray(String attribName) throws IllegalArgumentException {
+    float[] data = attributeData.get(attribName);
+    if (data == null) {
+      throw new IllegalArgumentException("No attribute: " + attribName + " found!");
+    }
+    return data;
+  }
+
+  /**
+   * Get the array that holds the indices. This is for classes in this package
+   * that must hand the array to OpenGL or a writer without copying it, and
+   * must not change it.
+   */
+  int[] primitiveArray() {
+    return primitives;
+  }
 
+  /**
+   * Get the vertices as a list of vertex objects. The objects are created from
+   * the packed data if this mesh has a producer, otherwise they are the
+   * objects given to setVertexData.
+   */
   public List<VertexType> getVertexAttributes() {
-    return new ArrayList<VertexType>(vertexData);
+    if (vertexData != null) {
+      return new ArrayList<VertexType>(vertexData);
+    }
+    List<VertexType> result = new ArrayList<VertexType>(vertexCount);
+    if (producer == null) {
+      return result;
+    }
+    for (int i = 0; i < vertexCount; i++) {
+      VertexType v = producer.produce();
+      for (Map.Entry<String, float[]> e : attributeData.entrySet()) {
+        int size = attributeSizes.get(e.getKey());
+        v.setData(e.getKey(), Arrays.copyOfRange(e.getValue(), i * size, (i + 1) * size));
+      }
+      result.add(v);
+    }
+    return result;
   }
 
+  /**
+   * Get the indices as a list. This copies all indices, so getPrimitiveData
+   * should be preferred for large meshes.
+   */
   public List<Integer> getPrimitives() {
-    return new ArrayList<Integer>(primitives);
+    List<Integer> result = new ArrayList<Integer>(primitives.length);
+    for (int index : primitives) {
+      result.add(index);
+    }
+    return result;
   }
 
 
+  /**
+   * Set the vertices from a list of vertex objects. The attributes present in
+   * the first vertex are packed into arrays.
+   */
   public void setVertexData(List<VertexType> vp) {
-    vertexData = new ArrayList<VertexType>(vp);
+    attributeData.clear();
+    attributeSizes.clear();
+    vertexCount = vp.size();
+    if (vertexCount > 0) {
+      VertexType first = vp.get(0);
+      for (String name : first.getAllAttributes()) {
+        if (!first.hasData(name)) {
+          continue;
+        }
+        int size = first.getData(name).length;
+        float[] data = new float[size * vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+          VertexType v = vp.get(i);
+          if (v.hasData(name)) {
+            float[] values = v.getData(name);
+            System.arraycopy(values, 0, data, i * size, Math.min(size, values.length));
+          }
+        }
+        attributeData.put(name, data);
+        attributeSizes.put(name, size);
+      }
+    }
+    vertexData = producer == null ? new ArrayList<VertexType>(vp) : null;
     computeBoundingBox();
   }
 
+  /**
+   * Set the values of a vertex attribute for all vertices, packed one vertex
+   * after the other. The array is kept by this mesh without copying, and must
+   * not be changed afterwards. The first attribute set on an empty mesh
+   * decides the number of vertices.
+   *
+   * @param attribName the name of the attribute
+   * @param size       the number of floats per vertex
+   * @param data       the values of the attribute
+   * @throws IllegalArgumentException if the data does not fit the number of
+   *                                  vertices of this mesh
+   */
+  public void setAttributeData(String attribName, int size, float[] data)
+          throws IllegalArgumentException {
+    setAttributeData(attribName, size, data, true);
+  }
+
+  /**
+   * Set the values of a vertex attribute, and compute the bounding box from
+   * the positions only if asked to. This is for classes in this package that
+   * know the bounding box already and set it with setBounds.
+   */
+  void setAttributeData(String attribName, int size, float[] data,
+                        boolean computeBounds) throws IllegalArgumentException {
+    if ((size <= 0) || (data.length % size != 0)) {
+      throw new IllegalArgumentException("Attribute: " + attribName
+              + " must have a positive size that divides its data");
+    }
+    boolean empty = attributeData.isEmpty()
+            || ((attributeData.size() == 1) && attributeData.containsKey(attribName));
+    if (!empty && (data.length / size != vertexCount)) {
+      throw new IllegalArgumentException("Attribute: " + attribName + " has "
+              + data.length / size + " vertices, but the mesh has " + vertexCount);
+    }
+    if (empty && (vertexData != null) && (data.length / size != vertexData.size())) {
+      // the kept vertex objects no longer match
+      vertexData = null;
+    }
+    vertexCount = data.length / size;
+    attributeData.put(attribName, data);
+    attributeSizes.put(attribName, size);
+    updateVertexObjects(attribName);
+    if (computeBounds && attribName.equals("position")) {
+      computeBoundingBox();
+    }
+  }
+
+  /**
+   * Set the bounding box of this polygon mesh, for classes in this package
+   * that know it already.
+   */
+  void setBounds(Vector4f min, Vector4f max) {
+    minBounds = new Vector4f(min);
+    maxBounds = new Vector4f(max);
+  }
+
 
   public void setPrimitives(List<Integer> t) {
-    primitives = new ArrayList<Integer>(t);
+    primitives = new int[t.size()];
+    for (int i = 0; i < primitives.length; i++) {
+      primitives[i] = t.get(i);
+    }
+  }
+
+  /**
+   * Set the indices. The array is kept by this mesh without copying, and must
+   * not be changed afterwards.
+   */
+  public void setPrimitives(int[] t) {
+    primitives = t;
+  }
+
+  /**
+   * Copy the values of an attribute into the kept vertex objects, if there are
+   * any.
+   */
+  protected void updateVertexObjects(String attribName) {
+    if (vertexData == null) {
+      return;
+    }
+    float[] data = attributeData.get(attribName);
+    int size = attributeSizes.get(attribName);
+    for (int i = 0; i < vertexData.size(); i++) {
+      vertexData.get(i).setData(attribName,
+              Arrays.copyOfRange(data, i * size, (i + 1) * size));
+    }
   }
 
   /**
@@ -109,138 +344,142 @@ public class PolygonMesh<VertexType extends IVertexData> {
   protected void computeBoundingBox() {
     int j;
 
-    if (vertexData.size() <= 0)
+    if (vertexCount <= 0)
       return;
 
-    if (!vertexData.get(0).hasData("position")) {
+    if (!hasAttribute("position")) {
       return;
     }
 
-    List<Vector4f> positions = new ArrayList<Vector4f>();
-
-    for (IVertexData v : vertexData) {
-      float[] data = v.getData("position");
-      Vector4f pos = new Vector4f(0, 0, 0, 1);
-      switch (data.length) {
-        case 4:
-          pos.w = data[3];
-        case 3:
-          pos.z = data[2];
-        case 2:
-          pos.y = data[1];
-        case 1:
-          pos.x = data[0];
-      }
-      positions.add(pos);
-    }
+    float[] positions = attributeData.get("position");
+    int size = attributeSizes.get("position");
 
-    minBounds = new Vector4f(positions.get(0));
-    maxBounds = new Vector4f(positions.get(0));
+    minBounds = position(positions, size, 0);
+    maxBounds = position(positions, size, 0);
 
-    for (j = 0; j < positions.size(); j++) {
-      Vector4f p = positions.get(j);
+    for (j = 0; j < vertexCount; j++) {
+      float x = positions[j * size];
+      float y = size > 1 ? positions[j * size + 1] : 0;
+      float z = size > 2 ? positions[j * size + 2] : 0;
 
-      if (p.x < minBounds.x) {
-        minBounds.x = p.x;
+      if (x < minBounds.x) {
+        minBounds.x = x;
       }
 
-      if (p.x > maxBounds.x) {
-        maxBounds.x = p.x;
+      if (x > maxBounds.x) {
+        maxBounds.x = x;
       }
 
-      if (p.y < minBounds.y) {
-        minBounds.y = p.y;
+      if (y < minBounds.y) {
+        minBounds.y = y;
       }
 
-      if (p.y > maxBounds.y) {
-        maxBounds.y = p.y;
+      if (y > maxBounds.y) {
+        maxBounds.y = y;
       }
 
-      if (p.z < minBounds.z) {
-        minBounds.z = p.z;
+      if (z < minBounds.z) {
+        minBounds.z = z;
       }
 
-      if (p.z > maxBounds.z) {
-        maxBounds.z = p.z;
+      if (z > maxBounds.z) {
+        maxBounds.z = z;
       }
     }
   }
 
+  /**
+   * Read the position of a vertex from packed data, filling in missing
+   * coordinates as 0 and a missing w as 1.
+   */
+  private static Vector4f position(float[] positions, int size, int vertex) {
+    Vector4f pos = new Vector4f(0, 0, 0, 1);
+    int offset = vertex * size;
+    switch (size) {
+      default:
+      case 4:
+        pos.w = positions[offset + 3];
+      case 3:
+        pos.z = positions[offset + 2];
+      case 2:
+        pos.y = positions[offset + 1];
+      case 1:
+        pos.x = positions[offset];
+    }
+    return pos;
+  }
+
   /**
    * Compute vertex normals in this polygon mesh using Newell's method, if
    * position data exists
    */
 
   public void computeNormals() {
-    int i, j, k;
+    int i, k;
 
-    if (vertexData.size() <= 0)
+    if (vertexCount <= 0)
       return;
 
-    if (!vertexData.get(0).hasData("position")) {
+    if (!hasAttribute("position")) {
       return;
     }
 
-    if (!vertexData.get(0).hasData("normal"))
+    if (!hasAttribute("normal"))
       return;
 
-    List<Vector4f> positions = new ArrayList<Vector4f>();
-
-    for (IVertexData v : vertexData) {
-      float[] data = v.getData("position");
-      Vector4f pos = new Vector4f(0, 0, 0, 1);
-      switch (data.length) {
-        case 4:
-          pos.w = data[3];
-        case 3:
-          pos.z = data[2];
-        case 2:
-          pos.y = data[1];
-        case 1:
-          pos.x = data[0];
-      }
-      positions.add(pos);
-    }
-    List<Vector4f> normals = new ArrayList<Vector4f>();
-
-    for (i = 0; i < positions.size(); i++) {
-      normals.add(new Vector4f(0.0f, 0.0f, 0.0f, 0.0f));
+    float[] positions = attributeData.get("position");
+    int positionSize = attributeSizes.get("position");
+    float[] px = new float[vertexCount];
+    float[] py = new float[vertexCount];
+    float[] pz = new float[vertexCount];
+    for (i = 0; i < vertexCount; i++) {
+      Vector4f pos = position(positions, positionSize, i);
+      px[i] = pos.x;
+      py[i] = pos.y;
+      pz[i] = pos.z;
     }
 
-    for (i = 0; i < primitives.size(); i += primitiveSize) {
-      Vector4f norm = new Vector4f(0.0f, 0.0f, 0.0f, 0.0f);
-
+    float[] normals = new float[3 * vertexCount];
+    Vector4f norm = new Vector4f();
 
-      //compute the normal of this triangle
-      int[] v = new int[primitiveSize];
-
-      for (k = 0; k < primitiveSize; k++) {
-        v[k] = primitives.get(i + k);
-      }
+    for (i = 0; i + primitiveSize <= primitives.length && primitiveSize > 0; i += primitiveSize) {
+      norm.set(0.0f, 0.0f, 0.0f, 0.0f);
 
       //the newell's method to calculate normal
 
       for (k = 0; k < primitiveSize; k++) {
-        norm.x += (positions.get(v[k]).y - positions.get(v[(k + 1) % primitiveSize]).y) * (positions.get(v[k]).z + positions.get(v[(k + 1) % primitiveSize]).z);
-        norm.y += (positions.get(v[k]).z - positions.get(v[(k + 1) % primitiveSize]).z) * (positions.get(v[k]).x + positions.get(v[(k + 1) % primitiveSize]).x);
-        norm.z += (positions.get(v[k]).x - positions.get(v[(k + 1) % primitiveSize]).x) * (positions.get(v[k]).y + positions.get(v[(k + 1) % primitiveSize]).y);
+        int a = primitives[i + k];
+        int b = primitives[i + (k + 1) % primitiveSize];
+        norm.x += (py[a] - py[b]) * (pz[a] + pz[b]);
+        norm.y += (pz[a] - pz[b]) * (px[a] + px[b]);
+        norm.z += (px[a] - px[b]) * (py[a] + py[b]);
+      }
+      //a face of zero area has no normal, and would make its vertices NaN
+      if (norm.lengthSquared() == 0.0f) {
+        continue;
       }
       norm = norm.normalize();
 
 
       for (k = 0; k < primitiveSize; k++) {
-        normals.set(v[k], normals.get(v[k]).add(norm));
+        int v = primitives[i + k];
+        normals[3 * v] += norm.x;
+        normals[3 * v + 1] += norm.y;
+        normals[3 * v + 2] += norm.z;
       }
     }
 
-    for (i = 0; i < normals.size(); i++) {
-      normals.set(i, normals.get(i).normalize());
-    }
-    for (i = 0; i < vertexData.size(); i++) {
-      vertexData.get(i).setData("normal", new float[]{normals.get(i).x,
-              normals.get(i).y,
-              normals.get(i).z,
-              normals.get(i).w});
+    int normalSize = attributeSizes.get("normal");
+    float[] result = new float[normalSize * vertexCount];
+    for (i = 0; i < vertexCount; i++) {
+      norm.set(normals[3 * i], normals[3 * i + 1], normals[3 * i + 2], 0.0f);
+      if (norm.lengthSquared() > 0.0f) {
+        norm.normalize();
+      }
+      float[] values = {norm.x, norm.y, norm.z, norm.w};
+      System.arraycopy(values, 0, result, i * normalSize, Math.min(normalSize, 4));
     }
+    attributeData.put("normal", result);
+    updateVertexObjects("normal");
   }
 }
@@ -1,7 +1,10 @@
 package util;
 
 import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GLContext;
+import com.jogamp.opengl.GLProfile;
 import com.jogamp.opengl.util.texture.Texture;
+import com.jogamp.opengl.util.texture.TextureData;
 import com.jogamp.opengl.util.texture.TextureIO;
 
 import org.joml.Vector4f;
@@ -9,35 +12,158 @@ import org.joml.Vector4f;
 import javax.imageio.ImageIO;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.awt.Color;
 
 /**
- * A class that represents an image. Provides a function for bilinear
- * interpolation
+ * A class that represents an image. Provides functions for bilinear
+ * and trilinear interpolation.
+ *
+ * The image is decoded once into packed ARGB integers, and a chain of
+ * mipmaps is built by averaging 2x2 blocks of texels until the image is
+ * 1x1. Sampling reads these arrays directly and can write the color into
+ * a vector supplied by the caller, so it allocates nothing.
+ *
+ * Decoding and making the OpenGL texture are separate steps. The image can
+ * be decoded on any thread, and {@link #upload(GL)} then makes the texture
+ * on the thread that owns the OpenGL context.
  */
 public class TextureImage {
-  private BufferedImage image;
   private String name;
+  private String filepath;
+  private String imageFormat;
   private Texture texture;
+  private TextureData textureData;
+  private int[][] levels;
+  private int[] widths;
+  private int[] heights;
 
+  /**
+   * Read an image, and make its texture if an OpenGL context is current on
+   * this thread.
+   *
+   * @param filepath the path of the image on the class path
+   * @param imageFormat the format of the image, such as "png"
+   * @param name the name of the texture
+   * @throws IOException if the image cannot be read
+   */
   public TextureImage(String filepath, String imageFormat, String name) throws IOException {
-    //read the image
+    this(filepath, imageFormat, name, currentProfile());
+    GLContext context = GLContext.getCurrent();
+    if (context != null) {
+      upload(context.getGL());
+    }
+  }
+
+  /**
+   * Read and decode an image without making its texture. This does not need
+   * an OpenGL context, so it may be called on any thread. If a profile is
+   * given, the texture data is decoded for it as well, and only has to be
+   * sent to OpenGL by {@link #upload(GL)}. Without a profile, TextureIO is
+   * not used at all, so an image for the ray tracer alone can be read on a
+   * machine without OpenGL.
+   *
+   * @param filepath the path of the image on the class path
+   * @param imageFormat the format of the image, such as "png"
+   * @param name the name of the texture
+   * @param profile the profile of the context the texture will be made in,
+   *                or null to decode the texture data when it is made
+   * @throws IOException if the image cannot be read
+   */
+  public TextureImage(String filepath, String imageFormat, String name, GLProfile profile)
+      throws IOException {
     InputStream in = getClass().getClassLoader().getResourceAsStream(filepath);
+    if (in == null) {
+      throw new IOException("Image " + filepath + " not found");
+    }
+    byte[] data;
     try {
-      texture = TextureIO.newTexture(in, true, imageFormat);
+      data = readAll(in);
+    } finally {
+      in.close();
     }
-    catch (Exception e) {}
-    in.close();
-    in = getClass().getClassLoader().getResourceAsStream(filepath);
-    image = ImageIO.read(in);
-    in.close();
     this.name = new String(name);
+    this.filepath = filepath;
+    this.imageFormat = imageFormat;
+    if (profile != null) {
+      textureData = decodeTextureData(profile, data);
+    }
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+    if (image == null) {
+      throw new IOException("Image " + filepath + " has an unknown format");
+    }
+    buildLevels(image);
+  }
+
+  /**
+   * Make the texture of this image in the current OpenGL context, if it has
+   * not been made yet. This must be called on the thread that owns the
+   * context. If the texture data was not decoded with the image, it is
+   * decoded now.
+   *
+   * @param gl the current OpenGL context
+   */
+  public void upload(GL gl) {
+    if (texture != null) {
+      return;
+    }
+    if (textureData == null) {
+      try (InputStream in = getClass().getClassLoader().getResourceAsStream(filepath)) {
+        textureData = in != null ? decodeTextureData(gl.getGLProfile(), readAll(in)) : null;
+      } catch (IOException e) {
+        textureData = null;
+      }
+    }
+    if (textureData != null) {
+      texture = new Texture(gl, textureData);
+      textureData.flush();
+      textureData = null;
+    }
   }
 
+  /**
+   * Decode the texture data of an image for a profile, or return null if
+   * the format of the image is not supported by the texture reader.
+   */
+  private TextureData decodeTextureData(GLProfile profile, byte[] data) {
+    try {
+      return TextureIO.newTextureData(profile, new ByteArrayInputStream(data), true,
+          imageFormat);
+    }
+    catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Read the bytes of an image stream to its end.
+   */
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 1 << 16));
+    byte[] buffer = new byte[1 << 16];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Get the profile of the OpenGL context that is current on this thread, or
+   * null if there is none.
+   */
+  private static GLProfile currentProfile() {
+    GLContext context = GLContext.getCurrent();
+    return context != null ? context.getGL().getGLProfile() : null;
+  }
+
+  /**
+   * Get the OpenGL texture of this image, or null if it has not been made.
+   */
   public Texture getTexture() {
     return texture;
   }
@@ -46,42 +172,196 @@ public class TextureImage {
     return name;
   }
 
-  public Vector4f getColor(float x, float y) {
-    int x1, y1, x2, y2;
+  public String getPath() {
+    return filepath;
+  }
 
-    x = x - (int) x; //GL_REPEAT
-    y = y - (int) y; //GL_REPEAT
+  public int getWidth() {
+    return widths[0];
+  }
 
-    x1 = (int) (x * image.getWidth());
-    y1 = (int) (y * image.getHeight());
+  public int getHeight() {
+    return heights[0];
+  }
 
-    x1 = (x1 + image.getWidth()) % image.getWidth();
-    y1 = (y1 + image.getHeight()) % image.getHeight();
+  /**
+   * Get the number of mipmap levels, including the image itself.
+   */
+  public int getLevelCount() {
+    return levels.length;
+  }
 
-    x2 = x1 + 1;
-    y2 = y1 + 1;
+  /**
+   * Get the color at a texture coordinate with bilinear interpolation of
+   * the full size image.
+   *
+   * @param x the x texture coordinate, repeated outside [0,1]
+   * @param y the y texture coordinate, repeated outside [0,1]
+   * @return the color as a new vector
+   */
+  public Vector4f getColor(float x, float y) {
+    return getColor(x, y, new Vector4f());
+  }
+
+  /**
+   * Get the color at a texture coordinate with bilinear interpolation of
+   * the full size image, and store it in a vector.
+   *
+   * @param x the x texture coordinate, repeated outside [0,1]
+   * @param y the y texture coordinate, repeated outside [0,1]
+   * @param dest the vector where the color is stored
+   * @return dest
+   */
+  public Vector4f getColor(float x, float y, Vector4f dest) {
+    dest.set(0, 0, 0, 0);
+    addBilinear(0, x, y, 1, dest);
+    return dest;
+  }
+
+  /**
+   * Get the color at a texture coordinate with trilinear interpolation,
+   * and store it in a vector. The mipmap level is chosen so that one of
+   * its texels covers about the footprint, and the two nearest levels are
+   * blended.
+   *
+   * @param x the x texture coordinate, repeated outside [0,1]
+   * @param y the y texture coordinate, repeated outside [0,1]
+   * @param footprint the width of the sampled area in texture
+   *                  coordinates. 0 samples the full size image.
+   * @param dest the vector where the color is stored
+   * @return dest
+   */
+  public Vector4f getColor(float x, float y, float footprint, Vector4f dest) {
+    float size = footprint * Math.max(widths[0], heights[0]);
+    dest.set(0, 0, 0, 0);
+    if (!(size > 1)) {
+      addBilinear(0, x, y, 1, dest);
+      return dest;
+    }
+    // log2 of the size, with the fraction approximated linearly between powers of 2
+    int exponent = Math.getExponent(size);
+    float lod = exponent + size / Math.scalb(1f, exponent) - 1;
+    if (lod >= levels.length - 1) {
+      addBilinear(levels.length - 1, x, y, 1, dest);
+    } else {
+      int level = (int) lod;
+      float weight = lod - level;
+      addBilinear(level, x, y, 1 - weight, dest);
+      addBilinear(level + 1, x, y, weight, dest);
+    }
+    return dest;
+  }
 
-    if (x2 >= image.getWidth())
-      x2 = image.getWidth() - 1;
+  /**
+   * Interpolate the four texels around a texture coordinate in a mipmap
+   * level, and add the weighted color to a vector. Texel centers lie at
+   * half texel offsets, and texels wrap around the edges like GL_REPEAT.
+   */
+  private void addBilinear(int level, float x, float y, float weight, Vector4f dest) {
+    int width = widths[level];
+    int height = heights[level];
+    int[] texels = levels[level];
 
-    if (y2 >= image.getHeight())
-      y2 = image.getHeight() - 1;
+    float fx = (x - floor(x)) * width - 0.5f;
+    float fy = (y - floor(y)) * height - 0.5f;
+    int x1 = floor(fx);
+    int y1 = floor(fy);
+    float tx = fx - x1;
+    float ty = fy - y1;
 
-    Vector4f one = ColorToVector4f(new Color(image.getRGB(x1, y1)));
-    Vector4f two = ColorToVector4f(new Color(image.getRGB(x2, y1)));
-    Vector4f three = ColorToVector4f(new Color(image.getRGB(x1, y2)));
-    Vector4f four = ColorToVector4f(new Color(image.getRGB(x2, y2)));
+    // x1 and y1 are at least -1, and x2 and y2 at most the size
+    int x2 = x1 + 1;
+    int y2 = y1 + 1;
+    if (x1 < 0) {
+      x1 = width - 1;
+    }
+    if (x2 >= width) {
+      x2 = 0;
+    }
+    if (y1 < 0) {
+      y1 = height - 1;
+    }
+    if (y2 >= height) {
+      y2 = 0;
+    }
 
-    Vector4f inter1 = one.lerp(three, y - (int)y);
-    Vector4f inter2 = two.lerp(four, y - (int)y);
-    Vector4f inter3 = inter1.lerp(inter2, x - (int)x);
+    int one = texels[y1 * width + x1];
+    int two = texels[y1 * width + x2];
+    int three = texels[y2 * width + x1];
+    int four = texels[y2 * width + x2];
 
-    return inter3;
+    float w1 = (1 - tx) * (1 - ty) * weight / 255;
+    float w2 = tx * (1 - ty) * weight / 255;
+    float w3 = (1 - tx) * ty * weight / 255;
+    float w4 = tx * ty * weight / 255;
+    dest.x += w1 * ((one >> 16) & 0xff) + w2 * ((two >> 16) & 0xff)
+        + w3 * ((three >> 16) & 0xff) + w4 * ((four >> 16) & 0xff);
+    dest.y += w1 * ((one >> 8) & 0xff) + w2 * ((two >> 8) & 0xff)
+        + w3 * ((three >> 8) & 0xff) + w4 * ((four >> 8) & 0xff);
+    dest.z += w1 * (one & 0xff) + w2 * (two & 0xff)
+        + w3 * (three & 0xff) + w4 * (four & 0xff);
+    dest.w += w1 * ((one >>> 24) & 0xff) + w2 * ((two >>> 24) & 0xff)
+        + w3 * ((three >>> 24) & 0xff) + w4 * ((four >>> 24) & 0xff);
   }
 
-  private Vector4f ColorToVector4f(Color c) {
-    return new Vector4f((float) c.getRed() / 255, (float) c.getGreen() / 255, (float) c.getBlue() / 255, (float) c.getAlpha() / 255);
+  /**
+   * Round down to an integer, without the conversions to and from double of Math.floor.
+   */
+  private static int floor(float value) {
+    int result = (int) value;
+    return value < result ? result - 1 : result;
   }
 
+  /**
+   * Decode the image into packed ARGB texels, and build the mipmaps.
+   */
+  private void buildLevels(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int count = 1;
+    for (int size = Math.max(width, height); size > 1; size = (size + 1) / 2) {
+      count++;
+    }
+    levels = new int[count][];
+    widths = new int[count];
+    heights = new int[count];
+    levels[0] = image.getRGB(0, 0, width, height, null, 0, width);
+    widths[0] = width;
+    heights[0] = height;
 
+    for (int level = 1; level < count; level++) {
+      int srcWidth = widths[level - 1];
+      int srcHeight = heights[level - 1];
+      int[] src = levels[level - 1];
+      int dstWidth = Math.max(1, (srcWidth + 1) / 2);
+      int dstHeight = Math.max(1, (srcHeight + 1) / 2);
+      int[] dst = new int[dstWidth * dstHeight];
+      for (int j = 0; j < dstHeight; j++) {
+        int j1 = Math.min(2 * j, srcHeight - 1);
+        int j2 = Math.min(2 * j + 1, srcHeight - 1);
+        for (int i = 0; i < dstWidth; i++) {
+          int i1 = Math.min(2 * i, srcWidth - 1);
+          int i2 = Math.min(2 * i + 1, srcWidth - 1);
+          dst[j * dstWidth + i] = average(src[j1 * srcWidth + i1], src[j1 * srcWidth + i2],
+              src[j2 * srcWidth + i1], src[j2 * srcWidth + i2]);
+        }
+      }
+      levels[level] = dst;
+      widths[level] = dstWidth;
+      heights[level] = dstHeight;
+    }
+  }
+
+  /**
+   * Average four packed ARGB colors, channel by channel.
+   */
+  private static int average(int a, int b, int c, int d) {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 8) {
+      int sum = ((a >>> shift) & 0xff) + ((b >>> shift) & 0xff)
+          + ((c >>> shift) & 0xff) + ((d >>> shift) & 0xff);
+      result |= ((sum + 2) >> 2) << shift;
+    }
+    return result;
+  }
 }